@@ -25,6 +25,7 @@ import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
 import java.util.List;
 
 import org.apache.logging.log4j.core.config.Configurator;
@@ -45,6 +46,7 @@ import com.google.common.collect.Lists;
 import com.google.common.io.Closeables;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element.ElementFactory;
+import com.zimbra.common.soap.Element.JSONElement;
 import com.zimbra.common.soap.Element.XMLElement;
 import com.zimbra.common.util.ZimbraLog;
 
@@ -889,4 +891,90 @@ public class ElementTest {
                 ZimbraLog.elapsedTime(start, System.currentTimeMillis()));
     }
 
+    private static Iterator<Element> generate(final ElementFactory factory, final int from, final int to) {
+        return new Iterator<Element>() {
+            private int next = from;
+
+            @Override
+            public boolean hasNext() {
+                return next < to;
+            }
+
+            @Override
+            public Element next() {
+                Element m = factory.createElement("m").addAttribute("id", next++);
+                m.addNonUniqueElement("su").setText("subject \u00e9 " + next);
+                return m;
+            }
+        };
+    }
+
+    @Test
+    public void streamedElements() throws Exception {
+        for (ElementFactory factory : new ElementFactory[] { XMLElement.mFactory, JSONElement.mFactory }) {
+            Element expected = factory.createElement("SearchResponse").addAttribute("more", true);
+            Element streamed = factory.createElement("SearchResponse").addAttribute("more", true);
+            for (Iterator<Element> it = generate(factory, 0, 4); it.hasNext(); ) {
+                expected.addNonUniqueElement(it.next());
+            }
+            expected.addNonUniqueElement("c").addAttribute("id", 10);
+            streamed.addNonUniqueElement(generate(factory, 0, 1).next());
+            streamed.addStreamedElements("m", generate(factory, 1, 4));
+            streamed.addNonUniqueElement("c").addAttribute("id", 10);
+
+            // logging doesn't use up the elements
+            Assert.assertTrue(streamed.prettyPrint().contains("streamed <m> elements"));
+            Assert.assertTrue(streamed.toString().contains("streamed <m> elements"));
+            Assert.assertEquals(expected.toString(), new String(streamed.toUTF8(), StandardCharsets.UTF_8));
+            try {
+                streamed.toUTF8();
+                Assert.fail("streamed elements serialized twice");
+            } catch (IllegalStateException expectedException) {
+            }
+            Assert.assertTrue(streamed.toString().contains("streamed <m> elements"));
+        }
+
+        // an Iterable generates the elements for every serialization, logging included
+        for (final ElementFactory factory : new ElementFactory[] { XMLElement.mFactory, JSONElement.mFactory }) {
+            Element expected = factory.createElement("SearchResponse");
+            for (Iterator<Element> it = generate(factory, 0, 3); it.hasNext(); ) {
+                expected.addNonUniqueElement(it.next());
+            }
+            Element streamed = factory.createElement("SearchResponse");
+            streamed.addStreamedElements("m", new Iterable<Element>() {
+                @Override
+                public Iterator<Element> iterator() {
+                    return generate(factory, 0, 3);
+                }
+            });
+            Assert.assertEquals(expected.prettyPrint(), streamed.prettyPrint());
+            Assert.assertEquals(expected.toString(), streamed.toString());
+            Assert.assertEquals(expected.toString(), new String(streamed.toUTF8(), StandardCharsets.UTF_8));
+            Assert.assertEquals(expected.toString(), new String(streamed.toUTF8(), StandardCharsets.UTF_8));
+        }
+
+        Element empty = new JSONElement("SearchResponse");
+        empty.addStreamedElements("m", generate(JSONElement.mFactory, 0, 0));
+        Assert.assertEquals("{\"m\":[]}", new String(empty.toUTF8(), StandardCharsets.UTF_8));
+        empty = new XMLElement("SearchResponse");
+        empty.addStreamedElements("m", generate(XMLElement.mFactory, 0, 0));
+        Assert.assertEquals("<SearchResponse></SearchResponse>", new String(empty.toUTF8(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void toUTF8() throws Exception {
+        // two- and three-byte characters, a surrogate pair and an unpaired surrogate
+        String text = "caf\u00e9 \u20ac \ud83d\ude00 \ud800x";
+        for (ElementFactory factory : new ElementFactory[] { XMLElement.mFactory, JSONElement.mFactory }) {
+            Element elt = factory.createElement("note").addAttribute("text", text);
+            elt.addNonUniqueElement("content").setText(text);
+            Assert.assertArrayEquals(elt.toString().getBytes(StandardCharsets.UTF_8), elt.toUTF8());
+        }
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            big.append("\ud83d\ude00");
+        }
+        Element elt = new XMLElement("big").setText(big.toString());
+        Assert.assertArrayEquals(elt.toString().getBytes(StandardCharsets.UTF_8), elt.toUTF8());
+    }
 }
@@ -0,0 +1,113 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void buckets() {
+        for (long value = 0; value < 1L << 36; value = value * 3 / 2 + 1) {
+            int bucket = Histogram.bucket(value);
+            Assert.assertTrue(value <= Histogram.upperBound(bucket));
+            Assert.assertTrue(bucket == 0 || value > Histogram.upperBound(bucket - 1));
+            // never more than 1/16th above the value
+            Assert.assertTrue(Histogram.upperBound(bucket) - value <= value / 16);
+        }
+        Assert.assertEquals(Histogram.BUCKETS - 1, Histogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentiles() {
+        Histogram histogram = new Histogram();
+        Assert.assertEquals(0, histogram.snapshot().getPercentile(99));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(1000, snapshot.getCount());
+        assertClose(500, snapshot.getPercentile(50));
+        assertClose(950, snapshot.getPercentile(95));
+        assertClose(990, snapshot.getPercentile(99));
+        Assert.assertEquals(1000, snapshot.getMax());
+
+        // one slow request among many fast ones
+        histogram.reset();
+        for (int i = 0; i < 999; i++) {
+            histogram.record(3);
+        }
+        histogram.record(12000);
+        snapshot = histogram.snapshot();
+        Assert.assertEquals(3, snapshot.getPercentile(50));
+        Assert.assertEquals(3, snapshot.getPercentile(99));
+        Assert.assertEquals(12000, snapshot.getMax());
+    }
+
+    private static void assertClose(long expected, long actual) {
+        Assert.assertTrue(actual + " is not close to " + expected,
+                actual >= expected && actual <= expected + expected / 16);
+    }
+
+    @Test
+    public void calculator() {
+        StopWatch watch = new StopWatch();
+        HistogramCalculator calc = new HistogramCalculator(watch.getHistogram(), "p50", "p95", "p99", "max");
+        for (int i = 0; i < 100; i++) {
+            watch.increment(10);
+        }
+        Assert.assertEquals(10L, calc.getData().get(0));
+        calc.reset();
+        for (int i = 0; i < 100; i++) {
+            watch.increment(100);
+        }
+        // only the values recorded since the last reset...
+        Assert.assertEquals(100L, calc.getData().get(0));
+        Assert.assertEquals(100L, calc.getData().get(3));
+        // ...or the second-to-last one
+        Assert.assertEquals(10, calc.getRealtimePercentile(50));
+        Assert.assertEquals(100, calc.getRealtimePercentile(95));
+    }
+
+    @Test
+    public void concurrentRecording() throws Exception {
+        final Histogram histogram = new Histogram();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final int offset = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        histogram.record(i % 1000 + offset);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(800000, histogram.snapshot().getCount());
+        Assert.assertEquals(1006, histogram.snapshot().getMax());
+    }
+}
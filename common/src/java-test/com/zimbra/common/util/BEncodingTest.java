@@ -59,4 +59,41 @@ public class BEncodingTest {
         Assert.assertEquals(new TreeMap<Object, Object>(), decoded.get("yy"));
     }
 
+    @Test
+    public void decodeNumbers() throws Exception {
+        Assert.assertEquals(-42L, (long) BEncoding.<Long>decode("i-42e"));
+        Assert.assertEquals(0L, (long) BEncoding.<Long>decode("i0e"));
+        Assert.assertEquals(Long.MAX_VALUE, (long) BEncoding.<Long>decode("i9223372036854775807e"));
+        Assert.assertEquals(Long.MIN_VALUE, (long) BEncoding.<Long>decode("i-9223372036854775808e"));
+    }
+
+    @Test
+    public void decodeSharesKeys() throws Exception {
+        Map<String, Object> first = BEncoding.decode("d4:mseqi628ee");
+        Map<String, Object> second = BEncoding.decode("d4:mseqi629ee");
+        Assert.assertEquals(629L, second.get("mseq"));
+        Assert.assertSame(first.keySet().iterator().next(), second.keySet().iterator().next());
+    }
+
+    @Test
+    public void decodeMalformed() throws Exception {
+        // Metadata relies on a bad length/integer surfacing as a NumberFormatException cause
+        try {
+            BEncoding.decode("d4:mseqi6x8ee");
+            Assert.fail("expected BEncodingException");
+        } catch (BEncoding.BEncodingException e) {
+            Assert.assertTrue(e.getCause() instanceof NumberFormatException);
+        }
+        try {
+            BEncoding.decode("d4:mseqi628e2:sz");
+            Assert.fail("expected BEncodingException");
+        } catch (BEncoding.BEncodingException e) {
+        }
+        try {
+            BEncoding.decode("i1ei2e");
+            Assert.fail("expected BEncodingException");
+        } catch (BEncoding.BEncodingException e) {
+        }
+    }
+
 }
@@ -173,6 +173,10 @@ public final class LC {
     public static final KnownKey zimbra_store_copy_buffer_size_kb = KnownKey.newKey(16); // KB
     public static final KnownKey zimbra_nio_file_copy_chunk_size_kb = KnownKey.newKey(512); // KB
     public static final KnownKey zimbra_blob_input_stream_buffer_size_kb = KnownKey.newKey(1); // KB
+    // format of newly compressed blobs: "gzip", or "block" for independently compressed frames that can be
+    // read at any offset without decompressing the whole blob.  Both formats are always readable.
+    public static final KnownKey zimbra_blob_compression_format = KnownKey.newKey("gzip");
+    public static final KnownKey zimbra_blob_compression_block_size_kb = KnownKey.newKey(64); // KB
 
     @Supported
     public static final KnownKey zimbra_mailbox_manager_hardref_cache = KnownKey.newKey(2500);
@@ -197,12 +201,27 @@ public final class LC {
 
     public static final KnownKey zimbra_mailbox_lock_readwrite = KnownKey.newKey(true);
 
+    // must be set the same way on every node of an always-on cluster
+    public static final KnownKey zimbra_mailbox_lock_distributed_readwrite = KnownKey.newKey(false);
+
+    // number of independently locked segments in the message cache, rounded up to a power of two
+    public static final KnownKey zimbra_message_cache_segments = KnownKey.newKey(16);
+    // bytes of message data the message cache may hold in memory; 0 means no limit beyond the item count
+    public static final KnownKey zimbra_message_cache_max_data_size = KnownKey.newKey(64 * 1024 * 1024);
+    // keep message content that the message cache reads into memory in direct buffers instead of on the heap
+    public static final KnownKey zimbra_message_cache_offheap = KnownKey.newKey(false);
+
     @Supported
     public static final KnownKey zimbra_index_threads = KnownKey.newKey(10);
 
     @Supported
     public static final KnownKey zimbra_reindex_threads = KnownKey.newKey(10);
 
+    // threads shared by all mailboxes for tokenizing items during batch indexing; 1 or less tokenizes on the index thread
+    public static final KnownKey zimbra_index_parse_threads = KnownKey.newKey(4);
+    // items per mailbox being tokenized ahead of the index writer
+    public static final KnownKey zimbra_index_parse_window = KnownKey.newKey(16);
+
     @Supported
     public static final KnownKey zimbra_index_max_readers = KnownKey.newKey(35);
 
@@ -218,6 +237,11 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_index_reader_cache_ttl = KnownKey.newKey(300);
 
+    // open cached searchers from the live index writer and refresh them in the background instead of reopening
+    public static final KnownKey zimbra_index_nrt_enabled = KnownKey.newKey(false);
+    // how often searchers of mailboxes with an open index writer are refreshed in near-real-time mode
+    public static final KnownKey zimbra_index_nrt_refresh_interval_ms = KnownKey.newKey(1000);
+
     @Supported
     public static final KnownKey zimbra_index_deferred_items_failure_delay = KnownKey.newKey(300);
 
@@ -325,6 +349,12 @@ public final class LC {
     @Reloadable
     public static final KnownKey soap_response_chunked_transfer_encoding_enabled = KnownKey.newKey(true);
     public static final KnownKey zimbra_servlet_output_stream_buffer_size = KnownKey.newKey(5120);
+    // unchunked SOAP responses larger than this are buffered on disk while their Content-Length is computed
+    public static final KnownKey soap_response_max_memory_size = KnownKey.newKey(1048576); // 1 MB
+    // threads that run the read-only requests of a BatchRequest with parallel="1" concurrently; 0 runs them in order
+    public static final KnownKey soap_batch_parallel_threads = KnownKey.newKey(0);
+    // batched requests that may wait for a batch thread before the request thread runs them itself
+    public static final KnownKey soap_batch_parallel_queue_size = KnownKey.newKey(1000);
 
     public static final KnownKey rest_response_cache_control_value = KnownKey.newKey("no-store, no-cache");
 
@@ -514,6 +544,11 @@ public final class LC {
     public static final KnownKey ldap_cache_reverseproxylookup_domain_maxage = KnownKey.newKey(15);
     public static final KnownKey ldap_cache_reverseproxylookup_server_maxsize = KnownKey.newKey(100);
     public static final KnownKey ldap_cache_reverseproxylookup_server_maxage = KnownKey.newKey(15);
+    // account, domain, COS, server, UC service, zimlet, XMPP component and always-on cluster entries read in the
+    // last N% of their lifetime are reloaded in the background; 0 disables
+    public static final KnownKey ldap_cache_refresh_ahead_percent = KnownKey.newKey(20);
+    // threads that reload LDAP cache entries ahead of expiry
+    public static final KnownKey ldap_cache_refresh_threads = KnownKey.newKey(2);
 
     // This combination will consume 128M (128K per target) of memory if the cache is full
     public static final KnownKey acl_cache_target_maxsize = KnownKey.newKey(1024);
@@ -696,6 +731,10 @@ public final class LC {
     @Supported
     public static final KnownKey calendar_cache_range_months = KnownKey.newKey(3);
     public static final KnownKey calendar_cache_max_stale_items = KnownKey.newKey(10);
+    // rough heap budget for the summaries in the in-memory calendar cache; 0 limits it by calendar_cache_lru_size only
+    public static final KnownKey calendar_cache_max_memory_size = KnownKey.newKey(134217728); // 128 MB
+    // share of the in-memory calendar cache reserved for frequently read calendars, such as shared resource calendars
+    public static final KnownKey calendar_cache_hot_percent = KnownKey.newKey(25);
     public static final KnownKey calendar_exchange_form_auth_url = KnownKey.newKey("/exchweb/bin/auth/owaauth.dll");
     public static final KnownKey calendar_item_get_max_retries = KnownKey.newKey(100);
 
@@ -722,6 +761,8 @@ public final class LC {
     // Default 3 days.  Without limit 1 server was needing to restart every 30 to 45 days
     public static final KnownKey imap_noninteractive_session_cache_maxage_days = KnownKey.newKey(3);
     public static final KnownKey imap_use_ehcache = KnownKey.newKey(true);
+    // write paged-out IMAP folders in the compact binary format; both formats are always readable
+    public static final KnownKey imap_folder_cache_compact_format = KnownKey.newKey(true);
     public static final KnownKey imap_write_timeout = KnownKey.newKey(10);
     public static final KnownKey imap_write_chunk_size = KnownKey.newKey(8 * 1024);
     public static final KnownKey imap_thread_keep_alive_time = KnownKey.newKey(60);
@@ -731,6 +772,8 @@ public final class LC {
     public static final KnownKey imap_throttle_acct_limit = KnownKey.newKey(5000);
     public static final KnownKey imap_throttle_command_limit = KnownKey.newKey(25);
     public static final KnownKey imap_throttle_fetch = KnownKey.newKey(true);
+    // number of items resolved per lookup when a FETCH needs the backing MailItems; 0 disables prefetch
+    public static final KnownKey imap_fetch_prefetch_batch_size = KnownKey.newKey(100);
     public static final KnownKey data_source_imap_reuse_connections = KnownKey.newKey(false);
 
     @Supported
@@ -758,6 +801,10 @@ public final class LC {
     public static final KnownKey pop3_max_consecutive_error = KnownKey.newKey(5);
 
     public static final KnownKey lmtp_throttle_ip_limit = KnownKey.newKey(0);
+    // threads that deliver a message to its local recipients in parallel; 0 delivers to one recipient at a time
+    public static final KnownKey lmtp_delivery_threads = KnownKey.newKey(0);
+    // recipient deliveries that may wait for a delivery thread before the LMTP thread delivers them itself
+    public static final KnownKey lmtp_delivery_queue_size = KnownKey.newKey(1000);
 
     public static final KnownKey milter_bind_port = KnownKey.newKey(0);
     public static final KnownKey milter_bind_address = KnownKey.newKey(null);
@@ -828,6 +875,8 @@ public final class LC {
     public static final KnownKey zimbra_class_jsieve_comparators_ascii_casemap = KnownKey.newKey("com.zimbra.cs.filter.ZimbraAsciiCasemap");
     public static final KnownKey zimbra_class_jsieve_comparators_ascii_numeric = KnownKey.newKey("com.zimbra.cs.filter.ZimbraAsciiNumeric");
     public static final KnownKey zimbra_class_jsieve_comparators_octet = KnownKey.newKey("com.zimbra.cs.filter.ZimbraOctet");
+    // pre-evaluate header tests of compiled filter rules and skip rules that can't match
+    public static final KnownKey zimbra_filter_compiled_rules_enabled = KnownKey.newKey(true);
     public static final KnownKey zimbra_class_two_factor_auth_factory = KnownKey.newKey("com.zimbra.cs.account.auth.twofactor.TwoFactorAuth$DefaultFactory");
 
     // ZCS-8181 if below flag is false, do not update zimbraAppSpecificPassword attr
@@ -883,6 +932,10 @@ public final class LC {
      * If not setting to 0, suggest at least 600000 (10 minutes)
      */
     public static final KnownKey zimbra_dav_max_idle_time_ms = KnownKey.newKey(0);
+    // write each DAV multistatus response element as it is produced instead of building the whole document
+    public static final KnownKey zimbra_dav_multistatus_streaming = KnownKey.newKey(true);
+    // calendar items or contacts loaded at a time for a streamed DAV multistatus response
+    public static final KnownKey zimbra_dav_multistatus_batch_size = KnownKey.newKey(100);
 
     public static final KnownKey zimbra_admin_waitset_default_request_timeout = KnownKey.newKey(300);
     public static final KnownKey zimbra_admin_waitset_min_request_timeout = KnownKey.newKey(0);
@@ -1104,6 +1157,14 @@ public final class LC {
     @Supported
     public static final KnownKey contact_ranking_enabled = KnownKey.newKey(true);
 
+    // answer autocomplete from an in-memory prefix index of each mailbox's local contacts
+    public static final KnownKey contact_autocomplete_index_enabled = KnownKey.newKey(true);
+    // number of mailboxes whose autocomplete index is kept in memory
+    public static final KnownKey contact_autocomplete_index_cache_size = KnownKey.newKey(1000);
+
+    // force each write to the file ephemeral store's log to disk before returning
+    public static final KnownKey ephemeral_file_store_fsync = KnownKey.newKey(false);
+
     public static final KnownKey contact_allow_deref_group_member = KnownKey.newKey(true);
 
     public static final KnownKey jdbc_results_streaming_enabled = KnownKey.newKey(true);
@@ -1148,6 +1209,10 @@ public final class LC {
 
     public static final KnownKey zimbra_slow_logging_enabled = KnownKey.newKey(false);
     public static final KnownKey zimbra_slow_logging_threshold = KnownKey.newKey(5000);
+    // slowest SOAP and IMAP requests kept per command, with their lock wait, DB time and blob I/O; 0 disables
+    public static final KnownKey zimbra_slow_request_sample_size = KnownKey.newKey(10);
+    // requests faster than this many milliseconds are not sampled
+    public static final KnownKey zimbra_slow_request_sample_threshold = KnownKey.newKey(100);
 
     public static final KnownKey smtp_host_retry_millis = KnownKey.newKey(60000);
     public static final KnownKey smtp_to_lmtp_enabled = KnownKey.newKey(false);
@@ -1295,6 +1360,16 @@ public final class LC {
     @Supported
     public static final KnownKey external_store_delete_max_ioexceptions = KnownKey.newKey(25);
 
+    // PackedBlobStore: blobs up to this many bytes are appended to a shared segment file; larger blobs get a
+    // segment of their own
+    public static final KnownKey packed_blob_store_max_packed_size = KnownKey.newKey(8 * 1024);
+    // a segment stops taking new blobs once it is this large
+    public static final KnownKey packed_blob_store_segment_size_kb = KnownKey.newKey(64 * 1024); // KB
+    // a segment is compacted once this share of its bytes belongs to deleted blobs
+    public static final KnownKey packed_blob_store_compaction_threshold_percent = KnownKey.newKey(50);
+    // how often mailboxes with segments over the threshold are compacted; 0 disables
+    public static final KnownKey packed_blob_store_compaction_interval = KnownKey.newKey(Constants.MILLIS_PER_HOUR);
+
     @Supported
     public static final KnownKey redis_service_uri = KnownKey.newKey("redis://zmc-redis:6379");
 
@@ -1458,9 +1533,18 @@ public final class LC {
     @Reloadable
     public static final KnownKey imap_always_use_remote_store = KnownKey.newKey(false);
 
+    // redo log group commit; see GroupCommitLogWriter
+    public static final KnownKey redolog_group_commit_enabled = KnownKey.newKey(false);
+    public static final KnownKey redolog_group_commit_max_batch_bytes = KnownKey.newKey(1024 * 1024);
+
     // owasp handler
     public static final KnownKey zimbra_use_owasp_html_sanitizer = KnownKey.newKey(true);
 
+    // sanitized HTML bodies cached by blob digest, shared across mailboxes; 0 disables the cache
+    public static final KnownKey zimbra_defang_cache_max_bytes = KnownKey.newKey(64 * 1024 * 1024);
+    // bytes of evicted bodies kept in zimbra_tmp_directory/defang; 0 keeps them in memory only
+    public static final KnownKey zimbra_defang_cache_disk_max_bytes = KnownKey.newKey(0);
+
     // file content type blacklist
     public static final KnownKey zimbra_file_content_type_blacklist = KnownKey.newKey("application/x-ms*");
 
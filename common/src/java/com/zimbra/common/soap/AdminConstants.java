@@ -462,6 +462,8 @@ public final class AdminConstants {
     // Monitoring
     public static final String E_GET_SERVER_STATS_REQUEST = "GetServerStatsRequest";
     public static final String E_GET_SERVER_STATS_RESPONSE = "GetServerStatsResponse";
+    public static final String E_GET_SLOW_REQUESTS_REQUEST = "GetSlowRequestsRequest";
+    public static final String E_GET_SLOW_REQUESTS_RESPONSE = "GetSlowRequestsResponse";
 
     public static final String E_GET_LOGGER_STATS_REQUEST = "GetLoggerStatsRequest";
     public static final String E_GET_LOGGER_STATS_RESPONSE = "GetLoggerStatsResponse";
@@ -982,6 +984,8 @@ public final class AdminConstants {
     // Monitoring
     public static final QName GET_SERVER_STATS_REQUEST = QName.get(E_GET_SERVER_STATS_REQUEST, NAMESPACE);
     public static final QName GET_SERVER_STATS_RESPONSE = QName.get(E_GET_SERVER_STATS_RESPONSE, NAMESPACE);
+    public static final QName GET_SLOW_REQUESTS_REQUEST = QName.get(E_GET_SLOW_REQUESTS_REQUEST, NAMESPACE);
+    public static final QName GET_SLOW_REQUESTS_RESPONSE = QName.get(E_GET_SLOW_REQUESTS_RESPONSE, NAMESPACE);
 
     public static final QName GET_LOGGER_STATS_REQUEST = QName.get(E_GET_LOGGER_STATS_REQUEST, NAMESPACE);
     public static final QName GET_LOGGER_STATS_RESPONSE = QName.get(E_GET_LOGGER_STATS_RESPONSE, NAMESPACE);
@@ -1481,6 +1485,11 @@ public final class AdminConstants {
     // Monitoring
     public static final String E_STAT = "stat";
     public static final String A_DESCRIPTION = "description";
+    public static final String E_SLOW_REQUEST = "req";
+    public static final String A_ELAPSED = "elapsed";
+    public static final String A_LOCK_WAIT = "lockWait";
+    public static final String A_DB_TIME = "dbTime";
+    public static final String A_BLOB_BYTES = "blobBytes";
 
     public static final String A_FULLSYNC = "fullSync";
     public static final String A_RESET    = "reset";
@@ -16,10 +16,10 @@
  */
 package com.zimbra.common.soap;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -28,7 +28,6 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -39,6 +38,7 @@ import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.StringUtil;
+import com.zimbra.common.util.Utf8Appendable;
 import com.zimbra.common.util.ZimbraLog;
 
 /**
@@ -145,6 +145,27 @@ public abstract class Element implements Cloneable {
      */
     public abstract Element addNonUniqueElement(Element elt) throws ContainerException;
 
+    /** Adds children with the given name that are only generated while this {@code Element} is serialized, one
+     *  at a time, so that a response with many children needn't hold all of them in memory.  The elements must be
+     *  created with this element's {@link #getFactory() factory} and have no parent.<br />
+     *  The iterator is consumed by the first {@link #marshal(Appendable) marshal}; {@link #toString()} and
+     *  {@link #prettyPrint()} show a placeholder instead.
+     *  Elements holding streamed children can't be cloned, and code walking the tree only sees a childless
+     *  placeholder in their place. */
+    public Element addStreamedElements(String name, Iterator<? extends Element> elements) throws ContainerException {
+        addNonUniqueElement(new StreamedElements(name, null, elements));
+        return this;
+    }
+
+    /** Like {@link #addStreamedElements(String, Iterator)}, but the elements are generated anew from the
+     *  {@code Iterable} every time this {@code Element} is serialized, so {@link #toString()} and
+     *  {@link #prettyPrint()} show them as well.  Each iteration must create new elements; the source should hold
+     *  plain values rather than live objects that may change after the handler returns. */
+    public Element addStreamedElements(String name, Iterable<? extends Element> elements) throws ContainerException {
+        addNonUniqueElement(new StreamedElements(name, elements, null));
+        return this;
+    }
+
     public Element addUniqueElement(String name) throws ContainerException  { return addNonUniqueElement(name); }
     public Element addUniqueElement(QName qname) throws ContainerException  { return addNonUniqueElement(qname); }
     public Element addUniqueElement(Element elt) throws ContainerException  { return addNonUniqueElement(elt); }
@@ -472,12 +493,16 @@ public abstract class Element implements Cloneable {
 
     // dumping the element hierarchy
     public byte[] toUTF8() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Utf8Appendable out = new Utf8Appendable(bytes, 8192);
         try {
-            return toString().getBytes("utf-8");
-        } catch (UnsupportedEncodingException e) {
-            // should *never* happen since UTF-8 and UTF-16 cover the exact same character space
-            return null;
+            marshal(out);
+            out.flush();
+        } catch (IOException e) {
+            // should really not happen with the ByteArrayOutputStream, just log it
+            ZimbraLog.soap.error("Caught IOException: ", e);
         }
+        return bytes.toByteArray();
     }
 
     public void output(Appendable out) throws IOException {
@@ -944,7 +969,7 @@ public abstract class Element implements Cloneable {
             } else if (elt.mParent != null) {
                 throw new ContainerException("element already has a parent");
             }
-            assert(elt instanceof JSONElement);
+            assert(elt instanceof JSONElement || elt instanceof StreamedElements);
             String name = elt.getName();
             Object obj = mAttributes.get(name);
             if (obj instanceof Element) {
@@ -1433,7 +1458,7 @@ public abstract class Element implements Cloneable {
         public String toString() {
             StringBuilder sb = new StringBuilder();
             try {
-                marshal(sb, -1, false);
+                marshal(sb, -1, false, false);
             } catch (IOException e) {
                 // should really not happen with the StringBuilder impl of Appendable, just log it
                 ZimbraLog.soap.error("Caught IOException: ", e);
@@ -1443,7 +1468,7 @@ public abstract class Element implements Cloneable {
 
         @Override
         public void marshal(Appendable out) throws IOException {
-            marshal(out, -1, false);
+            marshal(out, -1, false, true);
         }
 
         @Override
@@ -1455,7 +1480,7 @@ public abstract class Element implements Cloneable {
         public String prettyPrint(boolean safe) {
             StringBuilder sb = new StringBuilder();
             try {
-                marshal(sb, 0, safe);
+                marshal(sb, 0, safe, false);
             } catch (IOException e) {
                 // should really not happen with the StringBuilder impl of Appendable, just log it
                 ZimbraLog.soap.error("Caught IOException: ", e);
@@ -1464,7 +1489,11 @@ public abstract class Element implements Cloneable {
         }
 
         private static final int INDENT_SIZE = 2;
-        private void marshal(Appendable out, int indent, boolean safe) throws IOException {
+
+        /**
+         * @param stream whether to write out streamed elements; otherwise they're shown as a placeholder
+         */
+        private void marshal(Appendable out, int indent, boolean safe, boolean stream) throws IOException {
             indent = indent < 0 ? -1 : indent + INDENT_SIZE;
             out.append('{');
             boolean needNamespace = mNamespaces == null ? false : namespaceDeclarationNeeded("", mNamespaces.get("").toString());
@@ -1481,7 +1510,7 @@ public abstract class Element implements Cloneable {
                     } else if (value instanceof JSONKeyValuePair) {
                         out.append(value.toString());
                     } else if (value instanceof JSONElement) {
-                        ((JSONElement) value).marshal(out, indent, safe);
+                        ((JSONElement) value).marshal(out, indent, safe, stream);
                     } else if (value instanceof FileBackedElement) {
                         ((FileBackedElement) value).marshal(out);
                     } else if (value instanceof Element) {
@@ -1490,23 +1519,27 @@ public abstract class Element implements Cloneable {
                         out.append(String.valueOf(value));
                     } else {
                         out.append('[');
-                        if ((lsize = ((List<?>) value).size()) > 0) {
-                            for (ListIterator<?> lit = ((List<?>) value).listIterator(); lit.hasNext(); ) {
-                                int lindent = indent < 0 ? -1 : indent + INDENT_SIZE;
-                                if (lsize > 1) {
-                                    indent(out, lindent, true);
-                                }
-                                Object child = lit.next();
-                                if (child instanceof JSONElement) {
-                                    ((JSONElement) child).marshal(out, lindent, safe);
-                                } else if (child instanceof JSONKeyValuePair) {
-                                    out.append(child.toString());
-                                } else {
-                                    out.append('"').append(StringUtil.jsEncode(child)).append('"');
-                                }
-                                if (lit.nextIndex() != lsize) {
-                                    out.append(',');
-                                }
+                        lsize = ((List<?>) value).size();
+                        int lindent = indent < 0 ? -1 : indent + INDENT_SIZE;
+                        boolean first = true;
+                        for (Object child : (List<?>) value) {
+                            if (child instanceof StreamedElements) {
+                                first = marshalStreamed((StreamedElements) child, out, lindent, safe, stream, first);
+                                continue;
+                            }
+                            if (!first) {
+                                out.append(',');
+                            }
+                            first = false;
+                            if (lsize > 1) {
+                                indent(out, lindent, true);
+                            }
+                            if (child instanceof JSONElement) {
+                                ((JSONElement) child).marshal(out, lindent, safe, stream);
+                            } else if (child instanceof JSONKeyValuePair) {
+                                out.append(child.toString());
+                            } else {
+                                out.append('"').append(StringUtil.jsEncode(child)).append('"');
                             }
                         }
                         out.append(']');
@@ -1525,6 +1558,38 @@ public abstract class Element implements Cloneable {
             out.append('}');
         }
 
+        /**
+         * Writes the streamed elements as members of the enclosing array.
+         *
+         * @return whether the array is still empty
+         */
+        private boolean marshalStreamed(StreamedElements streamed, Appendable out, int indent, boolean safe,
+                boolean stream, boolean first) throws IOException {
+            if (!stream && !streamed.isRepeatable()) {
+                // toString() and pretty-printing are for logs; don't consume the elements meant for the client
+                if (!first) {
+                    out.append(',');
+                }
+                indent(out, indent, true);
+                out.append('"').append(StringUtil.jsEncode(streamed.getPlaceholder())).append('"');
+                return false;
+            }
+            for (Iterator<? extends Element> it = streamed.consume(); it.hasNext(); ) {
+                Element elt = streamed.adopt(it.next());
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                if (elt instanceof JSONElement) {
+                    ((JSONElement) elt).marshal(out, indent, safe, stream);
+                } else {
+                    elt.marshal(out);
+                }
+                elt.destroy();
+            }
+            return first;
+        }
+
         private String getAttrStringValue(Map.Entry<String, Object> attr, boolean safe) {
             if (safe && ((A_CONTENT.equals(attr.getKey()) && isSensitiveElement(this)) || isSensitiveAttr(attr)))
                 return SENSITIVE_STRING_REPLACEMENT;
@@ -1655,7 +1720,7 @@ public abstract class Element implements Cloneable {
                         "cannot add children to element containing text - <" +
                         this.getName() + ">, trying to add <" + elt.getName() + ">");
             }
-            assert(elt instanceof XMLElement || elt instanceof FileBackedElement);
+            assert(elt instanceof XMLElement || elt instanceof FileBackedElement || elt instanceof StreamedElements);
             if (mChildren == null) {
                 mChildren = new ArrayList<Element>();
             }
@@ -1933,7 +1998,7 @@ public abstract class Element implements Cloneable {
         public String toString() {
             StringBuilder sb = new StringBuilder();
             try {
-                marshal(sb, -1, false);
+                marshal(sb, -1, false, false);
             } catch (IOException e) {
                 // should really not happen with the StringBuilder impl of Appendable, just log it
                 ZimbraLog.soap.error("Caught IOException: ", e);
@@ -1943,7 +2008,7 @@ public abstract class Element implements Cloneable {
 
         @Override
         public void marshal(Appendable out) throws IOException {
-            marshal(out, -1, false);
+            marshal(out, -1, false, true);
         }
 
         @Override
@@ -1955,7 +2020,7 @@ public abstract class Element implements Cloneable {
         public String prettyPrint(boolean safe) {
             StringBuilder sb = new StringBuilder();
             try {
-                marshal(sb, 0, safe);
+                marshal(sb, 0, safe, false);
             } catch (IOException e) {
                 // should really not happen with the StringBuilder impl of Appendable, just log it
                 ZimbraLog.soap.error("Caught IOException: ", e);
@@ -1964,7 +2029,11 @@ public abstract class Element implements Cloneable {
         }
 
         private static final int INDENT_SIZE = 2;
-        private void marshal(Appendable out, int indent, boolean safe) throws IOException {
+
+        /**
+         * @param stream whether to write out streamed elements; otherwise they're shown as a placeholder
+         */
+        private void marshal(Appendable out, int indent, boolean safe, boolean stream) throws IOException {
             indent(out, indent, indent > 0);
             // element's qualified name
             String qn = getQualifiedName();
@@ -1993,9 +2062,12 @@ public abstract class Element implements Cloneable {
                 if (mChildren != null) {
                     for (Element child : mChildren) {
                         if (child instanceof XMLElement) {
-                            ((XMLElement) child).marshal(out, indent < 0 ? -1 : indent + INDENT_SIZE, safe);
+                            ((XMLElement) child).marshal(out, indent < 0 ? -1 : indent + INDENT_SIZE, safe, stream);
                         } else if (child instanceof FileBackedElement) {
                             child.marshal(out);
+                        } else if (child instanceof StreamedElements) {
+                            marshalStreamed((StreamedElements) child, out, indent < 0 ? -1 : indent + INDENT_SIZE,
+                                    safe, stream);
                         } else {
                             out.append(xmlEncode(child.toString(), false));
                         }
@@ -2010,6 +2082,25 @@ public abstract class Element implements Cloneable {
             }
         }
 
+        private void marshalStreamed(StreamedElements streamed, Appendable out, int indent, boolean safe,
+                boolean stream) throws IOException {
+            if (!stream && !streamed.isRepeatable()) {
+                // toString() and pretty-printing are for logs; don't consume the elements meant for the client
+                indent(out, indent, true);
+                out.append("<!-- ").append(xmlEncode(streamed.getPlaceholder(), false)).append(" -->");
+                return;
+            }
+            for (Iterator<? extends Element> it = streamed.consume(); it.hasNext(); ) {
+                Element elt = streamed.adopt(it.next());
+                if (elt instanceof XMLElement) {
+                    ((XMLElement) elt).marshal(out, indent, safe, stream);
+                } else {
+                    elt.marshal(out);
+                }
+                elt.destroy();
+            }
+        }
+
         private static String getAttrValue(Map.Entry<String, Object> attr, boolean safe) {
             return safe && isSensitiveAttr(attr) ? SENSITIVE_STRING_REPLACEMENT : (String) attr.getValue();
         }
@@ -2176,6 +2267,152 @@ public abstract class Element implements Cloneable {
         }
     }
 
+    /**
+     * Placeholder for children generated during serialization; see {@link Element#addStreamedElements}.
+     * It reads as an element without attributes or content, so code walking the tree passes over it.
+     */
+    static final class StreamedElements extends Element {
+        private final Iterable<? extends Element> source;
+        private Iterator<? extends Element> elements;
+
+        StreamedElements(String name, Iterable<? extends Element> source, Iterator<? extends Element> elements) {
+            mName = name;
+            this.source = source;
+            this.elements = elements;
+        }
+
+        /** Returns whether the elements can be generated again for every serialization. */
+        boolean isRepeatable() {
+            return source != null;
+        }
+
+        /** Hands out the elements; unless they're {@link #isRepeatable() repeatable}, they can only be serialized once. */
+        Iterator<? extends Element> consume() {
+            if (source != null) {
+                return source.iterator();
+            }
+            if (elements == null) {
+                throw new IllegalStateException("streamed <" + mName + "> elements have already been serialized");
+            }
+            Iterator<? extends Element> result = elements;
+            elements = null;
+            return result;
+        }
+
+        /** Makes a generated element a child of our parent for the duration of its serialization. */
+        Element adopt(Element elt) {
+            if (elt.mParent != null) {
+                throw new ContainerException("element already has a parent - <" + elt.getName() + ">");
+            }
+            elt.mParent = mParent;
+            return elt;
+        }
+
+        String getPlaceholder() {
+            return "streamed <" + mName + "> elements";
+        }
+
+        @Override
+        public void destroy() {
+        }
+
+        @Override
+        public ElementFactory getFactory() {
+            return mParent == null ? null : mParent.getFactory();
+        }
+
+        @Override
+        public Element addNonUniqueElement(String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Element addNonUniqueElement(QName qname) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Element addNonUniqueElement(Element elt) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Element setText(String content) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Element addAttribute(String key, String value, Disposition disp) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public KeyValuePair addKeyValuePair(String key, String value, String eltname, String attrname) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Element clone() {
+            throw new UnsupportedOperationException("streamed <" + mName + "> elements can't be cloned");
+        }
+
+        @Override
+        public Element getOptionalElement(String name) {
+            return null;
+        }
+
+        @Override
+        public Set<Attribute> listAttributes() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public List<Element> listElements(String name) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean hasChildren() {
+            return true;
+        }
+
+        @Override
+        public List<KeyValuePair> listKeyValuePairs(String eltname, String attrname) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public String getText() {
+            return "";
+        }
+
+        @Override
+        String getRawText() {
+            return "";
+        }
+
+        @Override
+        public String getAttribute(String key, String defaultValue) {
+            return defaultValue;
+        }
+
+        @Override
+        public String prettyPrint() {
+            return getPlaceholder();
+        }
+
+        @Override
+        public String prettyPrint(boolean safe) {
+            return getPlaceholder();
+        }
+
+        @Override
+        public void marshal(Appendable out) {
+            // the elements are written by the parent, which knows how to delimit them
+            throw new UnsupportedOperationException();
+        }
+    }
+
     public static void main(String[] args) throws ContainerException, SoapParseException {
         System.out.println(Element.parseJSON("{ 'a':'b'}").getAttribute("a", null));
         System.out.println(Element.parseJSON("{ '_attrs' : {'a':'b'}}").getAttribute("a", null));
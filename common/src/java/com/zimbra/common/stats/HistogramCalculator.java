@@ -0,0 +1,99 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Calculates the median, 95th and 99th percentile and maximum of the values recorded by the wrapped
+ * <tt>Histogram</tt> between subsequent calls to {@link #reset}.
+ */
+public class HistogramCalculator
+implements Accumulator {
+
+    private final Histogram mHistogram;
+    private Histogram.Snapshot mLast = Histogram.Snapshot.EMPTY;
+    private Histogram.Snapshot mSecondToLast = Histogram.Snapshot.EMPTY;
+    private final List<String> mNames;
+
+    public HistogramCalculator(Histogram histogram) {
+        mHistogram = histogram;
+        mNames = Collections.emptyList();
+    }
+
+    /**
+     * If the names are given, {@link #getNames()} returns them and {@link #getData()} returns the
+     * percentiles.
+     *
+     * @param p50Name name of the median
+     * @param p95Name name of the 95th percentile
+     * @param p99Name name of the 99th percentile
+     * @param maxName name of the maximum
+     */
+    public HistogramCalculator(Histogram histogram, String p50Name, String p95Name, String p99Name,
+            String maxName) {
+        mHistogram = histogram;
+        List<String> names = new ArrayList<String>(4);
+        names.add(p50Name);
+        names.add(p95Name);
+        names.add(p99Name);
+        names.add(maxName);
+        mNames = Collections.unmodifiableList(names);
+    }
+
+    public synchronized void reset() {
+        mSecondToLast = mLast;
+        mLast = mHistogram.snapshot();
+    }
+
+    /**
+     * Returns the percentile of the values recorded since the last call to {@link #reset}.
+     */
+    public synchronized long getPercentile(double percentile) {
+        return mHistogram.snapshot().since(mLast).getPercentile(percentile);
+    }
+
+    /**
+     * Returns the percentile of the values recorded since the second-to-last call to
+     * {@link #reset}.  We use the second-to-last call in order to avoid spikes at the
+     * beginning of the interval.
+     */
+    public synchronized long getRealtimePercentile(double percentile) {
+        return mHistogram.snapshot().since(mSecondToLast).getPercentile(percentile);
+    }
+
+    ////////////// Accumulator implementation ///////////////////
+
+    public synchronized List<Object> getData() {
+        if (mNames.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Histogram.Snapshot interval = mHistogram.snapshot().since(mLast);
+        List<Object> data = new ArrayList<Object>(4);
+        data.add(interval.getPercentile(50));
+        data.add(interval.getPercentile(95));
+        data.add(interval.getPercentile(99));
+        data.add(interval.getMax());
+        return data;
+    }
+
+    public List<String> getNames() {
+        return mNames;
+    }
+}
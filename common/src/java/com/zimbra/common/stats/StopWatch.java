@@ -24,6 +24,27 @@ package com.zimbra.common.stats;
 public class StopWatch
 extends Counter {
 
+    private final Histogram mHistogram = new Histogram();
+
+    /**
+     * Returns the distribution of the times passed to {@link #increment(long)}.
+     */
+    public Histogram getHistogram() {
+        return mHistogram;
+    }
+
+    @Override
+    public void increment(long value) {
+        super.increment(value);
+        mHistogram.record(value);
+    }
+
+    @Override
+    public synchronized void reset() {
+        super.reset();
+        mHistogram.reset();
+    }
+
     public long start() {
         return System.currentTimeMillis();
     }
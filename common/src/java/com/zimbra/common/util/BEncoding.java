@@ -46,9 +46,9 @@ public final class BEncoding {
         if (data == null)
             return null;
         try {
-            Offset offset = new Offset();
-            Object result = decode(data.toCharArray(), offset);
-            if (offset.offset != data.length()) {
+            Decoder decoder = new Decoder(data);
+            Object result = decoder.decode();
+            if (decoder.offset != data.length()) {
                 throw new BEncodingException("extra characters at end of encoded string");
             }
             @SuppressWarnings("unchecked")
@@ -91,50 +91,112 @@ public final class BEncoding {
         return sb;
     }
 
-    private static final class Offset {
+    /** Dictionary keys are short and drawn from a small vocabulary, so decoded keys are shared
+     *  between decodes instead of allocating a new String for each one.  The cache is racy but
+     *  safe: a lost update just means a key gets allocated again. */
+    private static final int KEY_CACHE_SIZE = 1024;
+    private static final int MAX_CACHED_KEY_LENGTH = 16;
+    private static final String[] KEY_CACHE = new String[KEY_CACHE_SIZE];
+
+    /**
+     * Decodes straight out of the encoded String, without copying it to a char array and without
+     * allocating intermediate Strings for lengths and integers.
+     */
+    private static final class Decoder {
+        private final String data;
         int offset;
-    }
 
-    private static Object decode(char[] buffer, Offset offset) throws BEncodingException {
-        Object key, value;
-        char c = buffer[offset.offset++];
-        switch (c) {
-            case 'd':
-                Map<String, Object> map = new HashMap<String, Object>();
-                while ((key = decode(buffer, offset)) != null) {
-                    if ((value = decode(buffer, offset)) == null) {
-                        throw new BEncodingException("missing dictionary value for key " + key.toString());
+        Decoder(String data) {
+            this.data = data;
+        }
+
+        Object decode() throws BEncodingException {
+            Object key, value;
+            char c = data.charAt(offset++);
+            switch (c) {
+                case 'd':
+                    Map<String, Object> map = new HashMap<String, Object>();
+                    while ((key = decodeKey()) != null) {
+                        if ((value = decode()) == null) {
+                            throw new BEncodingException("missing dictionary value for key " + key.toString());
+                        }
+                        map.put(key.toString(), value);
                     }
-                    map.put(key.toString(), value);
-                }
-                return map;
+                    return map;
 
-            case 'l':
-                List<Object> list = new ArrayList<Object>();
-                while ((key = decode(buffer, offset)) != null) {
-                    list.add(key);
-                }
-                return list;
+                case 'l':
+                    List<Object> list = new ArrayList<Object>();
+                    while ((key = decode()) != null) {
+                        list.add(key);
+                    }
+                    return list;
 
-            case 'e':
-                return null;
+                case 'e':
+                    return null;
 
-            case 'i':
-                return Long.valueOf(readLong(buffer, offset, 'e'));
+                case 'i':
+                    return Long.valueOf(readLong('e'));
 
-            default:
-                offset.offset--;
-                long length = readLong(buffer, offset, ':');
-                int start = offset.offset;
-                offset.offset += length;
-                return new String(buffer, start, (int) length);
+                default:
+                    offset--;
+                    return readString();
+            }
+        }
+
+        private Object decodeKey() throws BEncodingException {
+            char c = data.charAt(offset);
+            if (c < '0' || c > '9') {
+                return decode();
+            }
+            int length = (int) readLong(':');
+            int start = offset;
+            offset += length;
+            if (length > MAX_CACHED_KEY_LENGTH) {
+                return data.substring(start, offset);
+            }
+            int hash = 0;
+            for (int i = start; i < offset; i++) {
+                hash = 31 * hash + data.charAt(i);
+            }
+            int slot = (hash ^ (hash >>> 16)) & (KEY_CACHE_SIZE - 1);
+            String cached = KEY_CACHE[slot];
+            if (cached != null && cached.length() == length && data.regionMatches(start, cached, 0, length)) {
+                return cached;
+            }
+            String key = data.substring(start, offset);
+            KEY_CACHE[slot] = key;
+            return key;
+        }
+
+        private String readString() {
+            int length = (int) readLong(':');
+            int start = offset;
+            offset += length;
+            return data.substring(start, offset);
         }
-    }
 
-    private static long readLong(char[] buffer, Offset offset, char terminator) {
-        int start = offset.offset;
-        while (buffer[offset.offset++] != terminator) ;
-        return Long.parseLong(new String(buffer, start, offset.offset - start - 1));
+        private long readLong(char terminator) {
+            int start = offset;
+            boolean negative = data.charAt(offset) == '-';
+            if (negative) {
+                offset++;
+            }
+            long value = 0;
+            int digits = 0;
+            char c;
+            while ((c = data.charAt(offset++)) != terminator) {
+                if (c < '0' || c > '9') {
+                    throw new NumberFormatException("For input string: \"" + data.substring(start, offset) + '"');
+                }
+                value = value * 10 + (c - '0');
+                digits++;
+            }
+            if (digits == 0 || digits > 18) {
+                // empty, or long enough that it might overflow; let Long sort it out
+                return Long.parseLong(data.substring(start, offset - 1));
+            }
+            return negative ? -value : value;
+        }
     }
 
 }
@@ -841,6 +841,35 @@ public final class ZimbraLog {
         sContextString.remove();
     }
 
+    /**
+     * Returns a copy of the current thread's logging context, for handing off to another thread with
+     * {@link #setContext(Map)}.
+     */
+    public static Map<String, String> getContextMap() {
+        Map<String, String> contextMap = sContextMap.get();
+        if (contextMap == null) {
+            return new LinkedHashMap<String, String>();
+        }
+        return new LinkedHashMap<String, String>(contextMap);
+    }
+
+    /**
+     * Replaces the current thread's logging context with the given key/value pairs.
+     */
+    public static void setContext(Map<String, String> context) {
+        clearContext();
+        if (context == null || context.isEmpty()) {
+            return;
+        }
+        Map<String, String> contextMap = sContextMap.get();
+        if (contextMap == null) {
+            contextMap = new LinkedHashMap<String, String>();
+            sContextMap.set(contextMap);
+        }
+        contextMap.putAll(context);
+        updateContextString();
+    }
+
     public static String getStackTrace(int maxDepth) {
         // Thread.currentThread().getStackTrace() would seem cleaner but bizarrely is slower.
         StackTraceElement[] stElems = new Throwable().getStackTrace();
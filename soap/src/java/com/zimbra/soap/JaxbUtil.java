@@ -552,6 +552,8 @@ public final class JaxbUtil {
             com.zimbra.soap.admin.message.GetServerResponse.class,
             com.zimbra.soap.admin.message.GetServerStatsRequest.class,
             com.zimbra.soap.admin.message.GetServerStatsResponse.class,
+            com.zimbra.soap.admin.message.GetSlowRequestsRequest.class,
+            com.zimbra.soap.admin.message.GetSlowRequestsResponse.class,
             com.zimbra.soap.admin.message.GetServiceStatusRequest.class,
             com.zimbra.soap.admin.message.GetServiceStatusResponse.class,
             com.zimbra.soap.admin.message.GetSessionsRequest.class,
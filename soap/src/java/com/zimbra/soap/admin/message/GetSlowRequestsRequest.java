@@ -0,0 +1,54 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.soap.admin.message;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.zimbra.common.soap.AdminConstants;
+
+/**
+ * @zm-api-command-auth-required true
+ * @zm-api-command-admin-auth-required true
+ * @zm-api-command-description Returns the slowest recent SOAP and IMAP requests handled by this server, with the
+ * time each spent waiting for the mailbox lock and in the database, and the blob bytes it read or wrote.  The
+ * slowest requests are kept per command, slowest first.
+ */
+@XmlAccessorType(XmlAccessType.NONE)
+@XmlRootElement(name=AdminConstants.E_GET_SLOW_REQUESTS_REQUEST)
+public class GetSlowRequestsRequest {
+
+    /**
+     * @zm-api-field-tag request-type
+     * @zm-api-field-description Only return requests of this type: <b>soap|imap</b>.  Both if not specified
+     */
+    @XmlAttribute(name=AdminConstants.A_TYPE /* type */, required=false)
+    private String type;
+
+    public GetSlowRequestsRequest() {
+    }
+
+    public GetSlowRequestsRequest(String type) {
+        this.type = type;
+    }
+
+    public void setType(String type) { this.type = type; }
+    public String getType() { return type; }
+}
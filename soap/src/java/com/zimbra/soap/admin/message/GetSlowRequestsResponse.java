@@ -0,0 +1,57 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.soap.admin.message;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.zimbra.common.soap.AdminConstants;
+import com.zimbra.soap.admin.type.SlowRequestInfo;
+
+@XmlAccessorType(XmlAccessType.NONE)
+@XmlRootElement(name=AdminConstants.E_GET_SLOW_REQUESTS_RESPONSE)
+public class GetSlowRequestsResponse {
+
+    /**
+     * @zm-api-field-description Slow requests
+     */
+    @XmlElement(name=AdminConstants.E_SLOW_REQUEST /* req */, required=false)
+    private List<SlowRequestInfo> requests = Lists.newArrayList();
+
+    public List<SlowRequestInfo> getRequests() {
+        return Collections.unmodifiableList(requests);
+    }
+
+    public void setRequests(Iterable<SlowRequestInfo> requests) {
+        this.requests.clear();
+        if (requests != null) {
+            Iterables.addAll(this.requests, requests);
+        }
+    }
+
+    public void addRequest(SlowRequestInfo request) {
+        this.requests.add(request);
+    }
+}
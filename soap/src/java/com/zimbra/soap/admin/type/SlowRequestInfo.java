@@ -0,0 +1,113 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.soap.admin.type;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+
+import com.zimbra.common.soap.AdminConstants;
+
+@XmlAccessorType(XmlAccessType.NONE)
+public class SlowRequestInfo {
+
+    /**
+     * @zm-api-field-tag request-type
+     * @zm-api-field-description Request type: <b>soap|imap</b>
+     */
+    @XmlAttribute(name=AdminConstants.A_TYPE /* type */, required=true)
+    private final String type;
+
+    /**
+     * @zm-api-field-tag command
+     * @zm-api-field-description SOAP request or IMAP command name
+     */
+    @XmlAttribute(name=AdminConstants.A_NAME /* name */, required=true)
+    private final String name;
+
+    /**
+     * @zm-api-field-tag account-id
+     * @zm-api-field-description ID of the account whose mailbox the request used
+     */
+    @XmlAttribute(name=AdminConstants.A_ACCOUNT /* account */, required=false)
+    private final String accountId;
+
+    /**
+     * @zm-api-field-tag start-time
+     * @zm-api-field-description Start time in milliseconds since the epoch
+     */
+    @XmlAttribute(name=AdminConstants.A_START /* start */, required=true)
+    private final long startTime;
+
+    /**
+     * @zm-api-field-tag elapsed-millis
+     * @zm-api-field-description Wall time in milliseconds
+     */
+    @XmlAttribute(name=AdminConstants.A_ELAPSED /* elapsed */, required=true)
+    private final long elapsed;
+
+    /**
+     * @zm-api-field-tag lock-wait-millis
+     * @zm-api-field-description Time spent waiting for the mailbox lock in milliseconds
+     */
+    @XmlAttribute(name=AdminConstants.A_LOCK_WAIT /* lockWait */, required=true)
+    private final long lockWait;
+
+    /**
+     * @zm-api-field-tag db-millis
+     * @zm-api-field-description Time spent executing SQL in milliseconds
+     */
+    @XmlAttribute(name=AdminConstants.A_DB_TIME /* dbTime */, required=true)
+    private final long dbTime;
+
+    /**
+     * @zm-api-field-tag blob-bytes
+     * @zm-api-field-description Blob bytes read or written
+     */
+    @XmlAttribute(name=AdminConstants.A_BLOB_BYTES /* blobBytes */, required=true)
+    private final long blobBytes;
+
+    /**
+     * no-argument constructor wanted by JAXB
+     */
+    @SuppressWarnings("unused")
+    private SlowRequestInfo() {
+        this((String) null, (String) null, (String) null, -1L, -1L, -1L, -1L, -1L);
+    }
+
+    public SlowRequestInfo(String type, String name, String accountId, long startTime, long elapsed, long lockWait,
+            long dbTime, long blobBytes) {
+        this.type = type;
+        this.name = name;
+        this.accountId = accountId;
+        this.startTime = startTime;
+        this.elapsed = elapsed;
+        this.lockWait = lockWait;
+        this.dbTime = dbTime;
+        this.blobBytes = blobBytes;
+    }
+
+    public String getType() { return type; }
+    public String getName() { return name; }
+    public String getAccountId() { return accountId; }
+    public long getStartTime() { return startTime; }
+    public long getElapsed() { return elapsed; }
+    public long getLockWait() { return lockWait; }
+    public long getDbTime() { return dbTime; }
+    public long getBlobBytes() { return blobBytes; }
+}
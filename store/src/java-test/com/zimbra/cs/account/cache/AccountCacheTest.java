@@ -0,0 +1,116 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.NamedEntry;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for {@link AccountCache}.
+ */
+public final class AccountCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initProvisioning();
+    }
+
+    private static Account account(int i, String... aliases) {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraMailAlias, aliases);
+        attrs.put(Provisioning.A_zimbraForeignPrincipal, "fp" + i);
+        return new Account("user" + i + "@example.com", "id" + i, attrs, null, Provisioning.getInstance());
+    }
+
+    @Test
+    public void getAndRemove() {
+        AccountCache cache = new AccountCache(10, 60000);
+        Account acct = account(1, "alias1@example.com");
+        cache.put(acct);
+        Assert.assertSame(acct, cache.getById("id1"));
+        Assert.assertSame(acct, cache.getByName("USER1@example.com"));
+        Assert.assertSame(acct, cache.getByName("alias1@example.com"));
+        Assert.assertSame(acct, cache.getByForeignPrincipal("fp1"));
+        Assert.assertNull(cache.getByName("user2@example.com"));
+        // a name found through an alias is one hit, not a miss and a hit
+        Assert.assertEquals(4, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+
+        cache.remove(acct);
+        Assert.assertNull(cache.getByName("alias1@example.com"));
+        Assert.assertNull(cache.getByForeignPrincipal("fp1"));
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void expire() throws Exception {
+        AccountCache cache = new AccountCache(10, 50);
+        cache.put(account(1, "alias1@example.com"));
+        Thread.sleep(100);
+        Assert.assertNull(cache.getByName("alias1@example.com"));
+        // every index of the expired account is cleared
+        Assert.assertEquals(0, cache.getSize());
+        Assert.assertNull(cache.getByForeignPrincipal("fp1"));
+    }
+
+    @Test
+    public void evictLeastRecentlyRead() throws Exception {
+        AccountCache cache = new AccountCache(10, 60000);
+        for (int i = 0; i < 10; i++) {
+            cache.put(account(i));
+        }
+        Thread.sleep(10);
+        Assert.assertNotNull(cache.getById("id0"));
+        cache.put(account(10));
+        Assert.assertEquals(9, cache.getSize());
+        Assert.assertNotNull(cache.getById("id0"));
+        Assert.assertNotNull(cache.getById("id10"));
+    }
+
+    @Test
+    public void refreshAhead() throws Exception {
+        final AccountCache cache = new AccountCache(10, 1000);
+        final CountDownLatch refreshed = new CountDownLatch(1);
+        cache.setRefresher(new NamedEntryCache.Refresher() {
+            @Override
+            public void refresh(NamedEntry entry) throws ServiceException {
+                cache.replace((Account) entry);
+                refreshed.countDown();
+            }
+        });
+        cache.put(account(1));
+        Thread.sleep(900);
+        Assert.assertNotNull(cache.getById("id1"));
+        Assert.assertTrue(refreshed.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        // past the original lifetime, but the refresh put it back
+        Assert.assertNotNull(cache.getByName("user1@example.com"));
+        Assert.assertEquals(1, cache.getRefreshCount());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.account.Key.DomainBy;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Domain;
+import com.zimbra.cs.account.NamedEntry;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.cache.DomainCache.GetFromDomainCacheOption;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for {@link DomainCache}.
+ */
+public final class DomainCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initProvisioning();
+    }
+
+    private static Domain domain(int i) {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraVirtualHostname, "mail.example" + i + ".com");
+        return new Domain("example" + i + ".com", "id" + i, attrs, null, Provisioning.getInstance());
+    }
+
+    @Test
+    public void getAndRemove() {
+        DomainCache cache = new DomainCache(10, 60000, 10, 60000);
+        Domain domain = domain(1);
+        cache.put(DomainBy.name, domain.getName(), domain);
+        Assert.assertSame(domain, cache.getById("id1", GetFromDomainCacheOption.POSITIVE));
+        Assert.assertSame(domain, cache.getByName("EXAMPLE1.com", GetFromDomainCacheOption.BOTH));
+        Assert.assertSame(domain, cache.getByVirtualHostname("mail.example1.com", GetFromDomainCacheOption.POSITIVE));
+        Assert.assertNull(cache.getById("id2", GetFromDomainCacheOption.POSITIVE));
+        Assert.assertEquals(3, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+
+        cache.remove(domain);
+        Assert.assertNull(cache.getByVirtualHostname("mail.example1.com", GetFromDomainCacheOption.POSITIVE));
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void negativeCache() {
+        DomainCache cache = new DomainCache(10, 60000, 10, 60000);
+        cache.put(DomainBy.name, "missing.com", null);
+        Assert.assertTrue(cache.getByName("missing.com", GetFromDomainCacheOption.BOTH)
+                instanceof DomainCache.NonExistingDomain);
+        Assert.assertNull(cache.getByName("missing.com", GetFromDomainCacheOption.POSITIVE));
+
+        // caching the domain once it exists clears the negative entry
+        Domain domain = new Domain("missing.com", "id", new HashMap<String, Object>(), null,
+                Provisioning.getInstance());
+        cache.put(DomainBy.name, "missing.com", domain);
+        Assert.assertSame(domain, cache.getByName("missing.com", GetFromDomainCacheOption.BOTH));
+
+        // the negative cache stays within its size
+        for (int i = 0; i < 100; i++) {
+            cache.put(DomainBy.name, "missing" + i + ".com", null);
+        }
+        int cached = 0;
+        for (int i = 0; i < 100; i++) {
+            if (cache.getByName("missing" + i + ".com", GetFromDomainCacheOption.NEGATIVE) != null) {
+                cached++;
+            }
+        }
+        Assert.assertTrue(cached <= 10);
+    }
+
+    @Test
+    public void expire() throws Exception {
+        DomainCache cache = new DomainCache(10, 50, 10, 50);
+        cache.put(DomainBy.id, "id1", domain(1));
+        Thread.sleep(100);
+        Assert.assertNull(cache.getByVirtualHostname("mail.example1.com", GetFromDomainCacheOption.POSITIVE));
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void refreshAhead() throws Exception {
+        final DomainCache cache = new DomainCache(10, 1000, 10, 1000);
+        final CountDownLatch refreshed = new CountDownLatch(1);
+        cache.setRefresher(new NamedEntryCache.Refresher() {
+            @Override
+            public void refresh(NamedEntry entry) throws ServiceException {
+                cache.replace((Domain) entry);
+                refreshed.countDown();
+            }
+        });
+        cache.put(DomainBy.id, "id1", domain(1));
+        Thread.sleep(900);
+        Assert.assertNotNull(cache.getById("id1", GetFromDomainCacheOption.POSITIVE));
+        Assert.assertTrue(refreshed.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        // past the original lifetime, but the refresh put it back
+        Assert.assertNotNull(cache.getByName("example1.com", GetFromDomainCacheOption.POSITIVE));
+        Assert.assertEquals(1, cache.getRefreshCount());
+    }
+}
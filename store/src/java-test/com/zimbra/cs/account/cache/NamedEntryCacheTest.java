@@ -0,0 +1,102 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account.cache;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Cos;
+import com.zimbra.cs.account.MockCos;
+import com.zimbra.cs.account.NamedEntry;
+
+/**
+ * Unit test for {@link NamedEntryCache}.
+ */
+public final class NamedEntryCacheTest {
+
+    private static Cos cos(int i) {
+        return new MockCos("cos" + i, "id" + i, new HashMap<String, Object>(), null);
+    }
+
+    @Test
+    public void getAndRemove() {
+        NamedEntryCache<Cos> cache = new NamedEntryCache<Cos>(10, 60000);
+        Cos cos = cos(1);
+        cache.put(cos);
+        Assert.assertSame(cos, cache.getById("id1"));
+        Assert.assertSame(cos, cache.getByName("COS1"));
+        Assert.assertNull(cache.getById("id2"));
+        Assert.assertEquals(2, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+
+        cache.remove(cos);
+        Assert.assertNull(cache.getByName("cos1"));
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void expire() throws Exception {
+        NamedEntryCache<Cos> cache = new NamedEntryCache<Cos>(10, 50);
+        cache.put(cos(1));
+        Thread.sleep(100);
+        Assert.assertNull(cache.getById("id1"));
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void evictLeastRecentlyRead() throws Exception {
+        NamedEntryCache<Cos> cache = new NamedEntryCache<Cos>(10, 60000);
+        for (int i = 0; i < 10; i++) {
+            cache.put(cos(i));
+        }
+        Thread.sleep(10);
+        Assert.assertNotNull(cache.getById("id0"));
+        cache.put(cos(10));
+        // the oldest tenth is evicted in one go, along with the entry over the limit
+        Assert.assertEquals(9, cache.getSize());
+        Assert.assertNotNull(cache.getById("id0"));
+        Assert.assertNotNull(cache.getById("id10"));
+    }
+
+    @Test
+    public void refreshAhead() throws Exception {
+        final NamedEntryCache<Cos> cache = new NamedEntryCache<Cos>(10, 1000);
+        final CountDownLatch refreshed = new CountDownLatch(1);
+        cache.setRefresher(new NamedEntryCache.Refresher() {
+            @Override
+            public void refresh(NamedEntry entry) throws ServiceException {
+                cache.replace((Cos) entry);
+                refreshed.countDown();
+            }
+        });
+        cache.put(cos(1));
+        // not yet due
+        Assert.assertNotNull(cache.getById("id1"));
+        Thread.sleep(900);
+        Assert.assertNotNull(cache.getById("id1"));
+        Assert.assertTrue(refreshed.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        // past the original lifetime, but the refresh put it back
+        Assert.assertNotNull(cache.getById("id1"));
+        Assert.assertEquals(1, cache.getRefreshCount());
+    }
+}
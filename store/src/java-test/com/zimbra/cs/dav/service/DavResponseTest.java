@@ -0,0 +1,121 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.dav.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+import org.dom4j.Document;
+import org.dom4j.Element;
+import org.dom4j.io.SAXReader;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.zimbra.cs.dav.DavContext;
+import com.zimbra.cs.dav.DavElements;
+import com.zimbra.cs.dav.DavProtocol;
+
+/**
+ * Unit test for streamed {@link DavResponse}s.
+ */
+public final class DavResponseTest {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private DavContext ctxt;
+    private HttpServletResponse resp;
+
+    @Before
+    public void setUp() throws Exception {
+        out.reset();
+        resp = Mockito.mock(HttpServletResponse.class);
+        Mockito.when(resp.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {
+            }
+        });
+        ctxt = Mockito.mock(DavContext.class);
+        Mockito.when(ctxt.getResponse()).thenReturn(resp);
+        Mockito.when(ctxt.getStatus()).thenReturn(DavProtocol.STATUS_MULTI_STATUS);
+        Mockito.when(ctxt.canStreamResponse()).thenReturn(true);
+    }
+
+    private Document parse() throws Exception {
+        return new SAXReader().read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test
+    public void streamed() throws Exception {
+        DavResponse dresp = new DavResponse();
+        Assert.assertTrue(dresp.startStreaming(ctxt));
+        Assert.assertEquals(0, out.size());
+
+        for (int i = 0; i < 100; i++) {
+            dresp.addStatus(ctxt, "/dav/test/Calendar/" + i + ".ics", HttpServletResponse.SC_NOT_FOUND);
+            // nothing is kept once the element has been written
+            Assert.assertTrue(dresp.getTop(DavElements.E_MULTISTATUS).elements().isEmpty());
+        }
+        Mockito.verify(resp).setStatus(DavProtocol.STATUS_MULTI_STATUS);
+        Mockito.verify(resp).setContentType(DavProtocol.DAV_CONTENT_TYPE);
+        dresp.finishStream(ctxt);
+
+        Element top = parse().getRootElement();
+        Assert.assertEquals(DavElements.E_MULTISTATUS, top.getQName());
+        List<?> responses = top.elements(DavElements.E_RESPONSE);
+        Assert.assertEquals(100, responses.size());
+        Element last = (Element) responses.get(99);
+        Assert.assertEquals("/dav/test/Calendar/99.ics", last.elementText(DavElements.E_HREF));
+        Assert.assertEquals("HTTP/1.1 404 Not Found", last.elementText(DavElements.E_STATUS));
+    }
+
+    @Test
+    public void empty() throws Exception {
+        DavResponse dresp = new DavResponse();
+        Assert.assertTrue(dresp.startStreaming(ctxt));
+        dresp.finishStream(ctxt);
+        Mockito.verify(resp).setStatus(DavProtocol.STATUS_MULTI_STATUS);
+        Element top = parse().getRootElement();
+        Assert.assertEquals(DavElements.E_MULTISTATUS, top.getQName());
+        Assert.assertTrue(top.elements().isEmpty());
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        Mockito.when(ctxt.canStreamResponse()).thenReturn(false);
+        DavResponse dresp = new DavResponse();
+        Assert.assertFalse(dresp.startStreaming(ctxt));
+        dresp.addStatus(ctxt, "/dav/test/Calendar/1.ics", HttpServletResponse.SC_NOT_FOUND);
+        Assert.assertEquals(0, out.size());
+        Assert.assertEquals(1, dresp.getTop(DavElements.E_MULTISTATUS).elements().size());
+    }
+}
@@ -0,0 +1,206 @@
+package com.zimbra.cs.ephemeral;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.cs.ephemeral.EphemeralInput.AbsoluteExpiration;
+import com.zimbra.cs.ephemeral.EphemeralInput.RelativeExpiration;
+import com.zimbra.cs.ephemeral.EphemeralStoreTest.TestLocation;
+
+public class FileEphemeralStoreTest {
+
+    private File dir;
+    private FileEphemeralStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        store = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        FileUtil.deleteDir(dir);
+    }
+
+    private FileEphemeralStore open() throws Exception {
+        FileEphemeralStore store = new FileEphemeralStore(dir);
+        store.open();
+        return store;
+    }
+
+    private FileEphemeralStore reopen() throws Exception {
+        store.close();
+        store = open();
+        return store;
+    }
+
+    @Test
+    public void testSetUpdateDelete() throws Exception {
+        EphemeralKey key = new EphemeralKey("foo");
+        EphemeralKey dynamicKey = new EphemeralKey("foo", "1");
+        EphemeralLocation target = new TestLocation();
+        store.set(new EphemeralInput(key, "bar"), target);
+        store.set(new EphemeralInput(key, "baz"), target);
+        assertEquals("baz", store.get(key, target).getValue());
+
+        store.update(new EphemeralInput(key, "qux"), target);
+        store.update(new EphemeralInput(dynamicKey, "dynamic"), target);
+        assertArrayEquals(new String[] {"baz", "qux"}, store.get(key, target).getValues());
+        assertEquals("dynamic", store.get(dynamicKey, target).getValue());
+
+        store.delete(key, "baz", target);
+        assertArrayEquals(new String[] {"qux"}, store.get(key, target).getValues());
+        assertTrue(store.has(dynamicKey, target));
+
+        store.deleteData(target);
+        assertFalse(store.has(key, target));
+        assertFalse(store.has(dynamicKey, target));
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        EphemeralKey key = new EphemeralKey("foo");
+        EphemeralKey other = new EphemeralKey("other");
+        EphemeralLocation target = new TestLocation("one");
+        EphemeralLocation deleted = new TestLocation("two");
+        store.update(new EphemeralInput(key, "bar"), target);
+        store.update(new EphemeralInput(key, "baz"), target);
+        store.delete(key, "bar", target);
+        store.set(new EphemeralInput(other, "value"), deleted);
+        store.deleteData(deleted);
+        store.update(new EphemeralInput(key, "expired", new AbsoluteExpiration(System.currentTimeMillis() - 1000)),
+                target);
+
+        reopen();
+        assertArrayEquals(new String[] {"baz"}, store.get(key, target).getValues());
+        assertFalse(store.has(other, deleted));
+    }
+
+    @Test
+    public void testTruncatedLog() throws Exception {
+        EphemeralKey key = new EphemeralKey("foo");
+        EphemeralLocation target = new TestLocation();
+        store.update(new EphemeralInput(key, "bar"), target);
+        store.update(new EphemeralInput(key, "baz"), target);
+        store.close();
+
+        // a crash in the middle of the last write leaves a partial record
+        File log = new File(dir, FileEphemeralStore.LOG_FILE);
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        store = open();
+        assertArrayEquals(new String[] {"bar"}, store.get(key, target).getValues());
+
+        // the partial record is gone, so new records follow the good ones
+        store.update(new EphemeralInput(key, "qux"), target);
+        reopen();
+        assertArrayEquals(new String[] {"bar", "qux"}, store.get(key, target).getValues());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        EphemeralKey key = new EphemeralKey("foo");
+        EphemeralLocation target = new TestLocation();
+        long now = System.currentTimeMillis();
+        store.update(new EphemeralInput(key, "short", new AbsoluteExpiration(now + 5000)), target);
+        store.update(new EphemeralInput(key, "long", new RelativeExpiration(2L, TimeUnit.HOURS)), target);
+        store.update(new EphemeralInput(key, "forever"), target);
+
+        store.tick(now + 2000);
+        assertEquals(3, store.get(key, target).getValues().length);
+        store.tick(now + 7000);
+        assertArrayEquals(new String[] {"long", "forever"}, store.get(key, target).getValues());
+        store.tick(now + TimeUnit.HOURS.toMillis(3));
+        assertArrayEquals(new String[] {"forever"}, store.get(key, target).getValues());
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        EphemeralKey key = new EphemeralKey("foo");
+        EphemeralLocation target = new TestLocation();
+        for (int i = 0; i < 1000; i++) {
+            store.set(new EphemeralInput(key, "value" + i), target);
+        }
+        store.update(new EphemeralInput(new EphemeralKey("bar"), "kept"), target);
+        assertEquals(2001, store.getLogRecordCount());
+        long before = new File(dir, FileEphemeralStore.LOG_FILE).length();
+
+        store.compact();
+        assertEquals(2, store.getLogRecordCount());
+        assertTrue(new File(dir, FileEphemeralStore.LOG_FILE).length() < before / 100);
+        store.update(new EphemeralInput(key, "after"), target);
+
+        reopen();
+        assertEquals(3, store.getLogRecordCount());
+        assertArrayEquals(new String[] {"value999", "after"}, store.get(key, target).getValues());
+        assertEquals("kept", store.get(new EphemeralKey("bar"), target).getValue());
+    }
+
+    @Test
+    public void testURL() throws Exception {
+        FileEphemeralStore.Factory factory = new FileEphemeralStore.Factory();
+        try {
+            factory.test("file:" + dir.getPath());
+            factory.test("file://" + dir.getPath());
+        } finally {
+            factory.shutdown();
+        }
+        assertEquals(dir, FileEphemeralStore.getDirectory("file:" + dir.getPath()));
+        try {
+            FileEphemeralStore.getDirectory("ldap://default");
+            fail();
+        } catch (ServiceException expected) {
+        }
+    }
+
+    @Test
+    public void testTimingWheel() throws Exception {
+        long start = 1000000;
+        TimingWheel<Long> wheel = new TimingWheel<Long>(1000, start);
+        // spans every level of the wheel and the overflow list
+        long[] delays = {0, 1, 999, 1000, 63000, 64000, 65000, 4096000, 300000000, 20000000000L};
+        for (long delay : delays) {
+            wheel.schedule(start + delay, start + delay);
+        }
+        assertEquals(delays.length, wheel.size());
+
+        final List<Long> expired = new ArrayList<Long>();
+        final long[] now = new long[1];
+        TimingWheel.Handler<Long> handler = new TimingWheel.Handler<Long>() {
+            @Override
+            public void expired(Long expiresAt) {
+                // nothing may expire early, or more than a tick late
+                assertTrue(expiresAt <= now[0]);
+                assertTrue(now[0] - expiresAt < 2000);
+                expired.add(expiresAt);
+            }
+        };
+        for (now[0] = start; expired.size() < delays.length; now[0] += 1000) {
+            wheel.advance(now[0], handler);
+            if (now[0] > start + 20001000000L) {
+                break;
+            }
+        }
+        assertEquals(delays.length, expired.size());
+        assertEquals(0, wheel.size());
+    }
+}
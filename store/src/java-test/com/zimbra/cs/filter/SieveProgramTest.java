@@ -0,0 +1,204 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.filter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jsieve.SieveFactory;
+import org.apache.jsieve.parser.generated.Node;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryContext;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.service.util.ItemId;
+
+/**
+ * Unit test for {@link SieveProgram}.
+ */
+public final class SieveProgramTest {
+    private static final String MSG = "From: Alice <alice@example.com>\n"
+            + "To: bob@example.com, carol@example.org\n"
+            + "Subject: Quarterly Report\n"
+            + "List-Id: <dev.lists.example.com>\n"
+            + "X-Priority: 1\n"
+            + "\n"
+            + "numbers attached\n";
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @After
+    public void tearDown() {
+        LC.zimbra_filter_compiled_rules_enabled.setDefault(true);
+    }
+
+    private static Account getAccount() throws Exception {
+        return Provisioning.getInstance().getAccountByName("test@zimbra.com");
+    }
+
+    private static String[] deliver(String script, boolean compiled) throws Exception {
+        LC.zimbra_filter_compiled_rules_enabled.setDefault(compiled);
+        Account account = getAccount();
+        RuleManager.clearCachedRules(account);
+        account.setMailSieveScript(script);
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(account);
+        List<ItemId> ids = RuleManager.applyRulesToIncomingMessage(new OperationContext(mbox), mbox,
+                new ParsedMessage(MSG.getBytes(), false), 0, account.getName(), new DeliveryContext(),
+                Mailbox.ID_FOLDER_INBOX, true);
+        Assert.assertEquals(1, ids.size());
+        Message msg = mbox.getMessageById(null, ids.get(0).getId());
+        String[] tags = msg.getTags();
+        Arrays.sort(tags);
+        return tags;
+    }
+
+    private static ZimbraMailAdapter newMailAdapter(Mailbox mbox) throws Exception {
+        ParsedMessage pm = new ParsedMessage(MSG.getBytes(), false);
+        IncomingMessageHandler handler = new IncomingMessageHandler(new OperationContext(mbox), new DeliveryContext(),
+                mbox, "test@zimbra.com", pm, MSG.length(), Mailbox.ID_FOLDER_INBOX, true);
+        return new ZimbraMailAdapter(mbox, handler);
+    }
+
+    @Test
+    public void sameResultAsInterpreter() throws Exception {
+        String[] scripts = {
+            "require \"tag\";\n"
+                + "if header :contains \"subject\" \"report\" { tag \"t1\"; }\n"
+                + "if header :is \"Subject\" \"quarterly report\" { tag \"t2\"; }\n"
+                + "if header :is :comparator \"i;octet\" \"Subject\" \"quarterly report\" { tag \"t3\"; }\n"
+                + "if header :matches \"list-id\" \"*dev.lists*\" { tag \"t4\"; }\n"
+                + "if header :matches :comparator \"i;octet\" \"list-id\" \"*DEV*\" { tag \"t5\"; }\n"
+                + "if header :contains \"x-missing\" \"\" { tag \"t6\"; }\n"
+                + "if header :contains \"x-priority\" \"\" { tag \"t7\"; }\n",
+            "require \"tag\";\n"
+                + "if address :all :is \"from\" \"alice@example.com\" { tag \"a1\"; }\n"
+                + "if address :domain :contains \"cc\" \"example\" { tag \"a2\"; }\n"
+                + "if exists [\"from\", \"x-priority\"] { tag \"e1\"; }\n"
+                + "if exists [\"from\", \"x-missing\"] { tag \"e2\"; }\n",
+            "require \"tag\";\n"
+                + "if not header :contains \"subject\" \"spam\" { tag \"n1\"; }\n"
+                + "if allof (header :contains \"subject\" \"report\", header :is \"x-priority\" \"2\") { tag \"n2\"; }\n"
+                + "if anyof (header :contains \"x-missing\" \"a\", header :is \"x-priority\" \"1\") { tag \"n3\"; }\n"
+                + "if allof (body :contains \"numbers\", header :contains \"subject\" \"report\") { tag \"n4\"; }\n"
+                + "if anyof (size :over 1M, header :contains \"x-missing\" \"a\") { tag \"n5\"; }\n",
+            "require \"tag\";\n"
+                + "if header :contains \"x-missing\" \"a\" { tag \"c1\"; } elsif header :contains \"subject\" \"report\" { tag \"c2\"; }\n"
+                + "if header :contains \"x-missing\" \"a\" { tag \"c3\"; } else { tag \"c4\"; }\n"
+                + "if header :contains \"x-missing\" \"a\" { tag \"c5\"; }\n"
+                + "tag \"c6\";\n"
+                + "if header :contains \"subject\" \"report\" { tag \"c7\"; stop; }\n"
+                + "tag \"c8\";\n",
+        };
+        for (String script : scripts) {
+            String[] interpreted = deliver(script, false);
+            Assert.assertTrue(interpreted.length > 0);
+            Assert.assertArrayEquals(script, interpreted, deliver(script, true));
+        }
+    }
+
+    @Test
+    public void skipsRulesThatCannotMatch() throws Exception {
+        Node node = RuleManager.parse("require \"tag\";\n"
+                + "if header :contains \"x-missing\" \"a\" { tag \"skipped\"; }\n"
+                + "if header :is \"x-priority\" \"2\" { tag \"skipped\"; }\n"
+                + "if header :contains \"subject\" \"report\" { tag \"kept\"; }\n"
+                + "if body :contains \"x\" { tag \"kept\"; }\n");
+        SieveProgram program = SieveProgram.compile(node);
+        Assert.assertSame(node, program.getRoot());
+        Assert.assertEquals(3, program.getCompiledRuleCount());
+
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(getAccount());
+        Node selected = program.select(newMailAdapter(mbox));
+        Assert.assertEquals(3, selected.jjtGetChild(0).jjtGetNumChildren());
+        // the cached tree is left alone
+        Assert.assertEquals(5, node.jjtGetChild(0).jjtGetNumChildren());
+    }
+
+    @Test
+    public void headerEditingScriptsAreNotCompiled() throws Exception {
+        Node node = RuleManager.parse("require \"editheader\";\n"
+                + "if header :contains \"subject\" \"report\" { addheader \"X-Report\" \"yes\"; }\n"
+                + "if header :contains \"x-report\" \"yes\" { tag \"report\"; }\n");
+        Assert.assertEquals(0, SieveProgram.compile(node).getCompiledRuleCount());
+        node = RuleManager.parse("require \"variables\";\n"
+                + "if header :matches \"subject\" \"*\" { set \"s\" \"${1}\"; }\n"
+                + "if header :contains \"subject\" \"${s}\" { tag \"same\"; }\n");
+        Assert.assertEquals(0, SieveProgram.compile(node).getCompiledRuleCount());
+    }
+
+    /**
+     * Filters the same message through a script of several hundred mailing list rules, the way users who
+     * sort their list traffic write them, with the interpreter alone and with the compiled script.  The timings
+     * are only logged; they depend too much on the machine running the tests to assert on.
+     */
+    @Test
+    public void benchmark() throws Exception {
+        StringBuilder script = new StringBuilder("require [\"fileinto\", \"tag\"];\n");
+        for (int i = 0; i < 500; i++) {
+            script.append("if anyof (header :contains \"list-id\" \"list").append(i).append(".example.net\", ")
+                .append("address :is \"from\" \"sender").append(i).append("@example.net\")) { fileinto \"lists/")
+                .append(i).append("\"; stop; }\n");
+            script.append("if header :matches \"x-mailer\" \"Mailer ").append(i).append(" *\" { tag \"m")
+                .append(i).append("\"; }\n");
+        }
+        Node node = RuleManager.parse(script.toString());
+        SieveProgram program = SieveProgram.compile(node);
+        Assert.assertEquals(1000, program.getCompiledRuleCount());
+
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(getAccount());
+        SieveFactory factory = RuleManager.getSieveFactory();
+        int iterations = 200;
+        long interpreted = 0;
+        long compiled = 0;
+        for (int round = 0; round < 2; round++) { // the first round warms up
+            interpreted = 0;
+            compiled = 0;
+            for (int i = 0; i < iterations; i++) {
+                ZimbraMailAdapter mail = newMailAdapter(mbox);
+                long start = System.nanoTime();
+                factory.evaluate(mail, node);
+                interpreted += System.nanoTime() - start;
+
+                mail = newMailAdapter(mbox);
+                start = System.nanoTime();
+                factory.evaluate(mail, program.select(mail));
+                compiled += System.nanoTime() - start;
+            }
+        }
+        ZimbraLog.test.info("1000 rules: interpreter %d us/message, compiled %d us/message",
+                TimeUnit.NANOSECONDS.toMicros(interpreted / iterations),
+                TimeUnit.NANOSECONDS.toMicros(compiled / iterations));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.html;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.zimbra.common.mime.MimeConstants;
+import com.zimbra.common.util.FileCache;
+import com.zimbra.common.util.FileUtil;
+
+/**
+ * Unit test for {@link DefangCache}.
+ */
+public final class DefangCacheTest {
+    private static final String DIGEST = "6v8T9sWVrpAGrvYTUeQCQzUO2xlkMymNqdv3hKXKdUQ=";
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtil.deleteDir(dir);
+    }
+
+    private static DefangCache.Key key(DefangCache cache, String part, boolean neuter, int maxSize) {
+        return cache.newKey(DIGEST, part, MimeConstants.CT_TEXT_HTML, neuter, maxSize, "utf-8");
+    }
+
+    private static String body(int length) {
+        StringBuilder sb = new StringBuilder("<p>");
+        while (sb.length() < length) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void sharedByDigest() {
+        DefangCache cache = new DefangCache(1024 * 1024, null, MoreExecutors.directExecutor());
+        cache.put(key(cache, "2", true, 1000), "<p>hello</p>", false);
+
+        DefangCache.Entry entry = cache.get(key(cache, "2", true, 1000));
+        Assert.assertNotNull(entry);
+        Assert.assertEquals("<p>hello</p>", entry.getContent());
+        Assert.assertFalse(entry.isTruncated());
+
+        // anything that changes the output is part of the key
+        Assert.assertNull(cache.get(key(cache, "1", true, 1000)));
+        Assert.assertNull(cache.get(key(cache, "2", false, 1000)));
+        Assert.assertNull(cache.get(key(cache, "2", true, 100)));
+        Assert.assertNull(cache.get(cache.newKey(DIGEST, "2", MimeConstants.CT_TEXT_HTML, true, 1000, "iso-8859-1")));
+    }
+
+    @Test
+    public void disabled() {
+        DefangCache cache = new DefangCache(0, null, MoreExecutors.directExecutor());
+        Assert.assertNull(key(cache, "1", true, 0));
+        cache = new DefangCache(1024 * 1024, null, MoreExecutors.directExecutor());
+        Assert.assertNull(cache.newKey(null, "1", MimeConstants.CT_TEXT_HTML, true, 0, "utf-8"));
+    }
+
+    @Test
+    public void emptyBodyNotCached() {
+        DefangCache cache = new DefangCache(1024 * 1024, null, MoreExecutors.directExecutor());
+        cache.put(key(cache, "1", true, 0), "", false);
+        Assert.assertNull(cache.get(key(cache, "1", true, 0)));
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void weighedBySize() {
+        DefangCache cache = new DefangCache(256 * 1024, null, MoreExecutors.directExecutor());
+        for (int i = 0; i < 20; i++) {
+            cache.put(key(cache, Integer.toString(i), true, 0), body(8 * 1024), true);
+        }
+        Assert.assertTrue(cache.getSize() < 20);
+        Assert.assertTrue(cache.getDataSize() <= 256 * 1024);
+        Assert.assertNotNull(cache.get(key(cache, "19", true, 0)));
+
+        cache.clear();
+        Assert.assertEquals(0, cache.getSize());
+        Assert.assertEquals(0, cache.getDataSize());
+    }
+
+    @Test
+    public void spillToDisk() throws Exception {
+        FileCache<String> disk = FileCache.Builder.createWithStringKey(dir, false).build();
+        DefangCache cache = new DefangCache(256 * 1024, disk, MoreExecutors.directExecutor());
+        for (int i = 0; i < 20; i++) {
+            cache.put(key(cache, Integer.toString(i), true, 0), body(8 * 1024) + i, i % 2 == 0);
+        }
+        Assert.assertTrue(disk.getNumKeys() > 0);
+
+        // evicted bodies come back from disk
+        for (int i = 0; i < 20; i++) {
+            DefangCache.Entry entry = cache.get(key(cache, Integer.toString(i), true, 0));
+            Assert.assertNotNull(entry);
+            Assert.assertEquals(body(8 * 1024) + i, entry.getContent());
+            Assert.assertEquals(i % 2 == 0, entry.isTruncated());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+public class ImapFolderSerializerTest {
+    private static final String LOCAL_USER = "imapserializertest@zimbra.com";
+    private Account acct = null;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        HashMap<String,Object> attrs = new HashMap<String,Object>();
+        attrs.put(Provisioning.A_zimbraId, "0a4c6e3e-6c1f-4b07-9a4b-5d1f0a0b3c21");
+        acct = Provisioning.getInstance().createAccount(LOCAL_USER, "secret", attrs);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MailboxTestUtil.clearData();
+        LC.imap_folder_cache_compact_format.setDefault(true);
+    }
+
+    private ImapFolder newFolder() throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapFolder i4folder = new ImapFolder(new ImapPath("INBOX", creds), (byte) 0, null);
+        i4folder.cache(new ImapMessage(257, MailItem.Type.MESSAGE, 257, Flag.BITMASK_UNREAD, null), false);
+        i4folder.cache(new ImapMessage(258, MailItem.Type.MESSAGE, 300, 0, new String[] {"work", "todo"}), true);
+        i4folder.cache(new ImapMessage(259, MailItem.Type.CONTACT, 301, Flag.BITMASK_FLAGGED, new String[] {"work"}), false);
+        i4folder.getTagset().cache(new ImapFlagCache.ImapFlag("$Junk", ImapMessage.FLAG_SPAM, ImapFlagCache.ImapFlag.VISIBLE));
+        return i4folder;
+    }
+
+    private static void assertSameFolder(ImapFolder expected, ImapFolder actual) {
+        Assert.assertEquals(expected.getItemIdentifier().toString(), actual.getItemIdentifier().toString());
+        Assert.assertEquals(expected.getUIDValidity(), actual.getUIDValidity());
+        Assert.assertEquals(expected.getQuery(), actual.getQuery());
+        Assert.assertEquals(expected.getTypeConstraint(), actual.getTypeConstraint());
+        Assert.assertEquals(expected.getTagset().listNames(false), actual.getTagset().listNames(false));
+        Assert.assertEquals(expected.getSize(), actual.getSize());
+        for (int seq = 1; seq <= expected.getSize(); seq++) {
+            ImapMessage i4msg = expected.getBySequence(seq), restored = actual.getBySequence(seq);
+            Assert.assertEquals(i4msg.sequence, restored.sequence);
+            Assert.assertEquals(i4msg.msgId, restored.msgId);
+            Assert.assertEquals(i4msg.imapUid, restored.imapUid);
+            Assert.assertEquals(i4msg.sflags, restored.sflags);
+            Assert.assertEquals(i4msg.flags, restored.flags);
+            Assert.assertArrayEquals(i4msg.tags, restored.tags);
+            Assert.assertEquals(i4msg.getType(), restored.getType());
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ImapFolder i4folder = newFolder();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImapFolderSerializer.write(i4folder, baos);
+
+        ImapFolder restored = ImapFolderSerializer.read(new ByteArrayInputStream(baos.toByteArray()));
+        assertSameFolder(i4folder, restored);
+        Assert.assertEquals(258, restored.getById(258).msgId);
+    }
+
+    @Test
+    public void legacyFormat() throws Exception {
+        ImapFolder i4folder = newFolder();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(i4folder);
+        oos.close();
+
+        assertSameFolder(i4folder, ImapFolderSerializer.read(new ByteArrayInputStream(baos.toByteArray())));
+    }
+
+    @Test
+    public void compactFormatDisabled() throws Exception {
+        LC.imap_folder_cache_compact_format.setDefault(false);
+        ImapFolder i4folder = newFolder();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImapFolderSerializer.write(i4folder, baos);
+
+        byte[] serialized = baos.toByteArray();
+        // Java serialization stream header
+        Assert.assertEquals((byte) 0xAC, serialized[0]);
+        Assert.assertEquals((byte) 0xED, serialized[1]);
+        assertSameFolder(i4folder, ImapFolderSerializer.read(new ByteArrayInputStream(serialized)));
+    }
+}
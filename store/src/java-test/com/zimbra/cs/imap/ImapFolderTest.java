@@ -1,6 +1,9 @@
 package com.zimbra.cs.imap;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
 
 import junit.framework.Assert;
@@ -12,6 +15,7 @@ import org.junit.Test;
 
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Flag;
 import com.zimbra.cs.mailbox.MailItem.Type;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
@@ -61,4 +65,37 @@ public class ImapFolderTest {
         Assert.assertNotNull(i4set);
         Assert.assertEquals(3, i4set.size());
     }
+
+    @Test
+    public void testEvaluateSearch() throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapPath path = new ImapPath("trash", creds);
+        byte params = 0;
+
+        ImapFolder i4folder = new ImapFolder(path, params, null);
+        i4folder.cache(new ImapMessage(1, Type.of((byte) 5), 11, Flag.BITMASK_UNREAD, null), false);
+        i4folder.cache(new ImapMessage(2, Type.of((byte) 5), 12, 0, null), false);
+        i4folder.cache(new ImapMessage(3, Type.of((byte) 5), 13, Flag.BITMASK_UNREAD | Flag.BITMASK_FLAGGED, null),
+                false);
+
+        ImapSearch unseen = new ImapSearch.NotOperation(new ImapSearch.FlagSearch("\\Seen"));
+        Assert.assertEquals(Arrays.asList(1, 3), ids(unseen.evaluate(i4folder)));
+        Assert.assertEquals(Arrays.asList(2, 3),
+                ids(new ImapSearch.SequenceSearch(null, "12:*", true).evaluate(i4folder)));
+        Assert.assertEquals(Arrays.asList(3), ids(new ImapSearch.AndOperation(unseen,
+                new ImapSearch.SequenceSearch(null, "2:3", false)).evaluate(i4folder)));
+        Assert.assertEquals(Arrays.asList(1, 3), ids(new ImapSearch.OrOperation(
+                new ImapSearch.SequenceSearch(null, "11", true),
+                new ImapSearch.FlagSearch("\\Flagged")).evaluate(i4folder)));
+        Assert.assertEquals(Arrays.asList(1, 2, 3), ids(new ImapSearch.AllSearch().evaluate(i4folder)));
+        Assert.assertTrue(new ImapSearch.SequenceSearch(null, "14:20", true).evaluate(i4folder).isEmpty());
+    }
+
+    private static List<Integer> ids(Set<ImapMessage> i4set) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (ImapMessage i4msg : i4set) {
+            ids.add(i4msg.msgId);
+        }
+        return ids;
+    }
 }
\ No newline at end of file
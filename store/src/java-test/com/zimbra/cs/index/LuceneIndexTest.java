@@ -16,6 +16,21 @@
  */
 package com.zimbra.cs.index;
 
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.ContactConstants;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.mailbox.Contact;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mime.ParsedContact;
+
 /**
  * Unit test for {@link LuceneIndex}.
  */
@@ -27,4 +42,157 @@ public final class LuceneIndexTest extends AbstractIndexStoreTest {
         // Default for LC.zimbra_class_index_store_factory.value() is USUALLY this
         return "com.zimbra.cs.index.LuceneIndex$Factory";
     }
+
+    private static Contact createContact(Mailbox mbox, String email) throws ServiceException {
+        return mbox.createContact(null, new ParsedContact(
+                Collections.singletonMap(ContactConstants.A_email, email)), Mailbox.ID_FOLDER_CONTACTS, null);
+    }
+
+    /**
+     * Returns the mailbox's index, emptied, with one contact indexed and committed.  The contacts are not indexed
+     * through the mailbox, so that the tests control when the writer is opened and closed.
+     */
+    private static IndexStore prepareIndex(Mailbox mbox, Contact contact) throws Exception {
+        mbox.index.indexDeferredItems();
+        IndexStore index = mbox.index.getIndexStore();
+        index.deleteIndex();
+        Folder folder = mbox.getFolderById(null, Mailbox.ID_FOLDER_CONTACTS);
+        Indexer indexer = index.openIndexer();
+        indexer.addDocument(folder, contact, contact.generateIndexData());
+        indexer.close();
+        return index;
+    }
+
+    private static int numDocs(IndexStore index) throws Exception {
+        ZimbraIndexSearcher searcher = index.openSearcher();
+        try {
+            return searcher.getIndexReader().numDocs();
+        } finally {
+            searcher.close();
+        }
+    }
+
+    /** Restarts the index store factory with near-real-time mode switched as given. */
+    private void setNearRealTime(boolean enabled) throws Exception {
+        IndexStore.getFactory().destroy();
+        LC.zimbra_index_nrt_enabled.setDefault(enabled);
+        LC.zimbra_index_nrt_refresh_interval_ms.setDefault(50);
+        IndexStore.setFactory(getIndexStoreFactory());
+    }
+
+    private void resetNearRealTime(String enabled, String interval) throws Exception {
+        IndexStore.getFactory().destroy();
+        LC.zimbra_index_nrt_enabled.setDefault(enabled);
+        LC.zimbra_index_nrt_refresh_interval_ms.setDefault(interval);
+        IndexStore.setFactory(getIndexStoreFactory());
+    }
+
+    @Test
+    public void nearRealTimeSearchSeesUncommittedWrite() throws Exception {
+        String enabled = LC.zimbra_index_nrt_enabled.value();
+        String interval = LC.zimbra_index_nrt_refresh_interval_ms.value();
+        setNearRealTime(true);
+        try {
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+            Contact contact1 = createContact(mbox, "abc@zimbra.com");
+            Contact contact2 = createContact(mbox, "xyz@zimbra.com");
+            IndexStore index = prepareIndex(mbox, contact1);
+            Assert.assertEquals(1, numDocs(index));
+
+            // the write is neither committed nor followed by a reopen; only the background refresh can show it
+            Indexer indexer = index.openIndexer();
+            try {
+                indexer.addDocument(mbox.getFolderById(null, Mailbox.ID_FOLDER_CONTACTS), contact2,
+                        contact2.generateIndexData());
+                long deadline = System.currentTimeMillis() + 10000;
+                while (numDocs(index) < 2 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(20);
+                }
+                Assert.assertEquals(2, numDocs(index));
+            } finally {
+                indexer.close();
+            }
+            Assert.assertEquals(2, numDocs(index));
+        } finally {
+            resetNearRealTime(enabled, interval);
+        }
+    }
+
+    @Test
+    public void nearRealTimeRefreshReleasesSupersededSearcher() throws Exception {
+        String enabled = LC.zimbra_index_nrt_enabled.value();
+        String interval = LC.zimbra_index_nrt_refresh_interval_ms.value();
+        setNearRealTime(true);
+        try {
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+            Contact contact1 = createContact(mbox, "abc@zimbra.com");
+            Contact contact2 = createContact(mbox, "xyz@zimbra.com");
+            IndexStore index = prepareIndex(mbox, contact1);
+
+            ZimbraIndexSearcher before = index.openSearcher();
+            // a cached searcher is handed out again rather than reopened
+            ZimbraIndexSearcher again = index.openSearcher();
+            Assert.assertSame(before, again);
+            again.close();
+            int openReaders = LuceneIndex.getOpenReaderCount();
+
+            // keep the writer open throughout, so that its commit doesn't trigger another refresh
+            Indexer indexer = index.openIndexer();
+            try {
+                indexer.addDocument(mbox.getFolderById(null, Mailbox.ID_FOLDER_CONTACTS), contact2,
+                        contact2.generateIndexData());
+                long deadline = System.currentTimeMillis() + 10000;
+                ZimbraIndexSearcher after = index.openSearcher();
+                while (after == before && System.currentTimeMillis() < deadline) {
+                    after.close();
+                    Thread.sleep(20);
+                    after = index.openSearcher();
+                }
+                Assert.assertNotSame(before, after);
+                Assert.assertEquals(2, after.getIndexReader().numDocs());
+
+                // the superseded searcher stays usable until its holder lets go, then its reader is closed
+                Assert.assertEquals(1, before.getIndexReader().numDocs());
+                Assert.assertEquals(openReaders + 1, LuceneIndex.getOpenReaderCount());
+                before.close();
+                Assert.assertEquals(openReaders, LuceneIndex.getOpenReaderCount());
+
+                // the cache still holds the refreshed searcher after its last caller is done
+                after.close();
+                Assert.assertEquals(openReaders, LuceneIndex.getOpenReaderCount());
+                index.evict();
+                Assert.assertEquals(openReaders - 1, LuceneIndex.getOpenReaderCount());
+            } finally {
+                indexer.close();
+            }
+        } finally {
+            resetNearRealTime(enabled, interval);
+        }
+    }
+
+    @Test
+    public void withoutNearRealTimeSearchSeesCommitOnly() throws Exception {
+        String enabled = LC.zimbra_index_nrt_enabled.value();
+        String interval = LC.zimbra_index_nrt_refresh_interval_ms.value();
+        setNearRealTime(false);
+        try {
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+            Contact contact1 = createContact(mbox, "abc@zimbra.com");
+            Contact contact2 = createContact(mbox, "xyz@zimbra.com");
+            IndexStore index = prepareIndex(mbox, contact1);
+            Assert.assertEquals(1, numDocs(index));
+
+            Indexer indexer = index.openIndexer();
+            indexer.addDocument(mbox.getFolderById(null, Mailbox.ID_FOLDER_CONTACTS), contact2,
+                    contact2.generateIndexData());
+            Thread.sleep(200);
+            Assert.assertEquals(1, numDocs(index));
+
+            // closing the indexer commits and reopens the cached searcher before returning
+            indexer.close();
+            Assert.assertEquals(2, numDocs(index));
+        } finally {
+            resetNearRealTime(enabled, interval);
+        }
+    }
 }
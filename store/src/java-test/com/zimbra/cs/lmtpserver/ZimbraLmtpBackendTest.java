@@ -0,0 +1,181 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.lmtpserver;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Unit test for {@link ZimbraLmtpBackend}.
+ */
+public final class ZimbraLmtpBackendTest {
+
+    private static final String[] RECIPIENTS = {
+        "rcpt0@zimbra.com", "rcpt1@zimbra.com", "overquota@zimbra.com", "rcpt2@zimbra.com", "rcpt3@zimbra.com"
+    };
+    private static final String OVER_QUOTA = "overquota@zimbra.com";
+
+    private static final String MESSAGE = "From: sender@zimbra.com\r\n"
+            + "To: rcpt0@zimbra.com\r\n"
+            + "Subject: parallel delivery\r\n"
+            + "Message-ID: <parallel-delivery@zimbra.com>\r\n"
+            + "\r\n"
+            + "Delivered to every local recipient.\r\n";
+
+    private String originalThreads;
+    private RecordingCallback callback;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        originalThreads = LC.lmtp_delivery_threads.value();
+        LC.lmtp_delivery_threads.setDefault(4);
+        ZimbraLmtpBackend.resetDeliveryExecutor();
+
+        Provisioning prov = Provisioning.getInstance();
+        for (String rcpt : RECIPIENTS) {
+            Map<String, Object> attrs = new HashMap<String, Object>();
+            attrs.put(Provisioning.A_zimbraPrefMessageIdDedupingEnabled, "TRUE");
+            if (rcpt.equals(OVER_QUOTA)) {
+                attrs.put(Provisioning.A_zimbraMailQuota, "5");
+            }
+            prov.createAccount(rcpt, "secret", attrs);
+        }
+
+        callback = new RecordingCallback();
+        ZimbraLmtpBackend.addCallback(callback);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ZimbraLmtpBackend.removeCallback(callback);
+        LC.lmtp_delivery_threads.setDefault(originalThreads);
+        ZimbraLmtpBackend.resetDeliveryExecutor();
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void parallelDelivery() throws Exception {
+        ZimbraLmtpBackend backend = new ZimbraLmtpBackend(LmtpConfig.getInstance());
+        LmtpEnvelope env = deliver(backend);
+
+        for (LmtpAddress recipient : env.getRecipients()) {
+            String rcpt = recipient.getEmailAddress();
+            if (rcpt.equals(OVER_QUOTA)) {
+                Assert.assertEquals(rcpt, LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA, recipient.getDeliveryStatus());
+                Assert.assertEquals(rcpt, 0, getInboxCount(rcpt));
+            } else {
+                Assert.assertEquals(rcpt, LmtpReply.DELIVERY_OK, recipient.getDeliveryStatus());
+                Assert.assertEquals(rcpt, 1, getInboxCount(rcpt));
+            }
+        }
+
+        // the first recipient stores the shared blob on the LMTP thread before the rest are handed off
+        Assert.assertEquals(RECIPIENTS.length - 1, callback.order.size());
+        Assert.assertEquals(RECIPIENTS[0], callback.order.get(0));
+        Assert.assertEquals(Thread.currentThread().getName(), callback.threads.get(RECIPIENTS[0]));
+        for (int i = 1; i < RECIPIENTS.length; i++) {
+            if (!RECIPIENTS[i].equals(OVER_QUOTA)) {
+                Assert.assertTrue(RECIPIENTS[i], callback.threads.get(RECIPIENTS[i]).startsWith("LmtpDelivery-"));
+            }
+        }
+    }
+
+    @Test
+    public void dedupeAcrossRecipients() throws Exception {
+        ZimbraLmtpBackend backend = new ZimbraLmtpBackend(LmtpConfig.getInstance());
+        deliver(backend);
+        callback.order.clear();
+
+        // an LMTP retry of the same message is only delivered to the recipient that failed last time
+        LmtpEnvelope env = deliver(backend);
+        for (LmtpAddress recipient : env.getRecipients()) {
+            String rcpt = recipient.getEmailAddress();
+            if (rcpt.equals(OVER_QUOTA)) {
+                Assert.assertEquals(rcpt, LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA, recipient.getDeliveryStatus());
+                Assert.assertEquals(rcpt, 0, getInboxCount(rcpt));
+            } else {
+                Assert.assertEquals(rcpt, LmtpReply.DELIVERY_OK, recipient.getDeliveryStatus());
+                Assert.assertEquals(rcpt, 1, getInboxCount(rcpt));
+            }
+        }
+        Assert.assertEquals(Collections.emptyList(), callback.order);
+    }
+
+    private static LmtpEnvelope deliver(ZimbraLmtpBackend backend) throws Exception {
+        LmtpEnvelope env = new LmtpEnvelope();
+        env.setSender(new LmtpAddress("<sender@zimbra.com>", new String[] { "BODY", "SIZE" }, null));
+        for (String rcpt : RECIPIENTS) {
+            env.addLocalRecipient(new LmtpAddress("<" + rcpt + ">", null, null));
+        }
+        byte[] content = MESSAGE.getBytes("UTF-8");
+        backend.deliver(env, new ByteArrayInputStream(content), content.length);
+        return env;
+    }
+
+    private static int getInboxCount(String rcpt) throws Exception {
+        Account account = Provisioning.getInstance().getAccountByName(rcpt);
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(account);
+        return mbox.getItemIds(null, Mailbox.ID_FOLDER_INBOX).getIds(MailItem.Type.MESSAGE).size();
+    }
+
+    /**
+     * Records the order in which recipients were delivered to and the thread that delivered each.
+     */
+    private static final class RecordingCallback implements LmtpCallback {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final Map<String, String> threads = new ConcurrentHashMap<String, String>();
+
+        @Override
+        public void afterDelivery(Account account, Mailbox mbox, String envelopeSender, String recipientEmail,
+                Message newMessage) {
+            order.add(recipientEmail);
+            threads.put(recipientEmail, Thread.currentThread().getName());
+        }
+
+        @Override
+        public void forwardWithoutDelivery(Account account, Mailbox mbox, String envelopeSender,
+                String recipientEmail, ParsedMessage pm) {
+        }
+    }
+}
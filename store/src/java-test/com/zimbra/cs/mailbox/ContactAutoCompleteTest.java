@@ -158,6 +158,47 @@ public final class ContactAutoCompleteTest {
         Assert.assertEquals(1, autocomplete.query("test.server-vmware - d", null, 100).entries.size());
     }
 
+    @Test
+    public void indexFollowsContactChanges() throws Exception {
+        Account account = Provisioning.getInstance().getAccountByName("testContAC@zimbra.com");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(account);
+        ContactAutoComplete autocomplete = new ContactAutoComplete(mbox.getAccount(), new OperationContext(mbox));
+        Assert.assertEquals(0, autocomplete.query("jane", null, 100).entries.size());
+
+        // the index is built by now, so everything below is picked up from mailbox notifications
+        Map<String, Object> fields = new HashMap<String, Object>();
+        fields.put(ContactConstants.A_firstName, "Jane");
+        fields.put(ContactConstants.A_lastName, "Doe");
+        fields.put(ContactConstants.A_email, "jdoe@zimbra.com");
+        int id = mbox.createContact(null, new ParsedContact(fields), Mailbox.ID_FOLDER_CONTACTS, null).getId();
+        Assert.assertEquals(1, autocomplete.query("jane", null, 100).entries.size());
+        Assert.assertEquals(1, autocomplete.query("doe ja", null, 100).entries.size());
+        Assert.assertEquals(1, autocomplete.query("jdo", null, 100).entries.size());
+
+        fields.put(ContactConstants.A_lastName, "Smith");
+        mbox.modifyContact(null, id, new ParsedContact(fields));
+        Assert.assertEquals(0, autocomplete.query("doe", null, 100).entries.size());
+        Assert.assertEquals(1, autocomplete.query("smi", null, 100).entries.size());
+
+        // the cached ranking table is refreshed when it's written
+        ContactRankings.increment(mbox.getAccountId(), Collections.singleton(new InternetAddress("jdoe@zimbra.com")));
+        Assert.assertEquals(1, autocomplete.query("smi", null, 100).entries.iterator().next().getRanking());
+        ContactRankings.increment(mbox.getAccountId(), Collections.singleton(new InternetAddress("jdoe@zimbra.com")));
+        Assert.assertEquals(2, autocomplete.query("smi", null, 100).entries.iterator().next().getRanking());
+
+        fields = new HashMap<String, Object>();
+        fields.put(ContactConstants.A_nickname, "Janes");
+        fields.put(ContactConstants.A_type, ContactConstants.TYPE_GROUP);
+        mbox.createContact(null, new ParsedContact(fields), Mailbox.ID_FOLDER_CONTACTS, null);
+        Assert.assertEquals(2, autocomplete.query("jane", null, 100).entries.size());
+
+        mbox.move(null, id, MailItem.Type.CONTACT, Mailbox.ID_FOLDER_TRASH);
+        Assert.assertEquals(1, autocomplete.query("jane", null, 100).entries.size());
+        mbox.delete(null, id, MailItem.Type.CONTACT);
+        Assert.assertEquals(0, autocomplete.query("smi", null, 100).entries.size());
+        Assert.assertEquals(0, autocomplete.query("jdo", null, 100).entries.size());
+    }
+
     @Test
     public void hitGroup() throws Exception {
         ContactAutoComplete.AutoCompleteResult result = new ContactAutoComplete.AutoCompleteResult(10);
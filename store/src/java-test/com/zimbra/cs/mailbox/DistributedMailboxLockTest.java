@@ -0,0 +1,241 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessReadWriteLock;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailboxLock.LockFailedException;
+
+/**
+ * Exercises the read/write mode of the distributed mailbox lock against an in-process ZooKeeper.  Each
+ * {@link MailboxLock} built here stands in for the lock of the same mailbox on a different node.
+ */
+public class DistributedMailboxLockTest {
+    private static final String LOCK_PATH = "/rwlocks/" + MockProvisioning.DEFAULT_ACCOUNT_ID;
+    private static TestingServer zookeeper;
+    private CuratorFramework client;
+    private Mailbox mbox;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+        zookeeper = new TestingServer();
+    }
+
+    @AfterClass
+    public static void shutdown() throws Exception {
+        zookeeper.close();
+    }
+
+    @Before
+    public void setup() throws Exception {
+        MailboxTestUtil.clearData();
+        mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        client = CuratorFrameworkFactory.newClient(zookeeper.getConnectString(), new RetryOneTime(100));
+        client.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        LC.zimbra_mailbox_lock_timeout.setDefault(60);
+    }
+
+    private MailboxLock newNodeLock() {
+        return new MailboxLock(new InterProcessReadWriteLock(client, LOCK_PATH), mbox);
+    }
+
+    @Test
+    public void readersShareAcrossNodes() throws Exception {
+        final int nodes = 4;
+        final CyclicBarrier allHolding = new CyclicBarrier(nodes);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < nodes; i++) {
+            final MailboxLock lock = newNodeLock();
+            Thread thread = new Thread("reader-" + i) {
+                @Override
+                public void run() {
+                    lock.lock(false);
+                    try {
+                        // only passes if every node holds its read lock at the same time
+                        allHolding.await(10, TimeUnit.SECONDS);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        lock.release();
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertNull(failure.get());
+    }
+
+    @Test
+    public void writerExcludesReaders() throws Exception {
+        LC.zimbra_mailbox_lock_timeout.setDefault(1);
+        final MailboxLock writer = newNodeLock();
+        final MailboxLock reader = newNodeLock();
+        writer.lock(true);
+        try {
+            reader.lock(false);
+            reader.release();
+            Assert.fail("read lock granted while another node holds the write lock");
+        } catch (LockFailedException e) {
+            // expected
+        } finally {
+            writer.release();
+        }
+        Assert.assertTrue(reader.isUnlocked());
+
+        reader.lock(false);
+        Assert.assertEquals(1, reader.getHoldCount());
+        reader.release();
+        Assert.assertTrue(reader.isUnlocked());
+    }
+
+    @Test
+    public void nestedHoldsReleaseOnce() throws Exception {
+        LC.zimbra_mailbox_lock_timeout.setDefault(1);
+        MailboxLock first = newNodeLock();
+        MailboxLock second = newNodeLock();
+        first.lock(true);
+        first.lock(true);
+        first.release();
+        // still held by the outer hold
+        try {
+            second.lock(true);
+            second.release();
+            Assert.fail("write lock granted while another node holds it");
+        } catch (LockFailedException e) {
+            // expected
+        }
+        first.release();
+        second.lock(true);
+        second.release();
+    }
+
+    @Test
+    public void nestedWriteInsideReadRefused() throws Exception {
+        LC.zimbra_mailbox_lock_timeout.setDefault(1);
+        // keep the local lock exclusive, as on always-on nodes, so the nested hold gets past it
+        boolean localReadWrite = LC.zimbra_mailbox_lock_readwrite.booleanValue();
+        LC.zimbra_mailbox_lock_readwrite.setDefault(false);
+        MailboxLock first = newNodeLock();
+        MailboxLock second = newNodeLock();
+        try {
+            first.lock(false);
+            try {
+                first.lock(true);
+                first.release();
+                Assert.fail("distributed read lock upgraded to write");
+            } catch (LockFailedException e) {
+                // expected
+            }
+            Assert.assertEquals(1, first.getHoldCount());
+
+            // the outer hold keeps its read lock: other nodes can still read, but not write
+            second.lock(false);
+            second.release();
+            try {
+                second.lock(true);
+                second.release();
+                Assert.fail("write lock granted while another node holds the read lock");
+            } catch (LockFailedException e) {
+                // expected
+            }
+
+            first.release();
+            Assert.assertTrue(first.isUnlocked());
+            second.lock(true);
+            second.release();
+        } finally {
+            LC.zimbra_mailbox_lock_readwrite.setDefault(localReadWrite);
+        }
+    }
+
+    private long throughput(final boolean write, int nodes, long millis) throws Exception {
+        final long deadline = System.currentTimeMillis() + millis;
+        final AtomicLong ops = new AtomicLong();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < nodes; i++) {
+            final MailboxLock lock = newNodeLock();
+            Thread thread = new Thread("node-" + i) {
+                @Override
+                public void run() {
+                    while (System.currentTimeMillis() < deadline) {
+                        lock.lock(write);
+                        try {
+                            Thread.sleep(2); // simulated request
+                        } catch (InterruptedException e) {
+                            return;
+                        } finally {
+                            lock.release();
+                        }
+                        ops.incrementAndGet();
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return ops.get() * 1000 / millis;
+    }
+
+    @Test
+    public void readThroughput() throws Exception {
+        int nodes = 4;
+        long exclusive = throughput(true, nodes, 1000);
+        long shared = throughput(false, nodes, 1000);
+        ZimbraLog.test.info("distributed mailbox lock, %d nodes: %d exclusive ops/sec, %d shared read ops/sec",
+                nodes, exclusive, shared);
+        Assert.assertTrue(exclusive > 0);
+        Assert.assertTrue(shared > 0);
+    }
+}
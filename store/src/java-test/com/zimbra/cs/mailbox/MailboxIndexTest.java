@@ -16,16 +16,39 @@
  */
 package com.zimbra.cs.mailbox;
 
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.zimbra.common.account.ZAttrProvisioning.DelayedIndexStatus;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.db.DbMailItem;
+import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.index.IndexDocument;
+import com.zimbra.cs.index.IndexStore;
+import com.zimbra.cs.index.Indexer;
+import com.zimbra.cs.index.LuceneIndex;
+import com.zimbra.cs.index.ZimbraIndexSearcher;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.store.StoreManager;
 
 /**
  * Unit test for {@link Folder}.
@@ -42,6 +65,13 @@ public final class MailboxIndexTest {
     @Before
     public void setUp() throws Exception {
         MailboxTestUtil.clearData();
+        RecordingIndexStore.INDEXED.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        IndexStore.setFactory(LC.zimbra_class_index_store_factory.value());
+        MailboxTestUtil.clearData();
     }
 
     @Test
@@ -95,4 +125,248 @@ public final class MailboxIndexTest {
         Assert.assertFalse("zimbraFeatureDelayedIndexEnabled is TRUE, zimbraDelayedIndex is indexing and " +
                 "zimbraFeatureMobileSyncEnabled is TRUE, but not Mobile Sync Access", index.needToReIndex());
     }
+
+    /**
+     * Adds messages that are left for a batch index, larger ones first so that later ones tend to finish parsing
+     * before earlier ones.
+     */
+    private static List<Message> addMessages(Mailbox mbox, int count) throws Exception {
+        List<Message> msgs = new ArrayList<Message>();
+        for (int i = 0; i < count; i++) {
+            String body = Strings.repeat("parallel parsing test " + i + "\r\n", (count - i) * 100);
+            String raw = "From: bob@example.com\r\nTo: test@zimbra.com\r\nSubject: message " + i + "\r\n\r\n" + body;
+            msgs.add(mbox.addMessage(null, new ParsedMessage(raw.getBytes(), false),
+                    MailboxTest.STANDARD_DELIVERY_OPTIONS, null));
+        }
+        return msgs;
+    }
+
+    private static List<Integer> getDeferredIds(Mailbox mbox) throws Exception {
+        DbConnection conn = DbPool.getConnection(mbox);
+        try {
+            return ImmutableList.copyOf(DbMailItem.getIndexDeferredIds(conn, mbox).values());
+        } finally {
+            conn.closeQuietly();
+        }
+    }
+
+    /** Returns a mailbox indexed through {@link RecordingIndexStore}, with background batch indexing held off. */
+    private static Mailbox getRecordingMailbox() throws Exception {
+        IndexStore.setFactory(RecordingIndexStore.Factory.class.getName());
+        Account acct = Provisioning.getInstance().getAccountByName("test@zimbra.com");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        mbox.index.setIndexingSuspended(true);
+        return mbox;
+    }
+
+    @Test
+    public void parallelParseCommitsInOrder() throws Exception {
+        Mailbox mbox = getRecordingMailbox();
+        addMessages(mbox, 40);
+        // reload the deferred items the way the batch will, so that their order can be compared
+        mbox.index.clearDeferredIds();
+        List<Integer> expected = getDeferredIds(mbox);
+        Assert.assertEquals(40, expected.size());
+
+        mbox.index.indexDeferredItems();
+
+        Assert.assertEquals(expected, RecordingIndexStore.getIndexedIds());
+        Assert.assertTrue(getDeferredIds(mbox).isEmpty());
+        if (LC.zimbra_index_parse_threads.intValue() > 1) {
+            boolean parsedInPool = false;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                parsedInPool |= thread.getName().startsWith("IndexParse-");
+            }
+            Assert.assertTrue("items were tokenized on the parse pool", parsedInPool);
+        }
+    }
+
+    @Test
+    public void parseFailureDoesNotStopBatch() throws Exception {
+        Mailbox mbox = getRecordingMailbox();
+        List<Message> msgs = addMessages(mbox, 10);
+        Message broken = msgs.get(3);
+        MessageCache.purge(broken);
+        StoreManager.getInstance().delete(broken.getBlob());
+        mbox.index.clearDeferredIds();
+        List<Integer> expected = getDeferredIds(mbox);
+
+        mbox.index.indexDeferredItems();
+
+        // the unreadable message is recorded without any documents, and the rest are indexed around it in order
+        Assert.assertEquals(expected, RecordingIndexStore.getIndexedIds());
+        for (RecordingIndexStore.Indexed indexed : RecordingIndexStore.getIndexed()) {
+            Assert.assertEquals("id=" + indexed.id, indexed.id == broken.getId(), indexed.documents == 0);
+        }
+        Assert.assertTrue(getDeferredIds(mbox).isEmpty());
+    }
+
+    @Test
+    public void requeueBatchWhenIndexThreadsBusy() throws Exception {
+        Account acct = Provisioning.getInstance().getAccountByName("test@zimbra.com");
+        acct.setBatchedIndexingSize(3);
+        try {
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+            Assert.assertTrue(mbox.index.getIndexStore() instanceof LuceneIndex);
+
+            // occupy every index thread
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch started = new CountDownLatch(1);
+            int busy = 0;
+            try {
+                while (true) {
+                    mbox.index.submit(new MailboxIndex.IndexTask(mbox) {
+                        @Override
+                        protected void exec() throws Exception {
+                            started.countDown();
+                            release.await();
+                        }
+                    });
+                    busy++;
+                }
+            } catch (RejectedExecutionException e) {
+                // all busy
+            }
+            try {
+                Assert.assertTrue(busy > 0);
+                Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+                // the third message reaches the batch size while no index thread is free
+                addMessages(mbox, 3);
+                Assert.assertEquals(3, getDeferredIds(mbox).size());
+            } finally {
+                release.countDown();
+            }
+
+            // a thread that finishes its task picks up the queued batch
+            long deadline = System.currentTimeMillis() + 30000;
+            while (!getDeferredIds(mbox).isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assert.assertTrue(getDeferredIds(mbox).isEmpty());
+        } finally {
+            acct.unsetBatchedIndexingSize();
+        }
+    }
+
+    /** Records the items added to a Lucene index, in the order they were added. */
+    public static final class RecordingIndexStore extends IndexStore {
+        static final List<Indexed> INDEXED = Collections.synchronizedList(new ArrayList<Indexed>());
+
+        static final class Indexed {
+            final int id;
+            final int documents;
+
+            Indexed(int id, int documents) {
+                this.id = id;
+                this.documents = documents;
+            }
+        }
+
+        static List<Indexed> getIndexed() {
+            synchronized (INDEXED) {
+                return new ArrayList<Indexed>(INDEXED);
+            }
+        }
+
+        static List<Integer> getIndexedIds() {
+            List<Integer> ids = new ArrayList<Integer>();
+            for (Indexed indexed : getIndexed()) {
+                ids.add(indexed.id);
+            }
+            return ids;
+        }
+
+        private final IndexStore store;
+
+        RecordingIndexStore(IndexStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public Indexer openIndexer() throws IOException {
+            final Indexer indexer = store.openIndexer();
+            return new Indexer() {
+                @Override
+                public void addDocument(Folder folder, MailItem item, List<IndexDocument> docs) throws IOException {
+                    INDEXED.add(new Indexed(item.getId(), docs.size()));
+                    indexer.addDocument(folder, item, docs);
+                }
+
+                @Override
+                public void deleteDocument(List<Integer> ids) throws IOException {
+                    indexer.deleteDocument(ids);
+                }
+
+                @Override
+                public void compact() {
+                    indexer.compact();
+                }
+
+                @Override
+                public int maxDocs() {
+                    return indexer.maxDocs();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    indexer.close();
+                }
+            };
+        }
+
+        @Override
+        public ZimbraIndexSearcher openSearcher() throws IOException {
+            return store.openSearcher();
+        }
+
+        @Override
+        public void warmup() {
+            store.warmup();
+        }
+
+        @Override
+        public void evict() {
+            store.evict();
+        }
+
+        @Override
+        public void deleteIndex() throws IOException {
+            store.deleteIndex();
+        }
+
+        @Override
+        public boolean isPendingDelete() {
+            return store.isPendingDelete();
+        }
+
+        @Override
+        public void setPendingDelete(boolean pendingDelete) {
+            store.setPendingDelete(pendingDelete);
+        }
+
+        @Override
+        public void optimize() {
+            store.optimize();
+        }
+
+        @Override
+        public boolean verify(PrintStream out) throws IOException {
+            return store.verify(out);
+        }
+
+        public static final class Factory implements IndexStore.Factory {
+            private final LuceneIndex.Factory lucene = new LuceneIndex.Factory();
+
+            @Override
+            public IndexStore getIndexStore(Mailbox mbox) throws ServiceException {
+                return new RecordingIndexStore(lucene.getIndexStore(mbox));
+            }
+
+            @Override
+            public void destroy() {
+                lucene.destroy();
+            }
+        }
+    }
 }
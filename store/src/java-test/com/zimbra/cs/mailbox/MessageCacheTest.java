@@ -0,0 +1,197 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.util.JMSession;
+
+/**
+ * Unit test for {@link MessageCache}.
+ */
+public final class MessageCacheTest {
+
+    private int originalCacheSize;
+    private String originalMaxDataSize;
+    private String originalOffHeap;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+        originalCacheSize = prov.getLocalServer().getMessageCacheSize();
+        originalMaxDataSize = LC.zimbra_message_cache_max_data_size.value();
+        originalOffHeap = LC.zimbra_message_cache_offheap.value();
+        MessageCache.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Provisioning.getInstance().getLocalServer().setMessageCacheSize(originalCacheSize);
+        LC.zimbra_message_cache_max_data_size.setDefault(originalMaxDataSize);
+        LC.zimbra_message_cache_offheap.setDefault(originalOffHeap);
+        MessageCache.loadSettings();
+        MessageCache.clear();
+        MailboxTestUtil.clearData();
+    }
+
+    private static Mailbox getMailbox() throws Exception {
+        return MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+    }
+
+    private static void setLimits(int maxItems, long maxDataSize) throws Exception {
+        Provisioning.getInstance().getLocalServer().setMessageCacheSize(maxItems);
+        LC.zimbra_message_cache_max_data_size.setDefault(maxDataSize);
+        MessageCache.loadSettings();
+    }
+
+    /** Returns a digest that lands in the given segment. */
+    private static String digestIn(int segment, int start, List<String> digests) {
+        for (int i = start; ; i++) {
+            String digest = "digest" + i;
+            if (MessageCache.getSegmentIndex(digest) == segment && !digests.contains(digest)) {
+                digests.add(digest);
+                return digest;
+            }
+        }
+    }
+
+    @Test
+    public void evictWithinSegment() throws Exception {
+        int segments = MessageCache.getSegmentCount();
+        Assume.assumeTrue(segments > 1);
+        // two messages per segment
+        setLimits(segments * 2, 0);
+        MimeMessage mm = new Mime.FixedMimeMessage(JMSession.getSession());
+        List<String> digests = new ArrayList<String>();
+        String first = digestIn(0, 0, digests);
+        String second = digestIn(0, 0, digests);
+        String third = digestIn(0, 0, digests);
+        String other = digestIn(segments - 1, 0, digests);
+
+        long evictions = ZimbraPerf.COUNTER_MBOX_MSG_CACHE_EVICTION.getCount();
+        MessageCache.cacheMessage(first, mm, mm);
+        MessageCache.cacheMessage(second, mm, mm);
+        MessageCache.cacheMessage(other, mm, mm);
+        Assert.assertEquals(3, MessageCache.getSize());
+
+        MessageCache.cacheMessage(third, mm, mm);
+        // only the full segment gives up its least recently used message
+        Assert.assertFalse(MessageCache.contains(first));
+        Assert.assertTrue(MessageCache.contains(second));
+        Assert.assertTrue(MessageCache.contains(third));
+        Assert.assertTrue(MessageCache.contains(other));
+        Assert.assertTrue(ZimbraPerf.COUNTER_MBOX_MSG_CACHE_EVICTION.getCount() > evictions);
+    }
+
+    @Test
+    public void evictByDataSize() throws Exception {
+        Mailbox mbox = getMailbox();
+        List<Message> msgs = new ArrayList<Message>();
+        long maxSize = 0;
+        for (int i = 10; i < 10 + MessageCache.getSegmentCount() * 2 + 1; i++) {
+            Message msg = mbox.addMessage(null, MailboxTestUtil.generateMessage("msg " + i),
+                    MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+            msgs.add(msg);
+            maxSize = Math.max(maxSize, msg.getSize());
+        }
+        // room for one message per segment by size, and for plenty by count
+        long perSegment = maxSize * 3 / 2;
+        setLimits(1000, perSegment * MessageCache.getSegmentCount());
+        MessageCache.clear();
+
+        Message[] bySegment = new Message[MessageCache.getSegmentCount()];
+        Message evicted = null;
+        Message kept = null;
+        for (Message msg : msgs) {
+            MessageCache.getMimeMessage(msg, false);
+            int segment = MessageCache.getSegmentIndex(msg.getDigest());
+            if (bySegment[segment] != null && evicted == null) {
+                evicted = bySegment[segment];
+                kept = msg;
+            }
+            bySegment[segment] = msg;
+        }
+        // with more messages than segments, two of them must have shared one
+        Assert.assertNotNull(evicted);
+        Assert.assertFalse(MessageCache.contains(evicted.getDigest()));
+        Assert.assertTrue(MessageCache.contains(kept.getDigest()));
+        Assert.assertTrue(MessageCache.getDataSize() <= perSegment * MessageCache.getSegmentCount());
+        Assert.assertTrue(MessageCache.getDataSize() > 0);
+    }
+
+    @Test
+    public void hitAndMissCounters() throws Exception {
+        Mailbox mbox = getMailbox();
+        Message msg = mbox.addMessage(null, MailboxTestUtil.generateMessage("Ghost Town"),
+                MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+        MessageCache.purge(msg);
+
+        long hits = ZimbraPerf.COUNTER_MBOX_MSG_CACHE_HIT.getCount();
+        long misses = ZimbraPerf.COUNTER_MBOX_MSG_CACHE_MISS.getCount();
+        MimeMessage mm = MessageCache.getMimeMessage(msg, false);
+        Assert.assertEquals(hits, ZimbraPerf.COUNTER_MBOX_MSG_CACHE_HIT.getCount());
+        Assert.assertEquals(misses + 1, ZimbraPerf.COUNTER_MBOX_MSG_CACHE_MISS.getCount());
+        Assert.assertTrue(MessageCache.contains(msg.getDigest()));
+
+        Assert.assertSame(mm, MessageCache.getMimeMessage(msg, false));
+        Assert.assertEquals(hits + 1, ZimbraPerf.COUNTER_MBOX_MSG_CACHE_HIT.getCount());
+        Assert.assertEquals(misses + 1, ZimbraPerf.COUNTER_MBOX_MSG_CACHE_MISS.getCount());
+
+        MessageCache.purge(msg);
+        Assert.assertFalse(MessageCache.contains(msg.getDigest()));
+        Assert.assertNotSame(mm, MessageCache.getMimeMessage(msg, false));
+        Assert.assertEquals(misses + 2, ZimbraPerf.COUNTER_MBOX_MSG_CACHE_MISS.getCount());
+    }
+
+    @Test
+    public void offHeap() throws Exception {
+        LC.zimbra_message_cache_offheap.setDefault(true);
+        Mailbox mbox = getMailbox();
+        Message msg = mbox.addMessage(null, MailboxTestUtil.generateMessage("Tempted"),
+                MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+        MessageCache.purge(msg);
+
+        MimeMessage mm = MessageCache.getMimeMessage(msg, false);
+        Assert.assertEquals("Tempted", mm.getSubject());
+        Assert.assertEquals("nothing to see here", new String(ByteUtil.getContent(mm.getInputStream(), -1)).trim());
+        Assert.assertEquals(msg.getSize(), MessageCache.getDataSize());
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.calendar.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link CalSummaryHeapCache}.
+ */
+public final class CalSummaryHeapCacheTest {
+    private static final String SHARED = "11111111-1111-1111-1111-111111111111";
+
+    private static CalSummaryKey key(String accountId, int folderId) {
+        return new CalSummaryKey(accountId, folderId);
+    }
+
+    private static CalendarData data(int folderId) {
+        return new CalendarData(folderId, 1, 0, 1000);
+    }
+
+    private static void read(CalSummaryHeapCache cache, CalSummaryKey key, int times) {
+        for (int i = 0; i < times; i++) {
+            Assert.assertNotNull(cache.get(key));
+        }
+    }
+
+    @Test
+    public void lruWithoutHotCalendars() {
+        CalSummaryHeapCache cache = new CalSummaryHeapCache(3, 0, 25);
+        for (int i = 1; i <= 3; i++) {
+            cache.put(key("acct", i), data(i));
+        }
+        cache.get(key("acct", 1));
+        cache.put(key("acct", 4), data(4));
+        Assert.assertEquals(3, cache.size());
+        Assert.assertNull(cache.peek(key("acct", 2)));
+        Assert.assertNotNull(cache.peek(key("acct", 1)));
+        Assert.assertEquals(0, cache.getHotSize());
+    }
+
+    @Test
+    public void sharedCalendarSurvivesOneOffViews() {
+        CalSummaryHeapCache cache = new CalSummaryHeapCache(10, 0, 50);
+        CalSummaryKey shared = key(SHARED, 10);
+        cache.put(shared, data(10));
+        read(cache, shared, CalSummaryHeapCache.HOT_MIN_FREQUENCY);
+        Assert.assertTrue(cache.isHot(shared));
+
+        for (int i = 0; i < 1000; i++) {
+            CalSummaryKey personal = key("acct" + i, 10);
+            Assert.assertNull(cache.get(personal));
+            cache.put(personal, data(10));
+        }
+        Assert.assertEquals(10, cache.size());
+        Assert.assertTrue(cache.isHot(shared));
+        Assert.assertNotNull(cache.peek(shared));
+    }
+
+    @Test
+    public void hitSegment() {
+        CalSummaryHeapCache cache = new CalSummaryHeapCache(10, 0, 50);
+        CalSummaryKey shared = key(SHARED, 10);
+        cache.put(shared, data(10));
+        read(cache, shared, CalSummaryHeapCache.HOT_MIN_FREQUENCY - 1);
+        Assert.assertFalse(cache.isLastHitHot());
+
+        // the read that promotes the summary is still served by the general segment
+        read(cache, shared, 1);
+        Assert.assertTrue(cache.isHot(shared));
+        Assert.assertFalse(cache.isLastHitHot());
+
+        read(cache, shared, 1);
+        Assert.assertTrue(cache.isLastHitHot());
+        Assert.assertNull(cache.get(key("acct", 10)));
+        Assert.assertFalse(cache.isLastHitHot());
+    }
+
+    @Test
+    public void hotAdmission() {
+        // room for a single hot calendar
+        CalSummaryHeapCache cache = new CalSummaryHeapCache(4, 0, 25);
+        CalSummaryKey shared = key(SHARED, 10);
+        CalSummaryKey other = key("acct", 10);
+        cache.put(shared, data(10));
+        cache.put(other, data(10));
+        read(cache, shared, 10);
+        Assert.assertTrue(cache.isHot(shared));
+
+        // read less often than the hot calendar, so it doesn't displace it
+        read(cache, other, CalSummaryHeapCache.HOT_MIN_FREQUENCY);
+        Assert.assertFalse(cache.isHot(other));
+        Assert.assertTrue(cache.isHot(shared));
+
+        // once it is read more often it takes over, and the displaced calendar stays cached
+        read(cache, other, 10);
+        Assert.assertTrue(cache.isHot(other));
+        Assert.assertFalse(cache.isHot(shared));
+        Assert.assertNotNull(cache.peek(shared));
+        Assert.assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void weighedBySize() {
+        long weight = data(1).getEstimatedSize();
+        CalSummaryHeapCache cache = new CalSummaryHeapCache(100, weight * 3, 25);
+        for (int i = 1; i <= 5; i++) {
+            cache.put(key("acct", i), data(i));
+        }
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals(weight * 3, cache.getWeight());
+        Assert.assertNull(cache.peek(key("acct", 2)));
+
+        // replacing a summary keeps the total weight right
+        cache.put(key("acct", 5), data(5));
+        Assert.assertEquals(weight * 3, cache.getWeight());
+        cache.remove(key("acct", 5));
+        Assert.assertEquals(weight * 2, cache.getWeight());
+    }
+
+    @Test
+    public void removeAccount() {
+        CalSummaryHeapCache cache = new CalSummaryHeapCache(10, 0, 50);
+        cache.put(key(SHARED, 10), data(10));
+        cache.put(key(SHARED, 11), data(11));
+        cache.put(key("acct", 10), data(10));
+        read(cache, key(SHARED, 10), 10);
+        Assert.assertTrue(cache.isHot(key(SHARED, 10)));
+
+        cache.removeAccount(SHARED);
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(0, cache.getHotSize());
+        Assert.assertEquals(data(10).getEstimatedSize(), cache.getWeight());
+        Assert.assertEquals(CalSummaryHeapCache.FOLDER_NOT_FOUND, cache.getFolderForItem(SHARED, 1));
+    }
+
+    @Test
+    public void sketchAges() {
+        CalSummaryHeapCache.FrequencySketch sketch = new CalSummaryHeapCache.FrequencySketch(16);
+        CalSummaryKey key = key(SHARED, 10);
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(key);
+        }
+        Assert.assertEquals(15, sketch.frequency(key));
+        Assert.assertEquals(0, sketch.frequency(key("acct", 10)));
+
+        // enough reads of other calendars halve every count
+        for (int i = 0; i < 160; i++) {
+            sketch.increment(key("acct" + i, 10));
+        }
+        Assert.assertTrue(sketch.frequency(key) < 15);
+    }
+}
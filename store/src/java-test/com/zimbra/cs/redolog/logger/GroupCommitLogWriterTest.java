@@ -0,0 +1,131 @@
+package com.zimbra.cs.redolog.logger;
+
+import com.zimbra.cs.mailbox.MailboxOperation;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.op.RedoableOp;
+import junit.framework.Assert;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class GroupCommitLogWriterTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private RedoLogManager mockRedoLogManager;
+    private File logfile;
+    private GroupCommitLogWriter logWriter;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mockRedoLogManager = EasyMock.createNiceMock(RedoLogManager.class);
+        logfile = folder.newFile("logfile");
+        logWriter = new GroupCommitLogWriter(mockRedoLogManager, logfile, 10, 64 * 1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        logWriter.close();
+    }
+
+    private static RedoableOp newOp() {
+        return EasyMock.createMockBuilder(RedoableOp.class).withConstructor(MailboxOperation.Preview).createMock();
+    }
+
+    @Test
+    public void openLogClose() throws Exception {
+        Assert.assertTrue("file starts empty", logWriter.isEmpty());
+        logWriter.open();
+        Assert.assertTrue("file empty after open", logWriter.isEmpty());
+
+        logWriter.log(newOp(), new ByteArrayInputStream("some bytes".getBytes()), false /* asynchronous */);
+        // The file is the size of the header plus the op bytes (10)
+        Assert.assertEquals("file size incorrect.", FileHeader.HEADER_LEN + 10, logWriter.getSize());
+        logWriter.close();
+        final long createTime = logWriter.getCreateTime();
+        final long sequence = logWriter.getSequence();
+
+        // the file written by the group commit writer is readable by a fresh writer
+        logWriter = new GroupCommitLogWriter(mockRedoLogManager, logfile, 10, 64 * 1024);
+        Assert.assertEquals("file size incorrect.", FileHeader.HEADER_LEN + 10, logWriter.getSize());
+
+        logWriter.open();
+        Assert.assertEquals(createTime, logWriter.getCreateTime());
+        Assert.assertEquals(sequence, logWriter.getSequence());
+    }
+
+    @Test(expected = IOException.class)
+    public void logBeforeOpen() throws Exception {
+        logWriter.log(null, null, false);
+    }
+
+    @Test
+    public void concurrentSynchronousLog() throws Exception {
+        logWriter.open();
+        final int threads = 8, opsPerThread = 50;
+        final byte[] payload = "0123456789abcdef".getBytes();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int t = 0; t < threads; t++) {
+                results.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < opsPerThread; i++) {
+                            logWriter.log(newOp(), new ByteArrayInputStream(payload), true /* synchronous */);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        long expected = FileHeader.HEADER_LEN + (long) threads * opsPerThread * payload.length;
+        Assert.assertEquals("size reported by writer", expected, logWriter.getSize());
+        logWriter.flush();
+        logWriter.close();
+        Assert.assertEquals("size on disk", expected, logfile.length());
+    }
+
+    @Test
+    public void asynchronousLogFsyncedOnInterval() throws Exception {
+        logWriter.open();
+        logWriter.log(newOp(), new ByteArrayInputStream("some bytes".getBytes()), false /* asynchronous */);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (logWriter.getFsyncCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals("fsynced once the interval passed", 1, logWriter.getFsyncCount());
+        // nothing more to fsync while idle
+        Thread.sleep(100);
+        Assert.assertEquals("no fsync while idle", 1, logWriter.getFsyncCount());
+
+        logWriter.log(newOp(), new ByteArrayInputStream("some bytes".getBytes()), true /* synchronous */);
+        Assert.assertEquals("synchronous entry fsynced at once", 2, logWriter.getFsyncCount());
+        Thread.sleep(100);
+        Assert.assertEquals("nothing left to fsync", 2, logWriter.getFsyncCount());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.service.mail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.MailConstants;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.ThreaderTest;
+import com.zimbra.cs.mime.ParsedMessage;
+
+public class GetConvTest {
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.initServer();
+        MailboxTestUtil.clearData();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private static Element getConv(Account acct, int convId, String fetch) throws Exception {
+        Element request = new Element.XMLElement(MailConstants.GET_CONV_REQUEST);
+        request.addNonUniqueElement(MailConstants.E_CONV).addAttribute(MailConstants.A_ID, convId)
+                .addAttribute(MailConstants.A_FETCH, fetch);
+        return new GetConv().handle(request, ServiceTestUtil.getRequestContext(acct));
+    }
+
+    @Test
+    public void streamedMessages() throws Exception {
+        Account acct = Provisioning.getInstance().getAccountByName("test@zimbra.com");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        Message root = mbox.addMessage(null, ThreaderTest.getRootMessage(), dopt, null);
+        dopt.setConversationId(root.getConversationId());
+        Message reply = mbox.addMessage(null, new ParsedMessage("Subject: Re: test\r\n\r\nreply".getBytes(), false),
+                dopt, null);
+        dopt.setFlags(Flag.BITMASK_DELETED);
+        mbox.addMessage(null, new ParsedMessage("Subject: Re: test\r\n\r\ndeleted".getBytes(), false), dopt, null);
+        int convId = reply.getConversationId();
+
+        Element response = getConv(acct, convId, null);
+        // the messages are copied by the handler; later changes to the mailbox don't show up in the response
+        mbox.alterTag(null, reply.getId(), MailItem.Type.MESSAGE, Flag.FlagInfo.FLAGGED, true, null);
+        mbox.move(null, reply.getId(), MailItem.Type.MESSAGE, Mailbox.ID_FOLDER_TRASH);
+
+        // logging shows the messages and doesn't use them up
+        String logged = response.prettyPrint();
+        Assert.assertFalse(logged.contains("streamed <m> elements"));
+        Assert.assertTrue(logged.contains("id=\"" + reply.getId() + "\""));
+        Element parsed = Element.parseXML(new String(response.toUTF8(), StandardCharsets.UTF_8));
+        List<Element> msgs = parsed.getElement(MailConstants.E_CONV).listElements(MailConstants.E_MSG);
+        Assert.assertEquals(2, msgs.size());
+        Assert.assertEquals(root.getId(), msgs.get(0).getAttributeInt(MailConstants.A_ID));
+        Assert.assertEquals(reply.getId(), msgs.get(1).getAttributeInt(MailConstants.A_ID));
+        Assert.assertEquals(Mailbox.ID_FOLDER_INBOX, msgs.get(1).getAttributeInt(MailConstants.A_FOLDER));
+        Assert.assertFalse(msgs.get(1).getAttribute(MailConstants.A_FLAGS, "").contains("f"));
+        Assert.assertEquals(response.toString(), new String(response.toUTF8(), StandardCharsets.UTF_8));
+
+        // inlined messages are encoded by the handler
+        response = getConv(acct, convId, "all");
+        msgs = response.getElement(MailConstants.E_CONV).listElements(MailConstants.E_MSG);
+        Assert.assertEquals(2, msgs.size());
+        Assert.assertNotNull(msgs.get(1).getOptionalElement(MailConstants.E_MIMEPART));
+        Assert.assertFalse(response.prettyPrint().contains("streamed"));
+    }
+}
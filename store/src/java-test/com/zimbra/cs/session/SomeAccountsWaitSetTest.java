@@ -0,0 +1,200 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for {@link SomeAccountsWaitSet} signalling.
+ */
+public final class SomeAccountsWaitSetTest {
+    private static final Set<MailItem.Type> INTEREST = EnumSet.of(MailItem.Type.MESSAGE);
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    private static WaitSetCallback waitFor(SomeAccountsWaitSet ws, String seqNo, long millis) throws Exception {
+        WaitSetCallback cb = new WaitSetCallback();
+        cb.completedLatch = new CountDownLatch(1);
+        ws.doWait(cb, seqNo, null, null);
+        if (!cb.completedLatch.await(millis, TimeUnit.MILLISECONDS)) {
+            ws.doneWaiting(cb);
+            return null;
+        }
+        return cb;
+    }
+
+    private static WaitSetSession[] subscribe(SomeAccountsWaitSet ws, int count) {
+        List<WaitSetAccount> accounts = new ArrayList<WaitSetAccount>(count);
+        for (int i = 0; i < count; i++) {
+            accounts.add(new WaitSetAccount(UUID.randomUUID().toString(), null, INTEREST, null));
+        }
+        // none of the mailboxes is loaded, so the accounts are added without sessions
+        Assert.assertEquals(Collections.emptyList(), ws.addAccountErrors(accounts));
+        WaitSetSession[] sessions = new WaitSetSession[count];
+        for (int i = 0; i < count; i++) {
+            sessions[i] = new WaitSetSession(ws, accounts.get(i).getAccountId(), INTEREST, null, null);
+        }
+        return sessions;
+    }
+
+    @Test
+    public void signalWhileWaiting() throws Exception {
+        SomeAccountsWaitSet ws = new SomeAccountsWaitSet("owner", "WaitSet-signal", INTEREST);
+        WaitSetSession[] sessions = subscribe(ws, 3);
+
+        Assert.assertNull(waitFor(ws, "1", 10));
+        ws.signalDataReady(sessions[1]);
+        WaitSetCallback cb = waitFor(ws, "1", 1000);
+        Assert.assertNotNull(cb);
+        Assert.assertEquals(Collections.singleton(sessions[1].getTargetAccountId()), cb.signalledAccounts);
+
+        // a callback that is already waiting is completed by the signal itself
+        WaitSetCallback waiting = new WaitSetCallback();
+        waiting.completedLatch = new CountDownLatch(1);
+        ws.doWait(waiting, cb.seqNo, null, null);
+        ws.signalDataReady(sessions[2]);
+        Assert.assertTrue(waiting.completedLatch.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(Collections.singleton(sessions[2].getTargetAccountId()), waiting.signalledAccounts);
+
+        // a revoked signal is not sent
+        ws.signalDataReady(sessions[0]);
+        ws.unsignalDataReady(sessions[0]);
+        Assert.assertNull(waitFor(ws, waiting.seqNo, 10));
+    }
+
+    /**
+     * Several delivery threads signal random accounts out of 50,000 while a client keeps polling. Every signalled
+     * account must be reported to the client.
+     */
+    @Test
+    public void heavyDelivery() throws Exception {
+        final int accounts = 50000;
+        final int deliverers = 8;
+        final int deliveriesPerThread = 100000;
+        final SomeAccountsWaitSet ws = new SomeAccountsWaitSet("owner", "WaitSet-load", INTEREST);
+        final WaitSetSession[] sessions = subscribe(ws, accounts);
+
+        final Set<String> signalled = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final Set<String> reported = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final AtomicBoolean delivering = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Thread client = new Thread("WaitSetClient") {
+            @Override
+            public void run() {
+                String seqNo = "0";
+                try {
+                    // keep polling until a poll after the last delivery comes back empty
+                    while (true) {
+                        boolean wasDelivering = delivering.get();
+                        WaitSetCallback cb = waitFor(ws, seqNo, 100);
+                        if (cb != null) {
+                            reported.addAll(cb.signalledAccounts);
+                            seqNo = cb.seqNo;
+                        } else if (!wasDelivering) {
+                            return;
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        };
+        client.start();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        long start = System.nanoTime();
+        for (int t = 0; t < deliverers; t++) {
+            final Random random = new Random(t);
+            Thread thread = new Thread("Deliverer-" + t) {
+                @Override
+                public void run() {
+                    for (int i = 0; i < deliveriesPerThread; i++) {
+                        WaitSetSession session = sessions[random.nextInt(accounts)];
+                        signalled.add(session.getTargetAccountId());
+                        ws.signalDataReady(session);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        delivering.set(false);
+        client.join();
+
+        Assert.assertNull(failure.get());
+        Assert.assertEquals(signalled, reported);
+        ZimbraLog.test.info("%d accounts, %d threads: %d signals/sec", accounts, deliverers,
+                (long) deliverers * deliveriesPerThread * TimeUnit.SECONDS.toNanos(1) / elapsed);
+    }
+
+    @Test
+    public void bitmapGrowKeepsBits() throws Exception {
+        final ReadyBitmap bitmap = new ReadyBitmap(64);
+        // bits set while the bitmap is being grown must survive the copy
+        Thread setter = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 64; i++) {
+                    bitmap.set(i);
+                }
+            }
+        };
+        setter.start();
+        for (int capacity = 128; capacity <= 1 << 20; capacity *= 2) {
+            bitmap.grow(capacity);
+        }
+        setter.join();
+
+        final List<Integer> drained = new ArrayList<Integer>();
+        bitmap.drain(new ReadyBitmap.Visitor() {
+            @Override
+            public void visit(int bit) {
+                drained.add(bit);
+            }
+        });
+        Assert.assertEquals(64, drained.size());
+        Assert.assertTrue(bitmap.set(100000));
+        Assert.assertFalse(bitmap.set(100000));
+    }
+}
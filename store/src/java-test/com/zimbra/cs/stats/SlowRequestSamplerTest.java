@@ -0,0 +1,89 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.stats;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link SlowRequestSampler}.
+ */
+public final class SlowRequestSamplerTest {
+
+    private static void run(SlowRequestSampler sampler, String command, long elapsed) {
+        SlowRequestSampler.begin();
+        sampler.end(command, "acct", System.currentTimeMillis() - elapsed);
+    }
+
+    @Test
+    public void keepSlowestPerCommand() {
+        SlowRequestSampler sampler = new SlowRequestSampler(3, 0);
+        for (int i = 1; i <= 10; i++) {
+            run(sampler, "SearchRequest", i * 100);
+        }
+        run(sampler, "GetFolderRequest", 50);
+
+        List<SlowRequestSampler.Sample> samples = sampler.getSamples();
+        Assert.assertEquals(4, samples.size());
+        Assert.assertEquals("SearchRequest", samples.get(0).getCommand());
+        Assert.assertTrue(samples.get(0).getElapsedMs() >= 1000);
+        Assert.assertTrue(samples.get(2).getElapsedMs() >= 800);
+        Assert.assertEquals("GetFolderRequest", samples.get(3).getCommand());
+        Assert.assertEquals("acct", samples.get(3).getAccountId());
+
+        sampler.reset();
+        Assert.assertEquals(0, sampler.getSamples().size());
+    }
+
+    @Test
+    public void threshold() {
+        SlowRequestSampler sampler = new SlowRequestSampler(3, 500);
+        run(sampler, "SearchRequest", 100);
+        Assert.assertEquals(0, sampler.getSamples().size());
+        run(sampler, "SearchRequest", 600);
+        Assert.assertEquals(1, sampler.getSamples().size());
+    }
+
+    @Test
+    public void disabled() {
+        SlowRequestSampler sampler = new SlowRequestSampler(0, 0);
+        run(sampler, "SearchRequest", 100);
+        Assert.assertEquals(0, sampler.getSamples().size());
+    }
+
+    @Test
+    public void usage() {
+        SlowRequestSampler sampler = new SlowRequestSampler(3, 0);
+        SlowRequestSampler.begin();
+        SlowRequestSampler.addLockWait(20);
+        SlowRequestSampler.addDbTime(30);
+        SlowRequestSampler.addDbTime(5);
+        SlowRequestSampler.addBlobBytes(4096);
+        sampler.end("FETCH", "acct", System.currentTimeMillis() - 100);
+
+        SlowRequestSampler.Sample sample = sampler.getSamples().get(0);
+        Assert.assertEquals(20, sample.getLockWaitMs());
+        Assert.assertEquals(35, sample.getDbMs());
+        Assert.assertEquals(4096, sample.getBlobBytes());
+
+        // the next request starts from zero
+        run(sampler, "FETCH", 200);
+        Assert.assertEquals(0, sampler.getSamples().get(0).getDbMs());
+    }
+}
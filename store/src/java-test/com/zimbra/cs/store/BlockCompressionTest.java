@@ -0,0 +1,159 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.util.ByteUtil;
+
+/**
+ * Unit test for {@link BlockCompression}.
+ */
+public final class BlockCompressionTest {
+    private static final int BLOCK_SIZE = 1024;
+
+    private File file;
+
+    @After
+    public void tearDown() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Returns text that compresses well, with a run of random bytes in the middle that doesn't.
+     */
+    private static byte[] content(int length) {
+        byte[] data = new byte[length];
+        byte[] text = "Subject: quarterly numbers\r\nSee the attached spreadsheet.\r\n".getBytes();
+        for (int i = 0; i < length; i++) {
+            data[i] = text[i % text.length];
+        }
+        byte[] noise = new byte[Math.min(length / 3, 3 * BLOCK_SIZE)];
+        new Random(42).nextBytes(noise);
+        System.arraycopy(noise, 0, data, length / 3, noise.length);
+        return data;
+    }
+
+    private File write(byte[] data) throws IOException {
+        file = File.createTempFile(BlockCompressionTest.class.getSimpleName(), ".blk");
+        OutputStream out = new BlockCompressedOutputStream(new FileOutputStream(file), BLOCK_SIZE);
+        try {
+            // odd-sized writes, so that they straddle block boundaries
+            for (int off = 0; off < data.length; off += 700) {
+                out.write(data, off, Math.min(700, data.length - off));
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        byte[] data = content(10 * BLOCK_SIZE + 123);
+        File file = write(data);
+        Assert.assertTrue(BlockCompression.isBlockCompressed(file));
+        Assert.assertTrue(file.length() < data.length);
+        Assert.assertEquals(data.length, BlockCompression.getRawSize(file));
+
+        InputStream in = BlockCompression.uncompressed(new FileInputStream(file));
+        Assert.assertTrue(in instanceof BlockCompressedInputStream);
+        Assert.assertTrue(Arrays.equals(data, ByteUtil.getContent(in, -1)));
+    }
+
+    @Test
+    public void empty() throws Exception {
+        File file = write(new byte[0]);
+        Assert.assertEquals(0, BlockCompression.getRawSize(file));
+        InputStream in = new BlockCompressedInputStream(new FileInputStream(file));
+        try {
+            Assert.assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void notBlockCompressed() throws Exception {
+        Assert.assertFalse(BlockCompression.isBlockCompressed(new ByteArrayInputStream("ZBL".getBytes())));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream gzip = new GZIPOutputStream(baos);
+        gzip.write(content(5000));
+        gzip.close();
+        InputStream in = BlockCompression.uncompressed(new ByteArrayInputStream(baos.toByteArray()));
+        Assert.assertTrue(Arrays.equals(content(5000), ByteUtil.getContent(in, -1)));
+    }
+
+    @Test
+    public void randomAccess() throws Exception {
+        byte[] data = content(10 * BLOCK_SIZE + 123);
+        SharedFile shared = new BlockCompressedSharedFile(write(data));
+        try {
+            Assert.assertEquals(data.length, shared.getLength());
+            int[][] ranges = { { 0, 10 }, { 5000, 3000 }, { BLOCK_SIZE - 1, 2 }, { data.length - 50, 50 },
+                    { 3 * BLOCK_SIZE, BLOCK_SIZE }, { 100, 100 } };
+            for (int[] range : ranges) {
+                byte[] buf = new byte[range[1]];
+                Assert.assertEquals(range[1], shared.read(range[0], buf, 0, range[1]));
+                Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, range[0], range[0] + range[1]), buf));
+            }
+            byte[] buf = new byte[100];
+            Assert.assertEquals(50, shared.read(data.length - 50, buf, 0, 100));
+            Assert.assertEquals(-1, shared.read(data.length, buf, 0, 100));
+        } finally {
+            shared.close();
+        }
+    }
+
+    @Test
+    public void truncated() throws Exception {
+        File file = write(content(4 * BLOCK_SIZE));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 10);
+        } finally {
+            raf.close();
+        }
+        try {
+            new BlockCompressedSharedFile(file);
+            Assert.fail("opened a truncated file");
+        } catch (IOException expected) {
+        }
+        try {
+            BlockCompression.getRawSize(file);
+            Assert.fail("read the size of a truncated file");
+        } catch (IOException expected) {
+        }
+    }
+}
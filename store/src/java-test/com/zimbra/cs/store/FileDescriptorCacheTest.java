@@ -19,6 +19,7 @@ package com.zimbra.cs.store;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
@@ -26,6 +27,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPOutputStream;
 
 import org.junit.After;
@@ -34,6 +37,7 @@ import org.junit.Test;
 
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.FileCache;
 import com.zimbra.common.util.FileUtil;
@@ -64,7 +68,7 @@ public class FileDescriptorCacheTest {
     public void testUncompressedCache()
     throws Exception {
         FileCache<String> uc = FileCache.Builder.createWithStringKey(uncompressedDir, false).build();
-        FileDescriptorCache fdc = new FileDescriptorCache(uc);
+        FileDescriptorCache fdc = new FileDescriptorCache(uc, MoreExecutors.directExecutor());
         fdc.setMaxSize(2);
 
         File file1 = File.createTempFile(NAME_PREFIX, ".tmp.gz");
@@ -122,6 +126,103 @@ public class FileDescriptorCacheTest {
         assertEquals(2, fdc.getSize());
     }
 
+    @Test
+    public void uncachedReadClosesDescriptor()
+    throws Exception {
+        FileCache<String> uc = FileCache.Builder.createWithStringKey(uncompressedDir, false).build();
+        FileDescriptorCache fdc = new FileDescriptorCache(uc, MoreExecutors.directExecutor());
+        fdc.setMaxSize(0);
+
+        File file = File.createTempFile(NAME_PREFIX, ".tmp");
+        tempFiles.add(file);
+        String content = "Is That Love";
+        Files.write(content.getBytes(), file);
+
+        int openBefore = fdc.getOpenCount();
+        byte[] buf = new byte[content.length()];
+        assertEquals(buf.length, fdc.read(file.getPath(), content.length(), 0, buf, 0, buf.length));
+        assertEquals(content, new String(buf));
+        assertEquals(0, fdc.getSize());
+        assertEquals(openBefore, fdc.getOpenCount());
+    }
+
+    @Test
+    public void removeClosesDescriptor()
+    throws Exception {
+        FileCache<String> uc = FileCache.Builder.createWithStringKey(uncompressedDir, false).build();
+        FileDescriptorCache fdc = new FileDescriptorCache(uc, MoreExecutors.directExecutor());
+
+        File file = File.createTempFile(NAME_PREFIX, ".tmp");
+        tempFiles.add(file);
+        String content = "Goodbye Girl";
+        Files.write(content.getBytes(), file);
+
+        int openBefore = fdc.getOpenCount();
+        byte[] buf = new byte[4];
+        fdc.read(file.getPath(), content.length(), 8, buf, 0, buf.length);
+        assertEquals("Girl", new String(buf));
+        assertTrue(fdc.contains(file.getPath()));
+        assertEquals(openBefore + 1, fdc.getOpenCount());
+
+        fdc.remove(file.getPath());
+        assertFalse(fdc.contains(file.getPath()));
+        assertEquals(openBefore, fdc.getOpenCount());
+    }
+
+    @Test
+    public void resizeDuringReads()
+    throws Exception {
+        FileCache<String> uc = FileCache.Builder.createWithStringKey(uncompressedDir, false).build();
+        final FileDescriptorCache fdc = new FileDescriptorCache(uc, MoreExecutors.directExecutor());
+        fdc.setMaxSize(2);
+
+        final List<File> files = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            File file = File.createTempFile(NAME_PREFIX, ".tmp");
+            tempFiles.add(file);
+            Files.write(("Another Nail In My Heart " + i).getBytes(), file);
+            files.add(file);
+        }
+
+        int openBefore = fdc.getOpenCount();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> readers = Lists.newArrayList();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int n = 0; !done.get(); n++) {
+                            int i = n % files.size();
+                            File file = files.get(i);
+                            String expected = "Another Nail In My Heart " + i;
+                            byte[] buf = new byte[expected.length()];
+                            assertEquals(buf.length, fdc.read(file.getPath(), file.length(), 0, buf, 0, buf.length));
+                            assertEquals(expected, new String(buf));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        for (int i = 0; i < 500; i++) {
+            fdc.setMaxSize(i % 2 == 0 ? 3 : 2);
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+
+        // nothing opened during a resize is left behind in a cache that has been replaced
+        fdc.shutdown();
+        assertEquals(openBefore, fdc.getOpenCount());
+    }
+
     private void write(File file, String content)
     throws IOException {
         OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
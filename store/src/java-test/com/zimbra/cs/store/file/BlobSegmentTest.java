@@ -0,0 +1,136 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.cs.store.BlobInputStream;
+import com.zimbra.cs.store.FileDescriptorCache;
+
+/**
+ * Unit test for {@link BlobSegment}.
+ */
+public final class BlobSegmentTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+        BlobInputStream.setFileDescriptorCache(new FileDescriptorCache(null));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtil.deleteDir(dir);
+    }
+
+    private static long append(BlobSegment segment, String data) throws IOException {
+        byte[] bytes = data.getBytes();
+        return segment.append(new ByteArrayInputStream(bytes), bytes.length, false);
+    }
+
+    private static String read(BlobSegment segment, long offset, long length) throws IOException {
+        return new String(ByteUtil.getContent(segment.open(offset, length), (int) length));
+    }
+
+    @Test
+    public void appendAndRead() throws Exception {
+        BlobSegment segment = new BlobSegment(dir, 3);
+        Assert.assertEquals(3, BlobSegment.parseId(segment.getDataFile().getName()));
+        long first = append(segment, "first blob");
+        long second = append(segment, "second");
+        long empty = append(segment, "");
+        Assert.assertEquals(BlobSegment.RECORD_HEADER_SIZE, first);
+        Assert.assertEquals("first blob", read(segment, first, 10));
+        Assert.assertEquals("second", read(segment, second, 6));
+        Assert.assertEquals("", read(segment, empty, 0));
+
+        List<BlobSegment.Record> records = segment.getRecords();
+        Assert.assertEquals(3, records.size());
+        Assert.assertEquals(second, records.get(1).offset);
+        Assert.assertEquals(6, records.get(1).length);
+
+        try {
+            segment.open(second, 100);
+            Assert.fail("read past the end of the segment");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void wrongLength() throws Exception {
+        BlobSegment segment = new BlobSegment(dir, 0);
+        append(segment, "blob");
+        long size = segment.getSize();
+        try {
+            segment.append(new ByteArrayInputStream("short".getBytes()), 10, false);
+            Assert.fail("stream shorter than its length");
+        } catch (IOException expected) {
+        }
+        try {
+            segment.append(new ByteArrayInputStream("too long".getBytes()), 3, false);
+            Assert.fail("stream longer than its length");
+        } catch (IOException expected) {
+        }
+        Assert.assertEquals(size, segment.getSize());
+        Assert.assertEquals(1, segment.getRecords().size());
+    }
+
+    @Test
+    public void truncatedRecord() throws Exception {
+        BlobSegment segment = new BlobSegment(dir, 0);
+        append(segment, "complete");
+        append(segment, "cut short by a crash");
+        RandomAccessFile raf = new RandomAccessFile(segment.getDataFile(), "rw");
+        try {
+            raf.setLength(raf.length() - 5);
+        } finally {
+            raf.close();
+        }
+        List<BlobSegment.Record> records = segment.getRecords();
+        Assert.assertEquals(1, records.size());
+        Assert.assertEquals("complete", read(segment, records.get(0).offset, records.get(0).length));
+    }
+
+    @Test
+    public void deleted() throws Exception {
+        BlobSegment segment = new BlobSegment(dir, 0);
+        long first = append(segment, "first");
+        append(segment, "second");
+        Assert.assertEquals(0, segment.getDeletedBytes());
+        segment.markDeleted(first, 5);
+        Assert.assertEquals(Long.valueOf(5), segment.getDeleted().get(first));
+        Assert.assertEquals(BlobSegment.RECORD_HEADER_SIZE + 5, segment.getDeletedBytes());
+
+        Assert.assertTrue(segment.delete());
+        Assert.assertFalse(segment.exists());
+        Assert.assertTrue(segment.getDeleted().isEmpty());
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.store.StagedBlob;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.store.external.AbstractExternalStoreManagerTest;
+import com.zimbra.cs.volume.VolumeManager;
+import com.zimbra.qa.unittest.TestUtil;
+
+public class PackedBlobStoreTest extends AbstractExternalStoreManagerTest {
+
+    private String segmentSize;
+
+    @Override
+    protected StoreManager getStoreManager() {
+        return new PackedBlobStore();
+    }
+
+    @Before
+    public void setSegmentSize() throws Exception {
+        MailboxTestUtil.clearData();
+        segmentSize = LC.packed_blob_store_segment_size_kb.value();
+        LC.packed_blob_store_segment_size_kb.setDefault(1);
+        // segments outlive the database, so drop those of earlier tests
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        StoreManager.getInstance().deleteStore(mbox, null);
+    }
+
+    @After
+    public void resetSegmentSize() {
+        LC.packed_blob_store_segment_size_kb.setDefault(segmentSize);
+    }
+
+    private static byte[] message(int n) {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 500) {
+            body.append("message ").append(n).append("\r\n");
+        }
+        return ("From: from@zimbra.com\r\nTo: to@zimbra.com\r\nSubject: test " + n + "\r\n\r\n" + body).getBytes();
+    }
+
+    @Test
+    public void compact() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        PackedBlobStore sm = (PackedBlobStore) StoreManager.getInstance();
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+
+        // the first two messages share a segment, the third starts a new one
+        Message msg1 = mbox.addMessage(null, new ParsedMessage(message(1), false), dopt, null);
+        Message msg2 = mbox.addMessage(null, new ParsedMessage(message(2), false), dopt, null);
+        Message msg3 = mbox.addMessage(null, new ParsedMessage(message(3), false), dopt, null);
+        PackedBlobLocation loc1 = PackedBlobLocation.parse(msg1.getLocator());
+        PackedBlobLocation loc2 = PackedBlobLocation.parse(msg2.getLocator());
+        PackedBlobLocation loc3 = PackedBlobLocation.parse(msg3.getLocator());
+        Assert.assertEquals(loc1.getSegmentId(), loc2.getSegmentId());
+        Assert.assertTrue(loc1.getSegmentId() != loc3.getSegmentId());
+        Assert.assertEquals(3, sm.getAllBlobPaths(mbox).size());
+
+        // half of the first segment is dead now, so its live blob moves to the active segment
+        mbox.delete(null, msg1.getId(), MailItem.Type.MESSAGE);
+        Assert.assertEquals(1, sm.compact(mbox));
+        msg2 = mbox.getMessageById(null, msg2.getId());
+        PackedBlobLocation moved = PackedBlobLocation.parse(msg2.getLocator());
+        Assert.assertEquals(loc3.getSegmentId(), moved.getSegmentId());
+        Assert.assertTrue(TestUtil.bytesEqual(message(2), msg2.getContentStream()));
+
+        // the emptied segment goes on the next run
+        Assert.assertEquals(0, sm.compact(mbox));
+        List<String> locators = sm.getAllBlobPaths(mbox);
+        Assert.assertEquals(2, locators.size());
+        Assert.assertTrue(locators.contains(msg2.getLocator()));
+        Assert.assertTrue(locators.contains(msg3.getLocator()));
+        Assert.assertTrue(TestUtil.bytesEqual(message(3), msg3.getContentStream()));
+    }
+
+    @Test
+    public void compactDropsCopiesOfUnreferencedBlobs() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        PackedBlobStore sm = (PackedBlobStore) StoreManager.getInstance();
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        String threshold = LC.packed_blob_store_compaction_threshold_percent.value();
+        LC.packed_blob_store_compaction_threshold_percent.setDefault(30);
+        try {
+            Message msg1 = mbox.addMessage(null, new ParsedMessage(message(1), false), dopt, null);
+            Message msg2 = mbox.addMessage(null, new ParsedMessage(message(2), false), dopt, null);
+            Message msg3 = mbox.addMessage(null, new ParsedMessage(message(3), false), dopt, null);
+            PackedBlobLocation loc1 = PackedBlobLocation.parse(msg1.getLocator());
+
+            // a blob in the first segment that no item references, as left behind by a crash
+            File dir = new File(VolumeManager.getInstance().getVolume(loc1.getVolumeId())
+                    .getMessageRootDir(mbox.getId()), PackedBlobStore.PACKED_DIR);
+            new BlobSegment(dir, loc1.getSegmentId()).append(new ByteArrayInputStream(message(4)),
+                    message(4).length, false);
+
+            // it is copied along with the live message, but the copy is dropped since nothing points at it
+            mbox.delete(null, msg1.getId(), MailItem.Type.MESSAGE);
+            Assert.assertEquals(1, sm.compact(mbox));
+            Assert.assertEquals(0, sm.compact(mbox));
+            msg2 = mbox.getMessageById(null, msg2.getId());
+            List<String> locators = sm.getAllBlobPaths(mbox);
+            Assert.assertEquals(2, locators.size());
+            Assert.assertTrue(locators.contains(msg2.getLocator()));
+            Assert.assertTrue(locators.contains(msg3.getLocator()));
+            Assert.assertTrue(TestUtil.bytesEqual(message(2), msg2.getContentStream()));
+        } finally {
+            LC.packed_blob_store_compaction_threshold_percent.setDefault(threshold);
+        }
+    }
+
+    @Test
+    public void compactKeepsStagedBlobs() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        PackedBlobStore sm = (PackedBlobStore) StoreManager.getInstance();
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+
+        // a blob staged next to the first message, whose item isn't committed yet
+        Message msg1 = mbox.addMessage(null, new ParsedMessage(message(1), false), dopt, null);
+        StagedBlob staged = sm.stage(new ByteArrayInputStream(message(2)), message(2).length, mbox);
+        Message msg3 = mbox.addMessage(null, new ParsedMessage(message(3), false), dopt, null);
+        PackedBlobLocation loc1 = PackedBlobLocation.parse(msg1.getLocator());
+        PackedBlobLocation stagedLoc = PackedBlobLocation.parse(staged.getLocator());
+        Assert.assertEquals(loc1.getSegmentId(), stagedLoc.getSegmentId());
+        Assert.assertTrue(loc1.getSegmentId() != PackedBlobLocation.parse(msg3.getLocator()).getSegmentId());
+
+        // the database only shows the deleted message in the first segment, but the staged blob stays
+        mbox.delete(null, msg1.getId(), MailItem.Type.MESSAGE);
+        Assert.assertEquals(0, sm.compact(mbox));
+        Assert.assertEquals(0, sm.compact(mbox));
+        Assert.assertTrue(sm.getAllBlobPaths(mbox).contains(staged.getLocator()));
+        Assert.assertTrue(TestUtil.bytesEqual(message(2), sm.readStreamFromStore(staged.getLocator(), mbox)));
+
+        // once it is given up, nothing is left in the segment
+        sm.delete(staged);
+        sm.compact(mbox);
+        List<String> locators = sm.getAllBlobPaths(mbox);
+        Assert.assertEquals(1, locators.size());
+        Assert.assertTrue(locators.contains(msg3.getLocator()));
+    }
+}
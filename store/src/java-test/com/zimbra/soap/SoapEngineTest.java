@@ -0,0 +1,257 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.soap;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dom4j.Namespace;
+import org.dom4j.QName;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.SoapProtocol;
+import com.zimbra.common.soap.ZimbraNamespace;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.AuthToken;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.ZimbraAuthToken;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.service.AuthProvider;
+import com.zimbra.cs.service.MockHttpServletRequest;
+import com.zimbra.cs.service.MockHttpServletResponse;
+
+/**
+ * Unit test for {@link SoapEngine#dispatchBatch}.
+ */
+public final class SoapEngineTest {
+    private static final Namespace NAMESPACE = Namespace.get("urn:zimbraTest");
+    private static final QName READ_REQUEST = QName.get("ReadRequest", NAMESPACE);
+    private static final QName WRITE_REQUEST = QName.get("WriteRequest", NAMESPACE);
+    private static final String PROXY_AUTH_TOKEN = "proxy-token";
+
+    private static final AtomicInteger running = new AtomicInteger();
+    private static int maxRunning;
+
+    private String savedThreads;
+    private SoapEngine engine;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        savedThreads = LC.soap_batch_parallel_threads.value();
+        LC.soap_batch_parallel_threads.setDefault(4);
+        engine = new MockSoapEngine(new DocumentService() {
+            @Override
+            public void registerHandlers(DocumentDispatcher dispatcher) {
+                dispatcher.registerHandler(READ_REQUEST, new TestHandler(true));
+                dispatcher.registerHandler(WRITE_REQUEST, new TestHandler(false));
+            }
+        });
+        running.set(0);
+        synchronized (SoapEngineTest.class) {
+            maxRunning = 0;
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        LC.soap_batch_parallel_threads.setDefault(savedThreads);
+    }
+
+    /**
+     * Sleeps for the request's <tt>ms</tt> attribute and echoes back its <tt>id</tt>, the number of requests that
+     * were running when it started, and the proxy auth token it saw when it finished.
+     */
+    private static final class TestHandler extends DocumentHandler {
+        private final boolean parallelizable;
+
+        TestHandler(boolean parallelizable) {
+            this.parallelizable = parallelizable;
+        }
+
+        @Override
+        public boolean needsAuth(Map<String, Object> context) {
+            return false;
+        }
+
+        @Override
+        public boolean isParallelizable(Element request) {
+            return parallelizable;
+        }
+
+        @Override
+        public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+            int active = running.incrementAndGet();
+            synchronized (SoapEngineTest.class) {
+                maxRunning = Math.max(maxRunning, active);
+            }
+            try {
+                ZimbraSoapContext zsc = getZimbraSoapContext(context);
+                if (request.getAttributeBool("resetProxy", false)) {
+                    zsc.resetProxyAuthToken();
+                }
+                Thread.sleep(request.getAttributeLong("ms", 0));
+                if (request.getAttributeBool("fail", false)) {
+                    throw ServiceException.FAILURE("failed on purpose", null);
+                }
+                Element response = zsc.createElement(QName.get(request.getName().replace("Request", "Response"),
+                        NAMESPACE));
+                response.addAttribute("id", request.getAttribute("id"));
+                response.addAttribute("active", active);
+                response.addAttribute("proxy", zsc.getAuthToken().getProxyAuthToken());
+                return response;
+            } catch (InterruptedException e) {
+                throw ServiceException.INTERRUPTED(request.getName());
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    private static Element request(QName qname, int id, long ms) {
+        return new Element.XMLElement(qname).addAttribute("id", id).addAttribute("ms", ms);
+    }
+
+    private static Element batch(boolean parallel, Element... requests) {
+        Element batch = new Element.XMLElement(ZimbraNamespace.E_BATCH_REQUEST);
+        batch.addAttribute(ZimbraNamespace.A_PARALLEL, parallel);
+        for (Element request : requests) {
+            batch.addNonUniqueElement(request);
+        }
+        return batch;
+    }
+
+    private static Map<String, Object> getRequestContext(AuthToken authToken, Account acct) throws Exception {
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put(SoapEngine.ZIMBRA_CONTEXT,
+                new ZimbraSoapContext(authToken, acct.getId(), SoapProtocol.Soap12, SoapProtocol.Soap12));
+        context.put(SoapServlet.SERVLET_REQUEST, new MockHttpServletRequest("test".getBytes("UTF-8"),
+                new URL("http://localhost:7070/service/soap/BatchRequest"), ""));
+        context.put(SoapServlet.SERVLET_RESPONSE, new MockHttpServletResponse());
+        return context;
+    }
+
+    private static Map<String, Object> getRequestContext() throws Exception {
+        Account acct = Provisioning.getInstance().getAccountByName("test@zimbra.com");
+        return getRequestContext(AuthProvider.getAuthToken(acct), acct);
+    }
+
+    private List<Element> dispatch(Element batch, Map<String, Object> context, String proxyAuthToken) {
+        ZimbraSoapContext zsc = (ZimbraSoapContext) context.get(SoapEngine.ZIMBRA_CONTEXT);
+        return engine.dispatchBatch(batch, context, zsc, proxyAuthToken, false).listElements();
+    }
+
+    private static void assertIds(List<Element> responses, int... ids) throws ServiceException {
+        Assert.assertEquals("response count", ids.length, responses.size());
+        for (int i = 0; i < ids.length; i++) {
+            Assert.assertEquals("response " + i, ids[i], responses.get(i).getAttributeLong("id"));
+        }
+    }
+
+    @Test
+    public void responsesInRequestOrder() throws Exception {
+        // the first request finishes last
+        List<Element> responses = dispatch(batch(true, request(READ_REQUEST, 0, 400), request(READ_REQUEST, 1, 200),
+                request(READ_REQUEST, 2, 100), request(READ_REQUEST, 3, 0)), getRequestContext(), null);
+        assertIds(responses, 0, 1, 2, 3);
+        Assert.assertTrue("requests ran concurrently", maxRunning > 1);
+    }
+
+    @Test
+    public void sequentialUnlessParallel() throws Exception {
+        List<Element> responses = dispatch(batch(false, request(READ_REQUEST, 0, 50), request(READ_REQUEST, 1, 50),
+                request(READ_REQUEST, 2, 50)), getRequestContext(), null);
+        assertIds(responses, 0, 1, 2);
+        Assert.assertEquals("requests ran one at a time", 1, maxRunning);
+    }
+
+    @Test
+    public void nonParallelizableRequestRunsAlone() throws Exception {
+        List<Element> responses = dispatch(batch(true, request(READ_REQUEST, 0, 200), request(READ_REQUEST, 1, 200),
+                request(WRITE_REQUEST, 2, 50), request(READ_REQUEST, 3, 200), request(READ_REQUEST, 4, 200)),
+                getRequestContext(), null);
+        assertIds(responses, 0, 1, 2, 3, 4);
+        Assert.assertEquals("write request ran by itself", 1, responses.get(2).getAttributeLong("active"));
+        Assert.assertTrue("read requests ran concurrently", maxRunning > 1);
+    }
+
+    @Test
+    public void faultDoesNotAffectOtherRequests() throws Exception {
+        Element batch = batch(true, request(READ_REQUEST, 0, 100), request(READ_REQUEST, 1, 0).addAttribute("fail", true),
+                request(READ_REQUEST, 2, 100));
+        batch.addAttribute(ZimbraNamespace.A_ONERROR, "continue");
+        List<Element> responses = dispatch(batch, getRequestContext(), null);
+        Assert.assertEquals("response count", 3, responses.size());
+        Assert.assertEquals(0, responses.get(0).getAttributeLong("id"));
+        Assert.assertTrue("failed request got a fault", SoapProtocol.Soap12.isFault(responses.get(1)));
+        Assert.assertEquals(2, responses.get(2).getAttributeLong("id"));
+    }
+
+    @Test
+    public void faultStopsBatch() throws Exception {
+        List<Element> responses = dispatch(batch(true, request(READ_REQUEST, 0, 0),
+                request(READ_REQUEST, 1, 0).addAttribute("fail", true), request(READ_REQUEST, 2, 0),
+                request(WRITE_REQUEST, 3, 0)), getRequestContext(), null);
+        Assert.assertEquals("responses up to the fault", 2, responses.size());
+        Assert.assertEquals(0, responses.get(0).getAttributeLong("id"));
+        Assert.assertTrue("failed request got a fault", SoapProtocol.Soap12.isFault(responses.get(1)));
+    }
+
+    @Test
+    public void proxyAuthTokenPerRequest() throws Exception {
+        Map<String, Object> context = getRequestContext();
+        ZimbraSoapContext zsc = (ZimbraSoapContext) context.get(SoapEngine.ZIMBRA_CONTEXT);
+        zsc.getAuthToken().setProxyAuthToken(PROXY_AUTH_TOKEN);
+        // the first request drops its proxy auth token while the second one is still running
+        List<Element> responses = dispatch(batch(true, request(READ_REQUEST, 0, 0).addAttribute("resetProxy", true),
+                request(READ_REQUEST, 1, 200)), context, PROXY_AUTH_TOKEN);
+        assertIds(responses, 0, 1);
+        Assert.assertNull(responses.get(0).getAttribute("proxy", null));
+        Assert.assertEquals(PROXY_AUTH_TOKEN, responses.get(1).getAttribute("proxy", null));
+        Assert.assertEquals(PROXY_AUTH_TOKEN, zsc.getAuthToken().getProxyAuthToken());
+    }
+
+    @Test
+    public void sequentialIfAuthTokenCannotBeCopied() throws Exception {
+        Account acct = Provisioning.getInstance().getAccountByName("test@zimbra.com");
+        ZimbraAuthToken authToken = new ZimbraAuthToken(acct) {
+            @Override
+            public ZimbraAuthToken clone() throws CloneNotSupportedException {
+                throw new CloneNotSupportedException();
+            }
+        };
+        List<Element> responses = dispatch(batch(true, request(READ_REQUEST, 0, 50), request(READ_REQUEST, 1, 50),
+                request(READ_REQUEST, 2, 50)), getRequestContext(authToken, acct), null);
+        assertIds(responses, 0, 1, 2);
+        Assert.assertEquals("requests ran one at a time", 1, maxRunning);
+    }
+}
@@ -96,6 +96,18 @@ public abstract class AuthToken {
         }
     }
 
+    /**
+     * Returns a copy of this auth token whose proxy auth token can be set without affecting this one's, or
+     * <tt>null</tt> if this kind of auth token can't be copied.
+     */
+    public AuthToken copy() {
+        try {
+            return (AuthToken) clone();
+        } catch (CloneNotSupportedException e) {
+            return null;
+        }
+    }
+
     @Override
     public abstract String toString();
 
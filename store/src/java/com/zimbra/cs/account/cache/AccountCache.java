@@ -14,7 +14,6 @@
  * If not, see <https://www.gnu.org/licenses/>.
  * ***** END LICENSE BLOCK *****
  */
-
 /*
  * Created on Oct 6, 2004
  *
@@ -23,52 +22,66 @@
  */
 package com.zimbra.cs.account.cache;
 
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.StringUtils;
 
-import com.zimbra.common.util.MapUtil;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.stats.HitRateCounter;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.cache.NamedEntryCache.CacheEntry;
 
+/**
+ * Cache of accounts by id, name, alias, foreign principal and old mail address.
+ * <p>
+ * Like {@link NamedEntryCache}, lookups don't lock: every index is a concurrent map, and each cached account carries
+ * its own expiry time.  Updates are serialized so that the indexes agree, and the least recently read tenth of the
+ * accounts is evicted in one pass when the cache is full.  With a {@link NamedEntryCache.Refresher}, an account read
+ * shortly before it expires is reloaded in the background.
+ */
 public class AccountCache implements IAccountCache {
 
-    private Map<String, CacheEntry> mNameCache;
-    private Map<String, CacheEntry> mIdCache;
-    private Map<String, CacheEntry> mAliasCache;
-    private Map<String, CacheEntry> mForeignPrincipalCache;
-    private Map<String, CacheEntry> mOldNameCache;
-    private Counter mHitRate = new HitRateCounter();
+    private final ConcurrentMap<String, CacheEntry<Account>> mNameCache;
+    private final ConcurrentMap<String, CacheEntry<Account>> mIdCache;
+    private final ConcurrentMap<String, CacheEntry<Account>> mAliasCache;
+    private final ConcurrentMap<String, CacheEntry<Account>> mForeignPrincipalCache;
+    private final ConcurrentMap<String, CacheEntry<Account>> mOldNameCache;
+    // totals 100 per hit, like every other HitRateCounter
+    private final Counter mHitRate = new HitRateCounter();
+    private final AtomicLong mRefreshes = new AtomicLong();
 
-    private long mRefreshTTL;
-
-    static class CacheEntry {
-        long mLifetime;
-        Account mEntry;
-
-        CacheEntry(Account entry, long expires) {
-            mEntry = entry;
-            mLifetime = System.currentTimeMillis() + expires;
-        }
-
-        boolean isStale() {
-            return mLifetime < System.currentTimeMillis();
-        }
-    }
+    private final int mMaxItems;
+    private final long mRefreshTTL;
+    private final long mRefreshAhead;
+    private volatile NamedEntryCache.Refresher mRefresher;
 
     /**
      * @param maxItems
      * @param refreshTTL
      */
     public AccountCache(int maxItems, long refreshTTL) {
-        mNameCache = MapUtil.newLruMap(maxItems);
-        mIdCache = MapUtil.newLruMap(maxItems);
-        mAliasCache = MapUtil.newLruMap(maxItems);
-        mForeignPrincipalCache = MapUtil.newLruMap(maxItems);
-        mOldNameCache = MapUtil.newLruMap(maxItems);
+        mNameCache = new ConcurrentHashMap<String, CacheEntry<Account>>();
+        mIdCache = new ConcurrentHashMap<String, CacheEntry<Account>>();
+        mAliasCache = new ConcurrentHashMap<String, CacheEntry<Account>>();
+        mForeignPrincipalCache = new ConcurrentHashMap<String, CacheEntry<Account>>();
+        mOldNameCache = new ConcurrentHashMap<String, CacheEntry<Account>>();
+        mMaxItems = maxItems;
         mRefreshTTL = refreshTTL;
+        mRefreshAhead = NamedEntryCache.getRefreshAhead(refreshTTL);
+    }
+
+    /**
+     * Reloads accounts that are read shortly before they expire with the given refresher, in the background.
+     */
+    public void setRefresher(NamedEntryCache.Refresher refresher) {
+        mRefresher = refresher;
     }
 
     @Override
@@ -95,14 +108,35 @@ public class AccountCache implements IAccountCache {
             for (String fp : fps) {
                 mForeignPrincipalCache.remove(fp);
             }
-            mOldNameCache.remove(entry.getOldMailAddress());
+            if (StringUtils.isNotEmpty(entry.getOldMailAddress())) {
+                mOldNameCache.remove(entry.getOldMailAddress());
+            }
+        }
+    }
+
+    /**
+     * Removes the keys of a cached account that still map to the given instance; another thread may already have
+     * cached a newer one.
+     */
+    private void remove(CacheEntry<Account> ce) {
+        Account entry = ce.mEntry;
+        mNameCache.remove(entry.getName(), ce);
+        mIdCache.remove(entry.getId(), ce);
+        for (String alias : entry.getMultiAttr(Provisioning.A_zimbraMailAlias)) {
+            mAliasCache.remove(alias, ce);
+        }
+        for (String fp : entry.getMultiAttr(Provisioning.A_zimbraForeignPrincipal)) {
+            mForeignPrincipalCache.remove(fp, ce);
+        }
+        if (StringUtils.isNotEmpty(entry.getOldMailAddress())) {
+            mOldNameCache.remove(entry.getOldMailAddress(), ce);
         }
     }
 
     @Override
     public synchronized void put(Account entry) {
         if (entry != null) {
-            CacheEntry cacheEntry = new CacheEntry(entry, mRefreshTTL);
+            CacheEntry<Account> cacheEntry = new CacheEntry<Account>(entry, mRefreshTTL, mRefreshAhead);
             mNameCache.put(entry.getName(), cacheEntry);
             mIdCache.put(entry.getId(), cacheEntry);
 
@@ -118,6 +152,9 @@ public class AccountCache implements IAccountCache {
             if (StringUtils.isNotEmpty(entry.getOldMailAddress())) {
                 mOldNameCache.put(entry.getOldMailAddress(), cacheEntry);
             }
+            if (mIdCache.size() > mMaxItems) {
+                evict();
+            }
         }
     }
 
@@ -127,43 +164,78 @@ public class AccountCache implements IAccountCache {
         put(entry);
     }
 
-    private Account get(String key, Map cache) {
-        CacheEntry ce = (CacheEntry) cache.get(key);
-        if (ce != null) {
-            if (mRefreshTTL != 0 && ce.isStale()) {
-                remove(ce.mEntry);
-                mHitRate.increment(0);
-                return null;
-            } else {
-                mHitRate.increment(100);
-                return ce.mEntry;
+    /**
+     * Evicts the least recently read tenth of the accounts, so that a full cache is not scanned on every put.
+     */
+    private void evict() {
+        List<CacheEntry<Account>> entries = new ArrayList<CacheEntry<Account>>(mIdCache.values());
+        Collections.sort(entries, new Comparator<CacheEntry<Account>>() {
+            @Override
+            public int compare(CacheEntry<Account> e1, CacheEntry<Account> e2) {
+                return Long.compare(e1.mLastAccess, e2.mLastAccess);
             }
-        } else {
-            mHitRate.increment(0);
+        });
+        int count = entries.size() - mMaxItems + Math.max(mMaxItems / 10, 1);
+        for (int i = 0; i < count && i < entries.size(); i++) {
+            remove(entries.get(i));
+        }
+    }
+
+    /**
+     * Returns the live cached account, or null if it isn't cached or has expired.  Doesn't count the lookup.
+     */
+    private Account get(String key, ConcurrentMap<String, CacheEntry<Account>> cache) {
+        // unlike the old LRU maps, concurrent maps don't take null keys
+        CacheEntry<Account> ce = key == null ? null : cache.get(key);
+        if (ce == null) {
             return null;
         }
+        long now = System.currentTimeMillis();
+        if (mRefreshTTL != 0) {
+            if (ce.isStale(now)) {
+                synchronized (this) {
+                    remove(ce);
+                }
+                return null;
+            }
+            if (now >= ce.mRefreshTime) {
+                NamedEntryCache.refreshAhead(mRefresher, ce, mRefreshes);
+            }
+        }
+        ce.mLastAccess = now;
+        return ce.mEntry;
+    }
+
+    private Account count(Account acct) {
+        mHitRate.increment(acct != null ? 100 : 0);
+        return acct;
     }
 
     @Override
-    public synchronized Account getById(String key) {
-        return get(key, mIdCache);
+    public Account getById(String key) {
+        return count(get(key, mIdCache));
     }
 
     @Override
-    public synchronized Account getByName(String key) {
-        Account acct = get(key.toLowerCase(), mNameCache) != null ? get(key.toLowerCase(), mNameCache)
-                : get(key.toLowerCase(), mAliasCache) != null ? get(key.toLowerCase(), mAliasCache)
-                        : get(key.toLowerCase(), mOldNameCache);
-        return acct;
+    public Account getByName(String key) {
+        key = key.toLowerCase();
+        Account acct = get(key, mNameCache);
+        if (acct == null) {
+            acct = get(key, mAliasCache);
+        }
+        if (acct == null) {
+            acct = get(key, mOldNameCache);
+        }
+        return count(acct);
     }
 
     @Override
-    public synchronized Account getByForeignPrincipal(String key) {
-        return get(key, mForeignPrincipalCache);
+    public Account getByForeignPrincipal(String key) {
+        return count(get(key, mForeignPrincipalCache));
     }
 
     @Override
-    public synchronized int getSize() {
+    public int getSize() {
         return mIdCache.size();
     }
 
@@ -171,7 +243,22 @@ public class AccountCache implements IAccountCache {
      * Returns the cache hit rate as a value between 0 and 100.
      */
     @Override
-    public synchronized double getHitRate() {
+    public double getHitRate() {
         return mHitRate.getAverage();
     }
+
+    @Override
+    public long getHitCount() {
+        return mHitRate.getTotal() / 100;
+    }
+
+    @Override
+    public long getMissCount() {
+        return mHitRate.getCount() - mHitRate.getTotal() / 100;
+    }
+
+    @Override
+    public long getRefreshCount() {
+        return mRefreshes.get();
+    }
 }
@@ -14,7 +14,6 @@
  * If not, see <https://www.gnu.org/licenses/>.
  * ***** END LICENSE BLOCK *****
  */
-
 /*
  * Created on Oct 6, 2004
  *
@@ -23,172 +22,168 @@
  */
 package com.zimbra.cs.account.cache;
 
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.zimbra.common.util.MapUtil;
 import com.zimbra.common.account.Key.DomainBy;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.stats.HitRateCounter;
 import com.zimbra.cs.account.Domain;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.cache.NamedEntryCache.CacheEntry;
 
 /**
+ * Cache of domains by id, name, virtual hostname, foreign name and Kerberos realm, plus a negative cache of lookups
+ * that found no domain.
+ * <p>
+ * Like {@link NamedEntryCache}, lookups don't lock: every index is a concurrent map, and each cached domain carries
+ * its own expiry time.  Updates are serialized so that the indexes agree, and the least recently read tenth of the
+ * domains is evicted in one pass when the cache is full.  With a {@link NamedEntryCache.Refresher}, a domain read
+ * shortly before it expires is reloaded in the background.
+ *
  * @author schemers
  **/
 public class DomainCache implements IDomainCache {
-    
-    private Map mNameCache;
-    private Map mIdCache;
-    private Map mVirtualHostnameCache;
-    private Map mForeignNameCache;
-    private Map mKrb5RealmCache;
-    
-    private long mRefreshTTL;
-    private Counter mHitRate = new HitRateCounter();
-
-    
+
+    private final ConcurrentMap<String, CacheEntry<Domain>> mNameCache;
+    private final ConcurrentMap<String, CacheEntry<Domain>> mIdCache;
+    private final ConcurrentMap<String, CacheEntry<Domain>> mVirtualHostnameCache;
+    private final ConcurrentMap<String, CacheEntry<Domain>> mForeignNameCache;
+    private final ConcurrentMap<String, CacheEntry<Domain>> mKrb5RealmCache;
+
+    private final int mMaxItems;
+    private final long mRefreshTTL;
+    private final long mRefreshAhead;
+    private volatile NamedEntryCache.Refresher mRefresher;
+    // totals 100 per hit, like every other HitRateCounter
+    private final Counter mHitRate = new HitRateCounter();
+    private final AtomicLong mRefreshes = new AtomicLong();
+
+
     public enum GetFromDomainCacheOption {
         POSITIVE, // only get from positive cache
         NEGATIVE, // only get from negative cache
         BOTH;     // try positive cache first, if not found then try the negative cache
     }
-    
+
     /*
-     * for caching non-existing domains so we don't repeatedly search LDAP for domains 
+     * for caching non-existing domains so we don't repeatedly search LDAP for domains
      * that do not exist in Zimbra LDAP.
-     * 
+     *
      * entries in the NegativeCache has the same TTS/max as this DomainCache.
      */
-    private NegativeCache mNegativeCache;
-
-    static class CacheEntry {
-        long mLifetime;
-        Domain mEntry;
-        CacheEntry(Domain entry, long expires) {
-            mEntry = entry;
-            mLifetime = System.currentTimeMillis() + expires;
-        }
-        
-        boolean isStale() {
-            return mLifetime < System.currentTimeMillis();
-        }
-    }
-    
+    private final NegativeCache mNegativeCache;
+
     public static class NonExistingDomain extends Domain {
         private NonExistingDomain() {
             super(null, null, null, null, null);
         }
     }
-    
 
+
+    /**
+     * Updates are made while holding the {@link DomainCache} lock; lookups don't lock.  When a map is full, a tenth
+     * of it is dropped, in no particular order.
+     */
     class NegativeCache {
-        private Map mNegativeNameCache;
-        private Map mNegativeIdCache;
-        private Map mNegativeVirtualHostnameCache;
-        private Map mNegativeForeignNameCache;
-        private Map mNegativeKrb5RealmCache;
-
-        private long mNERefreshTTL;
-        
+        private final ConcurrentMap<String, NonExistingDomain> mNegativeNameCache;
+        private final ConcurrentMap<String, NonExistingDomain> mNegativeIdCache;
+        private final ConcurrentMap<String, NonExistingDomain> mNegativeVirtualHostnameCache;
+        private final ConcurrentMap<String, NonExistingDomain> mNegativeForeignNameCache;
+        private final ConcurrentMap<String, NonExistingDomain> mNegativeKrb5RealmCache;
+
+        private final int mNEMaxItems;
+        private final long mNERefreshTTL;
+
         /*
          * if for any reason we want to disable caching of non-existing entries
          * just set mEnabled to false, as a master switch for emergency fix.
          */
         private boolean mEnabled = true;
-        
+
         private NegativeCache(int maxItems, long refreshTTL) {
-            mNegativeNameCache = MapUtil.newLruMap(maxItems);
-            mNegativeIdCache = MapUtil.newLruMap(maxItems);
-            mNegativeVirtualHostnameCache = MapUtil.newLruMap(maxItems);  
-            mNegativeForeignNameCache = MapUtil.newLruMap(maxItems);  
-            mNegativeKrb5RealmCache = MapUtil.newLruMap(maxItems);   
+            mNegativeNameCache = new ConcurrentHashMap<String, NonExistingDomain>();
+            mNegativeIdCache = new ConcurrentHashMap<String, NonExistingDomain>();
+            mNegativeVirtualHostnameCache = new ConcurrentHashMap<String, NonExistingDomain>();
+            mNegativeForeignNameCache = new ConcurrentHashMap<String, NonExistingDomain>();
+            mNegativeKrb5RealmCache = new ConcurrentHashMap<String, NonExistingDomain>();
+            mNEMaxItems = maxItems;
             mNERefreshTTL = refreshTTL;
         }
-        
-        private void put(DomainBy domainBy, String key) {
-            if (!mEnabled)
-                return;
-            
-            NonExistingDomain nonExistingDomain = new NonExistingDomain();
-            
+
+        private ConcurrentMap<String, NonExistingDomain> getMap(DomainBy domainBy) {
             switch (domainBy) {
             case name:
-                mNegativeNameCache.put(key, nonExistingDomain);
-                break;
+                return mNegativeNameCache;
             case id:
-                mNegativeIdCache.put(key, nonExistingDomain);
-                break;
+                return mNegativeIdCache;
             case virtualHostname:
-                mNegativeVirtualHostnameCache.put(key, nonExistingDomain);
-                break;
+                return mNegativeVirtualHostnameCache;
             case foreignName:
-                mNegativeForeignNameCache.put(key, nonExistingDomain);
-                break;
+                return mNegativeForeignNameCache;
             case krb5Realm:
-                mNegativeKrb5RealmCache.put(key, nonExistingDomain);
-                break;
+                return mNegativeKrb5RealmCache;
+            }
+            return null;
+        }
+
+        private void put(DomainBy domainBy, String key) {
+            if (!mEnabled || key == null)
+                return;
+
+            ConcurrentMap<String, NonExistingDomain> map = getMap(domainBy);
+            if (map == null)
+                return;
+            map.put(key, new NonExistingDomain());
+            if (map.size() > mNEMaxItems) {
+                int count = map.size() - mNEMaxItems + Math.max(mNEMaxItems / 10, 1);
+                for (Iterator<String> it = map.keySet().iterator(); count > 0 && it.hasNext(); count--) {
+                    it.next();
+                    it.remove();
+                }
             }
         }
-        
+
         private NonExistingDomain get(DomainBy domainBy, String key) {
-            if (!mEnabled)
+            if (!mEnabled || key == null)
                 return null;
-            
-            switch (domainBy) {
-            case name:
-                return (NonExistingDomain)mNegativeNameCache.get(key);
-            case id:
-                return (NonExistingDomain)mNegativeIdCache.get(key);
-            case virtualHostname:
-                return (NonExistingDomain)mNegativeVirtualHostnameCache.get(key);
-            case foreignName:
-                return (NonExistingDomain)mNegativeForeignNameCache.get(key);
-            case krb5Realm:
-                return (NonExistingDomain)mNegativeKrb5RealmCache.get(key);
-            }
-            return null;
+
+            ConcurrentMap<String, NonExistingDomain> map = getMap(domainBy);
+            return map == null ? null : map.get(key);
         }
-        
+
         private void remove(DomainBy domainBy, String key) {
-            if (!mEnabled)
+            if (!mEnabled || key == null)
                 return;
-            
-            switch (domainBy) {
-            case name:
-                mNegativeNameCache.remove(key);
-                break;
-            case id:
-                mNegativeIdCache.remove(key);
-                break;
-            case virtualHostname:
-                mNegativeVirtualHostnameCache.remove(key);
-                break;
-            case foreignName:
-                mNegativeForeignNameCache.remove(key);
-                break;
-            case krb5Realm:
-                mNegativeKrb5RealmCache.remove(key);
-                break;
-            }
+
+            ConcurrentMap<String, NonExistingDomain> map = getMap(domainBy);
+            if (map != null)
+                map.remove(key);
         }
-        
+
         private void clean(DomainBy domainBy, String key, Domain entry) {
             mNegativeNameCache.remove(entry.getName());
             mNegativeIdCache.remove(entry.getId());
-            
-            String vhost[] = entry.getMultiAttr(Provisioning.A_zimbraVirtualHostname);            
+
+            String vhost[] = entry.getMultiAttr(Provisioning.A_zimbraVirtualHostname);
             for (String vh : vhost)
                 mNegativeVirtualHostnameCache.remove(vh.toLowerCase());
-            
-            String foreignName[] = entry.getMultiAttr(Provisioning.A_zimbraForeignName);            
+
+            String foreignName[] = entry.getMultiAttr(Provisioning.A_zimbraForeignName);
             for (String fn : foreignName)
                 mNegativeForeignNameCache.remove(fn.toLowerCase());
-            
+
             String krb5Realm = entry.getAttr(Provisioning.A_zimbraAuthKerberos5Realm);
             if (krb5Realm != null)
                 mNegativeKrb5RealmCache.remove(krb5Realm);
         }
-        
+
         void clear() {
             mNegativeNameCache.clear();
             mNegativeIdCache.clear();
@@ -197,23 +192,32 @@ public class DomainCache implements IDomainCache {
             mNegativeKrb5RealmCache.clear();
         }
     }
-    
-    
+
+
 /**
  * @param maxItems
  * @param refreshTTL
  */
     public DomainCache(int maxItems, long refreshTTL, int maxItemsNegative, long refreshTTLNegative) {
-        mNameCache = MapUtil.newLruMap(maxItems);
-        mIdCache = MapUtil.newLruMap(maxItems);
-        mVirtualHostnameCache = MapUtil.newLruMap(maxItems);  
-        mForeignNameCache = MapUtil.newLruMap(maxItems); 
-        mKrb5RealmCache = MapUtil.newLruMap(maxItems);   
+        mNameCache = new ConcurrentHashMap<String, CacheEntry<Domain>>();
+        mIdCache = new ConcurrentHashMap<String, CacheEntry<Domain>>();
+        mVirtualHostnameCache = new ConcurrentHashMap<String, CacheEntry<Domain>>();
+        mForeignNameCache = new ConcurrentHashMap<String, CacheEntry<Domain>>();
+        mKrb5RealmCache = new ConcurrentHashMap<String, CacheEntry<Domain>>();
+        mMaxItems = maxItems;
         mRefreshTTL = refreshTTL;
-        
+        mRefreshAhead = NamedEntryCache.getRefreshAhead(refreshTTL);
+
         mNegativeCache = new NegativeCache(maxItemsNegative, refreshTTLNegative);
     }
 
+    /**
+     * Reloads domains that are read shortly before they expire with the given refresher, in the background.
+     */
+    public void setRefresher(NamedEntryCache.Refresher refresher) {
+        mRefresher = refresher;
+    }
+
     @Override
     public synchronized void clear() {
         mNameCache.clear();
@@ -221,7 +225,7 @@ public class DomainCache implements IDomainCache {
         mVirtualHostnameCache.clear();
         mForeignNameCache.clear();
         mKrb5RealmCache.clear();
-        
+
         mNegativeCache.clear();
     }
 
@@ -230,78 +234,123 @@ public class DomainCache implements IDomainCache {
         if (entry != null) {
             mNameCache.remove(entry.getName());
             mIdCache.remove(entry.getId());
-            
-            String vhost[] = entry.getMultiAttr(Provisioning.A_zimbraVirtualHostname);            
+
+            String vhost[] = entry.getMultiAttr(Provisioning.A_zimbraVirtualHostname);
             for (String vh : vhost)
                 mVirtualHostnameCache.remove(vh.toLowerCase());
-            
-            String foreignName[] = entry.getMultiAttr(Provisioning.A_zimbraForeignName);            
+
+            String foreignName[] = entry.getMultiAttr(Provisioning.A_zimbraForeignName);
             for (String fn : foreignName)
                 mForeignNameCache.remove(fn.toLowerCase());
-            
+
             String krb5Realm = entry.getAttr(Provisioning.A_zimbraAuthKerberos5Realm);
             if (krb5Realm != null)
                 mKrb5RealmCache.remove(krb5Realm);
         }
     }
-    
+
+    /**
+     * Removes the keys of a cached domain that still map to the given instance; another thread may already have
+     * cached a newer one.
+     */
+    private void remove(CacheEntry<Domain> ce) {
+        Domain entry = ce.mEntry;
+        mNameCache.remove(entry.getName(), ce);
+        mIdCache.remove(entry.getId(), ce);
+        for (String vh : entry.getMultiAttr(Provisioning.A_zimbraVirtualHostname))
+            mVirtualHostnameCache.remove(vh.toLowerCase(), ce);
+        for (String fn : entry.getMultiAttr(Provisioning.A_zimbraForeignName))
+            mForeignNameCache.remove(fn.toLowerCase(), ce);
+        String krb5Realm = entry.getAttr(Provisioning.A_zimbraAuthKerberos5Realm);
+        if (krb5Realm != null)
+            mKrb5RealmCache.remove(krb5Realm, ce);
+    }
+
     @Override
     public synchronized void replace(Domain entry) {
         remove(entry);
         put(DomainBy.id, entry.getId(), entry);
     }
-    
+
     @Override
     public synchronized void removeFromNegativeCache(DomainBy domainBy, String key) {
         mNegativeCache.remove(domainBy, key);
     }
-    
+
     @Override
     public synchronized void put(DomainBy domainBy, String key, Domain entry) {
         if (entry != null) {
             // clean it from the non-existing cache first
             mNegativeCache.clean(domainBy, key, entry);
-            
-            CacheEntry cacheEntry = new CacheEntry(entry, mRefreshTTL);
+
+            CacheEntry<Domain> cacheEntry = new CacheEntry<Domain>(entry, mRefreshTTL, mRefreshAhead);
             mNameCache.put(entry.getName(), cacheEntry);
             mIdCache.put(entry.getId(), cacheEntry);
-            
-            String vhost[] = entry.getMultiAttr(Provisioning.A_zimbraVirtualHostname);            
+
+            String vhost[] = entry.getMultiAttr(Provisioning.A_zimbraVirtualHostname);
             for (String vh : vhost)
-                mVirtualHostnameCache.put(vh.toLowerCase(), cacheEntry);          
-            
-            String foreignName[] = entry.getMultiAttr(Provisioning.A_zimbraForeignName);            
+                mVirtualHostnameCache.put(vh.toLowerCase(), cacheEntry);
+
+            String foreignName[] = entry.getMultiAttr(Provisioning.A_zimbraForeignName);
             for (String fn : foreignName)
-                mForeignNameCache.put(fn.toLowerCase(), cacheEntry);  
-            
+                mForeignNameCache.put(fn.toLowerCase(), cacheEntry);
+
             String krb5Realm = entry.getAttr(Provisioning.A_zimbraAuthKerberos5Realm);
             if (krb5Realm != null)
                 mKrb5RealmCache.put(krb5Realm, cacheEntry);
+
+            if (mIdCache.size() > mMaxItems)
+                evict();
         } else {
             mNegativeCache.put(domainBy, key);
         }
     }
 
-    private Domain get(String key, Map cache) {
-        CacheEntry ce = (CacheEntry) cache.get(key);
-        if (ce != null) {
-            if (mRefreshTTL != 0 && ce.isStale()) {
-                remove(ce.mEntry);
-                mHitRate.increment(0);
-                return null;
-            } else {
-                mHitRate.increment(100);
-                return ce.mEntry;
+    /**
+     * Evicts the least recently read tenth of the domains, so that a full cache is not scanned on every put.
+     */
+    private void evict() {
+        List<CacheEntry<Domain>> entries = new ArrayList<CacheEntry<Domain>>(mIdCache.values());
+        Collections.sort(entries, new Comparator<CacheEntry<Domain>>() {
+            @Override
+            public int compare(CacheEntry<Domain> e1, CacheEntry<Domain> e2) {
+                return Long.compare(e1.mLastAccess, e2.mLastAccess);
             }
-        } else {
+        });
+        int count = entries.size() - mMaxItems + Math.max(mMaxItems / 10, 1);
+        for (int i = 0; i < count && i < entries.size(); i++) {
+            remove(entries.get(i));
+        }
+    }
+
+    private Domain get(String key, ConcurrentMap<String, CacheEntry<Domain>> cache) {
+        // unlike the old LRU maps, concurrent maps don't take null keys
+        CacheEntry<Domain> ce = key == null ? null : cache.get(key);
+        if (ce == null) {
             mHitRate.increment(0);
             return null;
         }
+        long now = System.currentTimeMillis();
+        if (mRefreshTTL != 0) {
+            if (ce.isStale(now)) {
+                synchronized (this) {
+                    remove(ce);
+                }
+                mHitRate.increment(0);
+                return null;
+            }
+            if (now >= ce.mRefreshTime) {
+                NamedEntryCache.refreshAhead(mRefresher, ce, mRefreshes);
+            }
+        }
+        ce.mLastAccess = now;
+        mHitRate.increment(100);
+        return ce.mEntry;
     }
-    
+
     @Override
-    public synchronized Domain getById(String key, GetFromDomainCacheOption option) {
-        
+    public Domain getById(String key, GetFromDomainCacheOption option) {
+
         switch (option) {
         case POSITIVE:
             return get(key, mIdCache);
@@ -316,10 +365,10 @@ public class DomainCache implements IDomainCache {
             return null;
         }
     }
-    
+
     @Override
-    public synchronized Domain getByName(String key, GetFromDomainCacheOption option) {
-        
+    public Domain getByName(String key, GetFromDomainCacheOption option) {
+
         switch (option) {
         case POSITIVE:
             return get(key.toLowerCase(), mNameCache);
@@ -334,10 +383,10 @@ public class DomainCache implements IDomainCache {
             return null;
         }
     }
-    
+
     @Override
-    public synchronized Domain getByVirtualHostname(String key, GetFromDomainCacheOption option) {
-        
+    public Domain getByVirtualHostname(String key, GetFromDomainCacheOption option) {
+
         switch (option) {
         case POSITIVE:
             return get(key.toLowerCase(), mVirtualHostnameCache);
@@ -352,10 +401,10 @@ public class DomainCache implements IDomainCache {
             return null;
         }
     }
-    
+
     @Override
-    public synchronized Domain getByForeignName(String key, GetFromDomainCacheOption option) {
-        
+    public Domain getByForeignName(String key, GetFromDomainCacheOption option) {
+
         switch (option) {
         case POSITIVE:
             return get(key.toLowerCase(), mForeignNameCache);
@@ -370,10 +419,10 @@ public class DomainCache implements IDomainCache {
             return null;
         }
     }
-    
+
     @Override
-    public synchronized Domain getByKrb5Realm(String key, GetFromDomainCacheOption option) {
-        
+    public Domain getByKrb5Realm(String key, GetFromDomainCacheOption option) {
+
         switch (option) {
         case POSITIVE:
             return get(key.toLowerCase(), mKrb5RealmCache);
@@ -390,15 +439,30 @@ public class DomainCache implements IDomainCache {
     }
 
     @Override
-    public synchronized int getSize() {
+    public int getSize() {
         return mIdCache.size();
     }
-    
+
     /**
      * Returns the cache hit rate as a value between 0 and 100.<br />
      */
     @Override
-    public synchronized double getHitRate() {
-    	 return mHitRate.getAverage();
+    public double getHitRate() {
+        return mHitRate.getAverage();
+    }
+
+    @Override
+    public long getHitCount() {
+        return mHitRate.getTotal() / 100;
+    }
+
+    @Override
+    public long getMissCount() {
+        return mHitRate.getCount() - mHitRate.getTotal() / 100;
+    }
+
+    @Override
+    public long getRefreshCount() {
+        return mRefreshes.get();
     }
 }
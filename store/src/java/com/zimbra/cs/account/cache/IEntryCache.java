@@ -19,4 +19,13 @@ package com.zimbra.cs.account.cache;
 public interface IEntryCache {
     public int getSize();
     public double getHitRate();
+
+    /** Returns the number of lookups that found a live entry since startup. */
+    public long getHitCount();
+
+    /** Returns the number of lookups that found nothing or an expired entry since startup. */
+    public long getMissCount();
+
+    /** Returns the number of entries reloaded in the background before they expired since startup. */
+    public long getRefreshCount();
 }
@@ -23,47 +23,118 @@
  */
 package com.zimbra.cs.account.cache;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.zimbra.common.util.MapUtil;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.stats.HitRateCounter;
+import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.NamedEntry;
 
 /**
+ * Cache of LDAP entries by name and by id.
+ * <p>
+ * Lookups don't lock: both indexes are concurrent maps, and each cached entry carries its own expiry time.  Updates
+ * are serialized so that the two indexes agree.  When the cache holds more than {@code maxItems} entries, the least
+ * recently read tenth is evicted in one pass.
+ * <p>
+ * If a {@link Refresher} is set, an entry that is read during the last
+ * {@code ldap_cache_refresh_ahead_percent} of its lifetime is reloaded in the background, so that frequently used
+ * entries are replaced before they expire instead of making a reader wait for LDAP.
+ *
  * @author schemers
  **/
 public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E> {
-    
-    private Map mNameCache;
-    private Map mIdCache;
-    
-    private long mRefreshTTL;
-    private Counter mHitRate = new HitRateCounter();
-   
+
+    /**
+     * Reloads an entry from LDAP and puts the result back in the cache.
+     */
+    public interface Refresher {
+        void refresh(NamedEntry entry) throws ServiceException;
+    }
+
+    private static final ThreadPoolExecutor REFRESH_EXECUTOR = createRefreshExecutor();
+
+    private final ConcurrentMap<String, CacheEntry<E>> mNameCache;
+    private final ConcurrentMap<String, CacheEntry<E>> mIdCache;
+
+    private final int mMaxItems;
+    private final long mRefreshTTL;
+    private final long mRefreshAhead;
+    private volatile Refresher mRefresher;
+    // totals 100 per hit, like every other HitRateCounter
+    private final Counter mHitRate = new HitRateCounter();
+    private final AtomicLong mRefreshes = new AtomicLong();
 
     static class CacheEntry<E extends NamedEntry> {
-        long mLifetime;
-        E mEntry;
-        CacheEntry(E entry, long expires) {
+        final long mLifetime;
+        final long mRefreshTime;
+        final E mEntry;
+        volatile long mLastAccess;
+        final AtomicBoolean mRefreshing = new AtomicBoolean();
+
+        CacheEntry(E entry, long expires, long refreshAhead) {
             mEntry = entry;
-            mLifetime = System.currentTimeMillis() + expires;
+            mLastAccess = System.currentTimeMillis();
+            mLifetime = mLastAccess + expires;
+            mRefreshTime = mLifetime - refreshAhead;
         }
-        
-        boolean isStale() {
-            return mLifetime < System.currentTimeMillis();
+
+        boolean isStale(long now) {
+            return mLifetime < now;
         }
     }
-    
+
+    private static ThreadPoolExecutor createRefreshExecutor() {
+        int threads = LC.ldap_cache_refresh_threads.intValue();
+        if (threads <= 0) {
+            return null;
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(1000),
+                new ThreadFactoryBuilder().setNameFormat("LdapCacheRefresh-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
 /**
  * @param maxItems
  * @param refreshTTL
  */
     public NamedEntryCache(int maxItems, long refreshTTL) {
-        mNameCache = MapUtil.newLruMap(maxItems);
-        mIdCache = MapUtil.newLruMap(maxItems);
+        mNameCache = new ConcurrentHashMap<String, CacheEntry<E>>();
+        mIdCache = new ConcurrentHashMap<String, CacheEntry<E>>();
+        mMaxItems = maxItems;
         mRefreshTTL = refreshTTL;
+        mRefreshAhead = getRefreshAhead(refreshTTL);
+    }
+
+    /**
+     * Returns how long before expiry an entry that is read gets reloaded.
+     */
+    static long getRefreshAhead(long refreshTTL) {
+        int percent = Math.max(0, Math.min(LC.ldap_cache_refresh_ahead_percent.intValue(), 100));
+        return refreshTTL / 100 * percent;
+    }
+
+    /**
+     * Reloads entries that are read shortly before they expire with the given {@link Refresher}, in the background.
+     */
+    public void setRefresher(Refresher refresher) {
+        mRefresher = refresher;
     }
 
     @Override
@@ -77,7 +148,7 @@ public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E
         mNameCache.remove(name);
         mIdCache.remove(id);
     }
-    
+
     @Override
     public synchronized void remove(E entry) {
         if (entry != null) {
@@ -85,16 +156,19 @@ public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E
             mIdCache.remove(entry.getId());
         }
     }
-    
+
     @Override
     public synchronized void put(E entry) {
         if (entry != null) {
-            CacheEntry<E> cacheEntry = new CacheEntry<E>(entry, mRefreshTTL);
+            CacheEntry<E> cacheEntry = new CacheEntry<E>(entry, mRefreshTTL, mRefreshAhead);
             mNameCache.put(entry.getName(), cacheEntry);
             mIdCache.put(entry.getId(), cacheEntry);
+            if (mIdCache.size() > mMaxItems) {
+                evict();
+            }
         }
     }
-    
+
     @Override
     public synchronized void replace(E entry) {
         remove(entry);
@@ -110,45 +184,115 @@ public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private E get(String key, Map cache) {
-        CacheEntry<E> ce = (CacheEntry<E>) cache.get(key);
-        if (ce != null) {
-            if (mRefreshTTL != 0 && ce.isStale()) {
-                remove(ce.mEntry);
-                mHitRate.increment(0);
-                return null;
-            } else {
-                mHitRate.increment(100);
-                return ce.mEntry;
+    /**
+     * Evicts the least recently read tenth of the entries, so that a full cache is not scanned on every put.
+     */
+    private void evict() {
+        List<CacheEntry<E>> entries = new ArrayList<CacheEntry<E>>(mIdCache.values());
+        Collections.sort(entries, new Comparator<CacheEntry<E>>() {
+            @Override
+            public int compare(CacheEntry<E> e1, CacheEntry<E> e2) {
+                return Long.compare(e1.mLastAccess, e2.mLastAccess);
             }
-        } else {
-            mHitRate.increment(0);
+        });
+        int count = entries.size() - mMaxItems + Math.max(mMaxItems / 10, 1);
+        for (int i = 0; i < count && i < entries.size(); i++) {
+            E entry = entries.get(i).mEntry;
+            mNameCache.remove(entry.getName(), entries.get(i));
+            mIdCache.remove(entry.getId(), entries.get(i));
+        }
+    }
+
+    private E get(String key, ConcurrentMap<String, CacheEntry<E>> cache) {
+        CacheEntry<E> ce = cache.get(key);
+        if (ce == null) {
+            miss();
             return null;
         }
+        long now = System.currentTimeMillis();
+        if (mRefreshTTL != 0) {
+            if (ce.isStale(now)) {
+                // only drop this instance; another thread may already have cached a fresh one
+                mNameCache.remove(ce.mEntry.getName(), ce);
+                mIdCache.remove(ce.mEntry.getId(), ce);
+                miss();
+                return null;
+            }
+            if (now >= ce.mRefreshTime) {
+                refreshAhead(mRefresher, ce, mRefreshes);
+            }
+        }
+        ce.mLastAccess = now;
+        mHitRate.increment(100);
+        return ce.mEntry;
+    }
+
+    private void miss() {
+        mHitRate.increment(0);
+    }
+
+    /**
+     * Reloads the entry in the background.  Each cached instance is refreshed at most once; if that fails, the entry
+     * expires as usual.  Shared with {@link AccountCache} and {@link DomainCache}.
+     */
+    static void refreshAhead(final Refresher refresher, CacheEntry<?> ce, final AtomicLong refreshes) {
+        if (refresher == null || REFRESH_EXECUTOR == null || !ce.mRefreshing.compareAndSet(false, true)) {
+            return;
+        }
+        final NamedEntry entry = ce.mEntry;
+        try {
+            REFRESH_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresher.refresh(entry);
+                        refreshes.incrementAndGet();
+                    } catch (ServiceException e) {
+                        ZimbraLog.account.info("unable to refresh cached entry %s: %s", entry.getName(), e.getMessage());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // too many refreshes pending; the entry expires as usual
+        }
     }
-    
+
     @Override
-    public synchronized E getById(String key) {
+    public E getById(String key) {
         return get(key, mIdCache);
     }
-    
+
     @Override
-    public synchronized E getByName(String key) {
+    public E getByName(String key) {
         return get(key.toLowerCase(), mNameCache);
     }
-    
+
     @Override
-    public synchronized int getSize() {
+    public int getSize() {
         return mIdCache.size();
     }
-    
-  
+
+
     /**
      * Returns the cache hit rate as a value between 0 and 100.
      */
     @Override
-    public synchronized double getHitRate() {
+    public double getHitRate() {
         return mHitRate.getAverage();
     }
+
+    @Override
+    public long getHitCount() {
+        return mHitRate.getTotal() / 100;
+    }
+
+    @Override
+    public long getMissCount() {
+        return mHitRate.getCount() - mHitRate.getTotal() / 100;
+    }
+
+    @Override
+    public long getRefreshCount() {
+        return mRefreshes.get();
+    }
 }
@@ -62,6 +62,12 @@ abstract class LdapCache {
     abstract INamedEntryCache<XMPPComponent> xmppComponentCache();
     abstract INamedEntryCache<AlwaysOnCluster> alwaysOnClusterCache();
 
+    /**
+     * Sets what reloads cached entries that are about to expire, for the caches whose entries
+     * are put back in the cache when they are reloaded.
+     */
+    abstract void setRefresher(NamedEntryCache.Refresher refresher);
+
     /**
      *
      * LRUMapCache
@@ -69,12 +75,12 @@ abstract class LdapCache {
      */
     static class LRUMapCache extends LdapCache {
 
-        private final IAccountCache accountCache =
+        private final AccountCache accountCache =
             new AccountCache(
                     LC.ldap_cache_account_maxsize.intValue(),
                     LC.ldap_cache_account_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
 
-        private final INamedEntryCache<LdapCos> cosCache =
+        private final NamedEntryCache<LdapCos> cosCache =
             new NamedEntryCache<LdapCos>(
                     LC.ldap_cache_cos_maxsize.intValue(),
                     LC.ldap_cache_cos_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
@@ -84,7 +90,7 @@ abstract class LdapCache {
                         LC.ldap_cache_share_locator_maxsize.intValue(),
                         LC.ldap_cache_share_locator_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
 
-        private final IDomainCache domainCache =
+        private final DomainCache domainCache =
             new DomainCache(
                     LC.ldap_cache_domain_maxsize.intValue(),
                     LC.ldap_cache_domain_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
@@ -93,17 +99,17 @@ abstract class LdapCache {
 
         private final IMimeTypeCache mimeTypeCache = new LdapMimeTypeCache();
 
-        private final INamedEntryCache<Server> serverCache =
+        private final NamedEntryCache<Server> serverCache =
             new NamedEntryCache<Server>(
                     LC.ldap_cache_server_maxsize.intValue(),
                     LC.ldap_cache_server_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
 
-        private final INamedEntryCache<UCService> ucServiceCache =
+        private final NamedEntryCache<UCService> ucServiceCache =
             new NamedEntryCache<UCService>(
                     LC.ldap_cache_ucservice_maxsize.intValue(),
                     LC.ldap_cache_ucservice_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
 
-        private final INamedEntryCache<LdapZimlet> zimletCache =
+        private final NamedEntryCache<LdapZimlet> zimletCache =
             new NamedEntryCache<LdapZimlet>(
                     LC.ldap_cache_zimlet_maxsize.intValue(),
                     LC.ldap_cache_zimlet_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
@@ -114,12 +120,12 @@ abstract class LdapCache {
                     LC.ldap_cache_group_maxsize.intValue(),
                     LC.ldap_cache_group_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
 
-        private final INamedEntryCache<XMPPComponent> xmppComponentCache =
+        private final NamedEntryCache<XMPPComponent> xmppComponentCache =
             new NamedEntryCache<XMPPComponent>(
                     LC.ldap_cache_xmppcomponent_maxsize.intValue(),
                     LC.ldap_cache_xmppcomponent_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
 
-        private final INamedEntryCache<AlwaysOnCluster> alwaysOnClusterCache =
+        private final NamedEntryCache<AlwaysOnCluster> alwaysOnClusterCache =
                 new NamedEntryCache<AlwaysOnCluster>(
                         LC.ldap_cache_alwaysoncluster_maxsize.intValue(),
                         LC.ldap_cache_alwaysoncluster_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
@@ -178,6 +184,18 @@ abstract class LdapCache {
         INamedEntryCache<AlwaysOnCluster> alwaysOnClusterCache() {
             return alwaysOnClusterCache;
         }
+
+        @Override
+        void setRefresher(NamedEntryCache.Refresher refresher) {
+            accountCache.setRefresher(refresher);
+            domainCache.setRefresher(refresher);
+            cosCache.setRefresher(refresher);
+            serverCache.setRefresher(refresher);
+            ucServiceCache.setRefresher(refresher);
+            zimletCache.setRefresher(refresher);
+            xmppComponentCache.setRefresher(refresher);
+            alwaysOnClusterCache.setRefresher(refresher);
+        }
     }
 
 
@@ -228,6 +246,15 @@ abstract class LdapCache {
 
             @Override
             public double getHitRate() { return 0; }
+
+            @Override
+            public long getHitCount() { return 0; }
+
+            @Override
+            public long getMissCount() { return 0; }
+
+            @Override
+            public long getRefreshCount() { return 0; }
         }
 
         static class NoopDomainCache implements IDomainCache {
@@ -268,6 +295,14 @@ abstract class LdapCache {
             @Override
             public int getSize() { return 0; }
 
+            @Override
+            public long getHitCount() { return 0; }
+
+            @Override
+            public long getMissCount() { return 0; }
+
+            @Override
+            public long getRefreshCount() { return 0; }
         }
 
         static class NoopNamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E> {
@@ -301,6 +336,15 @@ abstract class LdapCache {
 
             @Override
             public void replace(E entry) {}
+
+            @Override
+            public long getHitCount() { return 0; }
+
+            @Override
+            public long getMissCount() { return 0; }
+
+            @Override
+            public long getRefreshCount() { return 0; }
         }
 
         static class NoopMimeTypeCache implements IMimeTypeCache {
@@ -379,6 +423,10 @@ abstract class LdapCache {
         INamedEntryCache<AlwaysOnCluster> alwaysOnClusterCache() {
             return alwaysOnClusterCache;
         }
+
+        @Override
+        void setRefresher(NamedEntryCache.Refresher refresher) {
+        }
     }
 }
 
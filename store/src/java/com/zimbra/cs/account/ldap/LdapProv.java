@@ -27,6 +27,7 @@ import com.zimbra.cs.account.Domain;
 import com.zimbra.cs.account.Entry;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.auth.AuthMechanism.AuthMech;
+import com.zimbra.cs.account.cache.IEntryCache;
 import com.zimbra.cs.ldap.LdapClient;
 import com.zimbra.cs.ldap.LdapTODO.TODO;
 import com.zimbra.cs.ldap.SearchLdapOptions;
@@ -90,6 +91,11 @@ public abstract class LdapProv extends Provisioning {
     public abstract int getXMPPCacheSize();
     public abstract double getXMPPCacheHitRate();
 
+    /**
+     * @return the entry caches by the entry type name used in stats
+     */
+    public abstract Map<String, IEntryCache> getEntryCaches();
+
 
     public abstract void waitForLdapServer();
     public abstract void alwaysUseMaster();
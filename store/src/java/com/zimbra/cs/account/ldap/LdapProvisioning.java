@@ -104,8 +104,10 @@ import com.zimbra.cs.account.cache.DomainCache;
 import com.zimbra.cs.account.cache.DomainCache.GetFromDomainCacheOption;
 import com.zimbra.cs.account.cache.IAccountCache;
 import com.zimbra.cs.account.cache.IDomainCache;
+import com.zimbra.cs.account.cache.IEntryCache;
 import com.zimbra.cs.account.cache.IMimeTypeCache;
 import com.zimbra.cs.account.cache.INamedEntryCache;
+import com.zimbra.cs.account.cache.NamedEntryCache;
 import com.zimbra.cs.account.callback.CallbackContext;
 import com.zimbra.cs.account.callback.CallbackContext.DataKey;
 import com.zimbra.cs.account.gal.GalNamedFilter;
@@ -220,6 +222,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -316,6 +319,12 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
         xmppComponentCache = cache.xmppComponentCache();
         zimletCache = cache.zimletCache();
         alwaysOnClusterCache = cache.alwaysOnClusterCache();
+        cache.setRefresher(new NamedEntryCache.Refresher() {
+            @Override
+            public void refresh(NamedEntry entry) throws ServiceException {
+                reload(entry, false);
+            }
+        });
 
         commonPasswordFilter = UnmodifiableBloomFilter
             .createLazyFilterFromFile(LC.common_passwords_txt.value());
@@ -387,6 +396,21 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
     @Override
     public double getXMPPCacheHitRate() { return xmppComponentCache.getHitRate(); }
 
+    @Override
+    public Map<String, IEntryCache> getEntryCaches() {
+        Map<String, IEntryCache> caches = new LinkedHashMap<String, IEntryCache>();
+        caches.put("account", accountCache);
+        caches.put("domain", domainCache);
+        caches.put("cos", cosCache);
+        caches.put("server", serverCache);
+        caches.put("ucservice", ucServiceCache);
+        caches.put("zimlet", zimletCache);
+        caches.put("group", groupCache);
+        caches.put("xmpp", xmppComponentCache);
+        caches.put("alwaysoncluster", alwaysOnClusterCache);
+        return caches;
+    }
+
     private String[] getBasicDLAttrs() throws ServiceException {
         AttributeManager attrMgr = AttributeManager.getInstance();
         Set<String> dlAttrs = attrMgr.getAllAttrsInClass(AttributeClass.distributionList);
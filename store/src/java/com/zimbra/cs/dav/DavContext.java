@@ -22,6 +22,7 @@ import java.net.URI;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -36,10 +37,12 @@ import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.dom4j.QName;
 
+import com.google.common.collect.Iterables;
 import com.zimbra.client.ZFolder;
 import com.zimbra.client.ZMailbox;
 import com.zimbra.client.ZMountpoint;
 import com.zimbra.common.account.Key;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.W3cDomUtil;
 import com.zimbra.common.soap.XmlParseException;
@@ -50,6 +53,8 @@ import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.AuthToken;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.dav.resource.AddressObject;
+import com.zimbra.cs.dav.resource.AddressbookCollection;
+import com.zimbra.cs.dav.resource.CalendarCollection;
 import com.zimbra.cs.dav.resource.CalendarObject;
 import com.zimbra.cs.dav.resource.Collection;
 import com.zimbra.cs.dav.resource.DavResource;
@@ -107,6 +112,7 @@ public class DavContext {
     private FileUploadServlet.Upload mUpload;
     private DavResponse mResponse;
     private boolean mResponseSent;
+    private boolean mStreamResponse = LC.zimbra_dav_multistatus_streaming.booleanValue();
     private DavResource mRequestedResource;
     private Collection mRequestedParentCollection;
     private RequestType mRequestType;
@@ -401,6 +407,18 @@ public class DavContext {
         return mResponseSent;
     }
 
+    /* Returns true if a multistatus response may be written to the client as it is
+     * produced rather than after the whole response Document has been built.
+     */
+    public boolean canStreamResponse() {
+        return mStreamResponse;
+    }
+
+    /* The whole response Document is needed after the method returns, e.g. to cache it. */
+    public void disableResponseStreaming() {
+        mStreamResponse = false;
+    }
+
     /* Depth header - RFC 2518bis section 10.2 */
     public enum Depth {
         zero, one, infinity
@@ -523,6 +541,19 @@ public class DavContext {
         return rss;
     }
 
+    /* Same as getAllRequestedResources(), but the calendar items or contacts in a requested
+     * calendar or addressbook collection are loaded a batch at a time as the result is iterated.
+     */
+    public Iterable<DavResource> getAllRequestedResourcesInBatches() throws DavException, ServiceException {
+        if (mRequestType == RequestType.RESOURCE && getDepth() == Depth.one) {
+            DavResource rs = getRequestedResource();
+            if (rs instanceof CalendarCollection || rs instanceof AddressbookCollection) {
+                return Iterables.concat(Collections.singletonList(rs), ((Collection) rs).getChildrenInBatches(this));
+            }
+        }
+        return getAllRequestedResources();
+    }
+
     public Mailbox getTargetMailbox() throws ServiceException {
         Account acct = Provisioning.getInstance().getAccountByName(mUser);
         if (acct == null)
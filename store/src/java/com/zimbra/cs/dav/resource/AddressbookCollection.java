@@ -18,6 +18,8 @@ package com.zimbra.cs.dav.resource;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 
 import javax.servlet.http.HttpServletResponse;
@@ -25,6 +27,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.dom4j.Element;
 import org.dom4j.QName;
 
+import com.google.common.collect.Iterables;
 import com.zimbra.common.account.Key.AccountBy;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.L10nUtil;
@@ -40,6 +43,7 @@ import com.zimbra.cs.dav.DavProtocol;
 import com.zimbra.cs.dav.property.ResourceProperty;
 import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.calendar.cache.CtagInfo;
 import com.zimbra.cs.service.formatter.VCard;
 import com.zimbra.cs.servlet.ETagHeaderFilter;
@@ -163,4 +167,36 @@ public class AddressbookCollection extends Collection {
         return children;
     }
 
+    /* Sub-folders are listed up front, the contacts are loaded a batch at a time. */
+    @Override
+    public Iterable<DavResource> getChildrenInBatches(final DavContext ctxt) throws DavException {
+        ArrayList<DavResource> folders = new ArrayList<DavResource>();
+        List<Integer> ids;
+        final Mailbox mbox;
+        try {
+            ctxt.setCollectionPath(getUri());
+            mbox = getMailbox(ctxt);
+            for (MailItem item : mbox.getItemList(ctxt.getOperationContext(), MailItem.Type.FOLDER, mId)) {
+                DavResource rs = UrlNamespace.getResourceFromMailItem(ctxt, item);
+                if (rs != null && rs.isCollection())
+                    folders.add(rs);
+            }
+            ids = mbox.listItemIds(ctxt.getOperationContext(), MailItem.Type.CONTACT, mId);
+        } catch (ServiceException e) {
+            ZimbraLog.dav.error("can't get children from folder: id="+mId, e);
+            return Collections.emptyList();
+        }
+        return Iterables.concat(folders, new BatchedResources<Integer>(ids) {
+            @Override
+            protected java.util.Collection<DavResource> load(List<Integer> batch) throws ServiceException, DavException {
+                ArrayList<DavResource> contacts = new ArrayList<DavResource>(batch.size());
+                for (MailItem item : getItems(ctxt, mbox, batch)) {
+                    DavResource rs = UrlNamespace.getResourceFromMailItem(ctxt, item);
+                    if (rs instanceof AddressObject)
+                        contacts.add(rs);
+                }
+                return contacts;
+            }
+        });
+    }
 }
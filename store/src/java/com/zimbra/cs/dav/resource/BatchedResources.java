@@ -0,0 +1,97 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.dav.resource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.dav.DavContext;
+import com.zimbra.cs.dav.DavException;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+
+/**
+ * Resources of a collection that are loaded a batch at a time as they are iterated,
+ * so that a streamed multistatus response only holds one batch of items in memory.
+ */
+abstract class BatchedResources<K> implements Iterable<DavResource> {
+
+    private final List<K> keys;
+    private final int batchSize;
+
+    BatchedResources(List<K> keys) {
+        this(keys, LC.zimbra_dav_multistatus_batch_size.intValue());
+    }
+
+    BatchedResources(List<K> keys, int batchSize) {
+        this.keys = keys;
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    /* Returns the resources for one batch of keys. */
+    protected abstract java.util.Collection<DavResource> load(List<K> batch) throws ServiceException, DavException;
+
+    @Override
+    public Iterator<DavResource> iterator() {
+        final Iterator<List<K>> batches = Lists.partition(keys, batchSize).iterator();
+        return new AbstractIterator<DavResource>() {
+            private Iterator<DavResource> current = Collections.<DavResource>emptyList().iterator();
+
+            @Override
+            protected DavResource computeNext() {
+                while (!current.hasNext()) {
+                    if (!batches.hasNext()) {
+                        return endOfData();
+                    }
+                    List<K> batch = batches.next();
+                    try {
+                        current = load(batch).iterator();
+                    } catch (ServiceException | DavException e) {
+                        ZimbraLog.dav.warn("can't load a batch of %d resources", batch.size(), e);
+                    }
+                }
+                return current.next();
+            }
+        };
+    }
+
+    /* Loads the items in a single transaction.  If that fails because an item has been deleted
+     * in the meantime or isn't readable, the items are loaded one by one and those are skipped.
+     */
+    static List<MailItem> getItems(DavContext ctxt, Mailbox mbox, List<Integer> ids) throws ServiceException {
+        try {
+            return Lists.newArrayList(mbox.getItemById(ctxt.getOperationContext(), ids, MailItem.Type.UNKNOWN));
+        } catch (ServiceException e) {
+            List<MailItem> items = new ArrayList<MailItem>(ids.size());
+            for (int id : ids) {
+                try {
+                    items.add(mbox.getItemById(ctxt.getOperationContext(), id, MailItem.Type.UNKNOWN));
+                } catch (ServiceException se) {
+                    ZimbraLog.dav.debug("skipping item %d", id, se);
+                }
+            }
+            return items;
+        }
+    }
+}
@@ -174,6 +174,60 @@ public class CalendarCollection extends Collection {
         return requestedAppts.values();
     }
 
+    /* Returns the appointments in the range for a streamed multistatus response.  When the
+     * calendar data is requested the calendar items are loaded a batch at a time as the
+     * result is iterated, instead of all at once.
+     */
+    public Iterable<DavResource> getChildrenInBatches(final DavContext ctxt, TimeRange range) throws DavException {
+        if ((range == null && mAppts != null) || !needCalendarData(ctxt))
+            return getChildren(ctxt, range);
+        final Mailbox mbox;
+        List<Integer> ids = new ArrayList<Integer>();
+        try {
+            mbox = getCalendarMailbox(ctxt);
+            if (range == null)
+                range = new TimeRange(getOwner());
+            long start = range.getStart();
+            long end = range.getEnd();
+            start = start == Long.MIN_VALUE ? -1 : start;
+            end = end == Long.MAX_VALUE ? -1 : end;
+            for (CalendarItem.CalendarMetadata item : mbox.getCalendarItemMetadata(getId(), start, end))
+                ids.add(item.itemId);
+        } catch (ServiceException se) {
+            ZimbraLog.dav.error("can't get calendar items", se);
+            return Collections.emptyList();
+        }
+        ctxt.setCollectionPath(getUri());
+        return new BatchedResources<Integer>(ids) {
+            @Override
+            protected java.util.Collection<DavResource> load(List<Integer> batch) throws ServiceException {
+                ArrayList<DavResource> appts = new ArrayList<DavResource>(batch.size());
+                for (MailItem item : getItems(ctxt, mbox, batch)) {
+                    if (item instanceof CalendarItem && item.getFolderId() == getId())
+                        appts.add(new CalendarObject.LocalCalendarObject(ctxt, (CalendarItem) item));
+                }
+                return appts;
+            }
+        };
+    }
+
+    @Override
+    public Iterable<DavResource> getChildrenInBatches(DavContext ctxt) throws DavException {
+        return getChildrenInBatches(ctxt, null);
+    }
+
+    /* Same as getAppointmentsByUids(), but the hrefs are looked up a batch at a time as the
+     * result is iterated.
+     */
+    public Iterable<DavResource> getAppointmentsByUidsInBatches(final DavContext ctxt, List<String> hrefs) {
+        return new BatchedResources<String>(hrefs) {
+            @Override
+            protected java.util.Collection<DavResource> load(List<String> batch) throws ServiceException, DavException {
+                return getAppointmentsByUids(ctxt, batch);
+            }
+        };
+    }
+
     protected Map<String,String> getUidToHrefMap(java.util.Collection<String> hrefs) {
         HashMap<String,String> uidmap = new HashMap<String,String>();
         for (String href : hrefs) {
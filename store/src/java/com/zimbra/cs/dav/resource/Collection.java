@@ -128,6 +128,13 @@ public class Collection extends MailItemResource {
         return children;
     }
 
+    /* Returns the children for a streamed multistatus response.  Collections that can
+     * hold a large number of items load them a batch at a time as the result is iterated.
+     */
+    public Iterable<DavResource> getChildrenInBatches(DavContext ctxt) throws DavException {
+        return getChildren(ctxt);
+    }
+
 
     public MailItem.Type getDefaultView() {
         return view;
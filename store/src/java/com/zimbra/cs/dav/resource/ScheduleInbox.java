@@ -87,6 +87,22 @@ public class ScheduleInbox extends CalendarCollection {
         }
     }
 
+    @Override
+    public Iterable<DavResource> getChildrenInBatches(DavContext ctxt, TimeRange tr) throws DavException {
+        return getChildren(ctxt, tr);
+    }
+
+    /* The inbox lists its pending invites regardless of the hrefs, so they aren't batched. */
+    @Override
+    public Iterable<DavResource> getAppointmentsByUidsInBatches(DavContext ctxt, List<String> hrefs) {
+        try {
+            return getAppointmentsByUids(ctxt, hrefs);
+        } catch (ServiceException | DavException e) {
+            ZimbraLog.dav.error("can't get schedule messages in folder "+getId(), e);
+            return Collections.emptyList();
+        }
+    }
+
     protected static final Set<MailItem.Type> SEARCH_TYPES = EnumSet.of(MailItem.Type.MESSAGE);
 
     @Override
@@ -67,17 +67,27 @@ public abstract class DavMethod {
     protected void sendResponse(DavContext ctxt) throws IOException {
         if (ctxt.isResponseSent())
             return;
+        if (ctxt.hasResponseMessage() && ctxt.getDavResponse().isStreaming()) {
+            ctxt.getDavResponse().finishStream(ctxt);
+        } else {
+            sendResponseHeaders(ctxt);
+            if (ctxt.hasResponseMessage()) {
+                HttpServletResponse resp = ctxt.getResponse();
+                resp.setContentType(DavProtocol.DAV_CONTENT_TYPE);
+                DavResponse respMsg = ctxt.getDavResponse();
+                respMsg.writeTo(resp.getOutputStream());
+            }
+        }
+        ctxt.responseSent();
+    }
+
+    /* Sets the response status and DAV header.  A streamed DavResponse sends them with its first element. */
+    static void sendResponseHeaders(DavContext ctxt) {
         HttpServletResponse resp = ctxt.getResponse();
         resp.setStatus(ctxt.getStatus());
         String compliance = ctxt.getDavCompliance();
         if (compliance != null)
             setResponseHeader(resp, DavProtocol.HEADER_DAV, compliance);
-        if (ctxt.hasResponseMessage()) {
-            resp.setContentType(DavProtocol.DAV_CONTENT_TYPE);
-            DavResponse respMsg = ctxt.getDavResponse();
-            respMsg.writeTo(resp.getOutputStream());
-        }
-        ctxt.responseSent();
     }
 
     public static void setResponseHeader(HttpServletResponse resp, String name, String value) {
@@ -16,8 +16,11 @@
  */
 package com.zimbra.cs.dav.service;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -29,7 +32,10 @@ import org.dom4j.Document;
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.dom4j.QName;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.XMLWriter;
 
+import com.google.common.base.Charsets;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.dav.DavContext;
 import com.zimbra.cs.dav.DavElements;
@@ -108,10 +114,36 @@ public class DavResponse {
 
     private final Document mResponse;
 
+    // set when the multistatus response elements are written out as they are added
+    private boolean mStreaming;
+    private Writer mStreamOut;
+    private XMLWriter mStreamWriter;
+    private int mStreamed;
+
     public DavResponse() {
         mResponse = org.dom4j.DocumentHelper.createDocument();
     }
 
+    /* Switches to streaming the multistatus response, if the request allows it.  The
+     * response headers and the multistatus element are sent with the first response
+     * element, and each response element is written and dropped as soon as it is built,
+     * so memory doesn't grow with the size of the collection.  Methods that stream must
+     * not rely on the response Document after the first element has been added.
+     */
+    public boolean startStreaming(DavContext ctxt) {
+        Element top = mResponse.getRootElement();
+        boolean empty = top == null || (top.getQName().equals(DavElements.E_MULTISTATUS) && top.elements().isEmpty());
+        if (!mStreaming && ctxt.canStreamResponse() && empty) {
+            mStreaming = true;
+            createResponse(ctxt);
+        }
+        return mStreaming;
+    }
+
+    public boolean isStreaming() {
+        return mStreaming;
+    }
+
     public Element getTop(QName topName) {
         Element top = mResponse.getRootElement();
         if (top == null)
@@ -168,9 +200,10 @@ public class DavResponse {
         }
 
         propstat.toResponse(ctxt, top, props.isNameOnly());
+        flush(ctxt);
     }
 
-    public void addResources(DavContext ctxt, Collection<DavResource> rss, DavContext.RequestProp props) throws DavException {
+    public void addResources(DavContext ctxt, Iterable<DavResource> rss, DavContext.RequestProp props) throws DavException {
         ctxt.setStatus(DavProtocol.STATUS_MULTI_STATUS);
         boolean first = true;
         for (DavResource rs : rss) {
@@ -181,11 +214,12 @@ public class DavResponse {
         }
     }
 
-    public void addStatus(DavContext ctxt, String href, int status) {
+    public void addStatus(DavContext ctxt, String href, int status) throws DavException {
         ctxt.setStatus(DavProtocol.STATUS_MULTI_STATUS);
         Element resp = getTop(DavElements.E_MULTISTATUS).addElement(DavElements.E_RESPONSE);
         resp.addElement(DavElements.E_HREF).setText(href);
         resp.addElement(DavElements.E_STATUS).setText(sStatusTextMap.get(status));
+        flush(ctxt);
     }
 
     public void createResponse(DavContext ctxt) {
@@ -200,6 +234,59 @@ public class DavResponse {
         DomUtil.writeDocumentToStream(mResponse, out);
     }
 
+    /* Writes out the response elements added since the last flush when streaming. */
+    private void flush(DavContext ctxt) throws DavException {
+        if (!mStreaming)
+            return;
+        try {
+            if (mStreamWriter == null)
+                openStream(ctxt);
+            writeResponses();
+        } catch (IOException e) {
+            throw new DavException("can't write response", HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e);
+        }
+    }
+
+    private void openStream(DavContext ctxt) throws IOException {
+        DavMethod.sendResponseHeaders(ctxt);
+        HttpServletResponse resp = ctxt.getResponse();
+        resp.setContentType(DavProtocol.DAV_CONTENT_TYPE);
+        mStreamOut = new BufferedWriter(new OutputStreamWriter(resp.getOutputStream(), Charsets.UTF_8));
+        OutputFormat format = OutputFormat.createPrettyPrint();
+        format.setTrimText(false);
+        mStreamWriter = new XMLWriter(mStreamOut, format);
+        mStreamWriter.setIndentLevel(1);
+        // each response element declares the namespaces it uses
+        QName top = mResponse.getRootElement().getQName();
+        String prefix = top.getNamespacePrefix();
+        mStreamOut.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        mStreamOut.write("<" + top.getQualifiedName() + (prefix.isEmpty() ? " xmlns" : " xmlns:" + prefix) +
+                "=\"" + top.getNamespaceURI() + "\">");
+    }
+
+    private void writeResponses() throws IOException {
+        Element top = mResponse.getRootElement();
+        for (Object obj : top.elements()) {
+            Element resp = (Element) obj;
+            if (ZimbraLog.dav.isDebugEnabled())
+                ZimbraLog.dav.debug("RESPONSE %d:\n%s", mStreamed, resp.asXML());
+            mStreamOut.write("\n");
+            mStreamWriter.write(resp);
+            mStreamed++;
+        }
+        top.clearContent();
+    }
+
+    /* Sends the rest of a streamed response, including the headers if no response element was added. */
+    public void finishStream(DavContext ctxt) throws IOException {
+        if (mStreamWriter == null)
+            openStream(ctxt);
+        writeResponses();
+        mStreamOut.write("\n</" + mResponse.getRootElement().getQualifiedName() + ">\n");
+        mStreamOut.flush();
+        ZimbraLog.dav.debug("streamed %d response elements", mStreamed);
+    }
+
     public static class PropStat {
         private final HashMap<Integer,Element> mMap;
         private final ArrayList<ResourceProperty> mProps;
@@ -417,7 +417,8 @@ public class DavServlet extends ZimbraServlet {
             try {
                 if (e.isStatusSet()) {
                     resp.setStatus(e.getStatus());
-                    if (e.hasErrorMessage())
+                    // a streamed multistatus response may already be partly sent
+                    if (e.hasErrorMessage() && !resp.isCommitted())
                         e.writeErrorMsg(resp.getOutputStream());
                     if (ZimbraLog.dav.isDebugEnabled()) {
                         ZimbraLog.dav.info("sending http error %d because: %s", e.getStatus(), e.getMessage(), e);
@@ -600,6 +601,8 @@ public class DavServlet extends ZimbraServlet {
                             // response the hard way.  Capture a snapshot of current state of calendars
                             // to attach to the response to be cached later.
                             cache.cacheThisCtagResponse = true;
+                            // the whole response Document is cached after it has been sent
+                            ctxt.disableResponseStreaming();
                             cache.acctVerSnapshot = allCtagsData.getVersion();
                             cache.ctagsSnapshot = new HashMap<Integer, String>();
                             Collection<CtagInfo> childCals = allCtagsData.getChildren(rootFolderId);
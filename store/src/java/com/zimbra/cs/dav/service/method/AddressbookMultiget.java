@@ -46,6 +46,8 @@ public class AddressbookMultiget extends Report {
         if (!(reqResource instanceof AddressbookCollection))
             throw new DavException("requested resource is not an addressbook collection", HttpServletResponse.SC_BAD_REQUEST, null);
         RequestProp reqProp = ctxt.getRequestProp();
+        // each href is resolved on its own, so streaming alone keeps the response from piling up
+        resp.startStreaming(ctxt);
         for (Object obj : query.elements(DavElements.E_HREF)) {
             if (obj instanceof Element) {
                 String href = ((Element)obj).getText();
@@ -57,6 +57,7 @@ public class AddressbookQuery extends Report {
         RequestProp reqProp = ctxt.getRequestProp();
         DavResponse resp = ctxt.getDavResponse();
         resp.createResponse(ctxt);
+        resp.startStreaming(ctxt);
         for (AddressObject c : contacts) {
             resp.addResource(ctxt, c, reqProp, false);
         }
@@ -59,7 +59,12 @@ public class CalendarMultiget extends Report {
 		long now = System.currentTimeMillis();
 		ZimbraLog.dav.debug("GetRequestedResource: "+(now - ts)+"ms");
 		RequestProp reqProp = ctxt.getRequestProp();
-		for (DavResource rs : calResource.getAppointmentsByUids(ctxt, hrefs))
+		Iterable<DavResource> appts;
+		if (resp.startStreaming(ctxt))
+			appts = calResource.getAppointmentsByUidsInBatches(ctxt, hrefs);
+		else
+			appts = calResource.getAppointmentsByUids(ctxt, hrefs);
+		for (DavResource rs : appts)
 			resp.addResource(ctxt, rs, reqProp, false);
 		ts = now;
 		now = System.currentTimeMillis();
@@ -86,7 +86,13 @@ public class CalendarQuery extends Report {
         qctxt.davCtxt.setStatus(DavProtocol.STATUS_MULTI_STATUS);
         DavResponse resp = qctxt.davCtxt.getDavResponse();
         resp.getTop(DavElements.E_MULTISTATUS);
-        for (DavResource calItem : cal.getChildren(ctxt, tr)) {
+        Iterable<DavResource> calItems;
+        if (resp.startStreaming(ctxt)) {
+            calItems = cal.getChildrenInBatches(ctxt, tr);
+        } else {
+            calItems = cal.getChildren(ctxt, tr);
+        }
+        for (DavResource calItem : calItems) {
             handleCalendarItem(qctxt, calItem);
         }
     }
@@ -67,7 +67,10 @@ public class PropFind extends DavMethod {
 
         DavResponse resp = ctxt.getDavResponse();
         if (ctxt.getDepth() == Depth.one) {
-            resp.addResources(ctxt, ctxt.getAllRequestedResources(), reqProp);
+            if (resp.startStreaming(ctxt))
+                resp.addResources(ctxt, ctxt.getAllRequestedResourcesInBatches(), reqProp);
+            else
+                resp.addResources(ctxt, ctxt.getAllRequestedResources(), reqProp);
         } else {
             DavResource resource = ctxt.getRequestedResource();
             resp.addResource(ctxt, resource, reqProp, false);
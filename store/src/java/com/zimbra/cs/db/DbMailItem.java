@@ -35,6 +35,7 @@ import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -3881,6 +3882,46 @@ public class DbMailItem {
         }
     }
 
+    /**
+     * Returns the blobs of the mailbox whose locator starts with <tt>prefix</tt>, keyed by the table that
+     * references them: the item and revision tables, followed by their dumpster counterparts.  Revision
+     * tables key their rows by <tt>item_id</tt> rather than <tt>id</tt>.
+     */
+    public static Map<String, List<MailboxBlob.MailboxBlobInfo>> getBlobsByLocatorPrefix(DbConnection conn, Mailbox mbox,
+            String prefix) throws ServiceException {
+        Map<String, List<MailboxBlob.MailboxBlobInfo>> blobs = new LinkedHashMap<String, List<MailboxBlob.MailboxBlobInfo>>();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            for (boolean fromDumpster : new boolean[] { false, true }) {
+                for (boolean revisions : new boolean[] { false, true }) {
+                    String table = revisions ? getRevisionTableName(mbox, fromDumpster) : getMailItemTableName(mbox, fromDumpster);
+                    stmt = conn.prepareStatement("SELECT " + (revisions ? "item_id" : "id") + ", mod_content, locator, blob_digest" +
+                            " FROM " + table + " WHERE " + IN_THIS_MAILBOX_AND + "locator LIKE ?");
+                    int pos = setMailboxId(stmt, mbox, 1);
+                    stmt.setString(pos++, prefix + "%");
+                    rs = stmt.executeQuery();
+                    List<MailboxBlob.MailboxBlobInfo> found = new ArrayList<MailboxBlob.MailboxBlobInfo>();
+                    while (rs.next()) {
+                        found.add(new MailboxBlob.MailboxBlobInfo(mbox.getAccountId(), mbox.getId(),
+                                rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4)));
+                    }
+                    blobs.put(table, found);
+                    DbPool.closeResults(rs);
+                    rs = null;
+                    DbPool.closeStatement(stmt);
+                    stmt = null;
+                }
+            }
+            return blobs;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("fetching blobs with locator prefix " + prefix + " for mailbox " + mbox.getId(), e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
+    }
+
     private static void getAllBlobs(PreparedStatement stmt, int volumeId, int lastSyncDate, int currentSyncDate,
             SpoolingCache<MailboxBlob.MailboxBlobInfo> blobs) throws ServiceException, SQLException, IOException {
         ResultSet rs = null;
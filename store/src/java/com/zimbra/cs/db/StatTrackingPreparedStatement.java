@@ -40,6 +40,7 @@ import java.sql.Timestamp;
 import java.util.Calendar;
 
 import com.zimbra.cs.stats.ActivityTracker;
+import com.zimbra.cs.stats.SlowRequestSampler;
 import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
@@ -106,6 +107,7 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
     }
 
     private void trackQueryStats(String sql, long startTime) {
+        SlowRequestSampler.addDbTime(System.currentTimeMillis() - startTime);
         if (sql != null) {
             tracker.addStat(getQueryType(sql), startTime);
         }
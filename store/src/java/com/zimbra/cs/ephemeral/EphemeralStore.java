@@ -44,6 +44,7 @@ public abstract class EphemeralStore {
     protected AttributeEncoder encoder;
     static {
         factories.put("ldap", LdapEphemeralStore.Factory.class.getName());
+        factories.put("file", FileEphemeralStore.Factory.class.getName());
     }
 
     /**
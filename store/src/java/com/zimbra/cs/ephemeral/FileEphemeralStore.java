@@ -0,0 +1,669 @@
+package com.zimbra.cs.ephemeral;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * EphemeralStore that keeps its data in memory and persists it to an append-only log on local disk, so that
+ * auth and CSRF tokens don't cost an LDAP write each.  Selected with an ephemeral backend URL of the form
+ * {@code file:/opt/zimbra/data/ephemeral}.
+ * <p>
+ * Every change is appended to {@code ephemeral.log} in the directory named by the URL, and the log is replayed
+ * into memory when the store is opened.  Once the log holds many more records than there are live values, it is
+ * rewritten with only the live ones.  Values with an expiration are dropped by a {@link TimingWheel} as they
+ * expire; the drops aren't logged, since replay skips expired values anyway.
+ * <p>
+ * The data is local to the server, so this backend is only suitable where a single mailbox server issues and
+ * validates the tokens.
+ */
+public class FileEphemeralStore extends EphemeralStore {
+
+    static final String LOG_FILE = "ephemeral.log";
+    private static final String LOCK_FILE = "ephemeral.lock";
+    private static final int MAGIC = 0x5a45504c;
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 5;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private static final byte OP_ADD = 'A';
+    private static final byte OP_REMOVE = 'R';
+    private static final byte OP_REMOVE_KEY = 'K';
+    private static final byte OP_DELETE_LOCATION = 'L';
+
+    /** the log is compacted when it holds this many more records than twice the number of live values */
+    private static final int COMPACTION_SLACK = 10000;
+    private static final long TICK_MILLIS = 1000;
+
+    private final File dir;
+    private final File logFile;
+    private final Map<String, Multimap<String, String>> storeMap = new HashMap<String, Multimap<String, String>>();
+    private final TimingWheel<Value> wheel;
+    private final TimingWheel.Handler<Value> expiryHandler = new TimingWheel.Handler<Value>() {
+        @Override
+        public void expired(Value value) {
+            Multimap<String, String> map = storeMap.get(value.storeKey);
+            if (map != null && map.remove(value.encodedKey, value.encodedValue)) {
+                liveValues--;
+                if (map.isEmpty()) {
+                    storeMap.remove(value.storeKey);
+                }
+            }
+        }
+    };
+    private final boolean fsync;
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private FileChannel log;
+    private long records;
+    private long liveValues;
+    private ScheduledExecutorService ticker;
+
+    private static final class Value {
+        final String storeKey;
+        final String encodedKey;
+        final String encodedValue;
+
+        Value(String storeKey, String encodedKey, String encodedValue) {
+            this.storeKey = storeKey;
+            this.encodedKey = encodedKey;
+            this.encodedValue = encodedValue;
+        }
+    }
+
+    @VisibleForTesting
+    FileEphemeralStore(File dir) {
+        this.dir = dir;
+        this.logFile = new File(dir, LOG_FILE);
+        this.fsync = LC.ephemeral_file_store_fsync.booleanValue();
+        this.wheel = new TimingWheel<Value>(TICK_MILLIS, System.currentTimeMillis());
+        setAttributeEncoder(new DynamicExpirationEncoder());
+    }
+
+    @VisibleForTesting
+    synchronized void open() throws ServiceException {
+        try {
+            Files.createDirectories(dir.toPath());
+            lockChannel = FileChannel.open(new File(dir, LOCK_FILE).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            lock = lockChannel.tryLock();
+            if (lock == null) {
+                lockChannel.close();
+                throw ServiceException.FAILURE(String.format("ephemeral store at %s is in use by another process",
+                        dir), null);
+            }
+            long length = replay();
+            log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            if (length == 0) {
+                log.truncate(0);
+                log.write(header());
+                length = HEADER_SIZE;
+            } else if (length < log.size()) {
+                ZimbraLog.ephemeral.warn("truncating ephemeral log %s from %d to %d bytes", logFile, log.size(),
+                        length);
+                log.truncate(length);
+            }
+            log.position(length);
+        } catch (IOException e) {
+            close();
+            throw ServiceException.FAILURE(String.format("unable to open ephemeral store at %s", dir), e);
+        } catch (ServiceException e) {
+            close();
+            throw e;
+        }
+        ticker = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("FileEphemeralStore").setDaemon(true).build());
+        ticker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                tick(System.currentTimeMillis());
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        ZimbraLog.ephemeral.info("opened ephemeral store at %s: %d values, %d log records", dir, liveValues,
+                records);
+    }
+
+    @VisibleForTesting
+    synchronized void close() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+            ticker = null;
+        }
+        try {
+            if (log != null) {
+                log.close();
+            }
+            if (lock != null) {
+                lock.release();
+            }
+            if (lockChannel != null) {
+                lockChannel.close();
+            }
+        } catch (IOException e) {
+            ZimbraLog.ephemeral.warn("error closing ephemeral store at %s", dir, e);
+        } finally {
+            log = null;
+            lock = null;
+            lockChannel = null;
+        }
+    }
+
+    /**
+     * Loads the log into memory.
+     *
+     * @return the length of the valid part of the log, or 0 if there is no log yet
+     */
+    private long replay() throws IOException, ServiceException {
+        if (!logFile.exists() || logFile.length() < HEADER_SIZE) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw ServiceException.FAILURE(String.format("%s is not an ephemeral log", logFile), null);
+            }
+            long position = HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        ZimbraLog.ephemeral.warn("corrupt record at offset %d of %s", position, logFile);
+                        return position;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        ZimbraLog.ephemeral.warn("bad checksum at offset %d of %s", position, logFile);
+                        return position;
+                    }
+                    position += payload.length + 8;
+                } catch (EOFException e) {
+                    return position;
+                }
+                apply(payload, now);
+            }
+        }
+    }
+
+    private void apply(byte[] payload, long now) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte op = in.readByte();
+        String storeKey = readString(in);
+        records++;
+        switch (op) {
+        case OP_ADD: {
+            String encodedKey = readString(in);
+            String encodedValue = readString(in);
+            Long expiration = getExpiration(encodedKey, encodedValue);
+            if (expiration == null || expiration > now) {
+                add(storeKey, encodedKey, encodedValue, expiration);
+            }
+            break;
+        }
+        case OP_REMOVE: {
+            String encodedKey = readString(in);
+            remove(storeKey, encodedKey, readString(in));
+            break;
+        }
+        case OP_REMOVE_KEY:
+            removeAll(storeKey, readString(in));
+            break;
+        case OP_DELETE_LOCATION:
+            deleteLocation(storeKey);
+            break;
+        default:
+            throw new IOException(String.format("unknown ephemeral log operation %d", op));
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static ByteBuffer header() {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        buf.putInt(MAGIC).put(VERSION).flip();
+        return buf;
+    }
+
+    /**
+     * Accumulates log records so that the records for one operation are appended with a single write.
+     */
+    private static final class RecordWriter {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final CRC32 crc = new CRC32();
+        private int count;
+
+        RecordWriter add(byte op, String... args) throws IOException {
+            ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(payloadBytes);
+            payload.writeByte(op);
+            for (String arg : args) {
+                writeString(payload, arg);
+            }
+            byte[] data = payloadBytes.toByteArray();
+            crc.reset();
+            crc.update(data);
+            out.writeInt(data.length);
+            out.write(data);
+            out.writeInt((int) crc.getValue());
+            count++;
+            return this;
+        }
+
+        ByteBuffer toBuffer() {
+            return ByteBuffer.wrap(bytes.toByteArray());
+        }
+    }
+
+    private void append(RecordWriter writer) throws ServiceException {
+        if (log == null) {
+            throw ServiceException.FAILURE(String.format("ephemeral store at %s is closed", dir), null);
+        }
+        try {
+            ByteBuffer buf = writer.toBuffer();
+            while (buf.hasRemaining()) {
+                log.write(buf);
+            }
+            if (fsync) {
+                log.force(false);
+            }
+        } catch (IOException e) {
+            throw ServiceException.FAILURE(String.format("unable to write ephemeral log %s", logFile), e);
+        }
+        records += writer.count;
+    }
+
+    private Long getExpiration(String encodedKey, String encodedValue) {
+        try {
+            EphemeralKeyValuePair kvp = decode(encodedKey, encodedValue);
+            if (kvp instanceof ExpirableEphemeralKeyValuePair) {
+                return ((ExpirableEphemeralKeyValuePair) kvp).getExpiration();
+            }
+        } catch (ServiceException e) {
+            // unparseable values are kept until a lookup finds and deletes them, as with the other backends
+        }
+        return null;
+    }
+
+    private void add(String storeKey, String encodedKey, String encodedValue, Long expiration) {
+        Multimap<String, String> map = storeMap.get(storeKey);
+        if (map == null) {
+            map = LinkedHashMultimap.create();
+            storeMap.put(storeKey, map);
+        }
+        if (map.put(encodedKey, encodedValue)) {
+            liveValues++;
+            if (expiration != null && expiration > 0) {
+                wheel.schedule(new Value(storeKey, encodedKey, encodedValue), expiration);
+            }
+        }
+    }
+
+    private void remove(String storeKey, String encodedKey, String encodedValue) {
+        Multimap<String, String> map = storeMap.get(storeKey);
+        if (map != null && map.remove(encodedKey, encodedValue)) {
+            liveValues--;
+            if (map.isEmpty()) {
+                storeMap.remove(storeKey);
+            }
+        }
+    }
+
+    private void removeAll(String storeKey, String encodedKey) {
+        Multimap<String, String> map = storeMap.get(storeKey);
+        if (map != null) {
+            liveValues -= map.removeAll(encodedKey).size();
+            if (map.isEmpty()) {
+                storeMap.remove(storeKey);
+            }
+        }
+    }
+
+    private void deleteLocation(String storeKey) {
+        Multimap<String, String> map = storeMap.remove(storeKey);
+        if (map != null) {
+            liveValues -= map.size();
+        }
+    }
+
+    private static String getStoreKey(EphemeralLocation target) {
+        return Joiner.on("|").join(target.getLocation());
+    }
+
+    private Collection<String> getValues(String storeKey, String encodedKey) {
+        Multimap<String, String> map = storeMap.get(storeKey);
+        if (map == null) {
+            return new ArrayList<String>(0);
+        }
+        // copied, since the deletion callback may modify the map while the helper iterates
+        return new ArrayList<String>(map.get(encodedKey));
+    }
+
+    private DynamicResultsHelper.DeletionCallback getDeletionCallback(final String storeKey) {
+        return new DynamicResultsHelper.DeletionCallback() {
+            @Override
+            public void delete(String encodedKey, List<String> values) throws ServiceException {
+                deleteValues(storeKey, encodedKey, values);
+            }
+        };
+    }
+
+    private void deleteValues(String storeKey, String encodedKey, Collection<String> values)
+            throws ServiceException {
+        if (values.isEmpty()) {
+            return;
+        }
+        RecordWriter writer = new RecordWriter();
+        try {
+            for (String v : values) {
+                writer.add(OP_REMOVE, storeKey, encodedKey, v);
+            }
+        } catch (IOException e) {
+            throw ServiceException.FAILURE("unable to encode ephemeral log record", e);
+        }
+        append(writer);
+        for (String v : values) {
+            remove(storeKey, encodedKey, v);
+        }
+    }
+
+    @Override
+    public synchronized EphemeralResult get(EphemeralKey key, EphemeralLocation target)
+            throws ServiceException {
+        String storeKey = getStoreKey(target);
+        Collection<String> values = getValues(storeKey, encodeKey(key, target));
+        DynamicResultsHelper helper = new DynamicResultsHelper(key, target, encoder, getDeletionCallback(storeKey));
+        return helper.get(values);
+    }
+
+    @Override
+    public synchronized void set(EphemeralInput attribute, EphemeralLocation target)
+            throws ServiceException {
+        String storeKey = getStoreKey(target);
+        String encodedKey = encodeKey(attribute, target);
+        String encodedValue = encodeValue(attribute, target);
+        try {
+            append(new RecordWriter().add(OP_REMOVE_KEY, storeKey, encodedKey)
+                    .add(OP_ADD, storeKey, encodedKey, encodedValue));
+        } catch (IOException e) {
+            throw ServiceException.FAILURE("unable to encode ephemeral log record", e);
+        }
+        removeAll(storeKey, encodedKey);
+        add(storeKey, encodedKey, encodedValue, getExpiration(encodedKey, encodedValue));
+    }
+
+    @Override
+    public synchronized void update(EphemeralInput attribute, EphemeralLocation target)
+            throws ServiceException {
+        String storeKey = getStoreKey(target);
+        String encodedKey = encodeKey(attribute, target);
+        String encodedValue = encodeValue(attribute, target);
+        try {
+            append(new RecordWriter().add(OP_ADD, storeKey, encodedKey, encodedValue));
+        } catch (IOException e) {
+            throw ServiceException.FAILURE("unable to encode ephemeral log record", e);
+        }
+        add(storeKey, encodedKey, encodedValue, getExpiration(encodedKey, encodedValue));
+    }
+
+    @Override
+    public synchronized void delete(EphemeralKey key, String valueToDelete, EphemeralLocation target)
+            throws ServiceException {
+        String storeKey = getStoreKey(target);
+        String encodedKey = encodeKey(key, target);
+        Collection<String> values = getValues(storeKey, encodedKey);
+        DynamicResultsHelper helper = new DynamicResultsHelper(key, target, encoder, getDeletionCallback(storeKey));
+        deleteValues(storeKey, encodedKey, helper.delete(values, valueToDelete));
+    }
+
+    @Override
+    public synchronized void purgeExpired(EphemeralKey key, EphemeralLocation target)
+            throws ServiceException {
+        String storeKey = getStoreKey(target);
+        String encodedKey = encodeKey(key, target);
+        Collection<String> values = getValues(storeKey, encodedKey);
+        DynamicResultsHelper helper = new DynamicResultsHelper(key, target, encoder, getDeletionCallback(storeKey),
+                true);
+        // expired values needn't be logged; replay skips them
+        for (String v : helper.purge(values)) {
+            remove(storeKey, encodedKey, v);
+        }
+    }
+
+    @Override
+    public synchronized void deleteData(EphemeralLocation location) throws ServiceException {
+        String storeKey = getStoreKey(location);
+        if (!storeMap.containsKey(storeKey)) {
+            return;
+        }
+        try {
+            append(new RecordWriter().add(OP_DELETE_LOCATION, storeKey));
+        } catch (IOException e) {
+            throw ServiceException.FAILURE("unable to encode ephemeral log record", e);
+        }
+        deleteLocation(storeKey);
+    }
+
+    @Override
+    public synchronized boolean has(EphemeralKey key, EphemeralLocation target)
+            throws ServiceException {
+        String storeKey = getStoreKey(target);
+        Collection<String> values = getValues(storeKey, encodeKey(key, target));
+        DynamicResultsHelper helper = new DynamicResultsHelper(key, target, encoder, getDeletionCallback(storeKey));
+        return helper.has(values);
+    }
+
+    @VisibleForTesting
+    synchronized void tick(long now) {
+        wheel.advance(now, expiryHandler);
+        if (log != null && records > 2 * liveValues + COMPACTION_SLACK) {
+            try {
+                compact();
+            } catch (ServiceException e) {
+                ZimbraLog.ephemeral.warn("unable to compact ephemeral log %s", logFile, e);
+            }
+        }
+    }
+
+    /**
+     * Replaces the log with one holding only the live values.
+     */
+    @VisibleForTesting
+    synchronized void compact() throws ServiceException {
+        long before = records;
+        File tmp = new File(dir, LOG_FILE + ".tmp");
+        long count = 0;
+        try {
+            try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                out.write(header());
+                for (Map.Entry<String, Multimap<String, String>> store : storeMap.entrySet()) {
+                    RecordWriter writer = new RecordWriter();
+                    for (Map.Entry<String, String> entry : store.getValue().entries()) {
+                        writer.add(OP_ADD, store.getKey(), entry.getKey(), entry.getValue());
+                    }
+                    ByteBuffer buf = writer.toBuffer();
+                    while (buf.hasRemaining()) {
+                        out.write(buf);
+                    }
+                    count += writer.count;
+                }
+                out.force(true);
+            }
+            log.close();
+            log = null;
+            Files.move(tmp.toPath(), logFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            tmp.delete();
+            reopenLog();
+            throw ServiceException.FAILURE(String.format("unable to compact ephemeral log %s", logFile), e);
+        }
+        reopenLog();
+        records = count;
+        ZimbraLog.ephemeral.debug("compacted ephemeral log %s from %d to %d records", logFile, before, count);
+    }
+
+    private void reopenLog() throws ServiceException {
+        try {
+            if (log == null) {
+                log = FileChannel.open(logFile.toPath(), StandardOpenOption.WRITE);
+            }
+            log.position(log.size());
+        } catch (IOException e) {
+            throw ServiceException.FAILURE(String.format("unable to reopen ephemeral log %s", logFile), e);
+        }
+    }
+
+    @VisibleForTesting
+    synchronized long getLogRecordCount() {
+        return records;
+    }
+
+    /**
+     * Returns the directory named by a {@code file:} URL.
+     */
+    static File getDirectory(String url) throws ServiceException {
+        if (Strings.isNullOrEmpty(url)) {
+            throw ServiceException.FAILURE("no ephemeral backend URL specified", null);
+        }
+        try {
+            URI uri = new URI(url);
+            if (!"file".equalsIgnoreCase(uri.getScheme()) || Strings.isNullOrEmpty(uri.getPath())
+                    || !uri.getPath().startsWith("/")) {
+                throw ServiceException.FAILURE(String.format(
+                        "'%s' is not a valid URL for the file ephemeral store; expected file:/path/to/directory",
+                        url), null);
+            }
+            return new File(uri.getPath());
+        } catch (URISyntaxException e) {
+            throw ServiceException.FAILURE(String.format("'%s' is not a valid URL", url), e);
+        }
+    }
+
+    public static class Factory extends EphemeralStore.Factory {
+
+        private static final Map<File, FileEphemeralStore> stores = new HashMap<File, FileEphemeralStore>();
+        private static final Map<File, Integer> refCounts = new HashMap<File, Integer>();
+
+        private FileEphemeralStore store;
+
+        /**
+         * Stores are shared between factories for the same directory, since only one may hold the lock on it.
+         */
+        private static FileEphemeralStore acquire(File dir) throws ServiceException {
+            synchronized (stores) {
+                FileEphemeralStore store = stores.get(dir);
+                if (store == null) {
+                    store = new FileEphemeralStore(dir);
+                    store.open();
+                    stores.put(dir, store);
+                    refCounts.put(dir, 0);
+                }
+                refCounts.put(dir, refCounts.get(dir) + 1);
+                return store;
+            }
+        }
+
+        private static void release(FileEphemeralStore store) {
+            synchronized (stores) {
+                Integer count = refCounts.get(store.dir);
+                if (count == null) {
+                    return;
+                }
+                if (count > 1) {
+                    refCounts.put(store.dir, count - 1);
+                } else {
+                    refCounts.remove(store.dir);
+                    stores.remove(store.dir);
+                    store.close();
+                }
+            }
+        }
+
+        @Override
+        public synchronized EphemeralStore getStore() {
+            if (store == null) {
+                // the URL is resolved here rather than in startup(), since the migration tool sets the backend
+                // type after the factory has been started
+                try {
+                    store = acquire(getDirectory(getURL()));
+                } catch (ServiceException e) {
+                    throw new IllegalStateException("unable to open file ephemeral store", e);
+                }
+            }
+            return store;
+        }
+
+        @Override
+        public void startup() {}
+
+        @Override
+        public synchronized void shutdown() {
+            if (store != null) {
+                release(store);
+                store = null;
+            }
+        }
+
+        @Override
+        public void test(String url) throws ServiceException {
+            File dir = getDirectory(url);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw ServiceException.FAILURE(String.format("unable to create directory %s", dir), null);
+            }
+            if (!dir.canWrite()) {
+                throw ServiceException.FAILURE(String.format("directory %s is not writable", dir), null);
+            }
+        }
+    }
+}
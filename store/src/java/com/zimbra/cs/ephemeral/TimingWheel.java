@@ -0,0 +1,114 @@
+package com.zimbra.cs.ephemeral;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel.  Scheduling an item and expiring it take constant time, however many items are
+ * scheduled, which a sorted queue can't offer.
+ * <p>
+ * Each of the four levels has 64 slots.  A slot of the first level covers one tick, a slot of the second level
+ * 64 ticks, and so on.  An item goes in the lowest level whose span covers its expiration and moves down a level
+ * each time the wheel turns past its slot, until it expires from the first level.  Items further out than the
+ * last level can reach wait on an overflow list.
+ * <p>
+ * Not thread-safe; {@link FileEphemeralStore} calls it with its own monitor held.
+ */
+final class TimingWheel<T> {
+
+    interface Handler<T> {
+        void expired(T item);
+    }
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private static final class Entry<T> {
+        final T item;
+        final long tick;
+
+        Entry(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+
+    private final long tickMillis;
+    private final List<List<Entry<T>>> slots = new ArrayList<List<Entry<T>>>(LEVELS * SLOTS);
+    private List<Entry<T>> overflow = new ArrayList<Entry<T>>();
+    private long currentTick;
+    private int size;
+
+    TimingWheel(long tickMillis, long now) {
+        this.tickMillis = tickMillis;
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            slots.add(new ArrayList<Entry<T>>(0));
+        }
+        currentTick = now / tickMillis;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Schedules the item to expire at the given time.  Items due now or in the past expire on the next tick.
+     */
+    void schedule(T item, long expiresAt) {
+        long tick = (expiresAt + tickMillis - 1) / tickMillis;
+        place(new Entry<T>(item, Math.max(tick, currentTick + 1)));
+        size++;
+    }
+
+    private void place(Entry<T> entry) {
+        long delta = entry.tick - currentTick;
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << (SLOT_BITS * (level + 1))) {
+                slots.get(level * SLOTS + (int) ((entry.tick >>> (SLOT_BITS * level)) & (SLOTS - 1))).add(entry);
+                return;
+            }
+        }
+        overflow.add(entry);
+    }
+
+    /**
+     * Turns the wheel up to the given time, passing every item that has expired by then to the handler.
+     */
+    void advance(long now, Handler<T> handler) {
+        long target = now / tickMillis;
+        while (currentTick < target) {
+            currentTick++;
+            if ((currentTick & ((1L << (SLOT_BITS * LEVELS)) - 1)) == 0) {
+                List<Entry<T>> waiting = overflow;
+                overflow = new ArrayList<Entry<T>>();
+                for (Entry<T> entry : waiting) {
+                    place(entry);
+                }
+            }
+            // cascade from the top so that items moved down a level are moved again if their new slot is due
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    List<Entry<T>> slot = slots.get(level * SLOTS
+                            + (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1)));
+                    if (!slot.isEmpty()) {
+                        List<Entry<T>> entries = new ArrayList<Entry<T>>(slot);
+                        slot.clear();
+                        for (Entry<T> entry : entries) {
+                            place(entry);
+                        }
+                    }
+                }
+            }
+            List<Entry<T>> slot = slots.get((int) (currentTick & (SLOTS - 1)));
+            if (!slot.isEmpty()) {
+                List<Entry<T>> due = new ArrayList<Entry<T>>(slot);
+                slot.clear();
+                size -= due.size();
+                for (Entry<T> entry : due) {
+                    handler.expired(entry.item);
+                }
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package com.zimbra.cs.filter;
 
 import com.zimbra.common.filter.Sieve;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.DeliveryServiceException;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.L10nUtil;
@@ -87,6 +88,10 @@ public final class RuleManager {
             RuleManager.class.getSimpleName() + ".ADMIN_OUTGOING_FILTER_RULES_BEFORE_CACHE";
     private static final String ADMIN_OUTGOING_FILTER_RULES_AFTER_CACHE_KEY =
             RuleManager.class.getSimpleName() + ".ADMIN_OUTGOING_FILTER_RULES_AFTER_CACHE";
+    /**
+     * Suffix of the keys used to cache the {@link SieveProgram} compiled from each of the above.
+     */
+    private static final String PROGRAM_CACHE_KEY_SUFFIX = ".PROGRAM";
     public static final String editHeaderUserScriptError = "EDIT_HEADER_NOT_SUPPORTED_FOR_USER_SCRIPT";
 
     // See RFC 5228 Section 3.2
@@ -316,6 +321,26 @@ public final class RuleManager {
         return node;
     }
 
+    /**
+     * Returns the rules of the given parsed script that may match the message, leaving out those that
+     * the compiled form of the script shows can't.  The compiled script is cached on the <tt>Account</tt>
+     * next to the parsed one, and compiled again whenever the parsed script changes.
+     *
+     * @see SieveProgram#select(ZimbraMailAdapter)
+     */
+    private static Node selectRules(Account account, String rulesCacheKey, Node node, ZimbraMailAdapter mailAdapter) {
+        if (!LC.zimbra_filter_compiled_rules_enabled.booleanValue()) {
+            return node;
+        }
+        String programCacheKey = rulesCacheKey + PROGRAM_CACHE_KEY_SUFFIX;
+        SieveProgram program = (SieveProgram) account.getCachedData(programCacheKey);
+        if (program == null || program.getRoot() != node) {
+            program = SieveProgram.compile(node);
+            account.setCachedData(programCacheKey, program);
+        }
+        return program.select(mailAdapter);
+    }
+
     /**
      * Returns the XML representation of a user's incoming filter rules.
      *
@@ -514,7 +539,7 @@ public final class RuleManager {
                     if (filter.equals(FILTER_RULES_CACHE_KEY)) {
                         mailAdapter.setUserScriptExecuting(true);
                     }
-                    boolean proceed = evaluateScript(mailAdapter, node);
+                    boolean proceed = evaluateScript(mailAdapter, selectRules(account, filter, node, mailAdapter));
                     if (!proceed) {
                         continue;
                     }
@@ -571,7 +596,7 @@ public final class RuleManager {
                     if (filter.equals(OUTGOING_FILTER_RULES_CACHE_KEY)) {
                         mailAdapter.setUserScriptExecuting(true);
                     }
-                    boolean proceed = evaluateScript(mailAdapter, node);
+                    boolean proceed = evaluateScript(mailAdapter, selectRules(account, filter, node, mailAdapter));
                     if (!proceed) {
                         continue;
                     }
@@ -0,0 +1,922 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.filter;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.jsieve.TagArgument;
+import org.apache.jsieve.comparators.ComparatorNames;
+import org.apache.jsieve.comparators.MatchTypeTags;
+import org.apache.jsieve.mail.MailAdapter;
+import org.apache.jsieve.mail.SieveMailException;
+import org.apache.jsieve.parser.SieveNode;
+import org.apache.jsieve.parser.generated.ASTargument;
+import org.apache.jsieve.parser.generated.ASTarguments;
+import org.apache.jsieve.parser.generated.ASTcommand;
+import org.apache.jsieve.parser.generated.ASTcommands;
+import org.apache.jsieve.parser.generated.ASTstart;
+import org.apache.jsieve.parser.generated.ASTstring;
+import org.apache.jsieve.parser.generated.ASTstring_list;
+import org.apache.jsieve.parser.generated.ASTtest;
+import org.apache.jsieve.parser.generated.ASTtest_list;
+import org.apache.jsieve.parser.generated.Node;
+import org.apache.jsieve.parser.generated.ParseException;
+import org.apache.jsieve.parser.generated.TokenMgrError;
+import org.apache.jsieve.tests.AddressPartTags;
+import org.apache.jsieve.tests.ComparatorTags;
+
+import com.google.common.collect.ImmutableSet;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.soap.HeaderConstants;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Compiled form of a parsed Sieve script.
+ * <p>
+ * Every top-level {@code if} of the script is compiled into a test over the message headers, with the
+ * comparators lowered to plain string operations on keys that are upper-cased once and {@code :matches}
+ * patterns that are compiled once.  The rules are indexed by the headers their tests require, so that
+ * for each message only the rules that mention one of its headers are looked at.  {@link #select}
+ * returns the script without the rules whose test is known to be false for the message, and the
+ * remaining rules are run by the jSieve interpreter as before.  Tests that aren't compiled, such as
+ * {@code body} or {@code size}, always leave their rule in place.
+ * <p>
+ * A rule is only removed when the interpreter would have evaluated its test to false without side
+ * effects, so the result of filtering is the same.  Scripts that edit headers or use variables are not
+ * compiled, since the header values or the test arguments could change while the script runs.
+ */
+public final class SieveProgram {
+
+    private static enum Result {
+        TRUE, FALSE, UNKNOWN;
+
+        Result not() {
+            return this == TRUE ? FALSE : this == FALSE ? TRUE : UNKNOWN;
+        }
+    }
+
+    private static final Set<String> HEADER_EDITING_COMMANDS = ImmutableSet.of("addheader", "deleteheader", "replaceheader");
+    private static final Set<String> RELATIONAL_OPERATORS = ImmutableSet.of(HeaderConstants.GT_OP, HeaderConstants.GE_OP,
+            HeaderConstants.LT_OP, HeaderConstants.LE_OP, HeaderConstants.EQ_OP, HeaderConstants.NE_OP);
+
+    /**
+     * Whether string values of the parse tree still carry their quotes, or null if the tree isn't laid
+     * out the way this class expects, in which case nothing is compiled.
+     */
+    private static final Boolean QUOTED_STRINGS = probeParser();
+
+    private final Node root;
+    private final Node[] commands;
+    private final Rule[] rules;
+    private final BitSet unindexed = new BitSet();
+    private final Map<String, int[]> index = new TreeMap<String, int[]>(String.CASE_INSENSITIVE_ORDER);
+
+    private SieveProgram(Node root, Node[] commands, List<Rule> rules) {
+        this.root = root;
+        this.commands = commands;
+        this.rules = rules.toArray(new Rule[rules.size()]);
+
+        Map<String, List<Integer>> byHeader = new TreeMap<String, List<Integer>>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 0; i < this.rules.length; i++) {
+            Set<String> triggers = this.rules[i].test.triggers();
+            if (triggers == null) {
+                unindexed.set(i);
+                continue;
+            }
+            for (String name : triggers) {
+                List<Integer> ids = byHeader.get(name);
+                if (ids == null) {
+                    ids = new ArrayList<Integer>();
+                    byHeader.put(name, ids);
+                }
+                ids.add(i);
+            }
+        }
+        for (Map.Entry<String, List<Integer>> entry : byHeader.entrySet()) {
+            int[] ids = new int[entry.getValue().size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = entry.getValue().get(i);
+            }
+            index.put(entry.getKey(), ids);
+        }
+    }
+
+    /**
+     * Compiles the parsed script.  Never fails: a script that can't be compiled gives a program whose
+     * {@link #select} always returns the original tree.
+     */
+    public static SieveProgram compile(Node root) {
+        List<Rule> rules = new ArrayList<Rule>();
+        if (root == null || QUOTED_STRINGS == null || !comparatorsAreDefault() || !isCompilable(root)) {
+            return new SieveProgram(root, null, rules);
+        }
+        Node commandsNode = root.jjtGetChild(0);
+        Node[] commands = new Node[commandsNode.jjtGetNumChildren()];
+        for (int i = 0; i < commands.length; i++) {
+            commands[i] = commandsNode.jjtGetChild(i);
+        }
+        for (int i = 0; i < commands.length; i++) {
+            if (!"if".equalsIgnoreCase(nameOf(commands[i]))) {
+                continue;
+            }
+            // an if that is followed by elsif or else decides whether they run, so it has to stay
+            if (i + 1 < commands.length) {
+                String next = nameOf(commands[i + 1]);
+                if ("elsif".equalsIgnoreCase(next) || "else".equalsIgnoreCase(next)) {
+                    continue;
+                }
+            }
+            Node arguments = commands[i].jjtGetNumChildren() > 0 ? commands[i].jjtGetChild(0) : null;
+            if (arguments instanceof ASTarguments && arguments.jjtGetNumChildren() == 1 &&
+                    arguments.jjtGetChild(0) instanceof ASTtest) {
+                Test test = compileTest(arguments.jjtGetChild(0));
+                if (test != Unknown.INSTANCE) {
+                    rules.add(new Rule(i, test));
+                }
+            }
+        }
+        return new SieveProgram(root, commands, rules);
+    }
+
+    public Node getRoot() {
+        return root;
+    }
+
+    /**
+     * Returns the number of rules whose test was compiled.
+     */
+    public int getCompiledRuleCount() {
+        return rules.length;
+    }
+
+    /**
+     * Returns the script to evaluate for the message: the original tree if every rule may match, or a
+     * new tree that shares the commands of the original but leaves out the rules that can't match.
+     * The original tree is never modified.
+     */
+    public Node select(ZimbraMailAdapter mail) {
+        if (rules.length == 0) {
+            return root;
+        }
+        BitSet skipped = new BitSet(rules.length);
+        try {
+            MessageHeaders headers = new MessageHeaders(mail);
+            BitSet candidates = (BitSet) unindexed.clone();
+            for (String name : headers.names) {
+                int[] ids = index.get(name);
+                if (ids != null) {
+                    for (int id : ids) {
+                        candidates.set(id);
+                    }
+                }
+            }
+            for (int i = 0; i < rules.length; i++) {
+                if (!candidates.get(i) || rules[i].test.evaluate(headers) == Result.FALSE) {
+                    skipped.set(rules[i].command);
+                }
+            }
+        } catch (SieveMailException e) {
+            ZimbraLog.filter.debug("unable to read headers, evaluating every rule", e);
+            return root;
+        }
+        if (skipped.isEmpty()) {
+            return root;
+        }
+
+        Node selected;
+        try {
+            selected = RuleManager.parse("");
+        } catch (ParseException | TokenMgrError e) {
+            ZimbraLog.filter.warn("unable to create an empty script, evaluating every rule", e);
+            return root;
+        }
+        Node selectedCommands = selected.jjtGetChild(0);
+        int n = 0;
+        for (int i = 0; i < commands.length; i++) {
+            if (!skipped.get(i)) {
+                selectedCommands.jjtAddChild(commands[i], n++);
+            }
+        }
+        ZimbraLog.filter.debug("skipping %d of %d rules that can't match", skipped.cardinality(), rules.length);
+        return selected;
+    }
+
+    private static Boolean probeParser() {
+        try {
+            if (!isScriptRoot(RuleManager.parse(""))) {
+                return null;
+            }
+            Node probe = RuleManager.parse("if header :is \"a\" \"b\" { keep; }");
+            if (!isScriptRoot(probe)) {
+                return null;
+            }
+            Node string = firstString(probe);
+            Object value = string == null ? null : ((SieveNode) string).getValue();
+            if ("a".equals(value)) {
+                return Boolean.FALSE;
+            } else if ("\"a\"".equals(value)) {
+                return Boolean.TRUE;
+            }
+            ZimbraLog.filter.info("unexpected Sieve string value %s, filter rules won't be compiled", value);
+        } catch (Exception | TokenMgrError e) {
+            ZimbraLog.filter.warn("unable to probe the Sieve parser, filter rules won't be compiled", e);
+        }
+        return null;
+    }
+
+    private static boolean isScriptRoot(Node node) {
+        return node instanceof ASTstart && node.jjtGetNumChildren() == 1 && node.jjtGetChild(0) instanceof ASTcommands;
+    }
+
+    private static Node firstString(Node node) {
+        if (node instanceof ASTstring) {
+            return node;
+        }
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            Node string = firstString(node.jjtGetChild(i));
+            if (string != null) {
+                return string;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The comparators are lowered to string operations that match the default implementations only.
+     */
+    private static boolean comparatorsAreDefault() {
+        return ZimbraAsciiCasemap.class.getName().equals(LC.zimbra_class_jsieve_comparators_ascii_casemap.value()) &&
+                ZimbraOctet.class.getName().equals(LC.zimbra_class_jsieve_comparators_octet.value());
+    }
+
+    private static boolean isCompilable(Node node) {
+        if (!isScriptRoot(node)) {
+            return false;
+        }
+        return isCompilableSubtree(node);
+    }
+
+    private static boolean isCompilableSubtree(Node node) {
+        if (node instanceof ASTcommand && HEADER_EDITING_COMMANDS.contains(nameOf(node))) {
+            return false;
+        }
+        if (node instanceof ASTstring) {
+            Object value = ((SieveNode) node).getValue();
+            if (value != null && value.toString().contains("${")) {
+                return false;
+            }
+        }
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            if (!isCompilableSubtree(node.jjtGetChild(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String nameOf(Node node) {
+        String name = node instanceof SieveNode ? ((SieveNode) node).getName() : null;
+        return name == null ? null : name.toLowerCase();
+    }
+
+    /**
+     * Returns the value of a string node the way the interpreter sees it, or null if it may be subject
+     * to escaping or multi-line rules that aren't reproduced here.
+     */
+    private static String literal(Node node) {
+        Object value = ((SieveNode) node).getValue();
+        if (value == null) {
+            return null;
+        }
+        String s = value.toString();
+        if (QUOTED_STRINGS) {
+            if (s.length() < 2 || s.charAt(0) != '"' || s.charAt(s.length() - 1) != '"') {
+                return null;
+            }
+            s = s.substring(1, s.length() - 1);
+        }
+        if (s.indexOf('\\') >= 0 || s.indexOf('"') >= 0 || s.startsWith("text:")) {
+            return null;
+        }
+        return s;
+    }
+
+    /**
+     * Arguments of a test: tags as {@link String}s starting with a colon and string lists as
+     * {@code List<String>}, followed by the nested tests.
+     */
+    private static final class Arguments {
+        final List<Object> args = new ArrayList<Object>();
+        final List<Node> tests = new ArrayList<Node>();
+        boolean valid = true;
+
+        Arguments(Node test) {
+            for (int i = 0; i < test.jjtGetNumChildren(); i++) {
+                Node child = test.jjtGetChild(i);
+                if (!(child instanceof ASTarguments)) {
+                    valid = false;
+                    return;
+                }
+                for (int j = 0; j < child.jjtGetNumChildren(); j++) {
+                    add(child.jjtGetChild(j));
+                }
+            }
+        }
+
+        private void add(Node node) {
+            if (node instanceof ASTargument) {
+                Object value = ((SieveNode) node).getValue();
+                if (value instanceof TagArgument) {
+                    args.add(((TagArgument) value).getTag());
+                } else if (value == null && node.jjtGetNumChildren() == 1) {
+                    List<String> strings = strings(node.jjtGetChild(0));
+                    if (strings == null) {
+                        valid = false;
+                    } else {
+                        args.add(strings);
+                    }
+                } else {
+                    valid = false;
+                }
+            } else if (node instanceof ASTtest) {
+                tests.add(node);
+            } else if (node instanceof ASTtest_list) {
+                for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+                    tests.add(node.jjtGetChild(i));
+                }
+            } else {
+                valid = false;
+            }
+        }
+
+        private static List<String> strings(Node node) {
+            List<String> strings = new ArrayList<String>();
+            if (node instanceof ASTstring) {
+                strings.add(literal(node));
+            } else if (node instanceof ASTstring_list) {
+                for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+                    Node child = node.jjtGetChild(i);
+                    if (!(child instanceof ASTstring)) {
+                        return null;
+                    }
+                    strings.add(literal(child));
+                }
+            } else {
+                return null;
+            }
+            return strings.contains(null) || strings.isEmpty() ? null : strings;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<String> stringList(int i) {
+            return i < args.size() && args.get(i) instanceof List ? (List<String>) args.get(i) : null;
+        }
+    }
+
+    private static Test compileTest(Node node) {
+        if (!(node instanceof ASTtest)) {
+            return Unknown.INSTANCE;
+        }
+        Arguments arguments = new Arguments(node);
+        if (!arguments.valid) {
+            return Unknown.INSTANCE;
+        }
+        String name = nameOf(node);
+        if ("true".equals(name) || "false".equals(name)) {
+            if (!arguments.args.isEmpty() || !arguments.tests.isEmpty()) {
+                return Unknown.INSTANCE;
+            }
+            return "true".equals(name) ? Constant.TRUE : Constant.FALSE;
+        } else if ("not".equals(name)) {
+            if (!arguments.args.isEmpty() || arguments.tests.size() != 1) {
+                return Unknown.INSTANCE;
+            }
+            return new Not(compileTest(arguments.tests.get(0)));
+        } else if ("allof".equals(name) || "anyof".equals(name)) {
+            if (!arguments.args.isEmpty() || arguments.tests.isEmpty()) {
+                return Unknown.INSTANCE;
+            }
+            List<Test> tests = new ArrayList<Test>(arguments.tests.size());
+            for (Node test : arguments.tests) {
+                tests.add(compileTest(test));
+            }
+            return "allof".equals(name) ? new AllOf(tests) : new AnyOf(tests);
+        } else if ("exists".equals(name)) {
+            List<String> names = arguments.stringList(0);
+            if (arguments.args.size() != 1 || names == null || !arguments.tests.isEmpty()) {
+                return Unknown.INSTANCE;
+            }
+            return new Exists(names);
+        } else if ("header".equals(name) || "address".equals(name)) {
+            if (!arguments.tests.isEmpty()) {
+                return Unknown.INSTANCE;
+            }
+            return compileComparison(arguments.args, "address".equals(name));
+        }
+        return Unknown.INSTANCE;
+    }
+
+    /**
+     * Compiles a {@code header} or {@code address} test, rejecting any argument list for which
+     * {@code HeaderTest} or {@code AddressTest} would not simply compare the header values to the keys.
+     */
+    private static Test compileComparison(List<Object> args, boolean address) {
+        String addressPart = null;
+        String comparator = null;
+        String matchType = null;
+        boolean nextArgumentIsRelationalSign = false;
+        int i = 0;
+        for (; i < args.size() && args.get(i) instanceof String; i++) {
+            String tag = (String) args.get(i);
+            if (address && addressPart == null && (AddressPartTags.ALL_TAG.equalsIgnoreCase(tag) ||
+                    AddressPartTags.LOCALPART_TAG.equalsIgnoreCase(tag) || AddressPartTags.DOMAIN_TAG.equalsIgnoreCase(tag))) {
+                addressPart = tag;
+            } else if (comparator == null && ComparatorTags.COMPARATOR_TAG.equalsIgnoreCase(tag)) {
+                List<String> name = i + 1 < args.size() && args.get(i + 1) instanceof List ? castList(args.get(++i)) : null;
+                if (name == null || name.size() != 1) {
+                    return Unknown.INSTANCE;
+                }
+                comparator = name.get(0);
+            } else if (matchType == null && (MatchTypeTags.IS_TAG.equals(tag) || MatchTypeTags.CONTAINS_TAG.equals(tag) ||
+                    MatchTypeTags.MATCHES_TAG.equals(tag))) {
+                matchType = tag;
+                nextArgumentIsRelationalSign = true;
+            } else {
+                return Unknown.INSTANCE;
+            }
+        }
+        List<String> names = castList(i < args.size() ? args.get(i) : null);
+        List<String> keys = castList(i + 1 < args.size() ? args.get(i + 1) : null);
+        if (names == null || keys == null || i + 2 != args.size()) {
+            return Unknown.INSTANCE;
+        }
+        // the interpreter would take the header names for a relational operator
+        if (nextArgumentIsRelationalSign) {
+            for (String operator : RELATIONAL_OPERATORS) {
+                if (operator.equalsIgnoreCase(names.get(0))) {
+                    return Unknown.INSTANCE;
+                }
+            }
+        }
+        for (String name : names) {
+            if (name.isEmpty() || name.contains(" ")) {
+                return Unknown.INSTANCE;
+            }
+        }
+        boolean caseInsensitive;
+        if (comparator == null || ComparatorNames.ASCII_CASEMAP_COMPARATOR.equals(comparator)) {
+            caseInsensitive = true;
+        } else if (ComparatorNames.OCTET_COMPARATOR.equals(comparator)) {
+            caseInsensitive = false;
+        } else {
+            return Unknown.INSTANCE;
+        }
+        if (matchType == null) {
+            matchType = MatchTypeTags.IS_TAG;
+        }
+
+        if (address) {
+            if (MatchTypeTags.IS_TAG.equals(matchType) && (addressPart == null || AddressPartTags.ALL_TAG.equals(addressPart) ||
+                    AddressPartTags.LOCALPART_TAG.equals(addressPart) || AddressPartTags.DOMAIN_TAG.equals(addressPart))) {
+                return new AddressComparison(names, addressPart == null ? AddressPartTags.ALL_TAG : addressPart,
+                        caseInsensitive, keys);
+            }
+            return new AddressPresence(names);
+        }
+
+        Pattern[] patterns = null;
+        if (MatchTypeTags.MATCHES_TAG.equals(matchType)) {
+            patterns = new Pattern[keys.size()];
+            try {
+                for (int k = 0; k < patterns.length; k++) {
+                    patterns[k] = caseInsensitive ?
+                            Pattern.compile(FilterUtil.sieveToJavaRegex(keys.get(k).toUpperCase()),
+                                    Pattern.CASE_INSENSITIVE | Pattern.DOTALL) :
+                            Pattern.compile(FilterUtil.sieveToJavaRegex(keys.get(k)));
+                }
+            } catch (PatternSyntaxException e) {
+                return Unknown.INSTANCE;
+            }
+        }
+        return new HeaderComparison(names, caseInsensitive, matchType, keys, patterns);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> castList(Object arg) {
+        return arg instanceof List ? (List<String>) arg : null;
+    }
+
+    /**
+     * Header values of the message being filtered, read at most once per header name.
+     */
+    private static final class MessageHeaders {
+        final ZimbraMailAdapter mail;
+        /** names of the headers in the message, trimmed and untrimmed */
+        final Set<String> names = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        final Map<String, List<String>> upperCaseValues = new HashMap<String, List<String>>();
+        final Map<String, MailAdapter.Address[]> addresses = new HashMap<String, MailAdapter.Address[]>();
+
+        MessageHeaders(ZimbraMailAdapter mail) throws SieveMailException {
+            this.mail = mail;
+            for (String name : mail.getHeaderNames()) {
+                names.add(name);
+                names.add(name.trim());
+            }
+        }
+
+        boolean isPresent(String name) {
+            return names.contains(name);
+        }
+
+        List<String> values(String name, boolean upperCase) throws SieveMailException {
+            if (!isPresent(name)) {
+                return Collections.emptyList();
+            }
+            if (!upperCase) {
+                return mail.getMatchingHeader(name);
+            }
+            List<String> values = upperCaseValues.get(name);
+            if (values == null) {
+                values = new ArrayList<String>();
+                for (String value : mail.getMatchingHeader(name)) {
+                    values.add(value.toUpperCase());
+                }
+                upperCaseValues.put(name, values);
+            }
+            return values;
+        }
+
+        MailAdapter.Address[] addresses(String name) {
+            if (!isPresent(name)) {
+                return new MailAdapter.Address[0];
+            }
+            MailAdapter.Address[] result = addresses.get(name);
+            if (result == null) {
+                result = mail.parseAddresses(name);
+                addresses.put(name, result);
+            }
+            return result;
+        }
+    }
+
+    private static final class Rule {
+        /** position of the if command among the top-level commands */
+        final int command;
+        final Test test;
+
+        Rule(int command, Test test) {
+            this.command = command;
+            this.test = test;
+        }
+    }
+
+    private abstract static class Test {
+        /** true if the interpreter can't fail while evaluating this test */
+        final boolean safe;
+
+        Test(boolean safe) {
+            this.safe = safe;
+        }
+
+        abstract Result evaluate(MessageHeaders headers) throws SieveMailException;
+
+        /**
+         * Returns the names of the headers of which the message must have at least one for the test
+         * to be true, or null if the test may be true without any of them.
+         */
+        Set<String> triggers() {
+            return null;
+        }
+    }
+
+    private static final class Unknown extends Test {
+        static final Unknown INSTANCE = new Unknown();
+
+        private Unknown() {
+            super(false);
+        }
+
+        @Override
+        Result evaluate(MessageHeaders headers) {
+            return Result.UNKNOWN;
+        }
+    }
+
+    private static final class Constant extends Test {
+        static final Constant TRUE = new Constant(Result.TRUE);
+        static final Constant FALSE = new Constant(Result.FALSE);
+
+        private final Result result;
+
+        private Constant(Result result) {
+            super(true);
+            this.result = result;
+        }
+
+        @Override
+        Result evaluate(MessageHeaders headers) {
+            return result;
+        }
+    }
+
+    private static final class Not extends Test {
+        private final Test test;
+
+        Not(Test test) {
+            super(test.safe);
+            this.test = test;
+        }
+
+        @Override
+        Result evaluate(MessageHeaders headers) throws SieveMailException {
+            return test.evaluate(headers).not();
+        }
+    }
+
+    private static boolean allSafe(List<Test> tests) {
+        for (Test test : tests) {
+            if (!test.safe) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The interpreter stops at the first false test.  A test that can't be decided here doesn't stop
+     * the evaluation as long as it can't fail, since the outcome is false either way if a later one is.
+     */
+    private static final class AllOf extends Test {
+        private final List<Test> tests;
+
+        AllOf(List<Test> tests) {
+            super(allSafe(tests));
+            this.tests = tests;
+        }
+
+        @Override
+        Result evaluate(MessageHeaders headers) throws SieveMailException {
+            Result result = Result.TRUE;
+            for (Test test : tests) {
+                Result r = test.evaluate(headers);
+                if (r == Result.FALSE) {
+                    return Result.FALSE;
+                } else if (r == Result.UNKNOWN) {
+                    if (!test.safe) {
+                        return Result.UNKNOWN;
+                    }
+                    result = Result.UNKNOWN;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        Set<String> triggers() {
+            return tests.get(0).triggers();
+        }
+    }
+
+    private static final class AnyOf extends Test {
+        private final List<Test> tests;
+
+        AnyOf(List<Test> tests) {
+            super(allSafe(tests));
+            this.tests = tests;
+        }
+
+        @Override
+        Result evaluate(MessageHeaders headers) throws SieveMailException {
+            Result result = Result.FALSE;
+            for (Test test : tests) {
+                Result r = test.evaluate(headers);
+                if (r == Result.TRUE) {
+                    return Result.TRUE;
+                } else if (r == Result.UNKNOWN) {
+                    if (!test.safe) {
+                        return Result.UNKNOWN;
+                    }
+                    result = Result.UNKNOWN;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        Set<String> triggers() {
+            Set<String> triggers = new LinkedHashSet<String>();
+            for (Test test : tests) {
+                Set<String> t = test.triggers();
+                if (t == null) {
+                    return null;
+                }
+                triggers.addAll(t);
+            }
+            return triggers;
+        }
+    }
+
+    /**
+     * {@code exists}: false if one of the headers is missing.
+     */
+    private static final class Exists extends Test {
+        private final List<String> names;
+
+        Exists(List<String> names) {
+            super(true);
+            this.names = names;
+        }
+
+        @Override
+        Result evaluate(MessageHeaders headers) {
+            for (String name : names) {
+                if (!headers.isPresent(name)) {
+                    return Result.FALSE;
+                }
+            }
+            return Result.UNKNOWN;
+        }
+
+        @Override
+        Set<String> triggers() {
+            return new LinkedHashSet<String>(names);
+        }
+    }
+
+    /**
+     * {@code address} with {@code :contains} or {@code :matches}: false if none of the headers is
+     * present, otherwise left to the interpreter.
+     */
+    private static final class AddressPresence extends Test {
+        private final List<String> names;
+
+        AddressPresence(List<String> names) {
+            // jSieve compares the addresses, which is not reproduced here
+            super(false);
+            this.names = names;
+        }
+
+        @Override
+        Result evaluate(MessageHeaders headers) {
+            for (String name : names) {
+                if (headers.isPresent(name)) {
+                    return Result.UNKNOWN;
+                }
+            }
+            return Result.FALSE;
+        }
+
+        @Override
+        Set<String> triggers() {
+            return new LinkedHashSet<String>(names);
+        }
+    }
+
+    /**
+     * {@code address :is}, comparing the parts of the addresses the way {@code AddressTest} extracts them.
+     */
+    private static final class AddressComparison extends Test {
+        private final List<String> names;
+        private final String addressPart;
+        private final boolean caseInsensitive;
+        private final String[] keys;
+
+        AddressComparison(List<String> names, String addressPart, boolean caseInsensitive, List<String> keys) {
+            // a missing local part or domain would fail the comparison
+            super(AddressPartTags.ALL_TAG.equals(addressPart));
+            this.names = names;
+            this.addressPart = addressPart;
+            this.caseInsensitive = caseInsensitive;
+            this.keys = new String[keys.size()];
+            for (int i = 0; i < this.keys.length; i++) {
+                this.keys[i] = caseInsensitive ? keys.get(i).toUpperCase() : keys.get(i);
+            }
+        }
+
+        @Override
+        Result evaluate(MessageHeaders headers) {
+            for (String name : names) {
+                for (MailAdapter.Address address : headers.addresses(name)) {
+                    String value;
+                    if (AddressPartTags.ALL_TAG.equals(addressPart)) {
+                        value = address.getLocalPart() + "@" + address.getDomain();
+                    } else if (AddressPartTags.LOCALPART_TAG.equals(addressPart)) {
+                        value = address.getLocalPart();
+                    } else if (address.getDomain() != null) {
+                        value = address.getDomain().toLowerCase();
+                    } else {
+                        return Result.UNKNOWN;
+                    }
+                    if (value == null) {
+                        return Result.UNKNOWN;
+                    }
+                    if (caseInsensitive) {
+                        value = value.toUpperCase();
+                    }
+                    for (String key : keys) {
+                        if (value.equals(key)) {
+                            return Result.TRUE;
+                        }
+                    }
+                }
+            }
+            return Result.FALSE;
+        }
+
+        @Override
+        Set<String> triggers() {
+            return new LinkedHashSet<String>(names);
+        }
+    }
+
+    /**
+     * {@code header} with {@code :is}, {@code :contains} or {@code :matches} and the
+     * {@code i;ascii-casemap} or {@code i;octet} comparator.  The case-insensitive comparisons are done
+     * the way {@link ZimbraAsciiCasemap} does them, on upper-cased values and keys.
+     */
+    private static final class HeaderComparison extends Test {
+        private final List<String> names;
+        private final boolean caseInsensitive;
+        private final String matchType;
+        private final String[] keys;
+        private final Pattern[] patterns;
+
+        HeaderComparison(List<String> names, boolean caseInsensitive, String matchType, List<String> keys,
+                Pattern[] patterns) {
+            super(true);
+            this.names = names;
+            this.caseInsensitive = caseInsensitive;
+            this.matchType = matchType;
+            this.keys = new String[keys.size()];
+            for (int i = 0; i < this.keys.length; i++) {
+                this.keys[i] = caseInsensitive ? keys.get(i).toUpperCase() : keys.get(i);
+            }
+            this.patterns = patterns;
+        }
+
+        @Override
+        Result evaluate(MessageHeaders headers) throws SieveMailException {
+            for (String name : names) {
+                for (String value : headers.values(name, caseInsensitive)) {
+                    if (matches(value)) {
+                        return Result.TRUE;
+                    }
+                }
+            }
+            return Result.FALSE;
+        }
+
+        private boolean matches(String value) {
+            if (patterns != null) {
+                for (Pattern pattern : patterns) {
+                    if (pattern.matcher(value).matches()) {
+                        return true;
+                    }
+                }
+            } else if (MatchTypeTags.CONTAINS_TAG.equals(matchType)) {
+                for (String key : keys) {
+                    if (value.contains(key)) {
+                        return true;
+                    }
+                }
+            } else {
+                for (String key : keys) {
+                    if (value.equals(key)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        @Override
+        Set<String> triggers() {
+            return new LinkedHashSet<String>(names);
+        }
+    }
+}
@@ -102,6 +102,11 @@ public class ZimbraMailAdapter implements MailAdapter, EnvelopeAccessors {
     private Map<String, String> variables = new HashMap<String, String>();
     private List<String> matchedValues = new ArrayList<String>();
     private boolean parsedMessageCloned = false;
+    /**
+     * Values returned by {@link #getMatchingHeader(String)}, keyed by the requested name.  Header tests
+     * ask for the same few headers over and over, and each lookup walks every header of the message.
+     */
+    private final Map<String, List<String>> matchingHeaders = new HashMap<String, List<String>>();
 
     public enum VARIABLEFEATURETYPE { UNKNOWN, OFF, AVAILABLE};
     private VARIABLEFEATURETYPE variablesExtAvailable = VARIABLEFEATURETYPE.UNKNOWN;
@@ -760,7 +765,21 @@ public class ZimbraMailAdapter implements MailAdapter, EnvelopeAccessors {
 
     @Override
     public List<String> getMatchingHeader(String name) throws SieveMailException {
-        return MailUtils.getMatchingHeader(this, name);
+        List<String> values = matchingHeaders.get(name);
+        if (values == null) {
+            values = MailUtils.getMatchingHeader(this, name);
+            matchingHeaders.put(name, new ArrayList<String>(values));
+            return values;
+        }
+        return new ArrayList<String>(values);
+    }
+
+    /**
+     * Forgets the header values cached by {@link #getMatchingHeader(String)}.  Must be called whenever
+     * the headers of the message being filtered change.
+     */
+    public void invalidateHeaderCache() {
+        matchingHeaders.clear();
     }
 
     /**
@@ -961,6 +980,7 @@ public class ZimbraMailAdapter implements MailAdapter, EnvelopeAccessors {
     }
 
     public void updateIncomingBlob() {
+        invalidateHeaderCache();
         DeliveryContext ctxt = handler.getDeliveryContext();
         if (ctxt != null) {
             StoreManager sm = StoreManager.getInstance();
@@ -1108,6 +1128,7 @@ public class ZimbraMailAdapter implements MailAdapter, EnvelopeAccessors {
                 ParsedMessage clonePM = new ParsedMessage(pm.getRawData(), pm.isAttachmentIndexingEnabled());
                 ((IncomingMessageHandler) handler).setParsedMessage(clonePM);
                 parsedMessageCloned = true;
+                invalidateHeaderCache();
                 ZimbraLog.filter.debug("cloned ParsedMessage");
             } catch (IOException | ServiceException e) {
                 cloneFailure = true;
@@ -550,6 +550,8 @@ public class EditHeaderExtension {
     }
 
     static public boolean saveChanges(ZimbraMailAdapter zma, String actionName, MimeMessage mm) {
+        // the caller has already edited the headers
+        zma.invalidateHeaderCache();
         if (zma.getEditHeaderParseStatus() == PARSESTATUS.UNKNOWN) {
             try {
                 mm.saveChanges();
@@ -0,0 +1,291 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.html;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.FileCache;
+import com.zimbra.common.util.Log;
+import com.zimbra.common.util.LogFactory;
+import com.zimbra.cs.servlet.ZThreadLocal;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Cache of sanitized HTML message parts, shared across mailboxes.  A newsletter delivered to thousands of
+ * mailboxes has the same blob digest in all of them, so the defanger output for one of its parts can be reused
+ * for every recipient, as long as everything else the output depends on is the same too: the defanger and its
+ * settings, image neutering, the virtual host of the request (links to it are treated differently), the
+ * content size limit and the charset the part is decoded with.  All of these are part of the {@link Key}.
+ * <p>
+ * Entries are weighed by their size in memory.  Optionally, entries evicted from memory are kept in a
+ * {@link FileCache} on local disk, and moved back to memory when they are read again.
+ */
+public final class DefangCache {
+
+    private static final Log sLog = LogFactory.getLog(DefangCache.class);
+
+    private static final String PROP_TRUNCATED = "truncated";
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private static DefangCache sInstance;
+
+    private final Cache<Key, Entry> mCache;
+    private final FileCache<String> mDiskCache;
+    private final Executor mSpiller;
+    private final AtomicLong mDataSize = new AtomicLong();
+
+    /**
+     * Identifies the sanitized output of an HTML part.
+     */
+    public static final class Key {
+        private final String id;
+
+        Key(String digest, String part, String policy, boolean neuter, String virtualHost, int maxSize,
+                String charset) {
+            id = digest + '/' + part + '/' + policy + '/' + (neuter ? 1 : 0) + '/' + virtualHost + '/' + maxSize +
+                    '/' + charset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && id.equals(((Key) o).id);
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return id;
+        }
+    }
+
+    /**
+     * Sanitized HTML of a part, up to the content size limit of its key.
+     */
+    public static final class Entry {
+        private final String content;
+        private final boolean truncated;
+
+        Entry(String content, boolean truncated) {
+            this.content = content;
+            this.truncated = truncated;
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        /** Whether the defanger output was cut off at the content size limit. */
+        public boolean isTruncated() {
+            return truncated;
+        }
+    }
+
+    private static final Weigher<Key, Entry> WEIGHER = new Weigher<Key, Entry>() {
+        @Override
+        public int weigh(Key key, Entry entry) {
+            return sizeOf(key, entry);
+        }
+    };
+
+    private static int sizeOf(Key key, Entry entry) {
+        return ENTRY_OVERHEAD + 2 * (key.id.length() + entry.content.length());
+    }
+
+    private final RemovalListener<Key, Entry> mRemovalListener = new RemovalListener<Key, Entry>() {
+        @Override
+        public void onRemoval(RemovalNotification<Key, Entry> notification) {
+            mDataSize.addAndGet(-sizeOf(notification.getKey(), notification.getValue()));
+            if (mDiskCache != null && notification.getCause() == RemovalCause.SIZE) {
+                spill(notification.getKey(), notification.getValue());
+            }
+        }
+    };
+
+    /**
+     * @param maxBytes maximum total size of the entries kept in memory, or 0 to disable the cache
+     * @param diskCache where entries evicted from memory are kept, or null to drop them
+     * @param spiller runs the writes to <tt>diskCache</tt>
+     */
+    @VisibleForTesting
+    DefangCache(long maxBytes, FileCache<String> diskCache, Executor spiller) {
+        mCache = maxBytes > 0 ? CacheBuilder.newBuilder().maximumWeight(maxBytes).weigher(WEIGHER)
+                .removalListener(mRemovalListener).build() : null;
+        mDiskCache = mCache != null ? diskCache : null;
+        mSpiller = spiller;
+    }
+
+    public static synchronized DefangCache getInstance() {
+        if (sInstance == null) {
+            long maxBytes = LC.zimbra_defang_cache_max_bytes.longValue();
+            long diskMaxBytes = LC.zimbra_defang_cache_disk_max_bytes.longValue();
+            FileCache<String> diskCache = null;
+            if (maxBytes > 0 && diskMaxBytes > 0) {
+                try {
+                    diskCache = FileCache.Builder.createWithStringKey(
+                            new File(LC.zimbra_tmp_directory.value(), "defang"), false).maxBytes(diskMaxBytes).build();
+                } catch (IOException e) {
+                    sLog.warn("unable to create the defang disk cache; keeping sanitized HTML in memory only", e);
+                }
+            }
+            // spilling is best effort, so bodies evicted faster than they can be written are just dropped
+            ThreadPoolExecutor spiller = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(1000),
+                    new ThreadFactoryBuilder().setNameFormat("DefangCacheSpiller").setDaemon(true).build(),
+                    new ThreadPoolExecutor.DiscardPolicy());
+            sInstance = new DefangCache(maxBytes, diskCache, spiller);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the key for the sanitized output of an HTML part, or null if the cache is disabled.
+     *
+     * @param digest digest of the blob holding the part
+     * @param part part name within the blob
+     * @param contentType content type the defanger is picked by
+     * @param neuter whether image sources are neutered
+     * @param maxSize content size limit in characters, or 0 for none
+     * @param charset charset the part is decoded with when it doesn't declare one
+     */
+    public Key newKey(String digest, String part, String contentType, boolean neuter, int maxSize, String charset) {
+        if (mCache == null || digest == null) {
+            return null;
+        }
+        String virtualHost = null;
+        if (ZThreadLocal.getRequestContext() != null) {
+            virtualHost = ZThreadLocal.getRequestContext().getVirtualHost();
+        }
+        return new Key(digest, part, getPolicy(contentType), neuter, virtualHost, maxSize, charset);
+    }
+
+    /**
+     * Identifies the defanger for a content type and the settings that change its output at runtime.
+     */
+    private static String getPolicy(String contentType) {
+        return DefangFactory.getDefanger(contentType).getClass().getSimpleName() + ':' +
+                LC.zimbra_strict_unclosed_comment_tag.booleanValue() + ':' +
+                LC.zimbra_skip_tags_with_unclosed_cdata.value();
+    }
+
+    public Entry get(Key key) {
+        Entry entry = mCache.getIfPresent(key);
+        if (entry != null) {
+            ZimbraPerf.COUNTER_DEFANG_CACHE.increment(100);
+            ZimbraPerf.COUNTER_DEFANG_CACHE_HIT.increment();
+            return entry;
+        }
+        entry = getFromDisk(key);
+        if (entry != null) {
+            ZimbraPerf.COUNTER_DEFANG_CACHE.increment(100);
+            ZimbraPerf.COUNTER_DEFANG_CACHE_DISK_HIT.increment();
+            put(key, entry);
+            return entry;
+        }
+        ZimbraPerf.COUNTER_DEFANG_CACHE.increment(0);
+        ZimbraPerf.COUNTER_DEFANG_CACHE_MISS.increment();
+        return null;
+    }
+
+    public void put(Key key, String content, boolean truncated) {
+        // an empty body is also what a sanitizer that timed out produces, so it isn't worth keeping
+        if (content == null || content.isEmpty()) {
+            return;
+        }
+        put(key, new Entry(content, truncated));
+    }
+
+    private void put(Key key, Entry entry) {
+        mDataSize.addAndGet(sizeOf(key, entry));
+        mCache.put(key, entry);
+    }
+
+    private Entry getFromDisk(Key key) {
+        if (mDiskCache == null) {
+            return null;
+        }
+        FileCache.Item item = mDiskCache.get(key.toString());
+        if (item == null) {
+            return null;
+        }
+        try {
+            String content = new String(Files.readAllBytes(item.file.toPath()), StandardCharsets.UTF_8);
+            return new Entry(content, Boolean.parseBoolean(item.properties.get(PROP_TRUNCATED)));
+        } catch (IOException e) {
+            // the file was pruned since the lookup
+            sLog.debug("unable to read sanitized HTML for %s from disk", key, e);
+            return null;
+        }
+    }
+
+    private void spill(final Key key, final Entry entry) {
+        mSpiller.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] content = entry.content.getBytes(StandardCharsets.UTF_8);
+                    mDiskCache.put(key.toString(), new ByteArrayInputStream(content),
+                            ImmutableMap.of(PROP_TRUNCATED, Boolean.toString(entry.truncated)));
+                } catch (IOException e) {
+                    sLog.warn("unable to write sanitized HTML for %s to disk", key, e);
+                }
+            }
+        });
+    }
+
+    /** Returns the number of entries in memory. */
+    public long getSize() {
+        return mCache != null ? mCache.size() : 0;
+    }
+
+    /** Returns the total size of the entries in memory. */
+    public long getDataSize() {
+        return mDataSize.get();
+    }
+
+    @VisibleForTesting
+    void clear() {
+        if (mCache != null) {
+            mCache.invalidateAll();
+        }
+        if (mDiskCache != null) {
+            mDiskCache.removeAll();
+        }
+    }
+}
@@ -20,14 +20,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.Arrays;
 import java.util.Comparator;
 
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.util.ByteUtil;
-import com.zimbra.cs.io.SecureObjectInputStream;
 
 /**
  * IMAP cache using local disk.
@@ -91,18 +88,15 @@ final class DiskImapCache implements ImapSessionManager.Cache<String, ImapFolder
             return;
         }
         FileOutputStream fos = null;
-        ObjectOutputStream oos = null;
         try {
-            oos = new ObjectOutputStream(fos = new FileOutputStream(pagefile));
+            fos = new FileOutputStream(pagefile);
             synchronized (folder) {
-                oos.writeObject(folder);
+                ImapFolderSerializer.write(folder, fos);
             }
         } catch (IOException e) {
-            ByteUtil.closeStream(oos);
             ByteUtil.closeStream(fos);
             pagefile.delete();
         } finally {
-            ByteUtil.closeStream(oos);
             ByteUtil.closeStream(fos);
         }
     }
@@ -114,18 +108,14 @@ final class DiskImapCache implements ImapSessionManager.Cache<String, ImapFolder
             return null;
         }
         FileInputStream fis = null;
-        ObjectInputStream ois = null;
         try {
             // read serialized ImapFolder from cache
-            ois = new SecureObjectInputStream(fis = new FileInputStream(pagefile), ImapFolder.class.getName());
-            return (ImapFolder) ois.readObject();
+            return ImapFolderSerializer.read(fis = new FileInputStream(pagefile));
         } catch (Exception e) {
-            ByteUtil.closeStream(ois);
             ByteUtil.closeStream(fis);
             pagefile.delete();
             return null;
         } finally {
-            ByteUtil.closeStream(ois);
             ByteUtil.closeStream(fis);
         }
     }
@@ -18,6 +18,7 @@ package com.zimbra.cs.imap;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
@@ -123,6 +124,19 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         this.tags = new ImapFlagCache();
     }
 
+    /** Recreates a paged-out ImapFolder from its cached state.  The transient
+     *  members are filled in later by {@link #restore}.
+     * @see ImapFolderSerializer */
+    ImapFolder(ItemIdentifier folderIdentifier, int uidValidity, String query, Set<MailItem.Type> typeConstraint,
+            ImapFlagCache tags, List<ImapMessage> messages) {
+        this.folderIdentifier = folderIdentifier;
+        this.uidValidity = uidValidity;
+        this.query = query;
+        this.typeConstraint = typeConstraint;
+        this.tags = tags;
+        this.sequence.addAll(messages);
+    }
+
     protected void setInitialSize() {
         SessionData sdata = sessionData;
         if (sdata != null) {
@@ -711,6 +725,12 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         }
     }
 
+    /** Returns the folder's {@link #sequence} message list itself, for
+     *  serialization.  Callers must hold the folder's monitor. */
+    List<ImapMessage> getSequence() {
+        return sequence;
+    }
+
     protected synchronized ImapMessageSet getAllMessages() {
         ImapMessageSet result = new ImapMessageSet();
         if (getSize() > 0) {
@@ -732,6 +752,90 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         return result;
     }
 
+    /** Returns the messages at the given 0-based positions in the folder's
+     *  {@link #sequence} message list. */
+    protected synchronized ImapMessageSet getMessages(BitSet positions) {
+        ImapMessageSet result = new ImapMessageSet();
+        int size = getSize();
+        for (int i = positions.nextSetBit(0); i >= 0 && i < size; i = positions.nextSetBit(i + 1)) {
+            ImapMessage i4msg = sequence.get(i);
+            if (i4msg != null) {
+                result.add(i4msg);
+            }
+        }
+        return result;
+    }
+
+    /** Returns the 0-based positions in the folder's {@link #sequence} message
+     *  list of the same messages as {@link #getAllMessages}. */
+    protected synchronized BitSet getAllPositions() {
+        int size = getSize();
+        BitSet result = new BitSet(size);
+        for (int i = 0; i < size; i++) {
+            if (sequence.get(i) != null) {
+                result.set(i);
+            }
+        }
+        return result;
+    }
+
+    /** Returns the 0-based positions in the folder's {@link #sequence} message
+     *  list of the same messages as {@link #getFlaggedMessages}. */
+    protected synchronized BitSet getFlaggedPositions(ImapFlag i4flag) {
+        int size = getSize();
+        BitSet result = new BitSet(size);
+        if (i4flag != null) {
+            for (int i = 0; i < size; i++) {
+                ImapMessage i4msg = sequence.get(i);
+                if (i4msg != null && i4flag.matches(i4msg)) {
+                    result.set(i);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Returns the 0-based positions in the folder's {@link #sequence} message
+     *  list of the same messages as {@link #getSubsequence(String, String, boolean, boolean)}
+     *  with out of range message sequence numbers allowed. */
+    protected synchronized BitSet getSubsequencePositions(String subseqStr, boolean byUID) {
+        int size = getSize();
+        BitSet result = new BitSet(size);
+        if (subseqStr == null || subseqStr.trim().isEmpty()) {
+            return result;
+        } else if ("$".equals(subseqStr)) {
+            for (ImapMessage i4msg : getSavedSearchResults()) {
+                if (i4msg != null && getBySequence(i4msg.sequence) == i4msg) {
+                    result.set(i4msg.sequence - 1);
+                }
+            }
+            return result;
+        }
+        for (Pair<Integer, Integer> range : normalizeSubsequence(subseqStr, byUID)) {
+            int start;
+            int end;
+            if (byUID) {
+                start = uidSearch(range.getFirst());
+                end = uidSearch(range.getSecond());
+                if (start < 0) {
+                    start = -start - 1;
+                }
+                if (end < 0) {
+                    end = -end - 2;
+                }
+            } else {
+                start = Math.max(1, range.getFirst()) - 1;
+                end = Math.min(size, range.getSecond()) - 1;
+            }
+            for (int i = start; i <= end; i++) {
+                if (checkRemoved(sequence.get(i)) != null) {
+                    result.set(i);
+                }
+            }
+        }
+        return result;
+    }
+
     private static int parseId(String id) {
         // valid values will always be positive ints, so force it there...
         try {
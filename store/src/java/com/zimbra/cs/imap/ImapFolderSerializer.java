@@ -0,0 +1,295 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.ItemIdentifier;
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.io.SecureObjectInputStream;
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Compact binary encoding of an {@link ImapFolder} for the IMAP session caches.
+ * <p>
+ * The message list is written column by column (item ids, IMAP UIDs, sequence numbers, session flags,
+ * flags, tags) rather than as a graph of {@link ImapMessage} objects, and tag names are written once
+ * into a string table and referenced by index.  Serialized folders start with a magic number and a
+ * format version; anything that doesn't is assumed to be a folder written by {@link ObjectOutputStream}
+ * and is read with the legacy decoder.
+ *
+ * @see DiskImapCache
+ * @see MemcachedImapCache
+ */
+final class ImapFolderSerializer {
+
+    private static final int MAGIC = 0x49344643; // "I4FC"
+    static final byte VERSION = 1;
+
+    private static final byte FLAG_POSITIVE = 0x01;
+    private static final byte FLAG_PERMANENT = 0x02;
+    private static final byte FLAG_LISTED = 0x04;
+
+    private ImapFolderSerializer() {
+    }
+
+    /** Whether newly cached folders should be written in the compact format rather than with Java serialization. */
+    static boolean isCompactFormatEnabled() {
+        return LC.imap_folder_cache_compact_format.booleanValue();
+    }
+
+    /**
+     * Writes the folder to the stream, in the compact format if it is enabled and with Java serialization
+     * otherwise.  The caller is expected to hold the folder's monitor.
+     */
+    static void write(ImapFolder folder, OutputStream os) throws IOException {
+        if (!isCompactFormatEnabled()) {
+            ObjectOutputStream oos = new ObjectOutputStream(os);
+            oos.writeObject(folder);
+            oos.flush();
+            return;
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+
+        ItemIdentifier ident = folder.getItemIdentifier();
+        writeString(out, ident.accountId);
+        out.writeInt(ident.id);
+        out.writeInt(ident.subPartId);
+        out.writeInt(folder.getUIDValidity());
+        writeString(out, folder.getQuery());
+
+        Set<MailItem.Type> types = folder.getTypeConstraint();
+        if (types == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(types.size());
+            for (MailItem.Type type : types) {
+                out.writeByte(type.toByte());
+            }
+        }
+
+        List<ImapFlag> flags = new ArrayList<ImapFlag>();
+        for (ImapFlag i4flag : folder.getTagset()) {
+            flags.add(i4flag);
+        }
+        out.writeInt(flags.size());
+        for (ImapFlag i4flag : flags) {
+            writeString(out, i4flag.mName);
+            writeString(out, i4flag.mImapName);
+            out.writeInt(i4flag.mId);
+            out.writeLong(i4flag.mBitmask);
+            out.writeByte((i4flag.mPositive ? FLAG_POSITIVE : 0) | (i4flag.mPermanent ? FLAG_PERMANENT : 0) |
+                    (i4flag.mListed ? FLAG_LISTED : 0));
+        }
+
+        List<ImapMessage> sequence = folder.getSequence();
+        int count = sequence.size();
+        out.writeInt(count);
+        // a null slot in the sequence is written as sequence number 0, which is never a valid one
+        for (ImapMessage i4msg : sequence) {
+            out.writeInt(i4msg == null ? 0 : i4msg.sequence);
+        }
+        for (ImapMessage i4msg : sequence) {
+            out.writeInt(i4msg == null ? 0 : i4msg.msgId);
+        }
+        for (ImapMessage i4msg : sequence) {
+            out.writeInt(i4msg == null ? 0 : i4msg.imapUid);
+        }
+        for (ImapMessage i4msg : sequence) {
+            out.writeShort(i4msg == null ? 0 : i4msg.sflags);
+        }
+        for (ImapMessage i4msg : sequence) {
+            out.writeInt(i4msg == null ? 0 : i4msg.flags);
+        }
+
+        // tag names are shared by many messages, so write each one once and refer to it by index
+        Map<String, Integer> tagIndex = new HashMap<String, Integer>();
+        List<String> tagTable = new ArrayList<String>();
+        for (ImapMessage i4msg : sequence) {
+            if (i4msg != null && i4msg.tags != null) {
+                for (String tag : i4msg.tags) {
+                    if (!tagIndex.containsKey(tag)) {
+                        tagIndex.put(tag, tagTable.size());
+                        tagTable.add(tag);
+                    }
+                }
+            }
+        }
+        out.writeInt(tagTable.size());
+        for (String tag : tagTable) {
+            writeString(out, tag);
+        }
+        for (ImapMessage i4msg : sequence) {
+            if (i4msg == null || i4msg.tags == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(i4msg.tags.length);
+                for (String tag : i4msg.tags) {
+                    out.writeInt(tagIndex.get(tag));
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /** Classes that may appear in a folder written with Java serialization. */
+    private static Set<String> legacyClassNames() {
+        // SecureObjectInputStream adds to the set it is given, so hand out a fresh one each time
+        Set<String> names = new HashSet<String>();
+        names.add(ImapFolder.class.getName());
+        names.add(ItemIdentifier.class.getName());
+        names.add(ImapMessage.class.getName());
+        names.add(ImapFlagCache.class.getName());
+        names.add(MailItem.Type.class.getName());
+        return names;
+    }
+
+    /**
+     * Reads a folder written by {@link #write}, falling back to (restricted) Java deserialization for
+     * folders cached in the old format.
+     */
+    static ImapFolder read(InputStream is) throws IOException {
+        BufferedInputStream bis = new BufferedInputStream(is);
+        bis.mark(4);
+        DataInputStream in = new DataInputStream(bis);
+        if (in.readInt() != MAGIC) {
+            bis.reset();
+            ObjectInputStream ois = new SecureObjectInputStream(bis, legacyClassNames());
+            try {
+                return (ImapFolder) ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("unable to deserialize legacy ImapFolder", e);
+            }
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported ImapFolder cache format version " + version);
+        }
+
+        String accountId = readString(in);
+        int id = in.readInt();
+        ItemIdentifier ident = new ItemIdentifier(accountId, id, in.readInt());
+        int uidValidity = in.readInt();
+        String query = readString(in);
+
+        Set<MailItem.Type> types = null;
+        int typeCount = in.readInt();
+        if (typeCount >= 0) {
+            types = EnumSet.noneOf(MailItem.Type.class);
+            for (int i = 0; i < typeCount; i++) {
+                types.add(MailItem.Type.of(in.readByte()));
+            }
+            if (types.equals(ImapHandler.ITEM_TYPES)) {
+                types = ImapHandler.ITEM_TYPES;
+            }
+        }
+
+        ImapFlagCache tags = new ImapFlagCache();
+        int flagCount = in.readInt();
+        for (int i = 0; i < flagCount; i++) {
+            String name = readString(in);
+            String imapName = readString(in);
+            int tagId = in.readInt();
+            long bitmask = in.readLong();
+            byte bits = in.readByte();
+            tags.cache(new ImapFlag(name, imapName, tagId, bitmask, (bits & FLAG_POSITIVE) != 0,
+                    (bits & FLAG_PERMANENT) != 0, (bits & FLAG_LISTED) != 0));
+        }
+
+        int count = in.readInt();
+        int[] seqs = readInts(in, count);
+        int[] msgIds = readInts(in, count);
+        int[] uids = readInts(in, count);
+        short[] sflags = new short[count];
+        for (int i = 0; i < count; i++) {
+            sflags[i] = in.readShort();
+        }
+        int[] flags = readInts(in, count);
+        String[] tagTable = new String[in.readInt()];
+        for (int i = 0; i < tagTable.length; i++) {
+            tagTable[i] = readString(in);
+        }
+
+        List<ImapMessage> sequence = new ArrayList<ImapMessage>(count);
+        for (int i = 0; i < count; i++) {
+            int tagCount = in.readInt();
+            String[] msgTags = null;
+            if (tagCount >= 0) {
+                msgTags = new String[tagCount];
+                for (int t = 0; t < tagCount; t++) {
+                    msgTags[t] = tagTable[in.readInt()];
+                }
+            }
+            if (seqs[i] == 0) {
+                sequence.add(null);
+                continue;
+            }
+            ImapMessage i4msg = new ImapMessage(msgIds[i], MailItem.Type.MESSAGE, uids[i], flags[i], msgTags);
+            i4msg.sflags = sflags[i];
+            i4msg.sequence = seqs[i];
+            sequence.add(i4msg);
+        }
+        return new ImapFolder(ident, uidValidity, query, types, tags, sequence);
+    }
+
+    private static int[] readInts(DataInputStream in, int count) throws IOException {
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(Charsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+}
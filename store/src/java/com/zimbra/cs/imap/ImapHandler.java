@@ -4039,6 +4039,12 @@ public abstract class ImapHandler {
         } finally {
             mbox.unlock();
         }
+        boolean needsItem = !fullMessage.isEmpty() || (parts != null && !parts.isEmpty()) ||
+                (attributes & ~FETCH_FROM_CACHE) != 0;
+        FetchPrefetcher prefetcher = null;
+        if (needsItem && mbox instanceof Mailbox && LC.imap_fetch_prefetch_batch_size.intValue() > 1) {
+            prefetcher = new FetchPrefetcher(i4folder, i4set, LC.imap_fetch_prefetch_batch_size.intValue());
+        }
         ReentrantLock lock = null;
         try {
             for (ImapMessage i4msg : i4set) {
@@ -4055,15 +4061,18 @@ public abstract class ImapHandler {
                     boolean empty = true;
                     ZimbraMailItem item = null;
                     MimeMessage mm;
-                    if (!fullMessage.isEmpty() || (parts != null && !parts.isEmpty()) || (attributes & ~FETCH_FROM_CACHE) != 0) {
+                    if (needsItem) {
                         if (lock == null && LC.imap_throttle_fetch.booleanValue()) {
                             lock = commandThrottle.lock(credentials.getAccountId());
                         }
                         try {
-                            String folderOwner = i4folder.getFolder().getFolderItemIdentifier().accountId;
-                            ItemIdentifier iid = ItemIdentifier.fromAccountIdAndItemId(
-                                    (folderOwner != null) ? folderOwner : mbox.getAccountId(), i4msg.msgId);
-                            item = mbox.getItemById(getContext(), iid, i4msg.getType().toCommon());
+                            item = prefetcher == null ? null : prefetcher.get(i4msg);
+                            if (item == null) {
+                                String folderOwner = i4folder.getFolder().getFolderItemIdentifier().accountId;
+                                ItemIdentifier iid = ItemIdentifier.fromAccountIdAndItemId(
+                                        (folderOwner != null) ? folderOwner : mbox.getAccountId(), i4msg.msgId);
+                                item = mbox.getItemById(getContext(), iid, i4msg.getType().toCommon());
+                            }
                         } catch (NoSuchItemException nsie) {
                             // just in case we're out of sync, force this message back into sync
                             i4folder.markMessageExpunged(i4msg);
@@ -4190,6 +4199,73 @@ public abstract class ImapHandler {
         return true;
     }
 
+    /**
+     * Resolves the items backing a FETCH in chunks, so that a large sequence set costs one multi-id
+     * lookup per chunk instead of one item cache miss and single-row select per message.  Chunks are
+     * filled in the same order the FETCH walks the message set.  Anything that can't be resolved here
+     * (e.g. a message that was deleted out from under us) is left for the regular per-item lookup.
+     */
+    private final class FetchPrefetcher {
+        private final ImapFolder i4folder;
+        private final Iterator<ImapMessage> pending;
+        private final int batchSize;
+        private final Map<Integer, ZimbraMailItem> items = new HashMap<Integer, ZimbraMailItem>();
+        private int prefetchedThrough = 0;
+
+        FetchPrefetcher(ImapFolder i4folder, ImapMessageSet i4set, int batchSize) {
+            this.i4folder = i4folder;
+            this.pending = i4set.iterator();
+            this.batchSize = batchSize;
+        }
+
+        /** @return the prefetched item for the message, or <tt>null</tt> if the caller has to look it up itself */
+        ZimbraMailItem get(ImapMessage i4msg) {
+            ZimbraMailItem item = items.remove(i4msg.msgId);
+            if (item == null && i4msg.sequence > prefetchedThrough && pending.hasNext()) {
+                // anything left over from the last chunk was skipped by the caller and is no longer needed
+                items.clear();
+                prefetch();
+                item = items.remove(i4msg.msgId);
+            }
+            return item;
+        }
+
+        private void prefetch() {
+            List<Integer> idlist = new ArrayList<Integer>(batchSize);
+            while (pending.hasNext() && idlist.size() < batchSize) {
+                ImapMessage i4msg = pending.next();
+                prefetchedThrough = i4msg.sequence;
+                if (!i4msg.isExpunged()) {
+                    idlist.add(i4msg.msgId);
+                }
+            }
+            if (idlist.isEmpty()) {
+                return;
+            }
+            MailboxStore mbox = i4folder.getMailbox();
+            String folderOwner = i4folder.getFolder().getFolderItemIdentifier().accountId;
+            List<ItemIdentifier> itemIds = ItemIdentifier.fromAccountIdAndItemIds(
+                    (folderOwner != null) ? folderOwner : mbox.getAccountId(), idlist);
+            List<ZimbraMailItem> fetched;
+            try {
+                fetched = mbox.getItemsById(getContext(), itemIds);
+            } catch (NoSuchItemException nsie) {
+                // at least one of the batch is gone; fall back to per-message lookups for this chunk
+                ZimbraLog.imap.debug("FETCH prefetch of %d items skipped: %s", idlist.size(), nsie.getMessage());
+                return;
+            } catch (ServiceException e) {
+                // the per-message lookups report anything that's really wrong with these messages
+                ZimbraLog.imap.warn("FETCH prefetch of %d items failed; fetching them one at a time", idlist.size(), e);
+                return;
+            }
+            for (int i = 0; i < fetched.size() && i < idlist.size(); i++) {
+                if (fetched.get(i) != null) {
+                    items.put(idlist.get(i), fetched.get(i));
+                }
+            }
+        }
+    }
+
     private void fetchException(Throwable cause) throws ImapIOException {
         final String msg = "IOException fetching IMAP message (" +
                 (cause != null ? cause.getMessage() : "null") + "), closing connection";
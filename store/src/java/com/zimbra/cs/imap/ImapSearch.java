@@ -18,6 +18,7 @@ package com.zimbra.cs.imap;
 
 import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
@@ -31,9 +32,24 @@ import com.zimbra.cs.imap.ImapMessage.ImapMessageSet;
 abstract class ImapSearch {
     protected abstract boolean canBeRunLocally();
     protected abstract String toZimbraSearch(ImapFolder i4folder) throws ImapParseException;
-    protected abstract ImapMessageSet evaluate(ImapFolder i4folder) throws ImapParseException;
+
+    /** Returns the 0-based positions in the folder's sequence of the messages
+     *  that match.  Only supported when {@link #canBeRunLocally()}; callers
+     *  hold the folder's monitor so that the positions don't shift. */
+    protected abstract BitSet match(ImapFolder i4folder) throws ImapParseException;
+
     protected boolean requiresMODSEQ()  { return false; }
 
+    /** Evaluates the search against the folder's cached flags and tags and
+     *  its sequence, without touching the index or the database.  Every node
+     *  produces a bitmap of message positions, so that the messages are only
+     *  collected once for the final result. */
+    protected ImapMessageSet evaluate(ImapFolder i4folder) throws ImapParseException {
+        synchronized (i4folder) {
+            return i4folder.getMessages(match(i4folder));
+        }
+    }
+
     protected static boolean isAllMessages(ImapFolder i4folder, Set<ImapMessage> i4set) {
         int size = i4set.size() - (i4set.contains(null) ? 1 : 0);
         return size == i4folder.getSize();
@@ -174,13 +190,13 @@ abstract class ImapSearch {
         }
 
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) throws ImapParseException {
-            ImapMessageSet matched = null;
+        protected BitSet match(ImapFolder i4folder) throws ImapParseException {
+            BitSet matched = null;
             for (ImapSearch i4search : mChildren) {
                 if (matched == null) {
-                    matched = i4search.evaluate(i4folder);
+                    matched = i4search.match(i4folder);
                 } else {
-                    matched.retainAll(i4search.evaluate(i4folder));
+                    matched.and(i4search.match(i4folder));
                 }
 
                 if (matched.isEmpty())
@@ -203,16 +219,16 @@ abstract class ImapSearch {
         }
 
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) throws ImapParseException {
-            ImapMessageSet matched = null;
+        protected BitSet match(ImapFolder i4folder) throws ImapParseException {
+            BitSet matched = null;
             for (ImapSearch i4search : mChildren) {
                 if (matched == null) {
-                    matched = i4search.evaluate(i4folder);
+                    matched = i4search.match(i4folder);
                 } else {
-                    matched.addAll(i4search.evaluate(i4folder));
+                    matched.or(i4search.match(i4folder));
                 }
 
-                if (isAllMessages(i4folder, matched))
+                if (matched.cardinality() == i4folder.getSize())
                     break;
             }
             return matched;
@@ -229,9 +245,9 @@ abstract class ImapSearch {
         }
 
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) throws ImapParseException {
-            ImapMessageSet matches = i4folder.getAllMessages();
-            matches.removeAll(mChildren.get(0).evaluate(i4folder));
+        protected BitSet match(ImapFolder i4folder) throws ImapParseException {
+            BitSet matches = i4folder.getAllPositions();
+            matches.andNot(mChildren.get(0).match(i4folder));
             return matches;
         }
     }
@@ -242,7 +258,7 @@ abstract class ImapSearch {
         @Override
         protected String toZimbraSearch(ImapFolder i4folder)    { return "item:all"; }
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder)  { return i4folder.getAllMessages(); }
+        protected BitSet match(ImapFolder i4folder)             { return i4folder.getAllPositions(); }
 
         @Override
         public boolean equals(Object obj) {
@@ -261,7 +277,7 @@ abstract class ImapSearch {
         @Override
         protected String toZimbraSearch(ImapFolder i4folder)    { return "item:none"; }
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder)  { return new ImapMessageSet(); }
+        protected BitSet match(ImapFolder i4folder)             { return new BitSet(); }
 
         @Override
         public boolean equals(Object obj) {
@@ -289,8 +305,8 @@ abstract class ImapSearch {
         }
 
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) throws ImapParseException {
-            return i4folder.getSubsequence(mTag, mSubSequence, mIsUidSearch, true);
+        protected BitSet match(ImapFolder i4folder) throws ImapParseException {
+            return i4folder.getSubsequencePositions(mSubSequence, mIsUidSearch);
         }
 
         @Override
@@ -350,15 +366,15 @@ abstract class ImapSearch {
         }
 
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) {
+        protected BitSet match(ImapFolder i4folder) {
             ImapFlag i4flag = i4folder.getFlagByName(mFlagName);
             if (i4flag == null) {
-                return new ImapMessageSet();
+                return new BitSet();
             } else if (i4flag.mPositive) {
-                return i4folder.getFlaggedMessages(i4flag);
+                return i4folder.getFlaggedPositions(i4flag);
             } else {
-                ImapMessageSet matched = i4folder.getAllMessages();
-                matched.removeAll(i4folder.getFlaggedMessages(i4flag));
+                BitSet matched = i4folder.getAllPositions();
+                matched.andNot(i4folder.getFlaggedPositions(i4flag));
                 return matched;
             }
         }
@@ -424,11 +440,11 @@ abstract class ImapSearch {
         }
 
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) {
+        protected BitSet match(ImapFolder i4folder) {
             if (mTimestamp < 0) {
-                return (mRelation == Relation.after ? i4folder.getAllMessages() : new ImapMessageSet());
+                return (mRelation == Relation.after ? i4folder.getAllPositions() : new BitSet());
             } else if (mTimestamp > System.currentTimeMillis() + 36 * Constants.MILLIS_PER_MONTH) {
-                return (mRelation == Relation.before ? i4folder.getAllMessages() : new ImapMessageSet());
+                return (mRelation == Relation.before ? i4folder.getAllPositions() : new BitSet());
             } else {
                 throw new UnsupportedOperationException("evaluate of " + toZimbraSearch(i4folder));
             }
@@ -487,7 +503,7 @@ abstract class ImapSearch {
         }
 
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) {
+        protected BitSet match(ImapFolder i4folder) {
             throw new UnsupportedOperationException("evaluate of " + toZimbraSearch(i4folder));
         }
 
@@ -537,7 +553,7 @@ abstract class ImapSearch {
         @Override
         protected String toZimbraSearch(ImapFolder i4folder)  { return "(modseq:>" + mChangedSince + ")"; }
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) {
+        protected BitSet match(ImapFolder i4folder) {
             throw new UnsupportedOperationException("evaluate of " + toZimbraSearch(i4folder));
         }
 
@@ -576,7 +592,7 @@ abstract class ImapSearch {
         @Override
         protected String toZimbraSearch(ImapFolder i4folder)  { return mRelation + ":" + mSize; }
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) {
+        protected BitSet match(ImapFolder i4folder) {
             throw new UnsupportedOperationException("evaluate of " + toZimbraSearch(i4folder));
         }
 
@@ -621,9 +637,9 @@ abstract class ImapSearch {
         @Override
         protected String toZimbraSearch(ImapFolder i4folder)  { return stringAsSearchTerm(mValue); }
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) {
+        protected BitSet match(ImapFolder i4folder) {
             if (canBeRunLocally())
-                return i4folder.getAllMessages();
+                return i4folder.getAllPositions();
             throw new UnsupportedOperationException("evaluate of " + toZimbraSearch(i4folder));
         }
 
@@ -759,7 +775,7 @@ abstract class ImapSearch {
         }
 
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) {
+        protected BitSet match(ImapFolder i4folder) {
             throw new UnsupportedOperationException("evaluate of " + toZimbraSearch(i4folder));
         }
 
@@ -28,6 +28,7 @@ import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.server.NioConnection;
 import com.zimbra.cs.server.NioHandler;
 import com.zimbra.cs.server.NioOutputStream;
+import com.zimbra.cs.stats.SlowRequestSampler;
 import com.zimbra.cs.stats.ZimbraPerf;
 
 final class NioImapHandler extends ImapHandler implements NioHandler {
@@ -112,6 +113,7 @@ final class NioImapHandler extends ImapHandler implements NioHandler {
         }
 
         long start = ZimbraPerf.STOPWATCH_IMAP.start();
+        SlowRequestSampler.begin();
 
         try {
             if (!checkAccountStatus()) {
@@ -142,6 +144,8 @@ final class NioImapHandler extends ImapHandler implements NioHandler {
             if (lastCommand != null) {
                 ZimbraPerf.IMAP_TRACKER.addStat(lastCommand.toUpperCase(), start);
                 ZimbraPerf.IMAPD_TRACKER.addStat(lastCommand.toUpperCase(), start);
+                ZimbraPerf.IMAP_SAMPLER.end(lastCommand.toUpperCase(),
+                        credentials != null ? credentials.getAccountId() : null, start);
                 ZimbraLog.imap.info("%s elapsed=%d (NIO)", lastCommand.toUpperCase(), elapsed);
             } else {
                 ZimbraLog.imap.info("(unknown) elapsed=%d (NIO)", elapsed);
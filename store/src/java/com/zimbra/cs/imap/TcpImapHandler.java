@@ -32,6 +32,7 @@ import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.NetUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.server.ProtocolHandler;
+import com.zimbra.cs.stats.SlowRequestSampler;
 import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.IOUtil;
 
@@ -104,6 +105,7 @@ final class TcpImapHandler extends ProtocolHandler {
             }
 
             long start = ZimbraPerf.STOPWATCH_IMAP.start();
+            SlowRequestSampler.begin();
             // check account status before executing command
             if (!delegate.checkAccountStatus()) {
                 return false;
@@ -121,6 +123,8 @@ final class TcpImapHandler extends ProtocolHandler {
                 ZimbraLog.imap.info("%s elapsed=%d (TCP)", delegate.lastCommand.toUpperCase(), elapsed);
                 ZimbraPerf.IMAP_TRACKER.addStat(delegate.lastCommand.toUpperCase(), start);
                 ZimbraPerf.IMAPD_TRACKER.addStat(delegate.lastCommand.toUpperCase(), start);
+                ZimbraPerf.IMAP_SAMPLER.end(delegate.lastCommand.toUpperCase(),
+                        delegate.credentials != null ? delegate.credentials.getAccountId() : null, start);
             } else {
                 ZimbraLog.imap.info("(unknown) elapsed=%d (TCP)", elapsed);
             }
@@ -21,8 +21,11 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -57,6 +60,7 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
 import com.googlecode.concurrentlinkedhashmap.EvictionListener;
 import com.zimbra.common.localconfig.LC;
@@ -66,6 +70,7 @@ import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxIndex;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.IOUtil;
 import com.zimbra.cs.volume.Volume;
 import com.zimbra.cs.volume.VolumeManager;
@@ -114,6 +119,19 @@ public final class LuceneIndex extends IndexStore {
         })
         .build();
 
+    /** Number of index readers opened by searchers and not yet closed. */
+    private static final AtomicInteger OPEN_READERS = new AtomicInteger();
+
+    /**
+     * In near-real-time mode, indexes that currently have an open writer, whose cached searcher is refreshed from that
+     * writer by {@link #searcherRefresher}.
+     */
+    private static final ConcurrentMap<LuceneIndex, Boolean> NRT_INDEXES =
+        new ConcurrentHashMap<LuceneIndex, Boolean>();
+
+    /** Non-null if and only if near-real-time mode is enabled. */
+    private static volatile ScheduledExecutorService searcherRefresher;
+
     private final Mailbox mailbox;
     private final LuceneDirectory luceneDirectory;
     private final AtomicBoolean pendingDelete = new AtomicBoolean(false);
@@ -291,6 +309,113 @@ public final class LuceneIndex extends IndexStore {
         }
     }
 
+    private IndexSearcherImpl getCachedSearcher() {
+        if (mailbox.isGalSyncMailbox()) {
+            return GAL_SEARCHER_CACHE.get(mailbox.getId());
+        } else {
+            return SEARCHER_CACHE.getIfPresent(mailbox.getId());
+        }
+    }
+
+    private void cacheSearcher(IndexSearcherImpl searcher) {
+        if (mailbox.isGalSyncMailbox()) {
+            //make sure that we close the previous value associated with the key
+            IOUtil.closeQuietly(GAL_SEARCHER_CACHE.put(mailbox.getId(), searcher));
+        } else {
+            // Bug: 69870
+            // No need to close the previous value associated with the key here.
+            // CacheBuilder sends a callback using removalListener onRemoval(..)
+            // which eventually closes IndexSearcher
+            SEARCHER_CACHE.asMap().put(mailbox.getId(), searcher);
+        }
+    }
+
+    /**
+     * Replaces the cached searcher only if it is still {@code current}, so that a slower refresh never overwrites a
+     * newer one.
+     *
+     * @return false if the cached searcher has changed, in which case the caller still owns {@code refreshed}
+     */
+    private boolean replaceCachedSearcher(IndexSearcherImpl current, IndexSearcherImpl refreshed) {
+        if (mailbox.isGalSyncMailbox()) {
+            if (GAL_SEARCHER_CACHE.replace(mailbox.getId(), current, refreshed)) {
+                IOUtil.closeQuietly(current);
+                return true;
+            }
+            return false;
+        } else {
+            return SEARCHER_CACHE.asMap().replace(mailbox.getId(), current, refreshed);
+        }
+    }
+
+    /**
+     * Replaces the cached searcher, if any, with one that sees the latest changes. Only the segments that changed are
+     * reopened; the others are shared with the current searcher.
+     *
+     * @param writer reopen from this writer's uncommitted state, or from the last commit if null
+     */
+    private void refreshSearcher(IndexWriter writer) throws IOException {
+        IndexSearcherImpl searcher = getCachedSearcher();
+        if (searcher == null || !searcher.tryInc()) {
+            return;
+        }
+        long start = ZimbraPerf.STOPWATCH_IDX_SEARCHER_REFRESH.start();
+        try {
+            IndexReader reader = ((ZimbraLuceneIndexReader) searcher.getIndexReader()).getLuceneReader();
+            IndexReader newReader = writer != null ?
+                    IndexReader.openIfChanged(reader, writer, true) : IndexReader.openIfChanged(reader, true);
+            if (newReader == null) {
+                return;
+            }
+            if (!READER_THROTTLE.tryAcquire()) {
+                // too many readers to hold two for this index, the next search reopens under the throttle
+                IOUtil.closeQuietly(newReader);
+                evict();
+                return;
+            }
+            IndexSearcherImpl refreshed = new IndexSearcherImpl(newReader);
+            if (!replaceCachedSearcher(searcher, refreshed)) {
+                IOUtil.closeQuietly(refreshed);
+            }
+            ZimbraLog.search.debug("RefreshLuceneSearcher %s,nrt=%b", refreshed, writer != null);
+        } finally {
+            searcher.close();
+            ZimbraPerf.STOPWATCH_IDX_SEARCHER_REFRESH.stop(start);
+        }
+    }
+
+    /**
+     * Refreshes the cached searcher from the open writer, if there still is one. Called by the background refresher in
+     * near-real-time mode.
+     */
+    private void refreshSearcherFromWriter() throws IOException {
+        IndexWriterRef ref;
+        synchronized (this) {
+            ref = writerInfo.getWriterRef();
+            if (ref == null) {
+                return;
+            }
+            ref.inc();
+        }
+        try {
+            refreshSearcher(ref.get());
+        } finally {
+            ref.dec();
+        }
+    }
+
+    private static boolean isNearRealTime() {
+        return searcherRefresher != null;
+    }
+
+    /**
+     * Returns the number of index readers currently open, including those of evicted or superseded searchers that are
+     * still in use.
+     */
+    public static int getOpenReaderCount() {
+        return OPEN_READERS.get();
+    }
+
     private IndexReader openIndexReader(boolean tryRepair) throws IOException {
         try {
             return IndexReader.open(luceneDirectory, null, true, LC.zimbra_index_lucene_term_index_divisor.intValue());
@@ -368,28 +493,39 @@ public final class LuceneIndex extends IndexStore {
 
     /**
      * Caller is responsible for calling {@link IndexReader#close()} to release system resources associated with it.
+     * <p>
+     * A cached searcher is handed out without locking this index; only a cache miss opens a new reader under the lock.
      *
      * @return A {@link IndexReader} for this index.
      * @throws IOException if opening an {@link IndexReader} failed
      */
     @Override
-    public synchronized ZimbraIndexSearcher openSearcher() throws IOException {
-        IndexSearcherImpl searcher = null;
-        if (mailbox.isGalSyncMailbox()) {
-            searcher = GAL_SEARCHER_CACHE.get(mailbox.getId());
-        } else {
-            searcher = SEARCHER_CACHE.getIfPresent(mailbox.getId());
+    public ZimbraIndexSearcher openSearcher() throws IOException {
+        IndexSearcherImpl searcher = getCachedSearcher();
+        // the searcher may be closing because it was just evicted or refreshed
+        if (searcher != null && searcher.tryInc()) {
+            ZimbraLog.search.debug("CacheHitLuceneSearcher %s", searcher);
+            return searcher;
         }
-        if (searcher != null) {
+        return openSearcherLocked();
+    }
+
+    private synchronized IndexSearcherImpl openSearcherLocked() throws IOException {
+        IndexSearcherImpl searcher = getCachedSearcher();
+        if (searcher != null && searcher.tryInc()) {
             ZimbraLog.search.debug("CacheHitLuceneSearcher %s", searcher);
-            searcher.inc();
             return searcher;
         }
+        searcher = null;
 
         READER_THROTTLE.acquireUninterruptibly();
         long start = System.currentTimeMillis();
         try {
-            searcher = new IndexSearcherImpl(openIndexReader(true));
+            if (isNearRealTime() && writerInfo.getWriterRef() != null) {
+                searcher = new IndexSearcherImpl(IndexReader.open(writerInfo.getWriterRef().get(), true));
+            } else {
+                searcher = new IndexSearcherImpl(openIndexReader(true));
+            }
         } catch (IOException e) {
             // Handle the special case of trying to open a not-yet-created index, by opening for write and immediately
             // closing. Index directory should get initialized as a result.
@@ -410,11 +546,7 @@ public final class LuceneIndex extends IndexStore {
 
         ZimbraLog.search.debug("OpenLuceneSearcher %s,elapsed=%d", searcher, System.currentTimeMillis() - start);
         searcher.inc();
-        if (mailbox.isGalSyncMailbox()) {
-            IOUtil.closeQuietly(GAL_SEARCHER_CACHE.put(mailbox.getId(), searcher));
-        } else {
-            SEARCHER_CACHE.asMap().put(mailbox.getId(), searcher);
-        }
+        cacheSearcher(searcher);
         return searcher;
     }
 
@@ -464,6 +596,9 @@ public final class LuceneIndex extends IndexStore {
                     WRITER_THROTTLE.release();
                 }
             }
+            if (isNearRealTime()) {
+                NRT_INDEXES.put(this, Boolean.TRUE);
+            }
         }
         return new LuceneIndexerImpl(writerInfo.getWriterRef());
     }
@@ -537,6 +672,17 @@ public final class LuceneIndex extends IndexStore {
 
         ZimbraLog.index.debug("Close IndexWriter");
 
+        if (NRT_INDEXES.remove(this) != null) {
+            // searchers opened from this writer can't be refreshed from it once it is closed, so catch up now; they
+            // remain valid for searching
+            try {
+                refreshSearcher(writerInfo.getWriterRef().get());
+            } catch (IOException e) {
+                ZimbraLog.index.warn("Failed to refresh IndexSearcher, evicting", e);
+                evict();
+            }
+        }
+
         try {
             writerInfo.getWriterRef().get().close(false); // ignore phantom pending merges
         } catch (CorruptIndexException e) {
@@ -679,6 +825,8 @@ public final class LuceneIndex extends IndexStore {
         config.setMergeScheduler(new MergeScheduler());
         config.setMaxBufferedDocs(LC.zimbra_index_lucene_max_buffered_docs.intValue());
         config.setRAMBufferSizeMB(LC.zimbra_index_lucene_ram_buffer_size_kb.intValue() / 1024.0);
+        // applies to the near-real-time readers the writer opens
+        config.setReaderTermsIndexDivisor(LC.zimbra_index_lucene_term_index_divisor.intValue());
         if (LC.zimbra_index_lucene_merge_policy.booleanValue()) {
             LogDocMergePolicy policy = new LogDocMergePolicy();
             config.setMergePolicy(policy);
@@ -769,6 +917,31 @@ public final class LuceneIndex extends IndexStore {
     public static final class Factory implements IndexStore.Factory {
         public Factory() {
             BooleanQuery.setMaxClauseCount(LC.zimbra_index_lucene_max_terms_per_query.intValue());
+            if (LC.zimbra_index_nrt_enabled.booleanValue()) {
+                startSearcherRefresher();
+            }
+        }
+
+        private static synchronized void startSearcherRefresher() {
+            if (searcherRefresher != null) {
+                return;
+            }
+            long interval = LC.zimbra_index_nrt_refresh_interval_ms.longValue();
+            ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("IndexSearcherRefresher").setDaemon(true).build());
+            refresher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (LuceneIndex index : NRT_INDEXES.keySet()) {
+                        try {
+                            index.refreshSearcherFromWriter();
+                        } catch (Exception e) { // keep the task scheduled
+                            ZimbraLog.index.warn("Failed to refresh IndexSearcher %s", index, e);
+                        }
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+            searcherRefresher = refresher;
         }
 
         @Override
@@ -778,6 +951,13 @@ public final class LuceneIndex extends IndexStore {
 
         @Override
         public void destroy() {
+            synchronized (Factory.class) {
+                if (searcherRefresher != null) {
+                    searcherRefresher.shutdownNow();
+                    searcherRefresher = null;
+                }
+            }
+            NRT_INDEXES.clear();
             SEARCHER_CACHE.asMap().clear();
 
             for (IndexSearcherImpl searcher : GAL_SEARCHER_CACHE.values()) {
@@ -794,32 +974,15 @@ public final class LuceneIndex extends IndexStore {
             this.writer = writer;
         }
 
+        /**
+         * Commits the changes. Unless in near-real-time mode, where the background refresher picks them up, the cached
+         * searcher is reopened from the commit right away.
+         */
         @Override
         public void close() throws IOException {
             writer.index.commitWriter();
-            ZimbraIndexSearcher searcher = null;
-            if (writer.getIndex().mailbox.isGalSyncMailbox()) {
-                searcher = GAL_SEARCHER_CACHE.get(writer.getIndex().mailbox.getId());
-            } else {
-                searcher = SEARCHER_CACHE.getIfPresent(writer.getIndex().mailbox.getId());
-            }
-            if (searcher != null) {
-                ZimbraLuceneIndexReader ndxReader = (ZimbraLuceneIndexReader)searcher.getIndexReader();
-                IndexReader newReader = IndexReader.openIfChanged(ndxReader.getLuceneReader(), true);
-                if (newReader != null) {
-                    if (writer.getIndex().mailbox.isGalSyncMailbox()) {
-                        //make sure that we close the previous value associated with the key
-                        IOUtil.closeQuietly(GAL_SEARCHER_CACHE.put(writer.getIndex().mailbox.getId(),
-                                new IndexSearcherImpl(newReader)));
-                    } else {
-                        // Bug: 69870
-                        // No need to close the previous value associated with the key here.
-                        // CacheBuilder sends a callback using removalListener onRemoval(..)
-                        // which eventually closes IndexSearcher
-                        SEARCHER_CACHE.asMap().put(writer.getIndex().mailbox.getId(),
-                            new IndexSearcherImpl(newReader));
-                    }
-                }
+            if (!isNearRealTime()) {
+                writer.index.refreshSearcher(null);
             }
         }
 
@@ -944,15 +1107,34 @@ public final class LuceneIndex extends IndexStore {
         private final IndexSearcher luceneSearcher;
         private final ZimbraIndexReader luceneReader;
 
+        /**
+         * Takes over the reader and the {@link LuceneIndex#READER_THROTTLE} permit acquired for it.
+         */
         IndexSearcherImpl(IndexReader reader) {
             luceneSearcher = new IndexSearcher(reader);
             luceneReader = new ZimbraLuceneIndexReader(luceneSearcher.getIndexReader());
+            OPEN_READERS.incrementAndGet();
         }
 
         void inc() {
             count.incrementAndGet();
         }
 
+        /**
+         * Adds a reference unless the searcher has already been closed by its last holder.
+         */
+        boolean tryInc() {
+            while (true) {
+                int current = count.get();
+                if (current <= 0) {
+                    return false;
+                }
+                if (count.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
         @Override
         public void close() throws IOException {
             if (count.decrementAndGet() == 0) {
@@ -961,6 +1143,7 @@ public final class LuceneIndex extends IndexStore {
                     IOUtil.closeQuietly(luceneSearcher);
                 } finally {
                     IOUtil.closeQuietly(getIndexReader());
+                    OPEN_READERS.decrementAndGet();
                     READER_THROTTLE.release();
                 }
             }
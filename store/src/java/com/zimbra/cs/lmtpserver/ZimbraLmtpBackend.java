@@ -28,6 +28,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -36,6 +41,7 @@ import javax.mail.internet.MimeMessage;
 
 import org.apache.commons.io.IOUtils;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Strings;
 import com.google.common.cache.CacheBuilder;
@@ -43,6 +49,8 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.zimbra.common.account.Key.AccountBy;
 import com.zimbra.common.lmtp.LmtpClient;
 import com.zimbra.common.lmtp.LmtpProtocolException;
@@ -79,6 +87,7 @@ import com.zimbra.cs.mailbox.QuotaWarning;
 import com.zimbra.cs.mime.ParsedMessage;
 import com.zimbra.cs.mime.ParsedMessageOptions;
 import com.zimbra.cs.service.util.ItemId;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.MailboxBlob;
@@ -90,6 +99,7 @@ public class ZimbraLmtpBackend implements LmtpBackend {
     private static List<LmtpCallback> callbacks = new CopyOnWriteArrayList<LmtpCallback>();
     private static Map<String, Set<Integer>> receivedMessageIDs;
     private static final LoadingCache<Integer, ReentrantLock> mailboxDeliveryLocks = createMailboxDeliveryLocks();
+    private static volatile ThreadPoolExecutor deliveryExecutor = createDeliveryExecutor();
 
     private final LmtpConfig config;
 
@@ -111,6 +121,11 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         callbacks.add(callback);
     }
 
+    @VisibleForTesting
+    static void removeCallback(LmtpCallback callback) {
+        callbacks.remove(callback);
+    }
+
     static {
         addCallback(Notification.getInstance());
         addCallback(QuotaWarning.getInstance());
@@ -128,6 +143,42 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         return cache;
     }
 
+    /**
+     * Returns the executor that delivers a message to its local recipients in parallel, or {@code null}
+     * if {@code lmtp_delivery_threads} is 0 and recipients are delivered to one at a time.
+     */
+    private static ThreadPoolExecutor createDeliveryExecutor() {
+        int threads = LC.lmtp_delivery_threads.intValue();
+        if (threads <= 0) {
+            return null;
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(Math.max(1, LC.lmtp_delivery_queue_size.intValue())),
+                new ThreadFactoryBuilder().setNameFormat("LmtpDelivery-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Recreates the delivery executor after {@code lmtp_delivery_threads} has changed.
+     */
+    @VisibleForTesting
+    static synchronized void resetDeliveryExecutor() {
+        ThreadPoolExecutor old = deliveryExecutor;
+        deliveryExecutor = createDeliveryExecutor();
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Returns the number of recipient deliveries waiting for a delivery thread.
+     */
+    public static int getDeliveryQueueSize() {
+        ThreadPoolExecutor executor = deliveryExecutor;
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
     @Override public LmtpReply getAddressStatus(LmtpAddress address) {
         String addr = address.getEmailAddress();
 
@@ -607,186 +658,27 @@ public class ZimbraLmtpBackend implements LmtpBackend {
 
             // We now know which addresses are valid and which ParsedMessage
             // version each recipient needs.  Deliver!
-            for (LmtpAddress recipient : recipients) {
-                String rcptEmail = recipient.getEmailAddress();
-                LmtpReply reply = LmtpReply.TEMPORARY_FAILURE;
-                RecipientDetail rd = rcptMap.get(recipient);
-                if (rd == null) {
-                    // Account or mailbox not found.
-                    ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: account or mailbox not found",
-                            envSender, rcptEmail);
-                    recipient.setDeliveryStatus(LmtpReply.PERMANENT_FAILURE);
-                    continue;
-                }
-                if (rd.account != null) {
-                    ZimbraLog.addAccountNameToContext(rd.account.getName());
-                }
-                if (rd.mbox != null) {
-                    ZimbraLog.addMboxToContext(rd.mbox.getId());
-                }
-
-                boolean success = false;
-                try {
-                    switch (rd.action) {
-                    case discard:
-                        ZimbraLog.lmtp.info("accepted and discarded message from=%s,to=%s: local delivery is disabled",
-                                envSender, rcptEmail);
-                        if (rd.account.getPrefMailForwardingAddress() != null) {
-                            // mail forwarding is set up
-                            for (LmtpCallback callback : callbacks) {
-                                ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
-                                callback.forwardWithoutDelivery(rd.account, rd.mbox, envSender, rcptEmail, rd.pm);
-                            }
-                        }
-                        reply = LmtpReply.DELIVERY_OK;
-                        break;
-                    case deliver:
-                        Account account = rd.account;
-                        Mailbox mbox = rd.mbox;
-                        ParsedMessage pm = rd.pm;
-                        List<ItemId> addedMessageIds = null;
-                        ReentrantLock lock = mailboxDeliveryLocks.get(mbox.getId());
-                        boolean acquiredLock;
+            LocalDelivery delivery = new LocalDelivery(env, blob, blobEEW, sharedDeliveryCtxt, sharedDeliveryCtxtEEW,
+                    shared, msgId);
+            ThreadPoolExecutor executor = deliveryExecutor;
+            boolean parallel = executor != null && canDeliverInParallel(rcptMap, blobEEW);
+            List<Future<?>> pending = new ArrayList<Future<?>>();
+            try {
+                for (LmtpAddress recipient : recipients) {
+                    RecipientDetail rd = rcptMap.get(recipient);
+                    if (parallel && rd != null && !sharedDeliveryCtxt.isFirst()) {
+                        // An earlier recipient has stored the blob and logged it, so the rest only link to it.
                         try {
-                            // Wait for the lock, up to the timeout
-                            acquiredLock = lock.tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
-                        } catch (InterruptedException e) {
-                            acquiredLock = false;
-                        }
-                        if (!acquiredLock) {
-                            ZimbraLog.lmtp.info("try again for message from=%s,to=%s: another mail delivery in progress.",
-                                    envSender, rcptEmail);
-                            reply = LmtpReply.TEMPORARY_FAILURE;
-                            break;
+                            pending.add(executor.submit(delivery.task(recipient, rd)));
+                            continue;
+                        } catch (RejectedExecutionException e) {
+                            // the delivery queue is full; deliver on this thread
                         }
-                        try {
-                            if (dedupe(pm, mbox)) {
-                                // message was already delivered to this mailbox
-                                ZimbraLog.lmtp.info("Not delivering message with duplicate Message-ID %s", pm.getMessageID());
-                            } else if (mbox.dedupeForSelfMsg(pm)) {
-                                ZimbraLog.mailbox.info("not delivering message, because it is a duplicate of sent message %s",
-                                        pm.getMessageID());
-
-                            } else if (recipient.getSkipFilters()) {
-                                msgId = pm.getMessageID();
-                                int folderId = Mailbox.ID_FOLDER_INBOX;
-                                if (recipient.getFolder() != null) {
-                                    try {
-                                        Folder folder = mbox.getFolderByPath(null, recipient.getFolder());
-                                        folderId = folder.getId();
-                                    } catch (ServiceException se) {
-                                        if (se.getCode().equals(MailServiceException.NO_SUCH_FOLDER)) {
-                                            Folder folder = mbox.createFolder(null, recipient.getFolder(),
-                                                    new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
-                                            folderId = folder.getId();
-                                        } else {
-                                            throw se;
-                                        }
-                                    }
-                                }
-                                int flags = Flag.BITMASK_UNREAD;
-                                if (recipient.getFlags() != null) {
-                                    flags = Flag.toBitmask(recipient.getFlags());
-                                }
-                                DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId);
-                                dopt.setFlags(flags).setTags(recipient.getTags()).setRecipientEmail(rcptEmail);
-                                Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
-                                addedMessageIds = Lists.newArrayList(new ItemId(msg));
-                            } else if (!DebugConfig.disableIncomingFilter) {
-                                // Get msgid first, to avoid having to reopen and reparse the blob
-                                // file if Mailbox.addMessageInternal() closes it.
-                                pm.getMessageID();
-                                if (blobEEW != null && ExternalEmailWarning.getInstance().isEnabled()
-                                        && ExternalEmailWarning.getInstance().isExternal(account.getName(),
-                                                envSender)) {
-                                    // invoking for EEW
-                                    addedMessageIds = RuleManager.applyRulesToIncomingMessage(null, mbox, pm,
-                                            (int) blobEEW.getRawSize(), rcptEmail, env, sharedDeliveryCtxtEEW,
-                                            Mailbox.ID_FOLDER_INBOX, false, true);
-                                } else {
-                                    // invoking for non-EEW
-                                    addedMessageIds = RuleManager.applyRulesToIncomingMessage(
-                                        null, mbox, pm, (int) blob.getRawSize(), rcptEmail, env, sharedDeliveryCtxt,
-                                        Mailbox.ID_FOLDER_INBOX, false, true);
-                                }
-                            } else {
-                                pm.getMessageID();
-                                DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
-                                dopt.setFlags(Flag.BITMASK_UNREAD).setRecipientEmail(rcptEmail);
-                                Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
-                                addedMessageIds = Lists.newArrayList(new ItemId(msg));
-                            }
-                            success = true;
-                            if (addedMessageIds != null && addedMessageIds.size() > 0) {
-                                addToDedupeCache(pm, mbox);
-                            }
-                        } finally {
-                            lock.unlock();
-                        }
-
-                        if (addedMessageIds != null && addedMessageIds.size() > 0) {
-                            // Execute callbacks
-                            for (LmtpCallback callback : callbacks) {
-                                for (ItemId id : addedMessageIds) {
-                                    if (id.belongsTo(mbox)) {
-                                        // Message was added to the local mailbox, as opposed to a mountpoint.
-                                        ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
-                                        try {
-                                            Message msg = mbox.getMessageById(null, id.getId());
-                                            callback.afterDelivery(account, mbox, envSender, rcptEmail, msg);
-                                        } catch (OutOfMemoryError oome) {
-                                            Zimbra.halt("LMTP callback failed", oome);
-                                        } catch (Throwable t) {
-                                            ZimbraLog.lmtp.warn("LMTP callback threw an exception", t);
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        reply = LmtpReply.DELIVERY_OK;
-                        break;
-                    case defer:
-                        // Delivery to mailbox skipped.  Let MTA retry again later.
-                        // This case happens for shared delivery to a mailbox in
-                        // backup mode.
-                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s: mailbox skipped",
-                                envSender, rcptEmail);
-                        reply = LmtpReply.TEMPORARY_FAILURE;
-                        break;
-                    }
-                } catch (DeliveryServiceException e) {
-                    ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: sieve filter rule", envSender, rcptEmail);
-                    reply = LmtpReply.PERMANENT_MESSAGE_REFUSED;
-                } catch (ServiceException e) {
-                    if (e.getCode().equals(MailServiceException.QUOTA_EXCEEDED) || e.getCode().equals(MailServiceException.DOMAIN_QUOTA_EXCEEDED)) {
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: overquota", envSender, rcptEmail);
-                        if (config.isPermanentFailureWhenOverQuota()) {
-                            reply = LmtpReply.PERMANENT_FAILURE_OVER_QUOTA;
-                        } else {
-                            reply = LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA;
-                        }
-                    } else if (e.isReceiversFault()) {
-                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s", envSender, rcptEmail, e);
-                        reply = LmtpReply.TEMPORARY_FAILURE;
-                    } else {
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s", envSender, rcptEmail, e);
-                        reply = LmtpReply.PERMANENT_FAILURE;
-                    }
-                } catch (Exception e) {
-                    reply = LmtpReply.TEMPORARY_FAILURE;
-                    ZimbraLog.lmtp.warn("try again for message from=%s,to=%s", envSender, rcptEmail, e);
-                } finally {
-                    if (rd.action == DeliveryAction.deliver && !success) {
-                        // Message was not delivered.  Remove it from the dedupe
-                        // cache so we don't dedupe it on LMTP retry.
-                        removeFromDedupeCache(msgId, rd.mbox);
-                    }
-                    recipient.setDeliveryStatus(reply);
-                    if (shared && rd != null && rd.esd) {
-                        rd.mbox.endSharedDelivery();
-                        rd.esd = false;
                     }
+                    delivery.deliver(recipient, rd);
                 }
+            } finally {
+                awaitDeliveries(pending);
             }
 
             if (LC.lmtp_extended_logs_enabled.booleanValue()) {
@@ -828,6 +720,268 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         }
     }
 
+    /**
+     * Delivers one message to one local recipient at a time.  Once the first recipient has stored the
+     * shared blob, the remaining ones may be delivered concurrently from the delivery executor.
+     */
+    private final class LocalDelivery {
+        private final LmtpEnvelope env;
+        private final String envSender;
+        private final Blob blob;
+        private final Blob blobEEW;
+        private final DeliveryContext sharedDeliveryCtxt;
+        private final DeliveryContext sharedDeliveryCtxtEEW;
+        private final boolean shared;
+        private final String msgId;
+
+        LocalDelivery(LmtpEnvelope env, Blob blob, Blob blobEEW, DeliveryContext sharedDeliveryCtxt,
+                DeliveryContext sharedDeliveryCtxtEEW, boolean shared, String msgId) {
+            this.env = env;
+            this.envSender = env.getSender().getEmailAddress();
+            this.blob = blob;
+            this.blobEEW = blobEEW;
+            this.sharedDeliveryCtxt = sharedDeliveryCtxt;
+            this.sharedDeliveryCtxtEEW = sharedDeliveryCtxtEEW;
+            this.shared = shared;
+            this.msgId = msgId;
+        }
+
+        Runnable task(final LmtpAddress recipient, final RecipientDetail rd) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        deliver(recipient, rd);
+                    } finally {
+                        ZimbraLog.clearContext();
+                    }
+                }
+            };
+        }
+
+        /**
+         * Delivers the message to the recipient and sets its delivery status.
+         *
+         * @param rd the recipient's account and mailbox, or {@code null} if neither was found
+         */
+        void deliver(LmtpAddress recipient, RecipientDetail rd) {
+            String rcptEmail = recipient.getEmailAddress();
+            LmtpReply reply = LmtpReply.TEMPORARY_FAILURE;
+            if (rd == null) {
+                // Account or mailbox not found.
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: account or mailbox not found",
+                        envSender, rcptEmail);
+                recipient.setDeliveryStatus(LmtpReply.PERMANENT_FAILURE);
+                return;
+            }
+            if (rd.account != null) {
+                ZimbraLog.addAccountNameToContext(rd.account.getName());
+            }
+            if (rd.mbox != null) {
+                ZimbraLog.addMboxToContext(rd.mbox.getId());
+            }
+
+            long start = ZimbraPerf.STOPWATCH_LMTP_RCPT_DLVD.start();
+            boolean success = false;
+            try {
+                switch (rd.action) {
+                case discard:
+                    ZimbraLog.lmtp.info("accepted and discarded message from=%s,to=%s: local delivery is disabled",
+                            envSender, rcptEmail);
+                    if (rd.account.getPrefMailForwardingAddress() != null) {
+                        // mail forwarding is set up
+                        for (LmtpCallback callback : callbacks) {
+                            ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
+                            callback.forwardWithoutDelivery(rd.account, rd.mbox, envSender, rcptEmail, rd.pm);
+                        }
+                    }
+                    reply = LmtpReply.DELIVERY_OK;
+                    break;
+                case deliver:
+                    Account account = rd.account;
+                    Mailbox mbox = rd.mbox;
+                    ParsedMessage pm = rd.pm;
+                    List<ItemId> addedMessageIds = null;
+                    ReentrantLock lock = mailboxDeliveryLocks.get(mbox.getId());
+                    boolean acquiredLock;
+                    try {
+                        // Wait for the lock, up to the timeout
+                        acquiredLock = lock.tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        acquiredLock = false;
+                    }
+                    if (!acquiredLock) {
+                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s: another mail delivery in progress.",
+                                envSender, rcptEmail);
+                        reply = LmtpReply.TEMPORARY_FAILURE;
+                        break;
+                    }
+                    try {
+                        if (dedupe(pm, mbox)) {
+                            // message was already delivered to this mailbox
+                            ZimbraLog.lmtp.info("Not delivering message with duplicate Message-ID %s", pm.getMessageID());
+                        } else if (mbox.dedupeForSelfMsg(pm)) {
+                            ZimbraLog.mailbox.info("not delivering message, because it is a duplicate of sent message %s",
+                                    pm.getMessageID());
+
+                        } else if (recipient.getSkipFilters()) {
+                            int folderId = Mailbox.ID_FOLDER_INBOX;
+                            if (recipient.getFolder() != null) {
+                                try {
+                                    Folder folder = mbox.getFolderByPath(null, recipient.getFolder());
+                                    folderId = folder.getId();
+                                } catch (ServiceException se) {
+                                    if (se.getCode().equals(MailServiceException.NO_SUCH_FOLDER)) {
+                                        Folder folder = mbox.createFolder(null, recipient.getFolder(),
+                                                new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
+                                        folderId = folder.getId();
+                                    } else {
+                                        throw se;
+                                    }
+                                }
+                            }
+                            int flags = Flag.BITMASK_UNREAD;
+                            if (recipient.getFlags() != null) {
+                                flags = Flag.toBitmask(recipient.getFlags());
+                            }
+                            DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId);
+                            dopt.setFlags(flags).setTags(recipient.getTags()).setRecipientEmail(rcptEmail);
+                            Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
+                            addedMessageIds = Lists.newArrayList(new ItemId(msg));
+                        } else if (!DebugConfig.disableIncomingFilter) {
+                            // Get msgid first, to avoid having to reopen and reparse the blob
+                            // file if Mailbox.addMessageInternal() closes it.
+                            pm.getMessageID();
+                            if (blobEEW != null && ExternalEmailWarning.getInstance().isEnabled()
+                                    && ExternalEmailWarning.getInstance().isExternal(account.getName(),
+                                            envSender)) {
+                                // invoking for EEW
+                                addedMessageIds = RuleManager.applyRulesToIncomingMessage(null, mbox, pm,
+                                        (int) blobEEW.getRawSize(), rcptEmail, env, sharedDeliveryCtxtEEW,
+                                        Mailbox.ID_FOLDER_INBOX, false, true);
+                            } else {
+                                // invoking for non-EEW
+                                addedMessageIds = RuleManager.applyRulesToIncomingMessage(
+                                    null, mbox, pm, (int) blob.getRawSize(), rcptEmail, env, sharedDeliveryCtxt,
+                                    Mailbox.ID_FOLDER_INBOX, false, true);
+                            }
+                        } else {
+                            pm.getMessageID();
+                            DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+                            dopt.setFlags(Flag.BITMASK_UNREAD).setRecipientEmail(rcptEmail);
+                            Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
+                            addedMessageIds = Lists.newArrayList(new ItemId(msg));
+                        }
+                        success = true;
+                        if (addedMessageIds != null && addedMessageIds.size() > 0) {
+                            addToDedupeCache(pm, mbox);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+
+                    if (addedMessageIds != null && addedMessageIds.size() > 0) {
+                        // Execute callbacks
+                        for (LmtpCallback callback : callbacks) {
+                            for (ItemId id : addedMessageIds) {
+                                if (id.belongsTo(mbox)) {
+                                    // Message was added to the local mailbox, as opposed to a mountpoint.
+                                    ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
+                                    try {
+                                        Message msg = mbox.getMessageById(null, id.getId());
+                                        callback.afterDelivery(account, mbox, envSender, rcptEmail, msg);
+                                    } catch (OutOfMemoryError oome) {
+                                        Zimbra.halt("LMTP callback failed", oome);
+                                    } catch (Throwable t) {
+                                        ZimbraLog.lmtp.warn("LMTP callback threw an exception", t);
+                                    }
+                                }
+                            }
+                        }
+                    }
+                    reply = LmtpReply.DELIVERY_OK;
+                    break;
+                case defer:
+                    // Delivery to mailbox skipped.  Let MTA retry again later.
+                    // This case happens for shared delivery to a mailbox in
+                    // backup mode.
+                    ZimbraLog.lmtp.info("try again for message from=%s,to=%s: mailbox skipped",
+                            envSender, rcptEmail);
+                    reply = LmtpReply.TEMPORARY_FAILURE;
+                    break;
+                }
+            } catch (DeliveryServiceException e) {
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: sieve filter rule", envSender, rcptEmail);
+                reply = LmtpReply.PERMANENT_MESSAGE_REFUSED;
+            } catch (ServiceException e) {
+                if (e.getCode().equals(MailServiceException.QUOTA_EXCEEDED) || e.getCode().equals(MailServiceException.DOMAIN_QUOTA_EXCEEDED)) {
+                    ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: overquota", envSender, rcptEmail);
+                    if (config.isPermanentFailureWhenOverQuota()) {
+                        reply = LmtpReply.PERMANENT_FAILURE_OVER_QUOTA;
+                    } else {
+                        reply = LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA;
+                    }
+                } else if (e.isReceiversFault()) {
+                    ZimbraLog.lmtp.info("try again for message from=%s,to=%s", envSender, rcptEmail, e);
+                    reply = LmtpReply.TEMPORARY_FAILURE;
+                } else {
+                    ZimbraLog.lmtp.info("rejecting message from=%s,to=%s", envSender, rcptEmail, e);
+                    reply = LmtpReply.PERMANENT_FAILURE;
+                }
+            } catch (Exception e) {
+                reply = LmtpReply.TEMPORARY_FAILURE;
+                ZimbraLog.lmtp.warn("try again for message from=%s,to=%s", envSender, rcptEmail, e);
+            } finally {
+                if (rd.action == DeliveryAction.deliver && !success) {
+                    // Message was not delivered.  Remove it from the dedupe
+                    // cache so we don't dedupe it on LMTP retry.
+                    removeFromDedupeCache(msgId, rd.mbox);
+                }
+                recipient.setDeliveryStatus(reply);
+                if (shared && rd != null && rd.esd) {
+                    rd.mbox.endSharedDelivery();
+                    rd.esd = false;
+                }
+                ZimbraPerf.STOPWATCH_LMTP_RCPT_DLVD.stop(start);
+            }
+        }
+    }
+
+    /**
+     * Fanning out is only safe when every recipient shares the same {@link DeliveryContext} and
+     * {@link ParsedMessage} state: the external email warning keeps a second context, and the mailbox
+     * resets the message's default charset to its owner's preference.
+     */
+    private static boolean canDeliverInParallel(Map<LmtpAddress, RecipientDetail> rcptMap, Blob blobEEW) {
+        if (rcptMap.size() < 2 || (blobEEW != null && ExternalEmailWarning.getInstance().isEnabled())) {
+            return false;
+        }
+        String charset = null;
+        for (RecipientDetail rd : rcptMap.values()) {
+            if (rd.action != DeliveryAction.deliver) {
+                continue;
+            }
+            String rcptCharset = Strings.nullToEmpty(rd.account.getPrefMailDefaultCharset());
+            if (charset == null) {
+                charset = rcptCharset;
+            } else if (!charset.equals(rcptCharset)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void awaitDeliveries(List<Future<?>> pending) {
+        for (Future<?> future : pending) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                // LocalDelivery.deliver() handles its own exceptions, so this is an Error
+                ZimbraLog.lmtp.error("unexpected error delivering message", e.getCause());
+            }
+        }
+    }
+
     private void deliverMessageToRemoteMailboxes(Blob blob, byte[] data, LmtpEnvelope env) {
         Multimap<String, LmtpAddress> serverToRecipientsMap = env.getRemoteServerToRecipientsMap();
         for (String server : serverToRecipientsMap.keySet()) {
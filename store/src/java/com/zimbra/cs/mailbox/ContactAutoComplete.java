@@ -35,6 +35,7 @@ import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.zimbra.common.account.Key;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mailbox.ContactConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
@@ -413,24 +414,52 @@ public class ContactAutoComplete {
         ZimbraLog.gal.debug("AutoComplete querying: %s", str);
         str = str.toLowerCase();
         AutoCompleteResult result = new AutoCompleteResult(limit);
-        result.rankings = new ContactRankings(getRequestedAcctId());
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(getRequestedAcctId());
+        ContactAutoCompleteIndex index = null;
+        if (LC.contact_autocomplete_index_enabled.booleanValue() && mbox.hasFullAccess(octxt)) {
+            index = ContactAutoCompleteIndex.get(mbox);
+            result.rankings = index.getRankings();
+        } else {
+            result.rankings = new ContactRankings(getRequestedAcctId());
+        }
         if (limit <= 0) {
             return result;
         }
         Pair<List<Folder>, Map<ItemId, Mountpoint>> pFolders = getLocalRemoteContactFolders(folders);
         List<Folder> listFolders = pFolders.getFirst();
         Map<ItemId, Mountpoint> mountpoints = pFolders.getSecond();
-        final String searchContactFolderQuery = generateFolderQuery(listFolders);
+        Set<Integer> localFolderIds = new HashSet<Integer>();
+        if (index != null) {
+            // local folders are answered from the index, only mountpoints are left to the index search
+            List<Folder> remoteFolders = new ArrayList<Folder>();
+            for (Folder folder : listFolders) {
+                if (folder instanceof Mountpoint) {
+                    remoteFolders.add(folder);
+                } else {
+                    localFolderIds.add(folder.getId());
+                }
+            }
+            listFolders = remoteFolders;
+        }
+        final String searchContactFolderQuery =
+                index != null && listFolders.isEmpty() ? null : generateFolderQuery(listFolders);
 
         long t0 = System.currentTimeMillis();
         //Search in ranking table first.
-        addExistingContactsFromRankingTable(str, searchContactFolderQuery, mountpoints, limit, result);
+        addExistingContactsFromRankingTable(str, index, localFolderIds, searchContactFolderQuery, mountpoints, limit,
+                result);
         long t1 = System.currentTimeMillis();
 
         // search other folders
         if (result.entries.size() < limit) {
-            String query = searchContactFolderQuery + generateQuery(str);
-            queryFolders(str, query, mountpoints, limit, result);
+            if (index != null) {
+                List<String> tokens = Lists.newArrayList(TOKEN_SPLITTER.split(str));
+                addIndexedContacts(str, index.search(tokens, localFolderIds), result);
+            }
+            if (searchContactFolderQuery != null && result.canBeCached) {
+                String query = searchContactFolderQuery + generateQuery(str);
+                queryFolders(str, query, mountpoints, limit, result);
+            }
         }
         long t2 = System.currentTimeMillis();
 
@@ -846,15 +875,9 @@ public class ContactAutoComplete {
                 if (hit instanceof ContactHit) {
                     Contact c = ((ContactHit) hit).getContact();
                     ZimbraLog.gal.debug("hit: %d", c.getId());
-                    fields = c.getFields();
+                    fields = getContactFields(c);
                     id = new ItemId(c);
                     fid = c.getFolderId();
-                    if(returnFullContactData) {
-                        List<Attachment> contactAttachments = c.getAttachments();
-                        if (contactAttachments != null && contactAttachments.size() != 0) {
-                            fields.put("image", c.getId() + "_" + contactAttachments.get(0).getName());
-                        }
-                    }
                 } else if (hit instanceof ProxiedHit) {
                     fields = new HashMap<String, String>();
                     Element top = ((ProxiedHit) hit).getElement();
@@ -895,6 +918,36 @@ public class ContactAutoComplete {
         }
     }
 
+    private Map<String, String> getContactFields(Contact c) {
+        Map<String, String> fields = c.getFields();
+        if (returnFullContactData) {
+            List<Attachment> contactAttachments = c.getAttachments();
+            if (contactAttachments != null && contactAttachments.size() != 0) {
+                fields.put("image", c.getId() + "_" + contactAttachments.get(0).getName());
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Matches the contacts returned by {@link ContactAutoCompleteIndex} the same way as the hits of an index search.
+     */
+    private void addIndexedContacts(String str, List<Integer> ids, AutoCompleteResult result) throws ServiceException {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(getRequestedAcctId());
+        for (int id : ids) {
+            Contact c;
+            try {
+                c = mbox.getContactById(octxt, id);
+            } catch (MailServiceException.NoSuchItemException e) {
+                continue; // deleted since the index was searched
+            }
+            addMatchedContacts(str, getContactFields(c), c.getFolderId(), new ItemId(c), result);
+            if (!result.canBeCached) {
+                return;
+            }
+        }
+    }
+
     private String generateFolderQuery(Collection<Folder> folders) {
         StringBuilder buf = new StringBuilder("(");
         boolean first = true;
@@ -945,13 +998,17 @@ public class ContactAutoComplete {
     /**
      * Get matching entries from ranking table and validates each matching email address in contact ranking table has corresponding contact.
      * @param str
-     * @param folderBasicQuery
+     * @param index in-memory index of the local folders, or null if they are searched too
+     * @param localFolderIds folders looked up in the index
+     * @param folderBasicQuery folders to search, or null if there's none left to search
      * @param mountpoints
      * @param limit
      * @param result
      * @throws ServiceException
      */
-    private void addExistingContactsFromRankingTable(String str, String folderBasicQuery, Map<ItemId, Mountpoint> mountpoints ,int limit, AutoCompleteResult result) throws ServiceException {
+    private void addExistingContactsFromRankingTable(String str, ContactAutoCompleteIndex index,
+            Set<Integer> localFolderIds, String folderBasicQuery, Map<ItemId, Mountpoint> mountpoints, int limit,
+            AutoCompleteResult result) throws ServiceException {
         Collection<ContactEntry> rankingTableEntires = result.rankings.search(str);
         List<String> emailAddress = Lists.newArrayListWithExpectedSize(limit+1);
         int batchSize = limit;
@@ -965,8 +1022,13 @@ public class ContactAutoComplete {
             }
         }
         if (!emailAddress.isEmpty()) {
-            String queryRanking = folderBasicQuery + generateQuery(emailAddress);
-            queryFolders(str, queryRanking, mountpoints, limit, result);
+            if (index != null) {
+                addIndexedContacts(str, index.lookup(emailAddress, localFolderIds), result);
+            }
+            if (folderBasicQuery != null && result.canBeCached) {
+                String queryRanking = folderBasicQuery + generateQuery(emailAddress);
+                queryFolders(str, queryRanking, mountpoints, limit, result);
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,292 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.BaseItemInfo;
+import com.zimbra.common.mailbox.ContactConstants;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.session.PendingModifications.Change;
+import com.zimbra.cs.session.PendingModifications.ModificationKey;
+
+/**
+ * In-memory prefix index of the contacts and contact groups in a mailbox, which lets {@link ContactAutoComplete}
+ * answer a keystroke without an index search.  It also holds on to the mailbox's {@link ContactRankings}, so that
+ * the ranking table isn't read from the database on every request either.
+ * <p>
+ * The index of a mailbox is built the first time it is asked for and kept up to date by {@link Listener} after
+ * that.  Indexes are softly referenced, so they are dropped under memory pressure and rebuilt on the next request.
+ * <p>
+ * The index only narrows down the candidates.  It returns the contacts with a word starting with each of the query
+ * tokens, and {@link ContactAutoComplete#addMatchedContacts} still decides which of them match.
+ */
+final class ContactAutoCompleteIndex {
+
+    // fields ContactAutoComplete matches word by word; of the other fields only email addresses are indexed
+    private static final Set<String> NAME_FIELDS = ImmutableSet.of(
+            ContactConstants.A_firstName, ContactConstants.A_lastName, ContactConstants.A_middleName,
+            ContactConstants.A_fullName, ContactConstants.A_nickname,
+            ContactConstants.A_phoneticFirstName, ContactConstants.A_phoneticLastName);
+    private static final Splitter WORD_SPLITTER = Splitter.on(CharMatcher.whitespace()).omitEmptyStrings();
+
+    private static final Cache<String, ContactAutoCompleteIndex> CACHE = CacheBuilder.newBuilder()
+            .softValues()
+            .maximumSize(LC.contact_autocomplete_index_cache_size.intValue())
+            .build();
+
+    private static final class Entry {
+        final int folderId;
+        final Set<String> words;
+
+        Entry(int folderId, Set<String> words) {
+            this.folderId = folderId;
+            this.words = words;
+        }
+    }
+
+    private final Mailbox mailbox;
+    private final TreeMap<String, Set<Integer>> words = new TreeMap<String, Set<Integer>>();
+    private final Map<Integer, Entry> contacts = new HashMap<Integer, Entry>();
+    private volatile ContactRankings rankings;
+    private int rankingsVersion;
+
+    private ContactAutoCompleteIndex(Mailbox mbox) {
+        mailbox = mbox;
+    }
+
+    /**
+     * Returns the index of the mailbox, building it if it isn't in memory.
+     */
+    static ContactAutoCompleteIndex get(Mailbox mbox) throws ServiceException {
+        ContactAutoCompleteIndex index = CACHE.getIfPresent(mbox.getAccountId());
+        if (index != null && index.mailbox == mbox) {
+            return index;
+        }
+        // listeners are notified with the mailbox write lock held, so holding the read lock while the contacts are
+        // loaded and the index is published guarantees no change is missed in between
+        mbox.lock.lock(false);
+        try {
+            index = CACHE.getIfPresent(mbox.getAccountId());
+            if (index != null && index.mailbox == mbox) {
+                return index;
+            }
+            long start = System.currentTimeMillis();
+            index = new ContactAutoCompleteIndex(mbox);
+            for (MailItem item : mbox.getItemList(null, MailItem.Type.CONTACT)) {
+                index.add((Contact) item);
+            }
+            CACHE.put(mbox.getAccountId(), index);
+            ZimbraLog.gal.debug("built autocomplete index of %d contacts in %dms",
+                    index.contacts.size(), System.currentTimeMillis() - start);
+            return index;
+        } finally {
+            mbox.lock.release();
+        }
+    }
+
+    /**
+     * Drops the cached ranking table of the account after it has been written.
+     */
+    static void rankingsChanged(String accountId) {
+        ContactAutoCompleteIndex index = CACHE.getIfPresent(accountId);
+        if (index != null) {
+            index.clearRankings();
+        }
+    }
+
+    ContactRankings getRankings() throws ServiceException {
+        ContactRankings cached = rankings;
+        if (cached != null) {
+            return cached;
+        }
+        int version;
+        synchronized (this) {
+            version = rankingsVersion;
+        }
+        // read outside the monitor, which listeners take with the mailbox lock held
+        cached = new ContactRankings(mailbox.getAccountId());
+        synchronized (this) {
+            if (version == rankingsVersion) {
+                rankings = cached;
+            }
+        }
+        return cached;
+    }
+
+    private synchronized void clearRankings() {
+        rankingsVersion++;
+        rankings = null;
+    }
+
+    /**
+     * Returns the IDs of the contacts in the given folders that have a word starting with each of the tokens.
+     *
+     * @param tokens lower case query tokens
+     */
+    synchronized List<Integer> search(List<String> tokens, Set<Integer> folderIds) {
+        Set<Integer> result = null;
+        for (String token : tokens) {
+            Set<Integer> ids = new HashSet<Integer>();
+            for (Map.Entry<String, Set<Integer>> entry : words.tailMap(token).entrySet()) {
+                if (!entry.getKey().startsWith(token)) {
+                    break;
+                }
+                ids.addAll(entry.getValue());
+            }
+            if (result == null) {
+                result = ids;
+            } else {
+                result.retainAll(ids);
+            }
+            if (result.isEmpty()) {
+                return Collections.emptyList();
+            }
+        }
+        if (result == null) {
+            return Collections.emptyList();
+        }
+        return inFolders(new TreeSet<Integer>(result), folderIds);
+    }
+
+    /**
+     * Returns the IDs of the contacts in the given folders that have one of the email addresses.
+     */
+    synchronized List<Integer> lookup(Collection<String> emails, Set<Integer> folderIds) {
+        Set<Integer> result = new LinkedHashSet<Integer>();
+        for (String email : emails) {
+            Set<Integer> ids = words.get(email.toLowerCase());
+            if (ids != null) {
+                result.addAll(ids);
+            }
+        }
+        return inFolders(result, folderIds);
+    }
+
+    private List<Integer> inFolders(Collection<Integer> ids, Set<Integer> folderIds) {
+        List<Integer> result = new ArrayList<Integer>(ids.size());
+        for (Integer id : ids) {
+            if (folderIds.contains(contacts.get(id).folderId)) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    private synchronized void add(Contact contact) {
+        remove(contact.getId());
+        Set<String> contactWords = new HashSet<String>();
+        for (Map.Entry<String, String> field : contact.getFields().entrySet()) {
+            String value = field.getValue();
+            if (value == null || value.isEmpty()) {
+                continue;
+            }
+            if (NAME_FIELDS.contains(field.getKey())) {
+                for (String word : WORD_SPLITTER.split(value.toLowerCase())) {
+                    contactWords.add(word);
+                }
+            } else if (value.indexOf('@') >= 0) {
+                // email addresses are matched on the whole value
+                contactWords.add(value.toLowerCase());
+            }
+        }
+        for (String word : contactWords) {
+            Set<Integer> ids = words.get(word);
+            if (ids == null) {
+                ids = new HashSet<Integer>(2);
+                words.put(word, ids);
+            }
+            ids.add(contact.getId());
+        }
+        contacts.put(contact.getId(), new Entry(contact.getFolderId(), contactWords));
+    }
+
+    private synchronized void remove(int id) {
+        Entry entry = contacts.remove(id);
+        if (entry == null) {
+            return;
+        }
+        for (String word : entry.words) {
+            Set<Integer> ids = words.get(word);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    words.remove(word);
+                }
+            }
+        }
+    }
+
+    private synchronized void apply(MailboxListener.ChangeNotification notification) {
+        if (notification.mods.created != null) {
+            for (BaseItemInfo item : notification.mods.created.values()) {
+                if (item instanceof Contact) {
+                    add((Contact) item);
+                }
+            }
+        }
+        if (notification.mods.modified != null) {
+            for (Change change : notification.mods.modified.values()) {
+                if (change.what instanceof Contact) {
+                    add((Contact) change.what);
+                }
+            }
+        }
+        if (notification.mods.deleted != null) {
+            for (ModificationKey key : notification.mods.deleted.keySet()) {
+                remove(key.getItemId());
+            }
+        }
+    }
+
+    /**
+     * Keeps the indexes in memory up to date with contact changes.
+     */
+    static final class Listener extends MailboxListener {
+        private static final Set<MailItem.Type> registeredTypes = Collections.singleton(MailItem.Type.CONTACT);
+
+        @Override
+        public Set<MailItem.Type> registerForItemTypes() {
+            return registeredTypes;
+        }
+
+        @Override
+        public void notify(ChangeNotification notification) {
+            ContactAutoCompleteIndex index = CACHE.getIfPresent(notification.mailboxAccount.getId());
+            if (index != null) {
+                index.apply(notification);
+            }
+        }
+    }
+}
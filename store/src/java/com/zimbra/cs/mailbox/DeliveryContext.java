@@ -21,6 +21,7 @@
 package com.zimbra.cs.mailbox;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -34,15 +35,17 @@ import com.zimbra.cs.store.MailboxBlob;
  * or more folders within the same mailbox due to filter rules.
  * 
  * This class is used to carry information across multiple calls to
- * Mailbox.addMessage() for a single message being delivered.
+ * Mailbox.addMessage() for a single message being delivered.  Those calls
+ * may run concurrently once the first recipient's delivery has stored the
+ * shared blob.
  */
 public class DeliveryContext {
 
     private boolean mShared;
-    private Blob mIncomingBlob;
-    private MailboxBlob mMailboxBlob;
+    private volatile Blob mIncomingBlob;
+    private volatile MailboxBlob mMailboxBlob;
     private List<Integer> mMailboxIdList;
-    private boolean mIsFirst = true;
+    private volatile boolean mIsFirst = true;
     private Map <Integer,Blob> mailBoxBlobMap;
 
     /**
@@ -64,7 +67,7 @@ public class DeliveryContext {
         mMailboxBlob = null;
         mMailboxIdList = mboxIdList;
         if (mShared) {
-            mailBoxBlobMap =  new HashMap<Integer,Blob>();
+            mailBoxBlobMap = Collections.synchronizedMap(new HashMap<Integer,Blob>());
         }
     }
 
@@ -85,7 +88,7 @@ public class DeliveryContext {
         return this;
     }
     
-    public DeliveryContext deepsetIncomingBlob(Blob blob) throws IOException {
+    public synchronized DeliveryContext deepsetIncomingBlob(Blob blob) throws IOException {
         if (null != blob && null != mIncomingBlob) {
             mIncomingBlob.copy(blob);
         } else if (null == mIncomingBlob) {
@@ -810,7 +810,7 @@ public class Mailbox implements MailboxStore {
     boolean requiresWriteLock() {
         //mailbox currently forced to use write lock due to one of the following
         //1. pending tag/flag reload; i.e. cache flush or initial mailbox load
-        //2. this is an always on node (distributed lock does not support read/write currently)
+        //2. this is an always on node (caches are refreshed from the db by the first hold in each transaction)
         //3. read/write disabled by LC for debugging
         return requiresWriteLock || Zimbra.isAlwaysOn() || !LC.zimbra_mailbox_lock_readwrite.booleanValue();
     }
@@ -18,21 +18,30 @@ package com.zimbra.cs.mailbox;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 import org.apache.lucene.analysis.Analyzer;
@@ -41,6 +50,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
 import com.google.common.base.Supplier;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.SetMultimap;
@@ -91,16 +101,48 @@ public final class MailboxIndex {
     private static final int MAX_TX_ITEMS = LC.zimbra_index_max_transaction_items.intValue();
     private static final long FAILURE_DELAY = LC.zimbra_index_deferred_items_failure_delay.intValue() * 1000;
 
+    // Batch index requests that arrived while all index threads were busy. Each index thread works through these
+    // when it finishes a task, so a busy server indexes late rather than not at all.
+    private static final ConcurrentLinkedQueue<MailboxIndex> PENDING_BATCHES = new ConcurrentLinkedQueue<MailboxIndex>();
+
     private static final ThreadPoolExecutor INDEX_EXECUTOR = new ThreadPoolExecutor(
             LC.zimbra_index_threads.intValue(), LC.zimbra_index_threads.intValue(),
             Long.MAX_VALUE, TimeUnit.NANOSECONDS, new SynchronousQueue<Runnable>(),
-            new ThreadFactoryBuilder().setNameFormat("Index-%d").setDaemon(true).build());
+            new ThreadFactoryBuilder().setNameFormat("Index-%d").setDaemon(true).build()) {
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            MailboxIndex next;
+            while ((next = PENDING_BATCHES.poll()) != null) {
+                next.batchPending.set(false);
+                next.new BatchIndexTask().run();
+            }
+        }
+    };
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    // Tokenizes items (MIME parsing, text extraction) for indexItemList(), or null to tokenize on the calling thread.
+    private static final ForkJoinPool PARSE_POOL = LC.zimbra_index_parse_threads.intValue() <= 1 ? null :
+        new ForkJoinPool(LC.zimbra_index_parse_threads.intValue(), new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("IndexParse-" + thread.getPoolIndex());
+                return thread;
+            }
+        }, null, false);
+    private static final int PARSE_WINDOW = Math.max(LC.zimbra_index_parse_window.intValue(), 1);
     // Re-index threads are created on demand basis. The number of threads are capped.
     private static final ExecutorService REINDEX_EXECUTOR = new ThreadPoolExecutor(
             0, LC.zimbra_reindex_threads.intValue(), 0L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
             new ThreadFactoryBuilder().setNameFormat("ReIndex-%d").setDaemon(true).build());
 
     private volatile long lastFailedTime = -1;
+    // whether this mailbox is waiting in PENDING_BATCHES
+    private final AtomicBoolean batchPending = new AtomicBoolean(false);
     // Only one thread may run index at a time.
     private final Semaphore indexLock = new Semaphore(1);
     private final Mailbox mailbox;
@@ -414,7 +456,16 @@ public final class MailboxIndex {
             try {
                 INDEX_EXECUTOR.submit(new BatchIndexTask());
             } catch (RejectedExecutionException e) {
-                ZimbraLog.index.warn("Skipping batch index because all index threads are busy");
+                if (batchPending.compareAndSet(false, true)) {
+                    ZimbraLog.index.debug("All index threads are busy, queueing batch index");
+                    PENDING_BATCHES.add(this);
+                    // in case a thread went idle after the submit was rejected, wake it up to drain the queue
+                    try {
+                        INDEX_EXECUTOR.execute(NOOP);
+                    } catch (RejectedExecutionException stillBusy) {
+                        // the busy threads will pick it up when they finish
+                    }
+                }
             }
         }
     }
@@ -800,6 +851,10 @@ public final class MailboxIndex {
      * Index a potentially very large list of {@link MailItem}s. Iterate through the list of items, fetch each one and
      * call generateIndexData(). Buffer the items, IndexData into a chunk and when the chunk gets sufficiently large,
      * run a Mailbox transaction to actually do the indexing
+     * <p>
+     * Items are fetched on the calling thread, tokenized in parallel on {@link #PARSE_POOL}, and added to the index
+     * back on the calling thread in the order they were fetched. At most {@link #PARSE_WINDOW} items are tokenized
+     * ahead of the index writer, so a slow commit holds back fetching instead of piling up index data in memory.
      *
      * @param ids item IDs to index
      * @param status progress will be written to the status
@@ -813,84 +868,192 @@ public final class MailboxIndex {
             return;
         }
 
-        // we re-index 'chunks' of items -- up to a certain size or count
-        List<Mailbox.IndexItemEntry> chunk = new ArrayList<Mailbox.IndexItemEntry>();
-        long chunkByteSize = 0;
-        int i = 0;
-        for (int id : ids) {
-            i++;
-            status.addProcessed(1);
-
-            // Fetch the item and generate the list of Lucene documents to index. Do this without holding the Mailbox
-            // lock. Once we've accumulated a "chunk" of items, do a mailbox transaction to actually add them to the
-            // index.
-            ZimbraLog.index.debug("Tokenizing id=%d", id);
-            MailItem item = null;
-            try {
-                mailbox.beginReadTransaction("IndexItemList-Fetch", null);
-                item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, false);
-            } catch (MailServiceException.NoSuchItemException e) { // fallback to dumpster
-                try {
-                    item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, true);
-                } catch (MailServiceException.NoSuchItemException again) { // The item has just been deleted.
-                    ZimbraLog.index.debug("deferred item no longer exist id=%d", id);
-                    removeDeferredId(id);
+        IndexChunk chunk = new IndexChunk(status, ids.size());
+        Deque<PendingIndexData> parsing = new ArrayDeque<PendingIndexData>();
+        try {
+            for (int id : ids) {
+                status.addProcessed(1);
+                MailItem item = fetchForIndexing(id, status);
+                if (item == null) {
+                    chunk.skip();
                     continue;
                 }
-            } catch (MailServiceException e) {
-                // fetch without metadata because reindex will regenerate metadata
-                if (MailServiceException.INVALID_METADATA.equals(e.getCode()) && isReIndexInProgress()) {
-                    UnderlyingData ud = DbMailItem.getById(mailbox, id, MailItem.Type.UNKNOWN, false);
-                    ud.metadata = null; // ignore corrupted metadata
-                    item = mailbox.getItem(ud);
-                } else {
-                    throw e;
+                if (PARSE_POOL == null) {
+                    chunk.add(item, null);
+                    continue;
                 }
-            } catch (Exception e) {
-                ZimbraLog.index.warn("Failed to fetch deferred item id=%d", id, e);
-                status.addFailed(1);
-                continue;
+                parsing.add(new PendingIndexData(item, PARSE_POOL.submit(new GenerateIndexData(item))));
+                while (parsing.size() >= PARSE_WINDOW) {
+                    PendingIndexData next = parsing.poll();
+                    chunk.add(next.item, next.data);
+                }
+            }
+            while (!parsing.isEmpty()) {
+                PendingIndexData next = parsing.poll();
+                chunk.add(next.item, next.data);
+            }
+            chunk.flush();
+        } finally {
+            for (PendingIndexData abandoned : parsing) {
+                abandoned.data.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Fetches an item to index without holding the Mailbox lock.
+     *
+     * @return the item, or null if it no longer exists or could not be fetched
+     */
+    private MailItem fetchForIndexing(int id, BatchStatus status) throws ServiceException {
+        ZimbraLog.index.debug("Tokenizing id=%d", id);
+        MailItem item = null;
+        try {
+            mailbox.beginReadTransaction("IndexItemList-Fetch", null);
+            item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, false);
+        } catch (MailServiceException.NoSuchItemException e) { // fallback to dumpster
+            try {
+                item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, true);
+            } catch (MailServiceException.NoSuchItemException again) { // The item has just been deleted.
+                ZimbraLog.index.debug("deferred item no longer exist id=%d", id);
+                removeDeferredId(id);
+                return null;
+            }
+        } catch (MailServiceException e) {
+            // fetch without metadata because reindex will regenerate metadata
+            if (MailServiceException.INVALID_METADATA.equals(e.getCode()) && isReIndexInProgress()) {
+                UnderlyingData ud = DbMailItem.getById(mailbox, id, MailItem.Type.UNKNOWN, false);
+                ud.metadata = null; // ignore corrupted metadata
+                item = mailbox.getItem(ud);
+            } else {
+                throw e;
+            }
+        } catch (Exception e) {
+            ZimbraLog.index.warn("Failed to fetch deferred item id=%d", id, e);
+            status.addFailed(1);
+            return null;
+        } finally {
+            mailbox.endTransaction(item != null);
+        }
+        return item;
+    }
+
+    /** Runs {@link MailItem#generateIndexData()} on {@link #PARSE_POOL}. */
+    private final class GenerateIndexData implements Callable<List<IndexDocument>> {
+        private final MailItem item;
+
+        GenerateIndexData(MailItem item) {
+            this.item = item;
+        }
+
+        @Override
+        public List<IndexDocument> call() throws Exception {
+            ZimbraLog.addMboxToContext(mailbox.getId());
+            try {
+                return item.generateIndexData();
             } finally {
-                mailbox.endTransaction(item != null);
+                ZimbraLog.clearContext();
             }
+        }
+    }
+
+    private static final class PendingIndexData {
+        final MailItem item;
+        final Future<List<IndexDocument>> data;
+
+        PendingIndexData(MailItem item, Future<List<IndexDocument>> data) {
+            this.item = item;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Items and their index data waiting to be added to the index in one mailbox transaction.
+     */
+    private final class IndexChunk {
+        private final BatchStatus status;
+        private final int total;
+        private final List<Mailbox.IndexItemEntry> entries = new ArrayList<Mailbox.IndexItemEntry>();
+        private long byteSize = 0;
+        private int done = 0;
+
+        IndexChunk(BatchStatus status, int total) {
+            this.status = status;
+            this.total = total;
+        }
+
+        void skip() {
+            done++;
+        }
+
+        /**
+         * Adds an item to the chunk, and adds the chunk to the index once it is large enough.
+         *
+         * @param data index data being generated for the item, or null to generate it here
+         */
+        void add(MailItem item, Future<List<IndexDocument>> data) throws ServiceException {
+            done++;
             try {
-                chunk.add(new Mailbox.IndexItemEntry(item, item.generateIndexData()));
+                entries.add(new Mailbox.IndexItemEntry(item, data == null ? item.generateIndexData() : get(item, data)));
             } catch (MailItem.TemporaryIndexingException e) {
-                ZimbraLog.index.warn("Temporary index failure id=%d", id, e);
+                ZimbraLog.index.warn("Temporary index failure id=%d", item.getId(), e);
                 lastFailedTime = System.currentTimeMillis();
                 status.addFailed(1);
-                continue;
+                return;
+            }
+            byteSize += item.getSize();
+            if (byteSize > MAX_TX_BYTES || entries.size() >= MAX_TX_ITEMS) {
+                flush();
             }
-            chunkByteSize += item.getSize();
+        }
 
-            if (i == ids.size() || chunkByteSize > MAX_TX_BYTES || chunk.size() >= MAX_TX_ITEMS) {
-                // we have a chunk of items and their corresponding index data -- add them to the index
-                try {
-                    ZimbraLog.index.debug("Batch progress %d/%d", i, ids.size());
+        private List<IndexDocument> get(MailItem item, Future<List<IndexDocument>> data)
+                throws ServiceException, MailItem.TemporaryIndexingException {
+            try {
+                return data.get();
+            } catch (InterruptedException e) {
+                throw ServiceException.INTERRUPTED("interrupted while tokenizing item " + item.getId());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof MailItem.TemporaryIndexingException) {
+                    throw (MailItem.TemporaryIndexingException) cause;
+                }
+                Throwables.propagateIfPossible(cause, ServiceException.class);
+                throw ServiceException.FAILURE("Failed to tokenize item " + item.getId(), cause);
+            }
+        }
 
-                    if (status.isCancelled()) {
-                        throw ServiceException.INTERRUPTED("cancelled");
-                    }
+        /** Adds the items collected so far to the index. */
+        void flush() throws ServiceException {
+            if (entries.isEmpty()) {
+                return;
+            }
+            // we have a chunk of items and their corresponding index data -- add them to the index
+            try {
+                ZimbraLog.index.debug("Batch progress %d/%d", done, total);
+
+                if (status.isCancelled()) {
+                    throw ServiceException.INTERRUPTED("cancelled");
+                }
 
+                try {
+                    boolean success = false;
                     try {
-                        boolean success = false;
-                        try {
-                            mailbox.beginTransaction("IndexItemList-Commit", null);
-                            for (Mailbox.IndexItemEntry entry : chunk) {
-                                mailbox.addIndexItemToCurrentChange(entry);
-                            }
-                            success = true;
-                        } finally {
-                            mailbox.endTransaction(success);
+                        mailbox.beginTransaction("IndexItemList-Commit", null);
+                        for (Mailbox.IndexItemEntry entry : entries) {
+                            mailbox.addIndexItemToCurrentChange(entry);
                         }
-                    } catch (ServiceException e) {
-                        ZimbraLog.index.warn("Failed to index chunk=%s", chunk, e);
-                        status.addFailed(chunk.size());
+                        success = true;
+                    } finally {
+                        mailbox.endTransaction(success);
                     }
-                } finally {
-                    chunk.clear();
-                    chunkByteSize = 0;
+                } catch (ServiceException e) {
+                    ZimbraLog.index.warn("Failed to index chunk=%s", entries, e);
+                    status.addFailed(entries.size());
                 }
+            } finally {
+                entries.clear();
+                byteSize = 0;
             }
         }
     }
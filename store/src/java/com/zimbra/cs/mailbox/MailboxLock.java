@@ -20,6 +20,8 @@ import java.util.EmptyStackException;
 import java.util.Stack;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessReadWriteLock;
 import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -29,6 +31,7 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mailbox.lock.DebugZLock;
 import com.zimbra.cs.mailbox.lock.ZLock;
+import com.zimbra.cs.stats.SlowRequestSampler;
 import com.zimbra.cs.util.Zimbra;
 import com.zimbra.cs.zookeeper.CuratorManager;
 
@@ -44,13 +47,20 @@ import com.zimbra.cs.zookeeper.CuratorManager;
 public final class MailboxLock {
     private final ZLock zLock = DebugConfig.debugMailboxLock ? new DebugZLock() : new ZLock();
     private InterProcessSemaphoreMutex dLock = null;
+    private InterProcessReadWriteLock dRWLock = null;
+    /** the half of {@link #dRWLock} held by the current thread, if any */
+    private final ThreadLocal<InterProcessMutex> dRWHeld = new ThreadLocal<InterProcessMutex>();
     private final Stack<Boolean> lockStack = new Stack<Boolean>();
     private Mailbox mbox;
 
     public MailboxLock(String id, Mailbox mbox) {
         if (Zimbra.isAlwaysOn()) {
             try {
-                dLock = CuratorManager.getInstance().createLock(id);
+                if (LC.zimbra_mailbox_lock_distributed_readwrite.booleanValue()) {
+                    dRWLock = CuratorManager.getInstance().createReadWriteLock(id);
+                } else {
+                    dLock = CuratorManager.getInstance().createLock(id);
+                }
             } catch (ServiceException se) {
                 ZimbraLog.mailbox.error("could not initialize distributed lock", se);
             }
@@ -58,20 +68,67 @@ public final class MailboxLock {
         this.mbox = mbox;
     }
 
+    @VisibleForTesting
+    MailboxLock(InterProcessReadWriteLock dRWLock, Mailbox mbox) {
+        this.dRWLock = dRWLock;
+        this.mbox = mbox;
+    }
+
+    /**
+     * Acquires the distributed lock on the first hold.  In read/write mode a read hold takes the shared half, so
+     * readers on different nodes don't exclude one another.  Like the local lock, a read hold can't be upgraded: a
+     * nested write hold under an outer read hold is refused, because trading the shared half for the exclusive one
+     * would let the lock go while the outer hold still relies on it.  The local lock is taken before this is called.
+     *
+     * @param write whether the caller asked for a write lock, regardless of whether the local lock was forced to
+     *              write mode by {@link Mailbox#requiresWriteLock()}
+     */
     private void acquireDistributedLock(boolean write) throws ServiceException {
-        //TODO: consider read/write distributed lock
-        if (dLock != null && getHoldCount() == 1) {
+        if (dRWLock != null) {
+            InterProcessMutex held = dRWHeld.get();
+            if (held == null) {
+                if (getHoldCount() == 1) {
+                    acquireDistributedLock(write ? dRWLock.writeLock() : dRWLock.readLock());
+                }
+            } else if (write && held == dRWLock.readLock()) {
+                throw ServiceException.FAILURE("can't upgrade distributed read lock to write", null);
+            }
+        } else if (dLock != null && getHoldCount() == 1) {
+            boolean acquired;
             try {
-                dLock.acquire(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
+                acquired = dLock.acquire(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
             } catch (Exception e) {
-                throw new LockFailedException("could not acquire distributed lock", e);
+                throw ServiceException.FAILURE("could not acquire distributed lock", e);
+            }
+            if (!acquired) {
+                throw ServiceException.FAILURE("timed out acquiring distributed lock", null);
             }
         }
     }
 
-    private void releaseDistributedLock(boolean write) {
-        //TODO: consider read/write distributed lock
-        if (dLock != null && getHoldCount() == 1) {
+    private void acquireDistributedLock(InterProcessMutex mutex) throws ServiceException {
+        boolean acquired;
+        try {
+            acquired = mutex.acquire(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw ServiceException.FAILURE("could not acquire distributed lock", e);
+        }
+        if (!acquired) {
+            throw ServiceException.FAILURE("timed out acquiring distributed lock", null);
+        }
+        dRWHeld.set(mutex);
+    }
+
+    private void releaseDistributedLock() {
+        if (getHoldCount() != 1) {
+            return;
+        }
+        if (dRWLock != null) {
+            InterProcessMutex held = dRWHeld.get();
+            if (held != null) {
+                releaseDistributedLock(held);
+            }
+        } else if (dLock != null && dLock.isAcquiredInThisProcess()) {
             try {
                 dLock.release();
             } catch (Exception e) {
@@ -80,6 +137,15 @@ public final class MailboxLock {
         }
     }
 
+    private void releaseDistributedLock(InterProcessMutex mutex) {
+        dRWHeld.remove();
+        try {
+            mutex.release();
+        } catch (Exception e) {
+            ZimbraLog.mailbox.warn("error while releasing distributed lock", e);
+        }
+    }
+
     int getHoldCount() {
         return zLock.getReadHoldCount() + zLock.getWriteHoldCount();
     }
@@ -158,6 +224,7 @@ public final class MailboxLock {
     }
 
     public void lock(boolean write) {
+        boolean requestedWrite = write;
         write = write || mbox.requiresWriteLock();
         ZimbraLog.mailbox.trace("LOCK %s", (write ? "WRITE" : "READ"));
         assert(neverReadBeforeWrite(write));
@@ -170,7 +237,7 @@ public final class MailboxLock {
                 }
                 lockStack.push(write);
                 try {
-                    acquireDistributedLock(write);
+                    acquireDistributedLock(requestedWrite);
                 } catch (ServiceException e) {
                     release();
                     LockFailedException lfe = new LockFailedException("lockdb");
@@ -191,7 +258,10 @@ public final class MailboxLock {
                 throw e;
             }
             // Wait for the lock up to the timeout.
-            if (tryLockWithTimeout(write)) {
+            long waitStart = System.currentTimeMillis();
+            boolean locked = tryLockWithTimeout(write);
+            SlowRequestSampler.addLockWait(System.currentTimeMillis() - waitStart);
+            if (locked) {
                 if (mbox.requiresWriteLock() && !isWriteLockedByCurrentThread()) {
                     //writer finished a purge while we waited
                     promote();
@@ -199,7 +269,7 @@ public final class MailboxLock {
                 }
                 lockStack.push(write);
                 try {
-                    acquireDistributedLock(write);
+                    acquireDistributedLock(requestedWrite);
                 } catch (ServiceException e) {
                     release();
                     LockFailedException lfe = new LockFailedException("lockdb");
@@ -233,7 +303,7 @@ public final class MailboxLock {
         //keep release in order so caller doesn't have to manage write/read flag
         ZimbraLog.mailbox.trace("RELEASE %s", (write ? "WRITE" : "READ"));
 
-        releaseDistributedLock(write);
+        releaseDistributedLock();
         if (write) {
             assert(zLock.getWriteHoldCount() > 0);
             zLock.writeLock().unlock();
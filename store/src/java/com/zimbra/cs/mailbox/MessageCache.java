@@ -16,8 +16,12 @@
  */
 package com.zimbra.cs.mailbox;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -25,7 +29,11 @@ import java.util.Map;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.SharedInputStream;
+import javax.mail.util.SharedByteArrayInputStream;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
@@ -52,17 +60,92 @@ public class MessageCache {
         MimeMessage expanded;
         Map<Integer, String> smimeAccessInfo = new HashMap<Integer, String>();
         long size = 0;
+        /** The part of {@link #size} counted in its segment's data size, guarded by the segment. */
+        long charged = 0;
     }
 
-    /** Cache mapping message digest to the corresponding message structure. */
-    private static Map<String, CacheNode> sCache = new LinkedHashMap<String, CacheNode>(150, (float) 0.75, true);
-    /** Maximum number of items in {@link #sCache}. */
-    private static int sMaxCacheSize;
-    /** Number of bytes of message data stored in the cache.  This value includes only
-     * messages that are read into memory, not streamed from disk. */
-    private volatile static long sDataSize = 0;
+    /**
+     * One independently locked part of the cache.  Each segment is an access-ordered map that evicts its least
+     * recently used entries once it holds more than its share of the cache's item count or data size.
+     */
+    private static final class Segment {
+        private final LinkedHashMap<String, CacheNode> map = new LinkedHashMap<String, CacheNode>(16, (float) 0.75, true);
+        private long dataSize = 0;
+
+        synchronized int size() {
+            return map.size();
+        }
+
+        synchronized long getDataSize() {
+            return dataSize;
+        }
+
+        synchronized boolean contains(String digest) {
+            return map.containsKey(digest);
+        }
+
+        synchronized CacheNode get(String digest) {
+            return map.get(digest);
+        }
+
+        synchronized CacheNode remove(String digest) {
+            CacheNode node = map.remove(digest);
+            if (node != null) {
+                dataSize -= node.charged;
+            }
+            return node;
+        }
+
+        synchronized void put(String digest, CacheNode node) {
+            CacheNode old = map.put(digest, node);
+            if (old != null) {
+                dataSize -= old.charged;
+            }
+            node.charged = node.size;
+            dataSize += node.charged;
+            trim();
+        }
+
+        /** Brings the data size up to date after a cached node was loaded or expanded in place. */
+        synchronized void reweigh(String digest, CacheNode node) {
+            if (map.get(digest) == node) {
+                dataSize += node.size - node.charged;
+                node.charged = node.size;
+                trim();
+            }
+        }
+
+        private void trim() {
+            int maxCount = (sMaxCacheSize + sSegments.length - 1) / sSegments.length;
+            long maxDataSize = sMaxDataSize > 0 ? sMaxDataSize / sSegments.length : Long.MAX_VALUE;
+            Iterator<Map.Entry<String, CacheNode>> it = map.entrySet().iterator();
+            while ((map.size() > maxCount || dataSize > maxDataSize) && it.hasNext()) {
+                Map.Entry<String, CacheNode> entry = it.next();
+                sLog.debug("Pruning digest %s from the cache.", entry.getKey());
+                it.remove();
+                dataSize -= entry.getValue().charged;
+                ZimbraPerf.COUNTER_MBOX_MSG_CACHE_EVICTION.increment();
+            }
+        }
+    }
+
+    /** Cache mapping message digest to the corresponding message structure, split by digest hash. */
+    private static final Segment[] sSegments;
+    /** Maximum number of items in the cache. */
+    private static volatile int sMaxCacheSize;
+    /** Maximum number of bytes of message data in the cache, or 0 for no limit.  Like {@link #getDataSize()}, this
+     *  includes only messages that are read into memory, not streamed from disk. */
+    private static volatile long sMaxDataSize;
 
     static {
+        int segments = 1;
+        while (segments < Math.min(LC.zimbra_message_cache_segments.intValue(), 1024)) {
+            segments <<= 1;
+        }
+        sSegments = new Segment[segments];
+        for (int i = 0; i < segments; i++) {
+            sSegments[i] = new Segment();
+        }
         try {
             loadSettings();
         } catch (ServiceException e) {
@@ -72,24 +155,58 @@ public class MessageCache {
 
     public static void loadSettings() throws ServiceException {
         sMaxCacheSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize();
+        sMaxDataSize = LC.zimbra_message_cache_max_data_size.longValue();
         ZimbraLog.cache.info("setting message cache size to " + sMaxCacheSize);
     }
 
+    private static Segment segmentFor(String digest) {
+        return sSegments[getSegmentIndex(digest)];
+    }
+
+    @VisibleForTesting
+    static int getSegmentIndex(String digest) {
+        int h = digest == null ? 0 : digest.hashCode();
+        h ^= (h >>> 16);
+        return h & (sSegments.length - 1);
+    }
+
+    @VisibleForTesting
+    static int getSegmentCount() {
+        return sSegments.length;
+    }
+
+    /** Empties the cache. */
+    @VisibleForTesting
+    static void clear() {
+        for (Segment segment : sSegments) {
+            synchronized (segment) {
+                segment.map.clear();
+                segment.dataSize = 0;
+            }
+        }
+    }
+
     /** Returns the number of messages in the cache. */
     public static int getSize() {
-        synchronized (sCache) {
-            return sCache.size();
+        int size = 0;
+        for (Segment segment : sSegments) {
+            size += segment.size();
         }
+        return size;
     }
 
     public static boolean contains(String digest) {
-        synchronized (sCache) {
-            return sCache.containsKey(digest);
-        }
+        return segmentFor(digest).contains(digest);
     }
 
+    /** Returns the number of bytes of message data stored in the cache.  This value includes only
+     *  messages that are read into memory, not streamed from disk. */
     public static long getDataSize() {
-        return sDataSize;
+        long dataSize = 0;
+        for (Segment segment : sSegments) {
+            dataSize += segment.getDataSize();
+        }
+        return dataSize;
     }
 
     /** Uncaches any data associated with the given item.  This must be done
@@ -124,12 +241,8 @@ public class MessageCache {
      *  stale data. */
     public static void purge(String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.remove(digest);
-                if (node != null) {
-                    sLog.debug("Purged digest %s from the message cache.", digest);
-                    sDataSize -= node.size;
-                }
+            if (segmentFor(digest).remove(digest) != null) {
+                sLog.debug("Purged digest %s from the message cache.", digest);
             }
         }
     }
@@ -157,12 +270,11 @@ public class MessageCache {
         int mboxId = item.getMailboxId();
         boolean isEncrypted = false;
 
-        synchronized (sCache) {
-            cnode = sCache.get(digest);
-            if (cnode == null) {
-                newNode = true;
-                cnode = new CacheNode();
-            }
+        Segment segment = segmentFor(digest);
+        cnode = segment.get(digest);
+        if (cnode == null) {
+            newNode = true;
+            cnode = new CacheNode();
         }
 
         try {
@@ -171,14 +283,16 @@ public class MessageCache {
                 cacheHit = false;
                 try {
                     in = fetchFromStore(item);
-                    cnode.message = new Mime.FixedMimeMessage(JMSession.getSession(), in);
-                    if (item.getSize() < MESSAGE_CACHE_DISK_STREAMING_THRESHOLD) {
+                    // JavaMail reads content that isn't a SharedInputStream into memory, whatever its size
+                    boolean inMemory = !(in instanceof SharedInputStream);
+                    if (inMemory && LC.zimbra_message_cache_offheap.booleanValue() &&
+                            item.getSize() < Integer.MAX_VALUE) {
+                        in = toOffHeap(in, (int) item.getSize());
+                    }
+                    if (inMemory || item.getSize() < MESSAGE_CACHE_DISK_STREAMING_THRESHOLD) {
                         cnode.size = item.getSize();
-                        // Not the best place to increment the data size, but cacheItem()
-                        // won't get called if we're expanding a message for an existing
-                        // node.
-                        sDataSize += cnode.size;
                     }
+                    cnode.message = new Mime.FixedMimeMessage(JMSession.getSession(), in);
                 } finally {
                     ByteUtil.closeStream(in);
                 }
@@ -220,6 +334,8 @@ public class MessageCache {
 
             if (newNode) {
                 cacheItem(digest, cnode);
+            } else if (cnode.size != cnode.charged) {
+                segment.reweigh(digest, cnode);
             }
         } catch (IOException e) {
             throw ServiceException.FAILURE("IOException while retrieving content for item " + item.getId(), e);
@@ -232,9 +348,11 @@ public class MessageCache {
         if (cacheHit) {
             sLog.debug("Cache hit for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
             ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(100);
+            ZimbraPerf.COUNTER_MBOX_MSG_CACHE_HIT.increment();
         } else {
             sLog.debug("Cache miss for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
             ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(0);
+            ZimbraPerf.COUNTER_MBOX_MSG_CACHE_MISS.increment();
         }
 
         if (expand) {
@@ -286,7 +404,6 @@ public class MessageCache {
         expander.expand();
         cnode.expanded = expander.getExpanded();
         if (cnode.expanded != cnode.message) {
-            sDataSize += cnode.size;
             cnode.size *= 2;
         }
     }
@@ -334,6 +451,116 @@ public class MessageCache {
      *  local stores, all cached messages are backed by disk.) */
     private static final int MESSAGE_CACHE_DISK_STREAMING_THRESHOLD = 4096;
 
+    /**
+     * Reads the message content into a direct buffer, so that the parsed message refers to the content there
+     * rather than to a copy on the heap.  The buffer is allocated once, at the blob size; content that turns out
+     * to be longer than that, or that doesn't fit in the direct memory left, is kept on the heap instead.  The
+     * buffer is freed by the garbage collector once the message is evicted and no longer read, since the parsed
+     * parts share it.  The stream is closed.
+     */
+    private static InputStream toOffHeap(InputStream in, int size) throws IOException {
+        ByteBuffer buf;
+        try {
+            buf = ByteBuffer.allocateDirect(Math.max(size, 0));
+        } catch (OutOfMemoryError e) {
+            sLog.warn("Unable to allocate %d bytes of direct memory.  Keeping the message on the heap.", size);
+            return new SharedByteArrayInputStream(ByteUtil.getContent(in, size));
+        }
+        ReadableByteChannel channel = Channels.newChannel(in);
+        try {
+            while (buf.hasRemaining()) {
+                if (channel.read(buf) < 0) {
+                    break;
+                }
+            }
+            if (!buf.hasRemaining()) {
+                int b = in.read();
+                if (b >= 0) {
+                    // longer than the blob size said; copy it all to the heap rather than grow the buffer
+                    byte[] head = new byte[buf.capacity()];
+                    buf.flip();
+                    buf.get(head);
+                    ByteArrayOutputStream out = new ByteArrayOutputStream(head.length * 2);
+                    out.write(head);
+                    out.write(b);
+                    ByteUtil.copy(in, false, out, false);
+                    return new SharedByteArrayInputStream(out.toByteArray());
+                }
+            }
+        } finally {
+            channel.close();
+        }
+        buf.flip();
+        return new ByteBufferInputStream(buf);
+    }
+
+    /** A {@link SharedInputStream} over a byte buffer; the buffer is shared with the streams it creates. */
+    private static final class ByteBufferInputStream extends InputStream implements SharedInputStream {
+        private final ByteBuffer buf;
+        private int mark = 0;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            } else if (!buf.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(int readlimit) {
+            mark = buf.position();
+        }
+
+        @Override
+        public void reset() {
+            buf.position(mark);
+        }
+
+        @Override
+        public long getPosition() {
+            return buf.position();
+        }
+
+        @Override
+        public InputStream newStream(long start, long end) {
+            ByteBuffer dup = buf.duplicate();
+            dup.limit(end < 0 ? buf.limit() : (int) end);
+            dup.position((int) start);
+            return new ByteBufferInputStream(dup.slice());
+        }
+    }
+
     static InputStream fetchFromStore(MailItem item) throws ServiceException, IOException {
         MailboxBlob mblob = item.getBlob();
         if (mblob == null)
@@ -362,38 +589,24 @@ public class MessageCache {
 
     private static void cacheItem(String digest, CacheNode cnode) {
         sLog.debug("Caching MimeMessage for digest %s.", digest);
-        synchronized (sCache) {
-            sCache.put(digest, cnode);
-            // Cache data size was incremented in getMimeMessage().
-
-            // trim the cache if needed
-            if (sCache.size() > sMaxCacheSize) {
-                Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-                while (sCache.size() > sMaxCacheSize && it.hasNext()) {
-                    Map.Entry<String, CacheNode> entry = it.next();
-                    sLog.debug("Pruning digest %s from the cache.", entry.getKey());
-                    it.remove();
-                    sDataSize -= entry.getValue().size;
-                }
-            }
-        }
+        segmentFor(digest).put(digest, cnode);
     }
 
     public static void removeDecryptedMessages(int mboxId) {
         sLog.debug("Start removing decrypted messages for mboxId=%d", mboxId);
-        synchronized (sCache) {
-            Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, CacheNode> entry = it.next();
-                CacheNode cacheNode = entry.getValue();
-                try {
-                    if (Mime.isEncrypted(cacheNode.message.getContentType())
-                        && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
-                        cacheNode.smimeAccessInfo.remove(mboxId);
+        for (Segment segment : sSegments) {
+            synchronized (segment) {
+                for (Map.Entry<String, CacheNode> entry : segment.map.entrySet()) {
+                    CacheNode cacheNode = entry.getValue();
+                    try {
+                        if (Mime.isEncrypted(cacheNode.message.getContentType())
+                            && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
+                            cacheNode.smimeAccessInfo.remove(mboxId);
+                        }
+                    } catch (MessagingException e) {
+                        sLog.warn("MessagingException while checking content type for cache node with digest = %s",
+                            entry.getKey(), e);
                     }
-                } catch (MessagingException e) {
-                    sLog.warn("MessagingException while checking content type for cache node with digest = %s",
-                        entry.getKey(), e);
                 }
             }
         }
@@ -402,11 +615,9 @@ public class MessageCache {
 
     public static String getDecryptionError(int id, String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.get(digest);
-                if (node != null) {
-                    return node.smimeAccessInfo.get(id);
-                }
+            CacheNode node = segmentFor(digest).get(digest);
+            if (node != null) {
+                return node.smimeAccessInfo.get(id);
             }
         }
         return null;
@@ -18,10 +18,8 @@
 package com.zimbra.cs.mailbox.calendar.cache;
 
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -57,7 +55,6 @@ import com.zimbra.cs.stats.ZimbraPerf;
 
 // TODO: caching remote calendars
 // TODO: TTL instead of last-modified time check, if folder configured that way or remote
-// TODO: high cache stickiness (or dedicated non-LRU cache) for heavily shared, almost read-only calendars
 // TODO: is the cached data friendly to JSON2 serialization?
 //       currently missing: CATEGORY, CREATED, LAST-MODIFIED, DESCRIPTION, STREET, CSZ, PHONE,
 //       RECUR,
@@ -362,134 +359,19 @@ public class CalSummaryCache {
         sMaxSearchDays = LC.calendar_search_max_days.intValueWithinRange(0, 3660);
     }
 
-    @SuppressWarnings("serial")
-    private static class SummaryLRU extends LinkedHashMap<CalSummaryKey, CalendarData> {
-        private final int mMaxAllowed;
-
-        // map that keeps track of which calendar folders are cached for each account
-        // This map is updated every time a calendar folder is added, removed, or aged out
-        // of the LRU.
-        private final Map<String /* account id */, Set<Integer> /* folder ids */> mAccountFolders;
-
-        private SummaryLRU(int capacity) {
-            super(capacity + 1, 1.0f, true);
-            mMaxAllowed = Math.max(capacity, 1);
-            mAccountFolders = new HashMap<String, Set<Integer>>();
-        }
-
-        @Override
-        public void clear() {
-            super.clear();
-            mAccountFolders.clear();
-        }
-
-        @Override
-        public CalendarData put(CalSummaryKey key, CalendarData value) {
-            CalendarData prevVal = super.put(key, value);
-            if (prevVal == null)
-                registerWithAccount(key);
-            return prevVal;
-        }
-
-        @Override
-        public void putAll(Map<? extends CalSummaryKey, ? extends CalendarData> t) {
-            super.putAll(t);
-            for (CalSummaryKey key : t.keySet()) {
-                registerWithAccount(key);
-            }
-        }
-
-        @Override
-        public CalendarData remove(Object key) {
-            CalendarData prevVal = super.remove(key);
-            if (prevVal != null && key instanceof CalSummaryKey) {
-                CalSummaryKey k = (CalSummaryKey) key;
-                deregisterFromAccount(k);
-            }
-            return prevVal;
-        }
-
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<CalSummaryKey, CalendarData> eldest) {
-            boolean remove = size() > mMaxAllowed;
-            if (remove)
-                deregisterFromAccount(eldest.getKey());
-            return remove;
-        }
-
-        private void registerWithAccount(CalSummaryKey key) {
-            String accountId = key.getAccountId();
-            int folderId = key.getFolderId();
-            Set<Integer> folders = mAccountFolders.get(accountId);
-            if (folders == null) {
-                folders = new HashSet<Integer>();
-                mAccountFolders.put(accountId, folders);
-            }
-            folders.add(folderId);
-        }
-
-        private void deregisterFromAccount(CalSummaryKey key) {
-            String accountId = key.getAccountId();
-            int folderId = key.getFolderId();
-            Set<Integer> folders = mAccountFolders.get(accountId);
-            if (folders != null) {
-                folders.remove(folderId);
-                // If no folders are cached for the account, drop the account entry from the map to save memory.
-                if (folders.isEmpty())
-                    mAccountFolders.remove(accountId);
-            }
-        }
-
-        public static final int FOLDER_NOT_FOUND = -1;
-
-        public int getFolderForItem(String accountId, int itemId) {
-            int retval = FOLDER_NOT_FOUND;
-            Set<Integer> folders = mAccountFolders.get(accountId);
-            if (folders != null) {
-                for (int folderId : folders) {
-                    CalSummaryKey key = new CalSummaryKey(accountId, folderId);
-                    CalendarData calData = get(key);
-                    if (calData != null) {
-                        CalendarItemData ci = calData.getCalendarItemData(itemId);
-                        if (ci != null) {
-                            retval = folderId;
-                            break;
-                        }
-                    }
-                }
-            }
-            return retval;
-        }
-
-        /**
-         * Toss all folders of the account from the LRU.
-         * @param mboxId
-         */
-        public void removeAccount(String accountId) {
-            Set<Integer> folders = mAccountFolders.get(accountId);
-            if (folders != null) {
-                // Get a copy of the folder list to avoid ConcurrentModificationException on mMboxFolders.
-                Integer[] fids = folders.toArray(new Integer[0]);
-                for (int folderId : fids) {
-                    CalSummaryKey key = new CalSummaryKey(accountId, folderId);
-                    remove(key);
-                }
-            }
-        }
-    }
-
-    // LRU cache containing range-limited calendar summary by calendar folder
-    private final SummaryLRU mSummaryCache;
+    // heap cache containing range-limited calendar summary by calendar folder
+    private final CalSummaryHeapCache mSummaryCache;
     private final int mLRUCapacity;
     private final CalSummaryMemcachedCache mMemcachedCache;
 
     CalSummaryCache(final int capacity) {
         mLRUCapacity = capacity;
-        mSummaryCache = new SummaryLRU(capacity);
+        mSummaryCache = new CalSummaryHeapCache(capacity, LC.calendar_cache_max_memory_size.longValue(),
+                LC.calendar_cache_hot_percent.intValue());
         mMemcachedCache = new CalSummaryMemcachedCache();
     }
 
-    private static enum CacheLevel { Memory, Memcached, File, Miss }
+    private static enum CacheLevel { Hot, Memory, Memcached, File, Miss }
 
     public class CalendarDataResult {
         public CalendarData data;
@@ -510,8 +392,7 @@ public class CalSummaryCache {
         CalendarDataResult result = new CalendarDataResult();
 
         if (!LC.calendar_cache_enabled.booleanValue()) {
-            ZimbraPerf.COUNTER_CALENDAR_CACHE_HIT.increment(0);
-            ZimbraPerf.COUNTER_CALENDAR_CACHE_MEM_HIT.increment(0);
+            recordHit(CacheLevel.Miss);
             if (!targetAcctOnLocalServer)
                 return null;
             Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(targetAcct);
@@ -547,8 +428,7 @@ public class CalSummaryCache {
         CalSummaryKey key = new CalSummaryKey(targetAcctId, folderId);
         CalendarData calData = mMemcachedCache.getForRange(key, rangeStart, rangeEnd);
         if (calData != null) {
-            ZimbraPerf.COUNTER_CALENDAR_CACHE_HIT.increment(1);
-            ZimbraPerf.COUNTER_CALENDAR_CACHE_MEM_HIT.increment(1);
+            recordHit(CacheLevel.Memcached);
             result.data = calData;
             if (ZimbraLog.calendar.isDebugEnabled()) {
                 ZimbraLog.calendar.debug("Calendar Summary for %s:%s reloaded (memcached) - %s items private=%s",
@@ -566,6 +446,8 @@ public class CalSummaryCache {
         }
 
         int lruSize = 0;
+        int hotSize = 0;
+        boolean hot = false;
         CacheLevel dataFrom = CacheLevel.Memory;
         boolean incrementalUpdate = sMaxStaleItems > 0;
 
@@ -575,11 +457,13 @@ public class CalSummaryCache {
         OperationContext ownerOctxt = new OperationContext(targetAcct);
         int currentModSeq = folder.getImapMODSEQ();
 
-        // Lookup from heap LRU.
+        // Lookup from heap cache.
             synchronized (mSummaryCache) {
                 if (mLRUCapacity > 0) {
                     calData = mSummaryCache.get(key);
+                    hot = mSummaryCache.isLastHitHot();
                     lruSize = mSummaryCache.size();
+                    hotSize = mSummaryCache.getHotSize();
                 }
             }
             if (calData != null) {
@@ -587,7 +471,7 @@ public class CalSummaryCache {
                 if (calData.getModSeq() > currentModSeq) {
                     calData = null;
                 } else {
-                    dataFrom = CacheLevel.Memory;
+                    dataFrom = hot ? CacheLevel.Hot : CacheLevel.Memory;
                     // Data loaded from heap LRU supports incremental update for stale items.
                     incrementalUpdate = sMaxStaleItems > 0;
                 }
@@ -604,6 +488,7 @@ public class CalSummaryCache {
                             synchronized (mSummaryCache) {
                                 mSummaryCache.put(key, calData);
                                 lruSize = mSummaryCache.size();
+                                hotSize = mSummaryCache.getHotSize();
                             }
                         }
                     } else {
@@ -652,6 +537,7 @@ public class CalSummaryCache {
                 if (mLRUCapacity > 0) {
                     mSummaryCache.put(key, calData);
                     lruSize = mSummaryCache.size();
+                    hotSize = mSummaryCache.getHotSize();
                 }
             }
             dataFrom = CacheLevel.Miss;
@@ -683,26 +569,9 @@ public class CalSummaryCache {
                     reusableCalData, incrementalUpdate);
         }
 
-        // hit/miss tracking
-        // COUNTER_CALENDAR_CACHE_HIT - A hit is a successful lookup from either memory or file.
-        // COUNTER_CALENDAR_CACHE_MEM_HIT - A hit is a successful lookup from memory only.
-        switch (dataFrom) {
-        case Memory:
-        case Memcached:
-            ZimbraPerf.COUNTER_CALENDAR_CACHE_HIT.increment(1);
-            ZimbraPerf.COUNTER_CALENDAR_CACHE_MEM_HIT.increment(1);
-            break;
-        case File:
-            ZimbraPerf.COUNTER_CALENDAR_CACHE_HIT.increment(1);
-            ZimbraPerf.COUNTER_CALENDAR_CACHE_MEM_HIT.increment(0);
-            break;
-        case Miss:
-        default:
-            ZimbraPerf.COUNTER_CALENDAR_CACHE_HIT.increment(0);
-            ZimbraPerf.COUNTER_CALENDAR_CACHE_MEM_HIT.increment(0);
-            break;
-        }
+        recordHit(dataFrom);
         ZimbraPerf.COUNTER_CALENDAR_CACHE_LRU_SIZE.increment(lruSize);
+        ZimbraPerf.COUNTER_CALENDAR_CACHE_HOT_SIZE.increment(hotSize);
 
         if (ZimbraLog.calendar.isDebugEnabled()) {
             ZimbraLog.calendar.debug("Calendar Summary for %s:%s reloaded (dataFrom=%s) - %s items private=%s",
@@ -712,6 +581,21 @@ public class CalSummaryCache {
         return result;
     }
 
+    // hit/miss tracking
+    // COUNTER_CALENDAR_CACHE_HIT - A hit is a successful lookup from either memory or file.
+    // COUNTER_CALENDAR_CACHE_MEM_HIT - A hit is a successful lookup from memory (heap or memcached) only.
+    // COUNTER_CALENDAR_CACHE_HOT_HIT, _MEMCACHED_HIT, _FILE_HIT - A hit is a successful lookup from that level only.
+    private static void recordHit(CacheLevel dataFrom) {
+        boolean hit = dataFrom != CacheLevel.Miss;
+        boolean memHit = dataFrom == CacheLevel.Hot || dataFrom == CacheLevel.Memory ||
+                dataFrom == CacheLevel.Memcached;
+        ZimbraPerf.COUNTER_CALENDAR_CACHE_HIT.increment(hit ? 1 : 0);
+        ZimbraPerf.COUNTER_CALENDAR_CACHE_MEM_HIT.increment(memHit ? 1 : 0);
+        ZimbraPerf.COUNTER_CALENDAR_CACHE_HOT_HIT.increment(dataFrom == CacheLevel.Hot ? 1 : 0);
+        ZimbraPerf.COUNTER_CALENDAR_CACHE_MEMCACHED_HIT.increment(dataFrom == CacheLevel.Memcached ? 1 : 0);
+        ZimbraPerf.COUNTER_CALENDAR_CACHE_FILE_HIT.increment(dataFrom == CacheLevel.File ? 1 : 0);
+    }
+
     private void invalidateSummary(Mailbox mbox, int folderId) {
         if (!LC.calendar_cache_enabled.booleanValue())
             return;
@@ -734,7 +618,7 @@ public class CalSummaryCache {
         CalendarData calData = null;
         synchronized (mSummaryCache) {
             if (mLRUCapacity > 0) {
-                calData = mSummaryCache.get(key);
+                calData = mSummaryCache.peek(key);
             }
         }
         // Invalidate the item from the calendar.
@@ -776,7 +660,7 @@ public class CalSummaryCache {
                         synchronized (mSummaryCache) {
                             prevFolderId = mSummaryCache.getFolderForItem(accountId, itemId);
                         }
-                        if (prevFolderId != folderId && prevFolderId != SummaryLRU.FOLDER_NOT_FOUND) {
+                        if (prevFolderId != folderId && prevFolderId != CalSummaryHeapCache.FOLDER_NOT_FOUND) {
                             invalidateItem(mbox, prevFolderId, itemId);
                         }
                     }
@@ -814,7 +698,7 @@ public class CalSummaryCache {
                         synchronized (mSummaryCache) {
                             folderId = mSummaryCache.getFolderForItem(accountId, itemId);
                         }
-                        if (folderId != SummaryLRU.FOLDER_NOT_FOUND) {
+                        if (folderId != CalSummaryHeapCache.FOLDER_NOT_FOUND) {
                             invalidateItem(mbox, folderId, itemId);
                         }
                     }
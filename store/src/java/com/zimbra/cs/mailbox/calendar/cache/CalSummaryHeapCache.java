@@ -0,0 +1,355 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox.calendar.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory cache of calendar summaries, weighed by their estimated heap size.
+ * <p>
+ * The cache has two LRU segments.  Summaries enter the general segment.  A summary that is read often enough is
+ * promoted to the hot segment, which is reserved for calendars read by many users, such as resource calendars and
+ * heavily shared team calendars.  Admission to a full hot segment is TinyLFU-style: the candidate must have been
+ * read more often than the hot summaries it would push back to the general segment, according to a small
+ * frequency sketch that halves its counts periodically.  A burst of one-off personal calendar views therefore
+ * churns through the general segment without evicting the shared calendars.
+ * <p>
+ * Not thread-safe; callers synchronize on the cache.
+ */
+final class CalSummaryHeapCache {
+
+    static final int FOLDER_NOT_FOUND = -1;
+
+    // reads before a summary is considered for the hot segment
+    static final int HOT_MIN_FREQUENCY = 4;
+
+    private static final class Entry {
+        final CalendarData data;
+        final long weight;
+
+        Entry(CalendarData data) {
+            this.data = data;
+            this.weight = data.getEstimatedSize();
+        }
+    }
+
+    private final int capacity;
+    private final long maxWeight;
+    private final int hotCapacity;
+    private final long hotMaxWeight;
+
+    private final LinkedHashMap<CalSummaryKey, Entry> general = new LinkedHashMap<CalSummaryKey, Entry>(16, 0.75f, true);
+    private final LinkedHashMap<CalSummaryKey, Entry> hot = new LinkedHashMap<CalSummaryKey, Entry>(16, 0.75f, true);
+    private long generalWeight;
+    private long hotWeight;
+    private final FrequencySketch sketch;
+    private boolean lastHitHot;
+
+    // which calendar folders are cached for each account, in either segment
+    private final Map<String /* account id */, Set<Integer> /* folder ids */> accountFolders =
+            new HashMap<String, Set<Integer>>();
+
+    /**
+     * @param capacity maximum number of summaries
+     * @param maxWeight maximum total estimated size of the summaries in bytes, or 0 for no limit
+     * @param hotPercent share of both limits the hot segment may use
+     */
+    CalSummaryHeapCache(int capacity, long maxWeight, int hotPercent) {
+        this.capacity = Math.max(capacity, 1);
+        this.maxWeight = maxWeight > 0 ? maxWeight : Long.MAX_VALUE;
+        hotPercent = Math.max(0, Math.min(hotPercent, 100));
+        hotCapacity = (int) ((long) this.capacity * hotPercent / 100);
+        hotMaxWeight = maxWeight > 0 ? maxWeight / 100 * hotPercent : Long.MAX_VALUE;
+        sketch = new FrequencySketch(this.capacity);
+    }
+
+    /**
+     * Looks up a summary and records the read.  {@link #isLastHitHot()} tells which segment served it.
+     */
+    CalendarData get(CalSummaryKey key) {
+        sketch.increment(key);
+        Entry entry = hot.get(key);
+        lastHitHot = entry != null;
+        if (entry != null) {
+            return entry.data;
+        }
+        entry = general.get(key);
+        if (entry == null) {
+            return null;
+        }
+        promote(key, entry, sketch.frequency(key));
+        return entry.data;
+    }
+
+    /**
+     * Looks up a summary without recording a read or changing its position.
+     */
+    CalendarData peek(CalSummaryKey key) {
+        Entry entry = hot.get(key);
+        if (entry == null) {
+            entry = general.get(key);
+        }
+        return entry != null ? entry.data : null;
+    }
+
+    boolean isHot(CalSummaryKey key) {
+        return hot.containsKey(key);
+    }
+
+    /**
+     * Returns whether the last {@link #get} found its summary in the hot segment.  A summary promoted by that read
+     * was served by the general segment.
+     */
+    boolean isLastHitHot() {
+        return lastHitHot;
+    }
+
+    /**
+     * Adds or replaces a summary.  A replaced summary stays in its segment.
+     */
+    void put(CalSummaryKey key, CalendarData data) {
+        Entry entry = new Entry(data);
+        Entry prev = hot.get(key);
+        if (prev != null) {
+            hot.put(key, entry);
+            hotWeight += entry.weight - prev.weight;
+        } else {
+            prev = general.put(key, entry);
+            generalWeight += entry.weight - (prev != null ? prev.weight : 0);
+            if (prev == null) {
+                registerWithAccount(key);
+            }
+        }
+        evict();
+    }
+
+    CalendarData remove(CalSummaryKey key) {
+        Entry entry = hot.remove(key);
+        if (entry != null) {
+            hotWeight -= entry.weight;
+        } else {
+            entry = general.remove(key);
+            if (entry == null) {
+                return null;
+            }
+            generalWeight -= entry.weight;
+        }
+        deregisterFromAccount(key);
+        return entry.data;
+    }
+
+    void clear() {
+        general.clear();
+        hot.clear();
+        generalWeight = 0;
+        hotWeight = 0;
+        accountFolders.clear();
+    }
+
+    int size() {
+        return general.size() + hot.size();
+    }
+
+    int getHotSize() {
+        return hot.size();
+    }
+
+    long getWeight() {
+        return generalWeight + hotWeight;
+    }
+
+    /**
+     * Moves a summary that was just read in the general segment to the hot segment, if it is read often enough
+     * and more often than the hot summaries it would displace.
+     */
+    private void promote(CalSummaryKey key, Entry entry, int freq) {
+        if (freq < HOT_MIN_FREQUENCY || hotCapacity == 0 || entry.weight > hotMaxWeight) {
+            return;
+        }
+        int size = hot.size() + 1;
+        long weight = hotWeight + entry.weight;
+        List<CalSummaryKey> victims = new ArrayList<CalSummaryKey>();
+        Iterator<Map.Entry<CalSummaryKey, Entry>> it = hot.entrySet().iterator();
+        while ((size > hotCapacity || weight > hotMaxWeight) && it.hasNext()) {
+            Map.Entry<CalSummaryKey, Entry> victim = it.next();
+            if (sketch.frequency(victim.getKey()) >= freq) {
+                return;
+            }
+            victims.add(victim.getKey());
+            size--;
+            weight -= victim.getValue().weight;
+        }
+        // demoted summaries get another chance at the most recently used end of the general segment
+        for (CalSummaryKey victim : victims) {
+            Entry demoted = hot.remove(victim);
+            hotWeight -= demoted.weight;
+            general.put(victim, demoted);
+            generalWeight += demoted.weight;
+        }
+        general.remove(key);
+        generalWeight -= entry.weight;
+        hot.put(key, entry);
+        hotWeight += entry.weight;
+    }
+
+    private void evict() {
+        // a summary replaced in the hot segment may have grown past the hot segment's share
+        Iterator<Map.Entry<CalSummaryKey, Entry>> it = hot.entrySet().iterator();
+        while ((hot.size() > hotCapacity || hotWeight > hotMaxWeight) && it.hasNext()) {
+            Map.Entry<CalSummaryKey, Entry> eldest = it.next();
+            it.remove();
+            hotWeight -= eldest.getValue().weight;
+            general.put(eldest.getKey(), eldest.getValue());
+            generalWeight += eldest.getValue().weight;
+        }
+        it = general.entrySet().iterator();
+        while ((size() > capacity || getWeight() > maxWeight) && it.hasNext()) {
+            Map.Entry<CalSummaryKey, Entry> eldest = it.next();
+            it.remove();
+            generalWeight -= eldest.getValue().weight;
+            deregisterFromAccount(eldest.getKey());
+        }
+    }
+
+    private void registerWithAccount(CalSummaryKey key) {
+        String accountId = key.getAccountId();
+        Set<Integer> folders = accountFolders.get(accountId);
+        if (folders == null) {
+            folders = new HashSet<Integer>();
+            accountFolders.put(accountId, folders);
+        }
+        folders.add(key.getFolderId());
+    }
+
+    private void deregisterFromAccount(CalSummaryKey key) {
+        String accountId = key.getAccountId();
+        Set<Integer> folders = accountFolders.get(accountId);
+        if (folders != null) {
+            folders.remove(key.getFolderId());
+            // If no folders are cached for the account, drop the account entry from the map to save memory.
+            if (folders.isEmpty()) {
+                accountFolders.remove(accountId);
+            }
+        }
+    }
+
+    /**
+     * Returns the id of the cached calendar folder of the account that contains the item, or
+     * {@link #FOLDER_NOT_FOUND}.
+     */
+    int getFolderForItem(String accountId, int itemId) {
+        Set<Integer> folders = accountFolders.get(accountId);
+        if (folders != null) {
+            for (int folderId : folders) {
+                CalendarData calData = peek(new CalSummaryKey(accountId, folderId));
+                if (calData != null && calData.getCalendarItemData(itemId) != null) {
+                    return folderId;
+                }
+            }
+        }
+        return FOLDER_NOT_FOUND;
+    }
+
+    /**
+     * Toss all folders of the account from the cache.
+     */
+    void removeAccount(String accountId) {
+        Set<Integer> folders = accountFolders.get(accountId);
+        if (folders != null) {
+            // Get a copy of the folder list to avoid ConcurrentModificationException on accountFolders.
+            Integer[] fids = folders.toArray(new Integer[0]);
+            for (int folderId : fids) {
+                remove(new CalSummaryKey(accountId, folderId));
+            }
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit read counters.  Every counter is halved after 10 reads per slot, so the counts
+     * reflect recent popularity rather than all-time totals.
+     */
+    static final class FrequencySketch {
+        private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int maxEntries) {
+            int size = Integer.highestOneBit(Math.max(maxEntries, 16) - 1) << 1;
+            table = new long[size];
+            sampleSize = 10 * size;
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int freq = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                freq = Math.min(freq, (int) ((table[indexOf(hash, i)] >>> offsetOf(hash, i)) & 0xfL));
+            }
+            return freq;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = indexOf(hash, i);
+                int offset = offsetOf(hash, i);
+                if (((table[index] >>> offset) & 0xfL) != 0xfL) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions /= 2;
+        }
+
+        private int indexOf(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            return (int) (h >>> 32) & (table.length - 1);
+        }
+
+        // each row uses its own 4 of the 16 counters in a slot
+        private static int offsetOf(int hash, int row) {
+            return ((row << 2) + ((hash >>> (row << 3)) & 3)) << 2;
+        }
+
+        private static int spread(int hash) {
+            hash *= 0x9e3779b9;
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
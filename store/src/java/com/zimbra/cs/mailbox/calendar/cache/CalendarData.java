@@ -64,6 +64,18 @@ public class CalendarData {
     public Iterator<CalendarItemData> calendarItemIterator() { return mCalendarItems.iterator(); }
     public int getNumItems() { return mCalendarItems.size(); }
 
+    /**
+     * Returns a rough estimate of the heap used by this calendar summary, in bytes.  This is what the in-memory
+     * summary cache weighs entries by.
+     */
+    long getEstimatedSize() {
+        long size = 256;
+        for (CalendarItemData calItemData : mCalendarItems) {
+            size += 64 + calItemData.getEstimatedSize();
+        }
+        return size;
+    }
+
     public CalendarData getSubRange(long rangeStart, long rangeEnd) {
         if (rangeStart <= mRangeStart && rangeEnd >= mRangeEnd)
             return this;
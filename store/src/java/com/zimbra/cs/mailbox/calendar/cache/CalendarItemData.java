@@ -127,6 +127,20 @@ public class CalendarItemData {
         return mInstances.size();
     }
 
+    /**
+     * Returns a rough estimate of the heap used by this item and its instances, in bytes.
+     */
+    long getEstimatedSize() {
+        long size = 256 + InstanceData.estimateSize(mUid);
+        if (mDefaultData != null) {
+            size += mDefaultData.getEstimatedSize();
+        }
+        for (InstanceData inst : mInstances) {
+            size += inst.getEstimatedSize();
+        }
+        return size;
+    }
+
     public CalendarItemData getSubRange(long rangeStart, long rangeEnd) {
         if (rangeStart <= mActualRangeStart && rangeEnd >= mActualRangeEnd)
             return this;
@@ -120,6 +120,16 @@ public class FullInstanceData extends InstanceData {
     public String getFreeBusyIntended() { return mFreeBusyIntended; }
     public String getTransparency() { return mTransparency; }
 
+    @Override
+    int getEstimatedSize() {
+        int size = 512 + estimateSize(mSummary) + estimateSize(mLocation) + estimateSize(mFragment) +
+                estimateSize(mDesc) + estimateSize(mDescHtml);
+        if (mAttendees != null) {
+            size += 256 * mAttendees.size();
+        }
+        return size;
+    }
+
     public boolean isPublic(FullInstanceData defaultInstance) {
         if (mClassProp != null)
             return IcalXmlStrMap.CLASS_PUBLIC.equals(mClassProp);
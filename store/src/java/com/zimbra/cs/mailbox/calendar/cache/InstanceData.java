@@ -87,6 +87,17 @@ public class InstanceData {
         }
     }
 
+    /**
+     * Returns a rough estimate of the heap used by this instance, in bytes.
+     */
+    int getEstimatedSize() {
+        return 128;
+    }
+
+    static int estimateSize(String str) {
+        return str == null ? 0 : 40 + 2 * str.length();
+    }
+
     private static final String FN_RECURRENCE_ID_Z = "ridZ";
     private static final String FN_DTSTART = "st";
     private static final String FN_DURATION = "dur";
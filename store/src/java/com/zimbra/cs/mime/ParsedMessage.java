@@ -27,12 +27,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.GZIPInputStream;
 
 import javax.mail.Address;
@@ -88,6 +88,7 @@ import com.zimbra.cs.mailbox.Threader;
 import com.zimbra.cs.object.ObjectHandlerException;
 import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.BlobInputStream;
+import com.zimbra.cs.store.BlockCompression;
 import com.zimbra.cs.store.StoreManager;
 import com.zimbra.cs.util.JMSession;
 
@@ -146,7 +147,7 @@ public final class ParsedMessage {
     private CalendarPartInfo calendarPartInfo;
     private boolean wasMutated;
     private InputStream sharedStream;
-    private final Map<Mailbox, Threader> threaders = new HashMap<Mailbox, Threader>();
+    private final Map<Mailbox, Threader> threaders = new ConcurrentHashMap<Mailbox, Threader>();
     private String dataSourceId = null;
 
     public ParsedMessage(MimeMessage msg, boolean indexAttachments) throws ServiceException {
@@ -227,7 +228,9 @@ public final class ParsedMessage {
         }
 
         long size;
-        if (FileUtil.isGzipped(file)) {
+        if (BlockCompression.isBlockCompressed(file)) {
+            size = BlockCompression.getRawSize(file);
+        } else if (FileUtil.isGzipped(file)) {
             size = ByteUtil.getDataLength(new GZIPInputStream(new FileInputStream(file)));
         } else {
             size = file.length();
@@ -327,7 +330,7 @@ public final class ParsedMessage {
      * @return the ParsedMessage itself
      * @throws ServiceException
      * @see #runMimeConverters() */
-    private ParsedMessage parse() {
+    private synchronized ParsedMessage parse() {
         if (parsed) {
             return this;
         }
@@ -376,7 +379,7 @@ public final class ParsedMessage {
      * Analyze and extract text from all the "body" (non-attachment) parts of the message.
      * This step is required to properly generate the message fragment.
      */
-    private void analyzeBodyParts() throws ServiceException {
+    private synchronized void analyzeBodyParts() throws ServiceException {
         if (analyzedBodyParts) {
             return;
         }
@@ -418,7 +421,7 @@ public final class ParsedMessage {
     /**
      * Analyze and extract text from all attachments parts of the message
      */
-    private void analyzeNonBodyParts() throws ServiceException {
+    private synchronized void analyzeNonBodyParts() throws ServiceException {
         if (analyzedNonBodyParts) {
             return;
         }
@@ -0,0 +1,565 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.Pair;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.redolog.CommitId;
+import com.zimbra.cs.redolog.RedoCommitCallback;
+import com.zimbra.cs.redolog.RedoConfig;
+import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.RolloverManager;
+import com.zimbra.cs.redolog.op.CommitTxn;
+import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * File-based {@link LogWriter} that does group commit.
+ * <p>
+ * Logger threads don't touch the file.  They serialize their op, append it to a lock-free queue and,
+ * if the log is synchronous, wait for it to be made durable.  A single writer thread drains whatever
+ * has accumulated, writes it with one gathering {@link FileChannel#write(ByteBuffer[])} and, if any
+ * entry in the batch needs to be durable, makes it so with one {@link FileChannel#force}.  While that
+ * fsync is in progress the next batch builds up in the queue, so the number of fsyncs per second is
+ * bounded by the disk rather than by how many threads are logging.  Asynchronous entries are fsynced
+ * along with the next synchronous batch, or else within the fsync interval, like {@link FileLogWriter}'s
+ * fsync thread does.  The writer thread blocks while there is nothing to write or fsync.
+ * <p>
+ * The file format is identical to {@link FileLogWriter}'s, and rollover is delegated to it for the
+ * temporary logfile.
+ */
+public class GroupCommitLogWriter implements LogWriter {
+
+    private static String sServerId;
+    static {
+        try {
+            sServerId = Provisioning.getInstance().getLocalServer().getId();
+        } catch (ServiceException e) {
+            ZimbraLog.redolog.error("Unable to get local server ID", e);
+            sServerId = "unknown";
+        }
+    }
+
+    private static final long MIN_FSYNC_INTERVAL_MILLIS = 1;
+    private static final long MAX_FSYNC_INTERVAL_MILLIS = 1000;  // same bounds as FileLogWriter's fsync thread
+
+    protected RedoLogManager mRedoLogMgr;
+
+    private final FileHeader mHeader;
+    private File mFile;
+    private final int mMaxBatchBytes;
+    private final long mFsyncIntervalNanos;  // how long asynchronous entries may go without an fsync; 0 if forever
+    private final boolean mFsyncDisabled;
+
+    // Guards mOpen.  Loggers hold the (shared) read lock only while enqueueing, so that open/close
+    // can't race with an entry being added to the queue after the writer thread has drained it.
+    private final ReentrantReadWriteLock mStateLock = new ReentrantReadWriteLock();
+    private volatile boolean mOpen;
+
+    private final ConcurrentLinkedQueue<PendingWrite> mQueue = new ConcurrentLinkedQueue<PendingWrite>();
+    private WriterThread mWriter;
+
+    // only accessed by open/close and by the writer thread while the log is open
+    private RandomAccessFile mRAF;
+    private FileChannel mChannel;
+    private long mFirstOpTstamp;
+    private long mLastOpTstamp;
+
+    private final AtomicLong mFileSize = new AtomicLong();
+    private volatile long mCreateTime;
+    private volatile long mLastLogTime;
+
+    // for gathering some stats; nonessential for functionality
+    private final AtomicLong mLogCount = new AtomicLong();
+    private final AtomicLong mFsyncCount = new AtomicLong();
+
+    /**
+     * @param fsyncIntervalMS how soon asynchronous entries are fsynced if no synchronous entry comes along;
+     *                        if 0 or less, they are only fsynced with a synchronous entry or on close
+     */
+    public GroupCommitLogWriter(RedoLogManager redoLogMgr, File logfile, long fsyncIntervalMS, int maxBatchBytes) {
+        mRedoLogMgr = redoLogMgr;
+        mHeader = new FileHeader(sServerId);
+        mFile = logfile;
+        mFileSize.set(mFile.length());
+        mLastLogTime = mFile.lastModified();
+        mMaxBatchBytes = Math.max(maxBatchBytes, 1);
+        if (fsyncIntervalMS <= 0) {
+            mFsyncIntervalNanos = 0;
+        } else {
+            if (fsyncIntervalMS > MAX_FSYNC_INTERVAL_MILLIS) {
+                ZimbraLog.redolog.warn("Fsync interval %dms is too long; using %dms instead",
+                        fsyncIntervalMS, MAX_FSYNC_INTERVAL_MILLIS);
+            }
+            mFsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(
+                    Math.min(Math.max(fsyncIntervalMS, MIN_FSYNC_INTERVAL_MILLIS), MAX_FSYNC_INTERVAL_MILLIS));
+        }
+        mFsyncDisabled = DebugConfig.disableRedoLogFsync;
+    }
+
+    /**
+     * A serialized entry waiting to be written by the writer thread.  Synchronous loggers block on
+     * {@link #await} until the batch containing the entry has been written and fsynced.
+     */
+    private static final class PendingWrite {
+        final RedoableOp op;
+        final byte[] data;
+        final boolean synchronous;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile IOException error;
+
+        PendingWrite(RedoableOp op, byte[] data, boolean synchronous) {
+            this.op = op;
+            this.data = data;
+            this.synchronous = synchronous;
+        }
+
+        void complete(IOException e) {
+            error = e;
+            done.countDown();
+        }
+
+        void await() throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for redolog commit");
+            }
+            if (error != null) {
+                throw new IOException("Redolog write failed", error);
+            }
+        }
+    }
+
+    @Override public long getSequence() {
+        synchronized (mHeader) {
+            return mHeader.getSequence();
+        }
+    }
+
+    @Override public long getSize() {
+        return mFileSize.get();
+    }
+
+    @Override public long getCreateTime() {
+        return mCreateTime;
+    }
+
+    @Override public long getLastLogTime() {
+        return mLastLogTime;
+    }
+
+    @Override public boolean isEmpty() throws IOException {
+        return getSize() <= FileHeader.HEADER_LEN;
+    }
+
+    @Override public boolean exists() {
+        return mFile.exists();
+    }
+
+    @Override public String getAbsolutePath() {
+        return mFile.getAbsolutePath();
+    }
+
+    @Override public boolean renameTo(File dest) {
+        return mFile.renameTo(dest);
+    }
+
+    @Override public boolean delete() {
+        return mFile.delete();
+    }
+
+    @Override public synchronized void open() throws IOException {
+        mStateLock.writeLock().lock();
+        try {
+            if (mOpen) {
+                return;  // already open
+            }
+            mRAF = new RandomAccessFile(mFile, "rw");
+            synchronized (mHeader) {
+                if (mRAF.length() >= FileHeader.HEADER_LEN) {
+                    mHeader.read(mRAF);
+                    mCreateTime = mHeader.getCreateTime();
+                    if (mCreateTime == 0) {
+                        mCreateTime = System.currentTimeMillis();
+                        mHeader.setCreateTime(mCreateTime);
+                    }
+                    mFirstOpTstamp = mHeader.getFirstOpTstamp();
+                    mLastOpTstamp = mHeader.getLastOpTstamp();
+                } else {
+                    mCreateTime = System.currentTimeMillis();
+                    mHeader.setCreateTime(mCreateTime);
+                    mHeader.setSequence(mRedoLogMgr.getCurrentLogSequence());
+                }
+                mHeader.setOpen(true);
+                mHeader.write(mRAF);
+            }
+
+            // go to the end of file, so we can append
+            long len = mRAF.length();
+            mRAF.seek(len);
+            mChannel = mRAF.getChannel();
+            mFileSize.set(len);
+
+            mWriter = new WriterThread();
+            mWriter.start();
+            mOpen = true;
+        } finally {
+            mStateLock.writeLock().unlock();
+        }
+    }
+
+    @Override public synchronized void close() throws IOException {
+        mStateLock.writeLock().lock();
+        try {
+            if (!mOpen) {
+                return;
+            }
+            // no more entries can be queued; let the writer thread drain what's there and exit
+            mOpen = false;
+        } finally {
+            mStateLock.writeLock().unlock();
+        }
+        mWriter.stopThread();
+        mWriter = null;
+
+        synchronized (mHeader) {
+            if (mLastOpTstamp != 0) {
+                mHeader.setLastOpTstamp(mLastOpTstamp);
+            }
+            mHeader.setOpen(false);
+            mHeader.setFileSize(mRAF.length());
+            mHeader.write(mRAF);
+        }
+        mChannel.force(true);
+        mRAF.close();
+        mRAF = null;
+        mChannel = null;
+
+        if (!mNoStat && mLogCount.get() > 0 && ZimbraLog.redolog.isDebugEnabled()) {
+            ZimbraLog.redolog.debug("Logged: %d items, %d fsyncs", mLogCount.get(), mFsyncCount.get());
+        }
+    }
+
+    /**
+     * Queues the entry for the writer thread.  If synchronous, waits until the batch it was written in
+     * has been fsynced and any commit callbacks in it have been made.
+     */
+    @Override public void log(RedoableOp op, InputStream data, boolean synchronous) throws IOException {
+        if (!mOpen) {
+            throw new IOException("Redolog file closed");
+        }
+        // serialize outside of any lock; enqueue() checks again that the log is still open
+        byte[] bytes;
+        try {
+            bytes = ByteUtil.getContent(data, -1);
+        } finally {
+            data.close();
+        }
+        enqueue(new PendingWrite(op, bytes, synchronous), synchronous);
+    }
+
+    @Override public void flush() throws IOException {
+        PendingWrite marker = new PendingWrite(null, new byte[0], true);
+        mStateLock.readLock().lock();
+        try {
+            if (!mOpen) {
+                return;  // nothing can be pending on a closed log
+            }
+            mQueue.offer(marker);
+            mWriter.wakeup();
+        } finally {
+            mStateLock.readLock().unlock();
+        }
+        marker.await();
+    }
+
+    private void enqueue(PendingWrite pw, boolean synchronous) throws IOException {
+        mStateLock.readLock().lock();
+        try {
+            if (!mOpen) {
+                throw new IOException("Redolog file closed");
+            }
+            mFileSize.addAndGet(pw.data.length);
+            mQueue.offer(pw);
+            mWriter.wakeup();
+        } finally {
+            mStateLock.readLock().unlock();
+        }
+        mLogCount.incrementAndGet();
+        if (synchronous) {
+            pw.await();
+        }
+    }
+
+    private boolean mNoStat;
+    public void noStat(boolean b) {
+        mNoStat = b;
+    }
+
+    @VisibleForTesting
+    long getFsyncCount() {
+        return mFsyncCount.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public synchronized File rollover(LinkedHashMap /*<TxnId, RedoableOp>*/ activeOps)
+    throws IOException {
+        RolloverManager romgr = mRedoLogMgr.getRolloverManager();
+
+        long lastSeq = getSequence();
+
+        // Close current log, so it's impossible for its content to change.
+        noStat(true);
+        close();
+
+        romgr.incrementSequence();
+
+        String currentPath = mFile.getAbsolutePath();
+
+        // Rewrite change entries for all active operations into a temporary logfile, maintaining their
+        // order of occurrence.  There's no concurrency here, so the plain writer is good enough.
+        File tempLogfile = new File(mFile.getParentFile(), romgr.getTempFilename(lastSeq + 1));
+        FileLogWriter tempLogger = new FileLogWriter(mRedoLogMgr, tempLogfile, 0);
+        tempLogger.open();
+        tempLogger.noStat(true);
+        for (Iterator<Map.Entry<?, RedoableOp>> it = activeOps.entrySet().iterator(); it.hasNext(); ) {
+            RedoableOp op = it.next().getValue();
+            tempLogger.log(op, op.getInputStream(), false);
+        }
+        tempLogger.close();
+
+        // Rename the current log to rolled-over name.
+        File rolloverFile = romgr.getRolloverFile(lastSeq);
+        if (RedoConfig.redoLogDeleteOnRollover()) {
+            // Delete the current log.  We don't need to hold on to the
+            // indexing-only log files after rollover.
+            if (!mFile.delete()) {
+                throw new IOException("Unable to delete current redo log " + mFile.getAbsolutePath());
+            }
+        } else {
+            File destDir = rolloverFile.getParentFile();
+            if (destDir != null && !destDir.exists()) {
+                destDir.mkdirs();
+            }
+            if (!mFile.renameTo(rolloverFile)) {
+                throw new IOException("Unable to rename current redo log to " + rolloverFile.getAbsolutePath());
+            }
+        }
+
+        // Rename the temporary logger to current logfile name.
+        String tempPath = tempLogfile.getAbsolutePath();
+        mFile = new File(currentPath);
+        if (!tempLogfile.renameTo(mFile)) {
+            throw new IOException("Unable to rename " + tempPath + " to " + currentPath);
+        }
+
+        // Reopen current log.
+        open();
+        noStat(false);
+
+        return rolloverFile;
+    }
+
+    /**
+     * Writes one batch and, if anything in it needs to be durable, fsyncs it.  Only ever called from
+     * the writer thread.
+     *
+     * @return whether the batch was fsynced
+     */
+    private boolean writeBatch(List<PendingWrite> batch, List<Pair<RedoCommitCallback, CommitId>> callbacks)
+    throws IOException {
+        boolean fsyncNeeded = false;
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        long remaining = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            PendingWrite pw = batch.get(i);
+            RedoableOp op = pw.op;
+            if (op != null) {
+                // Record first transaction in header.
+                long tstamp = op.getTimestamp();
+                mLastOpTstamp = Math.max(tstamp, mLastOpTstamp);
+                if (mFirstOpTstamp == 0) {
+                    mFirstOpTstamp = tstamp;
+                    synchronized (mHeader) {
+                        mHeader.setFirstOpTstamp(mFirstOpTstamp);
+                        mHeader.setLastOpTstamp(mLastOpTstamp);
+                        long pos = mRAF.getFilePointer();
+                        mHeader.write(mRAF);
+                        mRAF.seek(pos);
+                    }
+                }
+                // Commit callbacks are made in log order, and only after the commit record is on disk.
+                if (op instanceof CommitTxn) {
+                    CommitTxn cmt = (CommitTxn) op;
+                    RedoCommitCallback cb = cmt.getCallback();
+                    if (cb != null) {
+                        long redoSeq = mRedoLogMgr.getRolloverManager().getCurrentSequence();
+                        callbacks.add(new Pair<RedoCommitCallback, CommitId>(cb, new CommitId(redoSeq, cmt)));
+                    }
+                }
+            }
+            fsyncNeeded |= pw.synchronous;
+            buffers[i] = ByteBuffer.wrap(pw.data);
+            remaining += pw.data.length;
+        }
+        while (remaining > 0) {
+            remaining -= mChannel.write(buffers);
+        }
+        mLastLogTime = System.currentTimeMillis();
+
+        if (fsyncNeeded || !callbacks.isEmpty()) {
+            fsync();
+            for (Pair<RedoCommitCallback, CommitId> notif : callbacks) {
+                try {
+                    notif.getFirst().callback(notif.getSecond());
+                } catch (OutOfMemoryError e) {
+                    Zimbra.halt("out of memory", e);
+                } catch (Throwable t) {
+                    ZimbraLog.misc.error("Error while making commit callback", t);
+                }
+            }
+            callbacks.clear();
+            return true;
+        }
+        return false;
+    }
+
+    private void fsync() throws IOException {
+        if (!mFsyncDisabled) {
+            mChannel.force(false);
+            mFsyncCount.incrementAndGet();
+        }
+    }
+
+    // Thread that owns the logfile while it is open.  It drains the queue in batches of up to
+    // mMaxBatchBytes, writing and fsyncing each batch before releasing the loggers waiting on it.
+    // Asynchronous entries left unsynced are fsynced once the fsync interval has passed.
+    private class WriterThread extends Thread {
+        private volatile boolean mRunning = true;
+
+        WriterThread() {
+            super("GroupCommitLogWriter.WriterThread-" + System.currentTimeMillis());
+            setDaemon(true);
+        }
+
+        void wakeup() {
+            LockSupport.unpark(this);
+        }
+
+        @Override public void run() {
+            ZimbraLog.redolog.info("Starting redolog group commit writer thread");
+            List<PendingWrite> batch = new ArrayList<PendingWrite>();
+            List<Pair<RedoCommitCallback, CommitId>> callbacks = new ArrayList<Pair<RedoCommitCallback, CommitId>>();
+            boolean unsynced = false;  // whether asynchronous entries have been written but not fsynced
+            long fsyncDeadline = 0;
+            while (true) {
+                if (unsynced && System.nanoTime() - fsyncDeadline >= 0) {
+                    try {
+                        fsync();
+                    } catch (IOException e) {
+                        String message = "Error while fsyncing " + mFile.getAbsolutePath() + "; Aborting.";
+                        Zimbra.halt(message, e);
+                    }
+                    unsynced = false;
+                }
+                PendingWrite pw = mQueue.poll();
+                if (pw == null) {
+                    // mRunning is cleared only after the log stops accepting entries, so an empty
+                    // queue at that point really is the end; close() fsyncs anything left unsynced
+                    if (!mRunning && mQueue.isEmpty()) {
+                        break;
+                    }
+                    // loggers unpark us after queueing, and a pending unpark makes park return at once,
+                    // so no wakeup is lost between the poll above and parking
+                    if (unsynced) {
+                        LockSupport.parkNanos(this, fsyncDeadline - System.nanoTime());
+                    } else {
+                        LockSupport.park(this);
+                    }
+                    continue;
+                }
+                int batchBytes = 0;
+                do {
+                    batch.add(pw);
+                    batchBytes += pw.data.length;
+                } while (batchBytes < mMaxBatchBytes && (pw = mQueue.poll()) != null);
+
+                IOException error = null;
+                try {
+                    if (writeBatch(batch, callbacks)) {
+                        unsynced = false;
+                    } else if (!unsynced && mFsyncIntervalNanos > 0) {
+                        unsynced = true;
+                        fsyncDeadline = System.nanoTime() + mFsyncIntervalNanos;
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+                for (PendingWrite done : batch) {
+                    done.complete(error);
+                }
+                batch.clear();
+                if (error != null) {
+                    String message = "Error while writing " + mFile.getAbsolutePath() + "; Aborting.";
+                    Zimbra.halt(message, error);
+                }
+            }
+            ZimbraLog.redolog.info("redolog group commit writer thread exiting");
+        }
+
+        // Stop the writer thread once the queue has been drained.  Wait until the thread really stops.
+        void stopThread() {
+            mRunning = false;
+            wakeup();
+            try {
+                while (isAlive()) {
+                    ZimbraLog.redolog.info("waiting for %s to finish.", getName());
+                    join(Constants.MILLIS_PER_MINUTE);
+                }
+                ZimbraLog.redolog.info("%s finished", getName());
+            } catch (InterruptedException e) {
+                ZimbraLog.redolog.warn("InterruptedException while stopping WriterThread", e);
+            }
+        }
+    }
+}
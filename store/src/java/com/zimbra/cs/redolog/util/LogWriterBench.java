@@ -0,0 +1,162 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+
+import com.zimbra.common.util.CliUtil;
+import com.zimbra.cs.redolog.RedoConfig;
+import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.logger.FileLogWriter;
+import com.zimbra.cs.redolog.logger.GroupCommitLogWriter;
+import com.zimbra.cs.redolog.logger.LogWriter;
+import com.zimbra.cs.redolog.op.CommitTxn;
+import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.util.BenchUtil;
+import com.zimbra.cs.util.BenchUtil.Result;
+
+/**
+ * Compares the throughput and commit latency of the redo log writers.
+ * <p>
+ * Each of N threads plays a different mailbox and logs synchronous entries of a fixed size as fast as
+ * it can, first against {@link FileLogWriter} and then against {@link GroupCommitLogWriter}, each
+ * writing to a scratch logfile in the given directory.  A warmup period is run and discarded before
+ * every measured period.  For each writer the tool prints ops/sec and the p50/p99/max latency of a
+ * synchronous {@link LogWriter#log} call.
+ */
+public class LogWriterBench {
+
+    private static Options sOptions = BenchUtil.newOptions();
+
+    private static final String OPT_THREADS = "t";
+    private static final String OPT_SECONDS = "s";
+    private static final String OPT_SIZE = "b";
+
+    static {
+        sOptions.addOption(OPT_THREADS, "threads", true, "number of logger threads (default 32)");
+        sOptions.addOption(OPT_SECONDS, "seconds", true, "length of each measured run in seconds (default 10)");
+        sOptions.addOption(OPT_SIZE, "bytes", true, "size of each logged entry in bytes (default 512)");
+    }
+
+    private static Result run(final LogWriter writer, int threads, long durationMillis, final byte[] payload)
+    throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        final long[][] latencies = new long[threads][];
+        final int[] counts = new int[threads];
+        final Exception[] failure = new Exception[1];
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<Thread>(threads);
+        for (int t = 0; t < threads; t++) {
+            final int idx = t;
+            Thread worker = new Thread("LogWriterBench-" + t) {
+                @Override
+                public void run() {
+                    long[] samples = new long[1024];
+                    int n = 0;
+                    try {
+                        start.await();
+                        while (System.nanoTime() < deadline) {
+                            RedoableOp op = new CommitTxn();
+                            op.setMailboxId(idx + 1);
+                            long begin = System.nanoTime();
+                            writer.log(op, new ByteArrayInputStream(payload), true);
+                            if (n == samples.length) {
+                                samples = Arrays.copyOf(samples, n * 2);
+                            }
+                            samples[n++] = System.nanoTime() - begin;
+                        }
+                    } catch (Exception e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                    latencies[idx] = Arrays.copyOf(samples, n);
+                    counts[idx] = n;
+                }
+            };
+            workers.add(worker);
+            worker.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        long total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        long[] all = new long[(int) total];
+        int pos = 0;
+        for (long[] samples : latencies) {
+            System.arraycopy(samples, 0, all, pos, samples.length);
+            pos += samples.length;
+        }
+        return new Result(all, elapsed);
+    }
+
+    private static void bench(String name, LogWriter writer, int threads, long durationMillis, byte[] payload)
+    throws Exception {
+        writer.open();
+        try {
+            run(writer, threads, Math.min(durationMillis, 2000), payload);  // warmup
+            run(writer, threads, durationMillis, payload).print(name);
+        } finally {
+            writer.close();
+            writer.delete();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        CliUtil.toolSetup();
+        CommandLine cl = BenchUtil.parse(LogWriterBench.class, sOptions,
+                "The scratch directory should be on the same volume as the real redo log.", args);
+        File dir = BenchUtil.getScratchDir(cl);
+        int threads = Integer.parseInt(cl.getOptionValue(OPT_THREADS, "32"));
+        long durationMillis = Long.parseLong(cl.getOptionValue(OPT_SECONDS, "10")) * 1000;
+        byte[] payload = new byte[Integer.parseInt(cl.getOptionValue(OPT_SIZE, "512"))];
+        Arrays.fill(payload, (byte) 'x');
+
+        RedoLogManager redoMgr = new RedoLogManager(new File(dir, "bench.log"), new File(dir, "archive"), false);
+        System.out.printf("%d threads, %d byte entries, %d seconds per run%n", threads, payload.length,
+                durationMillis / 1000);
+        try {
+            bench("FileLogWriter", new FileLogWriter(redoMgr, new File(dir, "bench-file.log"),
+                    RedoConfig.redoLogFsyncIntervalMS()), threads, durationMillis, payload);
+            bench("GroupCommitLogWriter", new GroupCommitLogWriter(redoMgr, new File(dir, "bench-group.log"),
+                    RedoConfig.redoLogFsyncIntervalMS(), 1024 * 1024), threads, durationMillis, payload);
+        } catch (IOException e) {
+            System.err.println("benchmark failed: " + e);
+            System.exit(1);
+        }
+    }
+}
@@ -110,6 +110,11 @@ public class GetInfo extends AccountDocumentHandler  {
         }
     }
 
+    @Override
+    public boolean isParallelizable(Element request) {
+        return true;
+    }
+
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
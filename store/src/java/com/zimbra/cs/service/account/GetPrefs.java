@@ -36,6 +36,11 @@ import com.zimbra.soap.ZimbraSoapContext;
  */
 public class GetPrefs extends AccountDocumentHandler  {
 
+    @Override
+    public boolean isParallelizable(Element request) {
+        return true;
+    }
+
 	public Element handle(Element request, Map<String, Object> context) throws ServiceException {
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
         Account account = getRequestedAccount(zsc);
@@ -0,0 +1,80 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.service.admin;
+
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.AdminConstants;
+import com.zimbra.common.soap.Element;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.Server;
+import com.zimbra.cs.account.accesscontrol.AdminRight;
+import com.zimbra.cs.account.accesscontrol.Rights.Admin;
+import com.zimbra.cs.stats.SlowRequestSampler;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.soap.ZimbraSoapContext;
+
+public class GetSlowRequests extends AdminDocumentHandler {
+
+    static final String TYPE_SOAP = "soap";
+    static final String TYPE_IMAP = "imap";
+
+    @Override
+    public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+        ZimbraSoapContext zsc = getZimbraSoapContext(context);
+
+        Server localServer = Provisioning.getInstance().getLocalServer();
+        checkRight(zsc, context, localServer, Admin.R_getServerStats);
+
+        String type = request.getAttribute(AdminConstants.A_TYPE, null);
+        if (type != null && !TYPE_SOAP.equals(type) && !TYPE_IMAP.equals(type)) {
+            throw ServiceException.INVALID_REQUEST("invalid type: " + type, null);
+        }
+
+        Element response = zsc.createElement(AdminConstants.GET_SLOW_REQUESTS_RESPONSE);
+        if (type == null || TYPE_SOAP.equals(type)) {
+            addSamples(response, TYPE_SOAP, ZimbraPerf.SOAP_SAMPLER.getSamples());
+        }
+        if (type == null || TYPE_IMAP.equals(type)) {
+            addSamples(response, TYPE_IMAP, ZimbraPerf.IMAP_SAMPLER.getSamples());
+        }
+        return response;
+    }
+
+    private static void addSamples(Element response, String type, List<SlowRequestSampler.Sample> samples) {
+        for (SlowRequestSampler.Sample sample : samples) {
+            Element eReq = response.addElement(AdminConstants.E_SLOW_REQUEST)
+                .addAttribute(AdminConstants.A_TYPE, type)
+                .addAttribute(AdminConstants.A_NAME, sample.getCommand())
+                .addAttribute(AdminConstants.A_START, sample.getStartTime())
+                .addAttribute(AdminConstants.A_ELAPSED, sample.getElapsedMs())
+                .addAttribute(AdminConstants.A_LOCK_WAIT, sample.getLockWaitMs())
+                .addAttribute(AdminConstants.A_DB_TIME, sample.getDbMs())
+                .addAttribute(AdminConstants.A_BLOB_BYTES, sample.getBlobBytes());
+            if (sample.getAccountId() != null) {
+                eReq.addAttribute(AdminConstants.A_ACCOUNT, sample.getAccountId());
+            }
+        }
+    }
+
+    @Override
+    public void docRights(List<AdminRight> relatedRights, List<String> notes) {
+        relatedRights.add(Admin.R_getServerStats);
+    }
+}
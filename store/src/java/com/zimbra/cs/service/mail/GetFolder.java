@@ -61,6 +61,11 @@ public class GetFolder extends MailDocumentHandler {
         return RESPONSE_ITEM_PATH;
     }
 
+    @Override
+    public boolean isParallelizable(Element request) {
+        return true;
+    }
+
     static final String DEFAULT_FOLDER_ID = Integer.toString(Mailbox.ID_FOLDER_USER_ROOT);
 
     @Override
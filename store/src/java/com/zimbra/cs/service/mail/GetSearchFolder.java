@@ -35,6 +35,11 @@ import com.zimbra.soap.ZimbraSoapContext;
  */
 public class GetSearchFolder extends MailDocumentHandler  {
 
+    @Override
+    public boolean isParallelizable(Element request) {
+        return true;
+    }
+
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
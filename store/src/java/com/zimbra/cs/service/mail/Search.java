@@ -72,6 +72,16 @@ import com.zimbra.soap.mail.message.SearchRequest;
  */
 public class Search extends MailDocumentHandler  {
 
+    @Override
+    public boolean isParallelizable(Element request) {
+        // marking the expanded hits read is a write
+        try {
+            return !request.getAttributeBool(MailConstants.A_MARK_READ, false);
+        } catch (ServiceException e) {
+            return false;
+        }
+    }
+
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
@@ -43,8 +43,10 @@ import javax.mail.internet.MimeUtility;
 import org.apache.commons.lang.StringUtils;
 import org.json.JSONException;
 
+import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.io.Closeables;
@@ -103,6 +105,7 @@ import com.zimbra.cs.gal.GalGroup.GroupInfo;
 import com.zimbra.cs.gal.GalGroupInfoProvider;
 import com.zimbra.cs.gal.GalGroupMembers.ContactDLMembers;
 import com.zimbra.cs.html.BrowserDefang;
+import com.zimbra.cs.html.DefangCache;
 import com.zimbra.cs.html.DefangFactory;
 import com.zimbra.cs.html.DefangFilter;
 import com.zimbra.cs.html.HtmlDefang;
@@ -1119,6 +1122,12 @@ public final class ToXML {
         return encodeConversation(parent, ifmt, octxt, conv, msgs, params);
     }
 
+    /**
+     * Encodes the conversation and its messages.  When no message is to be inlined, the messages are added with
+     * {@link Element#addStreamedElements} and only encoded while the response is written, so that huge
+     * conversations needn't be held in memory as elements.  Everything the messages' elements show is copied out of
+     * the messages here, so the response doesn't depend on mailbox state read after the handler returns.
+     */
     public static Element encodeConversation(Element parent, ItemIdFormatter ifmt, OperationContext octxt,
             Conversation conv, List<Message> msgs, SearchParams params) throws ServiceException {
         int fields = NOTIFY_FIELDS;
@@ -1128,7 +1137,27 @@ public final class ToXML {
         }
         c.addAttribute(MailConstants.E_SUBJECT, msgs.get(0).getSubject(), Element.Disposition.CONTENT);
 
+        boolean fullAccess = hasFullAccess(conv.getMailbox(), octxt);
         ExpandResults expand = params.getInlineRule();
+        if (expand == ExpandResults.NONE) {
+            List<ConvMessageSummary> visible = Lists.newArrayListWithCapacity(msgs.size());
+            for (Message msg : msgs) {
+                if (!msg.isTagged(Flag.FlagInfo.DELETED)) {
+                    visible.add(new ConvMessageSummary(ifmt, msg, fields, fullAccess));
+                }
+            }
+            if (!visible.isEmpty()) {
+                final Element.ElementFactory factory = c.getFactory();
+                c.addStreamedElements(MailConstants.E_MSG, Iterables.transform(visible,
+                        new Function<ConvMessageSummary, Element>() {
+                    @Override
+                    public Element apply(ConvMessageSummary summary) {
+                        return summary.encode(factory.createElement(MailConstants.E_MSG));
+                    }
+                }));
+            }
+            return c;
+        }
         for (Message msg : msgs) {
             if (msg.isTagged(Flag.FlagInfo.DELETED)) {
                 continue;
@@ -1141,21 +1170,76 @@ public final class ToXML {
                     expand = ExpandResults.NONE;
                 }
             } else {
-                Element m = c.addNonUniqueElement(MailConstants.E_MSG);
-                m.addAttribute(MailConstants.A_ID, ifmt.formatItemId(msg));
-                m.addAttribute(MailConstants.A_DATE, msg.getDate());
-                m.addAttribute(MailConstants.A_SIZE, msg.getSize());
-                m.addAttribute(MailConstants.A_SUBJECT, msg.getSubject(), Element.Disposition.CONTENT);;
-                m.addAttribute(MailConstants.A_FOLDER,
-                    ifmt.formatItemId(new ItemId(msg.getMailbox().getAccountId(), msg.getFolderId())));
-                recordItemTags(m, msg, octxt, fields);
-                m.addAttribute(MailConstants.E_FRAG, msg.getFragment(), Element.Disposition.CONTENT);
-                encodeEmail(m, msg.getSender(), EmailType.FROM);
+                new ConvMessageSummary(ifmt, msg, fields, fullAccess).encode(c.addNonUniqueElement(MailConstants.E_MSG));
             }
         }
         return c;
     }
 
+    /**
+     * What the {@code <m>} element of a conversation's message that isn't inlined shows, copied out of the
+     * {@link Message} (tags resolved to ids included) so that it can be encoded after the handler has returned.
+     */
+    private static final class ConvMessageSummary {
+        private final String id;
+        private final long date;
+        private final long size;
+        private final String subject;
+        private final String folder;
+        private final String flags;
+        private final String tagNames;
+        private final String tagIds;
+        private final String fragment;
+        private final String sender;
+
+        ConvMessageSummary(ItemIdFormatter ifmt, Message msg, int fields, boolean fullAccess) {
+            id = ifmt.formatItemId(msg);
+            date = msg.getDate();
+            size = msg.getSize();
+            subject = msg.getSubject();
+            folder = ifmt.formatItemId(new ItemId(msg.getMailbox().getAccountId(), msg.getFolderId()));
+            // same rules as recordItemTags()
+            String flagString = null;
+            if (needToOutput(fields, Change.FLAGS | Change.UNREAD)) {
+                flagString = msg.getFlagString();
+                if (fields == NOTIFY_FIELDS && flagString.isEmpty()) {
+                    flagString = null;
+                }
+            }
+            flags = flagString;
+            String[] tags = needToOutput(fields, Change.TAGS) ? msg.getTags() : null;
+            if (tags != null && (!ArrayUtil.isEmpty(tags) || fields != NOTIFY_FIELDS)) {
+                tagNames = TagUtil.encodeTags(tags);
+                tagIds = fullAccess ? TagUtil.getTagIdString(msg.getMailbox(), tags) : null;
+            } else {
+                tagNames = null;
+                tagIds = null;
+            }
+            fragment = msg.getFragment();
+            sender = msg.getSender();
+        }
+
+        Element encode(Element m) {
+            m.addAttribute(MailConstants.A_ID, id);
+            m.addAttribute(MailConstants.A_DATE, date);
+            m.addAttribute(MailConstants.A_SIZE, size);
+            m.addAttribute(MailConstants.A_SUBJECT, subject, Element.Disposition.CONTENT);
+            m.addAttribute(MailConstants.A_FOLDER, folder);
+            if (flags != null) {
+                m.addAttribute(MailConstants.A_FLAGS, flags);
+            }
+            if (tagNames != null) {
+                m.addAttribute(MailConstants.A_TAG_NAMES, tagNames);
+                if (tagIds != null) {
+                    m.addAttribute(MailConstants.A_TAGS, tagIds);
+                }
+            }
+            m.addAttribute(MailConstants.E_FRAG, fragment, Element.Disposition.CONTENT);
+            encodeEmail(m, sender, EmailType.FROM);
+            return m;
+        }
+    }
+
     private static class ToRecipsList {
         private static final int MAX_COUNT = 8;
 
@@ -1631,7 +1715,10 @@ public final class ToXML {
             List<MPartInfo> parts = Mime.getParts(mm, getDefaultCharset(msg));
             if (parts != null && !parts.isEmpty()) {
                 Set<MPartInfo> bodies = Mime.getBody(parts, wantHTML);
-                addParts(m, parts.get(0), bodies, part, maxSize, neuter, false, getDefaultCharset(msg), bestEffort, wantContent);
+                // sanitized bodies are shared across mailboxes by blob digest, so leave out decrypted messages
+                String defangDigest = Mime.isEncrypted(msg.getMimeMessage(false).getContentType()) ? null : msg.getDigest();
+                addParts(m, parts.get(0), bodies, part, maxSize, neuter, false, getDefaultCharset(msg), bestEffort, wantContent,
+                        defangDigest);
             }
 
             if (wantExpandGroupInfo) {
@@ -2612,11 +2699,16 @@ public final class ToXML {
     private static void addParts(Element root, MPartInfo mpiRoot, Set<MPartInfo> bodies, String prefix, int maxSize,
         boolean neuter, boolean excludeCalendarParts, String defaultCharset, boolean swallowContentExceptions)
 throws ServiceException {
-        addParts(root, mpiRoot, bodies, prefix, maxSize, neuter, excludeCalendarParts, defaultCharset, swallowContentExceptions, MsgContent.full);
+        addParts(root, mpiRoot, bodies, prefix, maxSize, neuter, excludeCalendarParts, defaultCharset, swallowContentExceptions, MsgContent.full, null);
     }
 
+    /**
+     * @param digest digest of the blob the parts are from, used to share sanitized HTML across mailboxes through the
+     *               {@link DefangCache}, or null if their sanitized HTML mustn't be shared
+     */
     private static void addParts(Element root, MPartInfo mpiRoot, Set<MPartInfo> bodies, String prefix, int maxSize,
-            boolean neuter, boolean excludeCalendarParts, String defaultCharset, boolean swallowContentExceptions, MsgContent wantContent)
+            boolean neuter, boolean excludeCalendarParts, String defaultCharset, boolean swallowContentExceptions, MsgContent wantContent,
+            String digest)
     throws ServiceException {
         MPartInfo mpi = mpiRoot;
         LinkedList<Pair<Element, LinkedList<MPartInfo>>> queue = new LinkedList<Pair<Element, LinkedList<MPartInfo>>>();
@@ -2634,7 +2726,7 @@ throws ServiceException {
 
             mpi = parts.getFirst();
             Element child = addPart(phase, level.getFirst(), root, mpi, bodies, prefix, maxSize, neuter,
-                    excludeCalendarParts, defaultCharset, swallowContentExceptions, wantContent);
+                    excludeCalendarParts, defaultCharset, swallowContentExceptions, wantContent, digest);
             if (phase == VisitPhase.PREVISIT && child != null && mpi.hasChildren()) {
                 queue.addLast(new Pair<Element, LinkedList<MPartInfo>>(child, new LinkedList<MPartInfo>(mpi.getChildren())));
             } else {
@@ -2645,7 +2737,7 @@ throws ServiceException {
 
     private static Element addPart(VisitPhase phase, Element parent, Element root, MPartInfo mpi,
             Set<MPartInfo> bodies, String prefix, int maxSize, boolean neuter, boolean excludeCalendarParts,
-            String defaultCharset, boolean swallowContentExceptions, MsgContent wantContent)
+            String defaultCharset, boolean swallowContentExceptions, MsgContent wantContent, String digest)
     throws ServiceException {
         if (phase == VisitPhase.POSTVISIT) {
             return null;
@@ -2775,7 +2867,7 @@ throws ServiceException {
             }
 
             try {
-                addContent(el, mpi, maxSize, neuter, defaultCharset, wantContent);
+                addContent(el, mpi, maxSize, neuter, defaultCharset, wantContent, digest, part);
             } catch (IOException e) {
                 if (!swallowContentExceptions) {
                     throw ServiceException.FAILURE("error serializing part content", e);
@@ -2822,7 +2914,7 @@ throws ServiceException {
      * @see HtmlDefang#defang(String, boolean) */
     private static void addContent(Element elt, MPartInfo mpi, int maxSize, boolean neuter, String defaultCharset)
     throws IOException, MessagingException {
-        addContent(elt, mpi, maxSize, neuter, defaultCharset, MsgContent.full);
+        addContent(elt, mpi, maxSize, neuter, defaultCharset, MsgContent.full, null, null);
     }
 
     /** Adds the decoded text content of a message part to the {@link Element}.
@@ -2835,10 +2927,14 @@ throws ServiceException {
      * @param maxSize The maximum number of characters to inline (<=0 is unlimited).
      * @param neuter  Whether to "neuter" image <tt>src</tt> attributes.
      * @parame defaultCharset  The user's default charset preference.
+     * @param digest  Digest of the blob holding the part, or null if its sanitized HTML mustn't be shared
+     *                through the {@link DefangCache}.
+     * @param part    Name of the part within the blob.
      * @throws MessagingException when message parsing or CTE-decoding fails
      * @throws IOException on error during parsing or defanging
      * @see HtmlDefang#defang(String, boolean) */
-    private static void addContent(Element elt, MPartInfo mpi, int maxSize, boolean neuter, String defaultCharset, MsgContent wantContent)
+    private static void addContent(Element elt, MPartInfo mpi, int maxSize, boolean neuter, String defaultCharset, MsgContent wantContent,
+            String digest, String part)
     throws IOException, MessagingException {
         // TODO: support other parts
         String ctype = mpi.getContentType();
@@ -2862,7 +2958,21 @@ throws ServiceException {
         }
 
         boolean wasTruncated = false;
+        DefangCache.Key defangKey = null;
+        DefangCache.Entry defanged = null;
         if (ctype.equals(MimeConstants.CT_TEXT_HTML)) {
+            defangKey = DefangCache.getInstance().newKey(digest, part, ctype, neuter, maxSize, defaultCharset);
+            if (defangKey != null) {
+                defanged = DefangCache.getInstance().get(defangKey);
+            }
+        }
+        if (defanged != null) {
+            data = defanged.getContent();
+            wasTruncated = defanged.isTruncated();
+            if (wantContent.equals(MsgContent.original) || wantContent.equals(MsgContent.both)) {
+                originalContent = removeQuotedText(data, true);
+            }
+        } else if (ctype.equals(MimeConstants.CT_TEXT_HTML)) {
             String charset = mpi.getContentTypeParameter(MimeConstants.P_CHARSET);
             InputStream stream = null;
             StringWriter sw = new StringWriter();
@@ -2907,6 +3017,9 @@ throws ServiceException {
                 ByteUtil.closeStream(stream);
                 Closeables.closeQuietly(reader);
             }
+            if (defangKey != null) {
+                DefangCache.getInstance().put(defangKey, data, wasTruncated);
+            }
         } else if (ctype.equals(MimeConstants.CT_TEXT_ENRICHED)) {
             // Enriched text handling is a little funky because TextEnrichedHandler
             // doesn't use Reader and Writer.  As a result, we truncate
@@ -0,0 +1,132 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.session;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Growable bitmap in which any thread may set a bit without locking.
+ * <p>
+ * {@link #set} is the only method that may race with the others.  {@link #grow}, {@link #clear},
+ * {@link #clearAll} and {@link #drain} must be serialized by the owner, which {@link SomeAccountsWaitSet}
+ * does by calling them with its monitor held.
+ */
+final class ReadyBitmap {
+
+    interface Visitor {
+        void visit(int bit);
+    }
+
+    private volatile AtomicLongArray words;
+
+    ReadyBitmap(int capacity) {
+        words = new AtomicLongArray(wordCount(capacity));
+    }
+
+    private static int wordCount(int capacity) {
+        return Math.max(1, (capacity + 63) >>> 6);
+    }
+
+    private static boolean or(AtomicLongArray array, int index, long mask) {
+        while (true) {
+            long current = array.get(index);
+            if ((current & mask) != 0) {
+                return false;
+            }
+            if (array.compareAndSet(index, current, current | mask)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Sets the bit.
+     *
+     * @return false if it was already set
+     */
+    boolean set(int bit) {
+        long mask = 1L << bit;
+        AtomicLongArray current = words;
+        boolean changed = or(current, bit >>> 6, mask);
+        // grow() publishes the new array before copying the old one into it, so re-setting the bit in
+        // every array published since ours guarantees the copy can't miss it
+        for (AtomicLongArray latest = words; latest != current; latest = words) {
+            current = latest;
+            or(current, bit >>> 6, mask);
+        }
+        return changed;
+    }
+
+    void clear(int bit) {
+        AtomicLongArray current = words;
+        int index = bit >>> 6;
+        long mask = 1L << bit;
+        while (true) {
+            long value = current.get(index);
+            if ((value & mask) == 0 || current.compareAndSet(index, value, value & ~mask)) {
+                return;
+            }
+        }
+    }
+
+    void clearAll() {
+        AtomicLongArray current = words;
+        for (int i = 0; i < current.length(); i++) {
+            current.set(i, 0);
+        }
+    }
+
+    /**
+     * Makes room for at least {@code capacity} bits, keeping the ones already set.
+     */
+    void grow(int capacity) {
+        AtomicLongArray old = words;
+        if (capacity <= old.length() << 6) {
+            return;
+        }
+        AtomicLongArray grown = new AtomicLongArray(Math.max(wordCount(capacity), old.length() * 2));
+        words = grown;
+        for (int i = 0; i < old.length(); i++) {
+            long value = old.get(i);
+            if (value != 0) {
+                while (true) {
+                    long current = grown.get(i);
+                    if (grown.compareAndSet(i, current, current | value)) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Clears every set bit, passing each one to the visitor.
+     */
+    void drain(Visitor visitor) {
+        AtomicLongArray current = words;
+        for (int i = 0; i < current.length(); i++) {
+            if (current.get(i) == 0) {
+                continue;
+            }
+            long value = current.getAndSet(i, 0);
+            while (value != 0) {
+                visitor.visit((i << 6) + Long.numberOfTrailingZeros(value));
+                value &= value - 1;
+            }
+        }
+    }
+}
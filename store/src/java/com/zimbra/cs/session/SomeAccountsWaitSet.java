@@ -16,12 +16,17 @@
  */
 package com.zimbra.cs.session;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
@@ -41,14 +46,43 @@ import com.zimbra.soap.admin.type.WaitSetSessionInfo;
  * External APIs:
  *     WaitSet.doWait()              // primary wait API
  *     WaitSet.getDefaultInterest()  // accessor
+ *
+ * Mailbox changes are signalled without taking the WaitSet's monitor: each account in the set owns a bit in
+ * a {@link ReadyBitmap}, and a signal just records the session and changes on the account's {@link Subscriber}
+ * and sets its bit.  The monitor is only taken if a callback is waiting, and the bits are collected into the
+ * signalled sets of {@link WaitSetBase} when data is about to be sent or queried.
  */
 public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxManager.Listener {
 
     private long mCbSeqNo = 0; // seqno passed in by the current waiting callback
     private long mCurrentSeqNo; // current sequence number
 
-    /** these are the accounts we are listening to.  Stores EITHER a WaitSetSession or an AccountID  */
-    private HashMap<String, WaitSetAccount> mSessions = new HashMap<String, WaitSetAccount>();
+    /** these are the accounts we are listening to, by account ID */
+    private volatile ConcurrentHashMap<String, Subscriber> mSubscribers = new ConcurrentHashMap<String, Subscriber>();
+
+    /** accounts with uncollected signals, by {@link Subscriber#slot} */
+    private final ReadyBitmap mReady = new ReadyBitmap(64);
+    /** subscriber owning each slot; guarded by this */
+    private Subscriber[] mSlots = new Subscriber[64];
+    /** slots freed by removed accounts, reused before new ones are handed out; guarded by this */
+    private final Deque<Integer> mFreeSlots = new ArrayDeque<Integer>();
+    private int mNextSlot = 0;
+
+    /**
+     * An account in the set.  A signal leaves the signalling session and the first changes since the account
+     * was last collected here before setting the account's ready bit.
+     */
+    private static final class Subscriber {
+        final WaitSetAccount wsa;
+        final int slot;
+        final AtomicReference<WaitSetSession> signalledSession = new AtomicReference<WaitSetSession>();
+        final AtomicReference<PendingModifications> pendingMods = new AtomicReference<PendingModifications>();
+
+        Subscriber(WaitSetAccount wsa, int slot) {
+            this.wsa = wsa;
+            this.slot = slot;
+        }
+    }
 
     /** Constructor */
     SomeAccountsWaitSet(String ownerAccountId, String id, Set<MailItem.Type> defaultInterest) {
@@ -56,6 +90,71 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
         mCurrentSeqNo = 1;
     }
 
+    private synchronized Subscriber subscribe(WaitSetAccount wsa) {
+        int slot;
+        if (!mFreeSlots.isEmpty()) {
+            slot = mFreeSlots.pop();
+        } else {
+            slot = mNextSlot++;
+            if (slot >= mSlots.length) {
+                mSlots = Arrays.copyOf(mSlots, mSlots.length * 2);
+                mReady.grow(mSlots.length);
+            }
+        }
+        Subscriber sub = new Subscriber(wsa, slot);
+        mSlots[slot] = sub;
+        mSubscribers.put(wsa.getAccountId(), sub);
+        return sub;
+    }
+
+    private synchronized WaitSetAccount unsubscribe(String accountId) {
+        Subscriber sub = mSubscribers.remove(accountId);
+        if (sub == null) {
+            return null;
+        }
+        mSlots[sub.slot] = null;
+        mReady.clear(sub.slot);
+        mFreeSlots.push(sub.slot);
+        return sub.wsa;
+    }
+
+    private WaitSetAccount getAccount(String accountId) {
+        Subscriber sub = mSubscribers.get(accountId);
+        return sub == null ? null : sub.wsa;
+    }
+
+    /**
+     * Moves the accounts signalled since the last call into the current signalled set.  As before, only the
+     * session and changes of the first signal are kept for an account that is already in the set.
+     */
+    private synchronized void collectSignals() {
+        mReady.drain(new ReadyBitmap.Visitor() {
+            @Override
+            public void visit(int slot) {
+                Subscriber sub = mSlots[slot];
+                if (sub == null) {
+                    return; // removed since it was signalled
+                }
+                WaitSetSession session = sub.signalledSession.getAndSet(null);
+                PendingModifications pms = sub.pendingMods.getAndSet(null);
+                if (session == null) {
+                    return; // already collected along with an earlier signal, or left over from a removed account
+                }
+                String accountId = sub.wsa.getAccountId();
+                if (mCurrentSignalledAccounts.add(accountId)) {
+                    mCurrentSignalledSessions.add(session);
+                    addMods(currentPendingModifications, accountId, pms);
+                }
+            }
+        });
+    }
+
+    @Override
+    protected synchronized void trySendData() {
+        collectSignals();
+        super.trySendData();
+    }
+
     @Override
     public List<WaitSetError> removeAccounts(List<String> accts) {
         List<WaitSetError> errors = new ArrayList<WaitSetError>();
@@ -63,10 +162,9 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
         for (String id : accts) {
             WaitSetSession session = null;
             synchronized(this) {
-                WaitSetAccount wsa = mSessions.get(id);
+                WaitSetAccount wsa = unsubscribe(id);
                 if (wsa != null) {
                     session = wsa.getSession();
-                    mSessions.remove(id);
                 } else {
                     errors.add(new WaitSetError(id, WaitSetError.Type.NOT_IN_SET_DURING_REMOVE));
                 }
@@ -114,12 +212,12 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
 
     @Override
     public synchronized void mailboxLoaded(Mailbox mbox) {
-        WaitSetAccount wsa = mSessions.get(mbox.getAccountId());
+        WaitSetAccount wsa = getAccount(mbox.getAccountId());
         if (wsa != null) {
             // create a new session...
             WaitSetError error = initializeWaitSetSession(wsa, mbox);
             if (error != null) {
-                mSessions.remove(wsa.getAccountId());
+                unsubscribe(wsa.getAccountId());
                 signalError(error);
             }
         }
@@ -127,9 +225,8 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
 
     @Override
     public synchronized void mailboxDeleted(String accountId) {
-        WaitSetAccount wsa = mSessions.get(accountId);
+        WaitSetAccount wsa = unsubscribe(accountId);
         if (wsa != null) {
-            mSessions.remove(accountId);
             signalError(new WaitSetError(accountId, WaitSetError.Type.MAILBOX_DELETED));
         }
     }
@@ -167,7 +264,7 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
         List<WaitSetError> errors = new ArrayList<WaitSetError>();
 
         for (WaitSetAccount update : updates) {
-            WaitSetAccount existing = mSessions.get(update.getAccountId());
+            WaitSetAccount existing = getAccount(update.getAccountId());
             if (existing != null) {
                 ZimbraLog.session.trace("SomeAccountsWaitSet updating %s with details from %s", existing, update);
                 existing.setInterests(update.getInterests());
@@ -189,9 +286,9 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
         List<WaitSetError> errors = new ArrayList<WaitSetError>();
 
         for (WaitSetAccount wsa : wsas) {
-            if (!mSessions.containsKey(wsa.getAccountId())) {
+            if (!mSubscribers.containsKey(wsa.getAccountId())) {
                 // add the account to our session list
-                mSessions.put(wsa.getAccountId(), wsa);
+                subscribe(wsa);
 
                 // create the Session, if necessary, to listen to the requested mailbox
                 try {
@@ -220,7 +317,7 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
                     } else {
                         errors.add(new WaitSetError(wsa.getAccountId(), WaitSetError.Type.ERROR_LOADING_MAILBOX));
                     }
-                    mSessions.remove(wsa);
+                    unsubscribe(wsa.getAccountId());
                 }
 
             } else {
@@ -231,7 +328,7 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
     }
 
     synchronized protected void cleanupSession(WaitSetSession session) {
-        WaitSetAccount acct = mSessions.get(session.getTargetAccountId());
+        WaitSetAccount acct = getAccount(session.getTargetAccountId());
         if (acct != null) {
             acct.cleanupSession();
         }
@@ -239,7 +336,7 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
 
     @Override
     protected int countSessions() {
-        return mSessions.size();
+        return mSubscribers.size();
     }
 
     /**
@@ -253,8 +350,13 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
             ZimbraLog.session.warn("Caught unexpected ServiceException while destroying WaitSet: "+e, e);
         }
         cancelExistingCB();
-        HashMap<String, WaitSetAccount> toRet = mSessions;
-        mSessions = new HashMap<String, WaitSetAccount>();
+        HashMap<String, WaitSetAccount> toRet = new HashMap<String, WaitSetAccount>();
+        for (Subscriber sub : mSubscribers.values()) {
+            toRet.put(sub.wsa.getAccountId(), sub.wsa);
+        }
+        mSubscribers = new ConcurrentHashMap<String, Subscriber>();
+        Arrays.fill(mSlots, null);
+        mReady.clearAll();
         mCurrentSignalledSessions.clear();
         mSentSignalledSessions.clear();
         mSentSignalledAccounts.clear();
@@ -276,9 +378,13 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
      * @param session
      */
     synchronized protected void unsignalDataReady(WaitSetSession session) {
-        if (mSessions.containsKey(session.getTargetAccountId())) { // ...false if waitset is shutting down...
+        Subscriber sub = mSubscribers.get(session.getTargetAccountId());
+        if (sub != null) { // ...null if waitset is shutting down...
+            mReady.clear(sub.slot);
+            sub.signalledSession.set(null);
+            sub.pendingMods.set(null);
             mCurrentSignalledAccounts.remove(session.getTargetAccountId());
-            mCurrentSignalledSessions.remove(session.getTargetAccountId());
+            mCurrentSignalledSessions.remove(session);
         }
     }
 
@@ -286,39 +392,52 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
      * Called by the WaitSetSession when there is data to be signalled by this session
      * @param session
      */
-    synchronized protected void signalDataReady(WaitSetSession session) {
+    protected void signalDataReady(WaitSetSession session) {
         signalDataReady(session, null);
     }
 
     /**
-     * Called by the WaitSetSession when there is data to be signalled by this session
+     * Called by the WaitSetSession when there is data to be signalled by this session.  Does not block unless
+     * a callback is waiting for the signal.
      * @param session
      */
-    synchronized protected void signalDataReady(WaitSetSession session, PendingModifications pms) {
+    protected void signalDataReady(WaitSetSession session, PendingModifications pms) {
         boolean trace = ZimbraLog.session.isTraceEnabled();
         if (trace) ZimbraLog.session.trace("SomeAccountsWaitSet.signalDataReady 1");
-        String targetAccId = session.getTargetAccountId();
-        if (mSessions.containsKey(targetAccId)) { // ...false if waitset is shutting down...
+        Subscriber sub = mSubscribers.get(session.getTargetAccountId());
+        if (sub != null) { // ...null if waitset is shutting down...
             if (trace) ZimbraLog.session.trace("SomeAccountsWaitSet.signalDataReady 2");
-            if (mCurrentSignalledAccounts.add(targetAccId)) {
-                mCurrentSignalledSessions.add(session);
+            sub.signalledSession.set(session);
+            if (pms != null) {
+                sub.pendingMods.compareAndSet(null, pms);
+            }
+            // doWait() installs the callback before collecting signals, so either it sees this bit or we see
+            // its callback here
+            if (mReady.set(sub.slot) && mCb != null) {
                 if (trace) ZimbraLog.session.trace("SomeAccountsWaitSet.signalDataReady 3");
-                addMods(currentPendingModifications, targetAccId, pms);
                 trySendData();
             }
         }
         if (trace) ZimbraLog.session.trace("SomeAccountsWaitSet.signalDataReady done");
     }
 
+    /**
+     * Only the WaitSet-wide state is read under the monitor; the (possibly large) list of accounts is walked
+     * without it.
+     */
     @Override
-    public synchronized WaitSetInfo handleQuery() {
-        WaitSetInfo info = super.handleQuery();
-        info.setCbSeqNo(Long.toString(mCbSeqNo));
-        info.setCurrentSeqNo(Long.toString(mCurrentSeqNo));
+    public WaitSetInfo handleQuery() {
+        WaitSetInfo info;
+        synchronized (this) {
+            collectSignals();
+            info = super.handleQuery();
+            info.setCbSeqNo(Long.toString(mCbSeqNo));
+            info.setCurrentSeqNo(Long.toString(mCurrentSeqNo));
+        }
 
-        for (Map.Entry<String, WaitSetAccount> entry : mSessions.entrySet()) {
+        for (Map.Entry<String, Subscriber> entry : mSubscribers.entrySet()) {
             String acctId = entry.getKey();
-            WaitSetAccount wsa = entry.getValue();
+            WaitSetAccount wsa = entry.getValue().wsa;
             SessionForWaitSet sess = new SessionForWaitSet(acctId, WaitSetRequest.expandInterestStr(wsa.getInterests()));
 
             if (!wsa.getAccountId().equals(acctId)) {
@@ -364,23 +483,13 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
      * Keeping this for possible future use.  Currently it is not reliable as WaitSets aren't necessarily
      * cleaned up immediately, resulting in false positives.
      */
-    public synchronized boolean isMonitoringFolder(String accountId, int folderId) {
-        WaitSetInfo info = super.handleQuery();
-        info.setCbSeqNo(Long.toString(mCbSeqNo));
-        info.setCurrentSeqNo(Long.toString(mCurrentSeqNo));
-
-        for (Map.Entry<String, WaitSetAccount> entry : mSessions.entrySet()) {
-            String acctId = entry.getKey();
-            if (!accountId.equals(acctId)) {
-                continue;
-            }
-            WaitSetAccount wsa = entry.getValue();
-            Set<Integer> folderInterests = wsa.getFolderInterests();
-            if ((folderInterests != null) && folderInterests.contains(folderId)) {
-                return true;
-            }
+    public boolean isMonitoringFolder(String accountId, int folderId) {
+        WaitSetAccount wsa = getAccount(accountId);
+        if (wsa == null) {
+            return false;
         }
-        return false;
+        Set<Integer> folderInterests = wsa.getFolderInterests();
+        return (folderInterests != null) && folderInterests.contains(folderId);
     }
 
     public long getCurrentSeqNo() {
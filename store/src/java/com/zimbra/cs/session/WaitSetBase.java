@@ -40,8 +40,9 @@ public abstract class WaitSetBase implements IWaitSet {
     protected final String mOwnerAccountId;
     protected final Set<MailItem.Type> defaultInterest;
 
-    protected long mLastAccessedTime = -1;
-    protected WaitSetCallback mCb = null;
+    protected volatile long mLastAccessedTime = -1;
+    /** read without the monitor by signalling threads to decide whether anyone is waiting */
+    protected volatile WaitSetCallback mCb = null;
 
     /**
      * List of errors (right now, only mailbox deletion notifications) to be sent
@@ -17,12 +17,12 @@
 package com.zimbra.cs.session;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.zimbra.common.account.Key;
 import com.zimbra.common.localconfig.LC;
@@ -43,7 +43,11 @@ import com.zimbra.cs.util.Zimbra;
 import com.zimbra.soap.ZimbraSoapContext;
 
 /**
- *
+ * Server-wide registry of WaitSets.
+ * <p>
+ * The registry is a concurrent map, so looking up a WaitSet never blocks.  The per-owner lists used to enforce
+ * {@code zimbra_waitset_max_per_account} are each guarded by their own monitor.  No registry lock is held while
+ * a WaitSet's monitor is taken.
  */
 public class WaitSetMgr {
     public static final String ALL_ACCOUNTS_ID_PREFIX = "AllWaitSet-";
@@ -64,9 +68,14 @@ public class WaitSetMgr {
         }
     };
 
-    private static final HashMap<String, WaitSetBase> sWaitSets = new HashMap<String, WaitSetBase>();
+    private static final ConcurrentMap<String, WaitSetBase> sWaitSets = new ConcurrentHashMap<String, WaitSetBase>();
+
+    /** each list is guarded by its own monitor, and is removed from the map once it is empty */
+    private static final ConcurrentMap<String /*AccountId*/, List<String /*WaitSetId*/>> sWaitSetsByAccountId =
+        new ConcurrentHashMap<String, List<String>>();
 
-    private static final HashMap<String /*AccountId*/, List<String /*WaitSetId*/>> sWaitSetsByAccountId = new HashMap<String, List<String>>();
+    /** serializes re-creation of "all accounts" WaitSets, which register themselves globally when built */
+    private static final Object sAllAccountsCreateLock = new Object();
 
     private static final int WAITSET_SWEEP_DELAY = 1000 * 60; // once every minute
 
@@ -113,39 +122,100 @@ public class WaitSetMgr {
             ws = sws;
         }
 
-        synchronized(sWaitSets) {
-            if (!allowMultiple) {
-                List<String> list = sWaitSetsByAccountId.get(ownerAccountId);
-                if (list != null) {
-                    if (list.size() >= MAX_WAITSETS_PER_NONADMIN_ACCOUNT) {
-                        // find the least-recently-used
-                        long oldestTime = Long.MAX_VALUE;
-                        String oldestId = null;
-                        for (String wsid : list) {
-                            WaitSetBase existingWs = lookupInternal(wsid);
-                            long time = existingWs.getLastAccessedTime();
-                            if (time < oldestTime) {
-                                oldestTime = time;
-                                oldestId = wsid;
-                            }
+        // bookkeeping: update access time, add to static wait set maps
+        ws.setLastAccessedTime(System.currentTimeMillis());
+        sWaitSets.put(id, ws);
+        String evictId = addForOwner(ownerAccountId, id, !allowMultiple);
+        if (evictId != null) {
+            WaitSetBase evicted = sWaitSets.get(evictId);
+            if (evicted != null) {
+                remove(evicted);
+            }
+        }
+
+        // return!
+        return new Pair<String, List<WaitSetError>>(id, errors);
+    }
+
+    /**
+     * Adds the WaitSet to the owner's list.  If {@code limit} is set and the owner already has the maximum number
+     * of WaitSets, the least-recently-used one is taken off the list instead.
+     *
+     * @return the ID of the WaitSet taken off the list, which the caller must remove, or null
+     */
+    private static String addForOwner(String ownerAccountId, String id, boolean limit) {
+        while (true) {
+            List<String> list = sWaitSetsByAccountId.get(ownerAccountId);
+            if (list == null) {
+                List<String> created = new ArrayList<String>();
+                list = sWaitSetsByAccountId.putIfAbsent(ownerAccountId, created);
+                if (list == null) {
+                    list = created;
+                }
+            }
+            synchronized (list) {
+                if (sWaitSetsByAccountId.get(ownerAccountId) != list) {
+                    continue; // emptied and dropped by removeForOwner() in the meantime
+                }
+                String oldestId = null;
+                if (limit && list.size() >= MAX_WAITSETS_PER_NONADMIN_ACCOUNT) {
+                    // find the least-recently-used
+                    long oldestTime = Long.MAX_VALUE;
+                    for (String wsid : list) {
+                        WaitSetBase existingWs = sWaitSets.get(wsid);
+                        long time = existingWs == null ? Long.MIN_VALUE : existingWs.getLastAccessedTime();
+                        if (oldestId == null || time < oldestTime) {
+                            oldestTime = time;
+                            oldestId = wsid;
                         }
-                        destroy(null, ownerAccountId, oldestId);
                     }
+                    list.remove(oldestId);
                 }
+                list.add(id);
+                return oldestId;
             }
+        }
+    }
 
-            // bookkeeping: update access time, add to static wait set maps
-            ws.setLastAccessedTime(System.currentTimeMillis());
-            sWaitSets.put(id, ws);
-            List<String> list = sWaitSetsByAccountId.get(ownerAccountId);
-            if (list == null) {
-                list = new ArrayList<String>();
-                sWaitSetsByAccountId.put(ownerAccountId, list);
+    private static void removeForOwner(String ownerAccountId, String id) {
+        List<String> list = sWaitSetsByAccountId.get(ownerAccountId);
+        if (list == null) {
+            return;
+        }
+        synchronized (list) {
+            list.remove(id);
+            if (list.isEmpty()) {
+                sWaitSetsByAccountId.remove(ownerAccountId, list);
             }
-            list.add(id);
+        }
+    }
 
-            // return!
-            return new Pair<String, List<WaitSetError>>(id, errors);
+    /**
+     * Takes the WaitSet out of the registry and destroys it.
+     *
+     * @return false if it had already been removed by another thread
+     */
+    private static boolean remove(WaitSetBase ws) {
+        if (!sWaitSets.remove(ws.getWaitSetId(), ws)) {
+            return false;
+        }
+        destroyRemoved(ws);
+        return true;
+    }
+
+    /**
+     * Destroys a WaitSet that has just been taken out of {@link #sWaitSets}.
+     */
+    private static void destroyRemoved(WaitSetBase ws) {
+        assert(!Thread.holdsLock(ws));
+        removeForOwner(ws.getOwnerAccountId(), ws.getWaitSetId());
+
+        Map<String, WaitSetAccount> toCleanup = ws.destroy();
+        if (toCleanup != null) {
+            assert(!Thread.holdsLock(ws));
+            for (WaitSetAccount wsa: toCleanup.values()) {
+                wsa.cleanupSession();
+            }
         }
     }
 
@@ -159,40 +229,22 @@ public class WaitSetMgr {
      * @throws ServiceException
      */
     public static void destroy(ZimbraSoapContext zsc, String requestingAcctId, String id) throws ServiceException {
-        synchronized(sWaitSets) {
-            WaitSetBase ws = lookupInternal(id);
-            if (ws == null) {
-                throw MailServiceException.NO_SUCH_WAITSET(id);
-            }
-            assert(!Thread.holdsLock(ws));
-
-            // skip permission checking if zsc is null
-            if (zsc != null) {
-                if (id.startsWith(WaitSetMgr.ALL_ACCOUNTS_ID_PREFIX)) {
-                    checkRightForAllAccounts(zsc);
-                } else {
-                    checkRightForOwnerAccount(ws, requestingAcctId);
-                }
-            }
+        WaitSetBase ws = lookupInternal(id);
+        if (ws == null) {
+            throw MailServiceException.NO_SUCH_WAITSET(id);
+        }
 
-            //remove from the by-id map
-            List<String> list = sWaitSetsByAccountId.get(ws.getOwnerAccountId());
-            assert(list != null);
-            list.remove(id);
-            if (list.size() == 0) {
-                sWaitSetsByAccountId.remove(ws.getOwnerAccountId());
+        // skip permission checking if zsc is null
+        if (zsc != null) {
+            if (id.startsWith(WaitSetMgr.ALL_ACCOUNTS_ID_PREFIX)) {
+                checkRightForAllAccounts(zsc);
+            } else {
+                checkRightForOwnerAccount(ws, requestingAcctId);
             }
+        }
 
-            // remove the wait set
-            sWaitSets.remove(id);
-
-            Map<String, WaitSetAccount> toCleanup = ws.destroy();
-            if (toCleanup != null) {
-                assert(!Thread.holdsLock(ws));
-                for (WaitSetAccount wsa: toCleanup.values()) {
-                    wsa.cleanupSession();
-                }
-            }
+        if (!remove(ws)) {
+            throw MailServiceException.NO_SUCH_WAITSET(id); // destroyed concurrently
         }
     }
 
@@ -218,31 +270,28 @@ public class WaitSetMgr {
      */
     public static IWaitSet lookupOrCreateForAllAccts(String ownerAccountId, String id,
             Set<MailItem.Type> defaultInterests, String lastKnownSeqNo) throws ServiceException {
-        synchronized(sWaitSets) {
-            if (!id.startsWith(ALL_ACCOUNTS_ID_PREFIX)) {
-                throw ServiceException.INVALID_REQUEST("Called WaitSetMgr.lookupOrCreate but wasn't an 'All-' waitset ID", null);
-            }
-
-            IWaitSet toRet = lookup(id);
-            if (toRet == null) {
-                // oops, it's gone!  Try to re-create it given the last known sequence number
-                AllAccountsWaitSet ws = AllAccountsWaitSet.createWithSeqNo(ownerAccountId, id, defaultInterests, lastKnownSeqNo);
-                toRet = ws;
-                ws.setLastAccessedTime(System.currentTimeMillis());
+        if (!id.startsWith(ALL_ACCOUNTS_ID_PREFIX)) {
+            throw ServiceException.INVALID_REQUEST("Called WaitSetMgr.lookupOrCreate but wasn't an 'All-' waitset ID", null);
+        }
 
-                // add the set to the two hashmaps
-                sWaitSets.put(id, ws);
-                List<String> list = sWaitSetsByAccountId.get(ownerAccountId);
-                if (list == null) {
-                    list = new ArrayList<String>();
-                    sWaitSetsByAccountId.put(ownerAccountId, list);
+        IWaitSet toRet = lookup(id);
+        if (toRet == null) {
+            synchronized (sAllAccountsCreateLock) {
+                toRet = lookup(id);
+                if (toRet == null) {
+                    // oops, it's gone!  Try to re-create it given the last known sequence number
+                    AllAccountsWaitSet ws = AllAccountsWaitSet.createWithSeqNo(ownerAccountId, id, defaultInterests, lastKnownSeqNo);
+                    toRet = ws;
+                    ws.setLastAccessedTime(System.currentTimeMillis());
+
+                    // add the set to the two maps
+                    sWaitSets.put(id, ws);
+                    addForOwner(ownerAccountId, id, false);
                 }
-                list.add(id);
-
             }
-            assert(toRet instanceof AllAccountsWaitSet);
-            return toRet;
         }
+        assert(toRet instanceof AllAccountsWaitSet);
+        return toRet;
     }
 
     public static void shutdown() {
@@ -255,25 +304,17 @@ public class WaitSetMgr {
     }
 
     public static List<IWaitSet> getAll() {
-        synchronized(sWaitSets) {
-            List<IWaitSet> toRet = new ArrayList<IWaitSet>(sWaitSets.size());
-            toRet.addAll(sWaitSets.values());
-            return toRet;
-        }
+        return new ArrayList<IWaitSet>(sWaitSets.values());
     }
 
 
     private static WaitSetBase lookupInternal(String id) {
-        synchronized(sWaitSets) {
-            WaitSetBase toRet = sWaitSets.get(id);
-            if (toRet != null) {
-                assert(!Thread.holdsLock(toRet));
-                synchronized(toRet) {
-                    toRet.setLastAccessedTime(System.currentTimeMillis());
-                }
-            }
-            return toRet;
+        WaitSetBase toRet = sWaitSets.get(id);
+        if (toRet != null) {
+            // volatile, so there's no need to wait for the WaitSet's monitor
+            toRet.setLastAccessedTime(System.currentTimeMillis());
         }
+        return toRet;
     }
 
     /**
@@ -284,47 +325,28 @@ public class WaitSetMgr {
         int activeSessions = 0;
         int removed = 0;
         int withCallback = 0;
-        synchronized(sWaitSets) {
-            ZimbraLog.session.debug("active waitset timeout = %d ms", WAITSET_TIMEOUT);
-            long cutoffTime = System.currentTimeMillis() - WAITSET_TIMEOUT;
-
-            for (Iterator<WaitSetBase> iter = sWaitSets.values().iterator(); iter.hasNext();) {
-                WaitSetBase ws = iter.next();
-                assert(!Thread.holdsLock(ws)); // must never lock WS before sWaitSets or deadlock
-
-                Map<String, WaitSetAccount> toCleanup = null;
-
-                synchronized(ws) {
-                    // only timeout if no cb AND if not accessed for a timeout
-                    if (ws.getCb() == null && ws.getLastAccessedTime() < cutoffTime) {
-                        //remove from the by-id map
-                        List<String> list = sWaitSetsByAccountId.get(ws.getOwnerAccountId());
-                        assert(list != null);
-                        list.remove(ws.getWaitSetId());
-                        if (list.size() == 0) {
-                            sWaitSetsByAccountId.remove(ws.getOwnerAccountId());
-                        }
-
-                        // remove
-                        iter.remove();
-                        toCleanup = ws.destroy();
-                        removed++;
-                    } else {
-                        if (ws.getCb() != null) {
-                            withCallback++;
-                        }
-                        activeSets++;
-                        activeSessions+=ws.countSessions();
+        ZimbraLog.session.debug("active waitset timeout = %d ms", WAITSET_TIMEOUT);
+        long cutoffTime = System.currentTimeMillis() - WAITSET_TIMEOUT;
+
+        for (WaitSetBase ws : sWaitSets.values()) {
+            boolean expired;
+            synchronized(ws) {
+                // only timeout if no cb AND if not accessed for a timeout
+                expired = ws.getCb() == null && ws.getLastAccessedTime() < cutoffTime &&
+                    sWaitSets.remove(ws.getWaitSetId(), ws);
+                if (!expired) {
+                    if (ws.getCb() != null) {
+                        withCallback++;
                     }
+                    activeSets++;
+                    activeSessions+=ws.countSessions();
                 }
+            }
 
-                // cleanup w/o WaitSet lock held
-                if (toCleanup != null) {
-                    assert(!Thread.holdsLock(ws));
-                    for (WaitSetAccount wsa : toCleanup.values()) {
-                        wsa.cleanupSession();
-                    }
-                }
+            // cleanup w/o WaitSet lock held
+            if (expired) {
+                destroyRemoved(ws);
+                removed++;
             }
         }
         if (removed > 0) {
@@ -338,13 +360,11 @@ public class WaitSetMgr {
     }
 
     public static boolean isMonitoringFolderForImap(String accountId, int folderId) {
-        synchronized(sWaitSets) {
-            for (IWaitSet ws : sWaitSets.values()) {
-                if (ws instanceof SomeAccountsWaitSet) {
-                    SomeAccountsWaitSet saWs = (SomeAccountsWaitSet) ws;
-                    if (saWs.isMonitoringFolder(accountId, folderId)) {
-                        return true;
-                    }
+        for (IWaitSet ws : sWaitSets.values()) {
+            if (ws instanceof SomeAccountsWaitSet) {
+                SomeAccountsWaitSet saWs = (SomeAccountsWaitSet) ws;
+                if (saWs.isMonitoringFolder(accountId, folderId)) {
+                    return true;
                 }
             }
         }
@@ -21,36 +21,38 @@ import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
-import com.zimbra.common.stats.Counter;
+import com.zimbra.common.stats.Histogram;
 import com.zimbra.common.stats.StatsDumperDataSource;
+import com.zimbra.common.stats.StopWatch;
 
 
 /**
  * ActivityTrackers get their own output file (e.g. soap.csv) and track a set of "commands" and their "total elapsed time" 
- * for each counter stat period, one on a line.
+ * for each counter stat period, one on a line, along with the median, 95th and 99th percentile and maximum of the
+ * elapsed times.
  */
 public class ActivityTracker
 implements StatsDumperDataSource {
 
     private String mFilename;
-    private ConcurrentHashMap<String, Counter> mCounterMap =
-        new ConcurrentHashMap<String, Counter>();
+    private ConcurrentHashMap<String, StopWatch> mCounterMap =
+        new ConcurrentHashMap<String, StopWatch>();
     
     public ActivityTracker(String filename) {
         mFilename = filename;
     }
     
     public void addStat(String commandName, long startTime) {
-        Counter counter = getCounter(commandName);
-        counter.increment(System.currentTimeMillis() - startTime);
+        StopWatch counter = getCounter(commandName);
+        counter.stop(startTime);
     }
     
-    private Counter getCounter(String commandName) {
-        Counter counter = mCounterMap.get(commandName);
+    private StopWatch getCounter(String commandName) {
+        StopWatch counter = mCounterMap.get(commandName);
         if (counter == null) {
-            counter = new Counter();
+            counter = new StopWatch();
             
-            Counter previousCounter = mCounterMap.putIfAbsent(commandName, counter);
+            StopWatch previousCounter = mCounterMap.putIfAbsent(commandName, counter);
             if (previousCounter != null) {
                 // Another thread added the counter after the get() check.  Use it instead
                 // of the one we just instantiated.
@@ -68,15 +70,17 @@ implements StatsDumperDataSource {
         }
         List<String> dataLines = new ArrayList<String>(mCounterMap.size());
         for (String command : mCounterMap.keySet()) {
-            Counter counter = mCounterMap.get(command);
+            StopWatch counter = mCounterMap.get(command);
             if (counter.getCount() > 0) {
                 // This code is not thread-safe, but should be good enough 99.9% of the time.
                 // We avoid synchronization at the risk of the numbers being slightly off
                 // during a race condition.
                 long count = counter.getCount();
                 long avg = (long) counter.getAverage();
+                Histogram.Snapshot times = counter.getHistogram().snapshot();
                 counter.reset();
-                dataLines.add(String.format("%s,%d,%d", command, count, avg)); 
+                dataLines.add(String.format("%s,%d,%d,%d,%d,%d,%d", command, count, avg, times.getPercentile(50),
+                        times.getPercentile(95), times.getPercentile(99), times.getMax()));
             }
         }
         return dataLines;
@@ -87,7 +91,7 @@ implements StatsDumperDataSource {
     }
 
     public String getHeader() {
-        return "command,exec_count,exec_ms_avg";
+        return "command,exec_count,exec_ms_avg,exec_ms_p50,exec_ms_p95,exec_ms_p99,exec_ms_max";
     }
 
     public boolean hasTimestampColumn() {
@@ -18,10 +18,13 @@
 package com.zimbra.cs.stats;
 
 import com.zimbra.common.stats.DeltaCalculator;
+import com.zimbra.common.stats.HistogramCalculator;
 
 public class JmxImapDaemonStats implements JmxImapDaemonStatsMBean {
 
     private final DeltaCalculator imapDeltaCalc = new DeltaCalculator(ZimbraPerf.STOPWATCH_IMAP);
+    private final HistogramCalculator imapHistogramCalc =
+            new HistogramCalculator(ZimbraPerf.STOPWATCH_IMAP.getHistogram());
 
     JmxImapDaemonStats() {
     }
@@ -36,8 +39,29 @@ public class JmxImapDaemonStats implements JmxImapDaemonStatsMBean {
         return (long) imapDeltaCalc.getRealtimeAverage();
     }
 
+    @Override
+    public long getImapResponseMsP50() {
+        return imapHistogramCalc.getRealtimePercentile(50);
+    }
+
+    @Override
+    public long getImapResponseMsP95() {
+        return imapHistogramCalc.getRealtimePercentile(95);
+    }
+
+    @Override
+    public long getImapResponseMsP99() {
+        return imapHistogramCalc.getRealtimePercentile(99);
+    }
+
+    @Override
+    public long getImapResponseMsMax() {
+        return imapHistogramCalc.getRealtimePercentile(100);
+    }
+
     @Override
     public void reset() {
         imapDeltaCalc.reset();
+        imapHistogramCalc.reset();
     }
 }
\ No newline at end of file
@@ -20,4 +20,8 @@ package com.zimbra.cs.stats;
 public interface JmxImapDaemonStatsMBean extends JmxStatsMBeanBase {
     long getImapRequests();
     long getImapResponseMs();
+    long getImapResponseMsP50();
+    long getImapResponseMsP95();
+    long getImapResponseMsP99();
+    long getImapResponseMsMax();
 }
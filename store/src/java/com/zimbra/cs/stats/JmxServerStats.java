@@ -23,6 +23,7 @@ import java.util.List;
 
 import com.zimbra.common.stats.Accumulator;
 import com.zimbra.common.stats.DeltaCalculator;
+import com.zimbra.common.stats.HistogramCalculator;
 import com.zimbra.cs.db.DbPool;
 import com.zimbra.cs.mailbox.MessageCache;
 
@@ -39,6 +40,12 @@ public class JmxServerStats implements JmxServerStatsMBean {
     private DeltaCalculator mPop = new DeltaCalculator(ZimbraPerf.STOPWATCH_POP);
     private DeltaCalculator mSoap = new DeltaCalculator(ZimbraPerf.STOPWATCH_SOAP);
     private DeltaCalculator mBisSeek = new DeltaCalculator(ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_SEEK_RATE); 
+
+    private HistogramCalculator mDbConnTimes = new HistogramCalculator(ZimbraPerf.STOPWATCH_DB_CONN.getHistogram());
+    private HistogramCalculator mAddMessageTimes =
+        new HistogramCalculator(ZimbraPerf.STOPWATCH_MBOX_ADD_MSG.getHistogram());
+    private HistogramCalculator mImapTimes = new HistogramCalculator(ZimbraPerf.STOPWATCH_IMAP.getHistogram());
+    private HistogramCalculator mSoapTimes = new HistogramCalculator(ZimbraPerf.STOPWATCH_SOAP.getHistogram());
     
     private final List<Accumulator> mAccumulators;
     
@@ -56,6 +63,11 @@ public class JmxServerStats implements JmxServerStatsMBean {
         accumulators.add(mPop);
         accumulators.add(mSoap);
         accumulators.add(mBisSeek);
+
+        accumulators.add(mDbConnTimes);
+        accumulators.add(mAddMessageTimes);
+        accumulators.add(mImapTimes);
+        accumulators.add(mSoapTimes);
         
         mAccumulators = Collections.unmodifiableList(accumulators);
     }
@@ -68,6 +80,22 @@ public class JmxServerStats implements JmxServerStatsMBean {
         return (long) mDbConn.getRealtimeAverage();
     }
 
+    public long getDatabaseConnectionGetMsP50() {
+        return mDbConnTimes.getRealtimePercentile(50);
+    }
+
+    public long getDatabaseConnectionGetMsP95() {
+        return mDbConnTimes.getRealtimePercentile(95);
+    }
+
+    public long getDatabaseConnectionGetMsP99() {
+        return mDbConnTimes.getRealtimePercentile(99);
+    }
+
+    public long getDatabaseConnectionGetMsMax() {
+        return mDbConnTimes.getRealtimePercentile(100);
+    }
+
     public long getDatabaseConnectionsInUse() {
         return DbPool.getSize();
     }
@@ -128,6 +156,22 @@ public class JmxServerStats implements JmxServerStatsMBean {
         return (long) mAddMessage.getRealtimeAverage();
     }
 
+    public long getMessageAddMsP50() {
+        return mAddMessageTimes.getRealtimePercentile(50);
+    }
+
+    public long getMessageAddMsP95() {
+        return mAddMessageTimes.getRealtimePercentile(95);
+    }
+
+    public long getMessageAddMsP99() {
+        return mAddMessageTimes.getRealtimePercentile(99);
+    }
+
+    public long getMessageAddMsMax() {
+        return mAddMessageTimes.getRealtimePercentile(100);
+    }
+
     public long getMessageCacheSize() {
         return MessageCache.getSize();
     }
@@ -148,6 +192,22 @@ public class JmxServerStats implements JmxServerStatsMBean {
         return (long) mSoap.getRealtimeAverage();
     }
 
+    public long getSoapResponseMsP50() {
+        return mSoapTimes.getRealtimePercentile(50);
+    }
+
+    public long getSoapResponseMsP95() {
+        return mSoapTimes.getRealtimePercentile(95);
+    }
+
+    public long getSoapResponseMsP99() {
+        return mSoapTimes.getRealtimePercentile(99);
+    }
+
+    public long getSoapResponseMsMax() {
+        return mSoapTimes.getRealtimePercentile(100);
+    }
+
     public long getBlobInputStreamReads() {
         return ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_READ.getCount();
     }
@@ -160,6 +220,22 @@ public class JmxServerStats implements JmxServerStatsMBean {
         return (long) mImap.getRealtimeAverage();
     }
 
+    public long getImapResponseMsP50() {
+        return mImapTimes.getRealtimePercentile(50);
+    }
+
+    public long getImapResponseMsP95() {
+        return mImapTimes.getRealtimePercentile(95);
+    }
+
+    public long getImapResponseMsP99() {
+        return mImapTimes.getRealtimePercentile(99);
+    }
+
+    public long getImapResponseMsMax() {
+        return mImapTimes.getRealtimePercentile(100);
+    }
+
     public long getPopRequests() {
         return ZimbraPerf.STOPWATCH_POP.getCount();
     }
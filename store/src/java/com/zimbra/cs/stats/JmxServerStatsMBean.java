@@ -23,9 +23,17 @@ public interface JmxServerStatsMBean extends JmxStatsMBeanBase
     long getBlobInputStreamSeekRate();
     long getDatabaseConnectionGets();
     long getDatabaseConnectionGetMs();
+    long getDatabaseConnectionGetMsP50();
+    long getDatabaseConnectionGetMsP95();
+    long getDatabaseConnectionGetMsP99();
+    long getDatabaseConnectionGetMsMax();
     long getDatabaseConnectionsInUse();
     long getImapRequests();
     long getImapResponseMs();
+    long getImapResponseMsP50();
+    long getImapResponseMsP95();
+    long getImapResponseMsP99();
+    long getImapResponseMsMax();
     long getItemCacheHitRate();
     long getLdapDirectoryContextGetMs();
     long getLdapDirectoryContextGets();
@@ -39,6 +47,10 @@ public interface JmxServerStatsMBean extends JmxStatsMBeanBase
     long getMailboxGetMs();
     long getMailboxGets();
     long getMessageAddMs();
+    long getMessageAddMsP50();
+    long getMessageAddMsP95();
+    long getMessageAddMsP99();
+    long getMessageAddMsMax();
     long getMessageCacheSize();
     long getMessageCacheHitRate();
     long getMessagesAdded();
@@ -46,4 +58,8 @@ public interface JmxServerStatsMBean extends JmxStatsMBeanBase
     long getPopResponseMs();
     long getSoapRequests();
     long getSoapResponseMs();
+    long getSoapResponseMsP50();
+    long getSoapResponseMsP95();
+    long getSoapResponseMsP99();
+    long getSoapResponseMsMax();
 }
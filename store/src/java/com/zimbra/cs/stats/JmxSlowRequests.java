@@ -0,0 +1,54 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.stats;
+
+import java.util.List;
+
+/**
+ * Exposes the slowest SOAP and IMAP requests kept by {@link ZimbraPerf#SOAP_SAMPLER} and
+ * {@link ZimbraPerf#IMAP_SAMPLER}, slowest first.
+ */
+public class JmxSlowRequests implements JmxSlowRequestsMBean {
+
+    JmxSlowRequests() {
+    }
+
+    @Override
+    public String[] getSlowSoapRequests() {
+        return toStrings(ZimbraPerf.SOAP_SAMPLER.getSamples());
+    }
+
+    @Override
+    public String[] getSlowImapRequests() {
+        return toStrings(ZimbraPerf.IMAP_SAMPLER.getSamples());
+    }
+
+    private static String[] toStrings(List<SlowRequestSampler.Sample> samples) {
+        String[] result = new String[samples.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = samples.get(i).toString();
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        ZimbraPerf.SOAP_SAMPLER.reset();
+        ZimbraPerf.IMAP_SAMPLER.reset();
+    }
+}
@@ -23,7 +23,10 @@ import java.util.Map;
 import com.zimbra.common.stats.RealtimeStatsCallback;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.accesscontrol.PermissionCache;
+import com.zimbra.cs.account.cache.IEntryCache;
 import com.zimbra.cs.account.ldap.LdapProv;
+import com.zimbra.cs.html.DefangCache;
+import com.zimbra.cs.index.LuceneIndex;
 import com.zimbra.cs.mailbox.MessageCache;
 import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.FileDescriptorCache;
@@ -35,10 +38,15 @@ public class ServerStatsCallback implements RealtimeStatsCallback {
         Map<String, Object> data = new HashMap<String, Object>();
         data.put(ZimbraPerf.RTS_MBOX_CACHE_SIZE, ZimbraPerf.getMailboxCacheSize());
         data.put(ZimbraPerf.RTS_MSG_CACHE_SIZE, MessageCache.getSize());
+        data.put(ZimbraPerf.RTS_MSG_CACHE_BYTES, MessageCache.getDataSize());
         
         FileDescriptorCache fdc = BlobInputStream.getFileDescriptorCache();
         data.put(ZimbraPerf.RTS_FD_CACHE_SIZE, fdc.getSize());
         data.put(ZimbraPerf.RTS_FD_CACHE_HIT_RATE, fdc.getHitRate());
+        data.put(ZimbraPerf.RTS_FD_CACHE_OPEN, fdc.getOpenCount());
+        data.put(ZimbraPerf.RTS_DEFANG_CACHE_SIZE, DefangCache.getInstance().getSize());
+        data.put(ZimbraPerf.RTS_DEFANG_CACHE_BYTES, DefangCache.getInstance().getDataSize());
+        data.put(ZimbraPerf.RTS_IDX_OPEN_READERS, LuceneIndex.getOpenReaderCount());
         
         data.put(ZimbraPerf.RTS_ACL_CACHE_HIT_RATE, PermissionCache.getHitRate());
         
@@ -61,6 +69,12 @@ public class ServerStatsCallback implements RealtimeStatsCallback {
             data.put(ZimbraPerf.RTS_GROUP_CACHE_HIT_RATE, ldap.getGroupCacheHitRate());
             data.put(ZimbraPerf.RTS_XMPP_CACHE_SIZE, ldap.getXMPPCacheSize());
             data.put(ZimbraPerf.RTS_XMPP_CACHE_HIT_RATE, ldap.getXMPPCacheHitRate());
+            for (Map.Entry<String, IEntryCache> entry : ldap.getEntryCaches().entrySet()) {
+                IEntryCache cache = entry.getValue();
+                data.put(entry.getKey() + "_cache_hits", cache.getHitCount());
+                data.put(entry.getKey() + "_cache_misses", cache.getMissCount());
+                data.put(entry.getKey() + "_cache_refreshes", cache.getRefreshCount());
+            }
         }
         return data;
     }
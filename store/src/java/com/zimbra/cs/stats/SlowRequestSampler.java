@@ -0,0 +1,248 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.stats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the slowest requests of each command, along with where their time went, so that the mailbox and command
+ * behind a latency spike can be found without turning on debug logging.
+ * <p>
+ * A protocol handler calls {@link #begin} when it starts executing a request and {@link #end} when it is done.  In
+ * between, the mailbox lock, the database and the blob store report what the request used on the current thread
+ * with {@link #addLockWait}, {@link #addDbTime} and {@link #addBlobBytes}.  Requests faster than the threshold, or
+ * faster than every request already kept for their command, are dropped without taking a lock.
+ */
+public class SlowRequestSampler {
+
+    private static final ThreadLocal<Usage> usage = new ThreadLocal<Usage>();
+
+    private final int size;
+    private final long thresholdMs;
+    private final ConcurrentMap<String, Slowest> commands = new ConcurrentHashMap<String, Slowest>();
+
+    /**
+     * @param size number of requests to keep per command, or 0 to disable sampling
+     * @param thresholdMs requests that take less time are not kept
+     */
+    public SlowRequestSampler(int size, long thresholdMs) {
+        this.size = size;
+        this.thresholdMs = thresholdMs;
+    }
+
+    /**
+     * Resources used by the request running on a thread.
+     */
+    private static final class Usage {
+        long lockWaitMs;
+        long dbMs;
+        long blobBytes;
+    }
+
+    /**
+     * Starts counting the resources used by the request about to run on the current thread.
+     */
+    public static void begin() {
+        Usage u = usage.get();
+        if (u == null) {
+            usage.set(new Usage());
+        } else {
+            u.lockWaitMs = 0;
+            u.dbMs = 0;
+            u.blobBytes = 0;
+        }
+    }
+
+    /**
+     * Records time spent waiting for a mailbox lock.
+     */
+    public static void addLockWait(long ms) {
+        Usage u = usage.get();
+        if (u != null) {
+            u.lockWaitMs += ms;
+        }
+    }
+
+    /**
+     * Records time spent executing SQL.
+     */
+    public static void addDbTime(long ms) {
+        Usage u = usage.get();
+        if (u != null) {
+            u.dbMs += ms;
+        }
+    }
+
+    /**
+     * Records blob bytes read or written.
+     */
+    public static void addBlobBytes(long bytes) {
+        Usage u = usage.get();
+        if (u != null) {
+            u.blobBytes += bytes;
+        }
+    }
+
+    /**
+     * Finishes the request running on the current thread, and keeps it if it is among the slowest of its command.
+     *
+     * @param command command name
+     * @param accountId the account whose mailbox the request used, or {@code null}
+     * @param startTime when the request started, in milliseconds
+     */
+    public void end(String command, String accountId, long startTime) {
+        Usage u = usage.get();
+        if (size <= 0 || u == null) {
+            return;
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+        if (elapsed < thresholdMs) {
+            return;
+        }
+        Slowest slowest = commands.get(command);
+        if (slowest == null) {
+            slowest = new Slowest(size);
+            Slowest prev = commands.putIfAbsent(command, slowest);
+            if (prev != null) {
+                slowest = prev;
+            }
+        }
+        if (elapsed > slowest.floor) {
+            slowest.offer(new Sample(command, accountId, startTime, elapsed, u.lockWaitMs, u.dbMs, u.blobBytes));
+        }
+    }
+
+    /**
+     * Returns the requests kept for every command, slowest first.
+     */
+    public List<Sample> getSamples() {
+        List<Sample> result = new ArrayList<Sample>();
+        for (Slowest slowest : commands.values()) {
+            slowest.addTo(result);
+        }
+        Collections.sort(result, Collections.reverseOrder(BY_ELAPSED));
+        return result;
+    }
+
+    public void reset() {
+        commands.clear();
+    }
+
+    private static final Comparator<Sample> BY_ELAPSED = new Comparator<Sample>() {
+        @Override
+        public int compare(Sample s1, Sample s2) {
+            return Long.compare(s1.elapsedMs, s2.elapsedMs);
+        }
+    };
+
+    /**
+     * The slowest requests of one command, fastest on top.
+     */
+    private static final class Slowest {
+        private final int size;
+        private final PriorityQueue<Sample> heap;
+        // elapsed time a request must beat once the heap is full
+        volatile long floor = -1;
+
+        Slowest(int size) {
+            this.size = size;
+            heap = new PriorityQueue<Sample>(size + 1, BY_ELAPSED);
+        }
+
+        synchronized void offer(Sample sample) {
+            if (sample.elapsedMs <= floor) {
+                return;
+            }
+            heap.add(sample);
+            if (heap.size() > size) {
+                heap.poll();
+            }
+            if (heap.size() == size) {
+                floor = heap.peek().elapsedMs;
+            }
+        }
+
+        synchronized void addTo(List<Sample> list) {
+            list.addAll(heap);
+        }
+    }
+
+    /**
+     * A finished request and the resources it used.
+     */
+    public static final class Sample {
+        private final String command;
+        private final String accountId;
+        private final long startTime;
+        private final long elapsedMs;
+        private final long lockWaitMs;
+        private final long dbMs;
+        private final long blobBytes;
+
+        Sample(String command, String accountId, long startTime, long elapsedMs, long lockWaitMs, long dbMs,
+                long blobBytes) {
+            this.command = command;
+            this.accountId = accountId;
+            this.startTime = startTime;
+            this.elapsedMs = elapsedMs;
+            this.lockWaitMs = lockWaitMs;
+            this.dbMs = dbMs;
+            this.blobBytes = blobBytes;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public String getAccountId() {
+            return accountId;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public long getElapsedMs() {
+            return elapsedMs;
+        }
+
+        public long getLockWaitMs() {
+            return lockWaitMs;
+        }
+
+        public long getDbMs() {
+            return dbMs;
+        }
+
+        public long getBlobBytes() {
+            return blobBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s account=%s start=%d elapsed=%d lockWait=%d db=%d blobBytes=%d",
+                    command, accountId, startTime, elapsedMs, lockWaitMs, dbMs, blobBytes);
+        }
+    }
+}
@@ -36,10 +36,12 @@ import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
 import com.google.common.collect.Maps;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Accumulator;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.stats.DeltaCalculator;
+import com.zimbra.common.stats.HistogramCalculator;
 import com.zimbra.common.stats.RealtimeStats;
 import com.zimbra.common.stats.RealtimeStatsCallback;
 import com.zimbra.common.stats.StatsDumper;
@@ -73,6 +75,9 @@ public class ZimbraPerf {
     @Description("Number of LMTP handler threads")
     public static final String RTS_LMTP_THREADS = "lmtp_threads";
 
+    @Description("Number of LMTP recipient deliveries waiting for a delivery thread")
+    public static final String RTS_LMTP_DELIVERY_QUEUE = "lmtp_delivery_queue";
+
     @Description("Number of cleartext POP3 connections")
     public static final String RTS_POP_CONN = "pop_conn";
 
@@ -112,12 +117,27 @@ public class ZimbraPerf {
     @Description("Number of message structures cached in memory")
     public static final String RTS_MSG_CACHE_SIZE = "msg_cache_size";
 
+    @Description("Bytes of message data held in memory by the message cache")
+    public static final String RTS_MSG_CACHE_BYTES = "msg_cache_bytes";
+
     @Description("Number of open file descriptors that reference message content")
     public static final String RTS_FD_CACHE_SIZE = "fd_cache_size";
 
     @Description("File descriptor cache hit rate")
     public static final String RTS_FD_CACHE_HIT_RATE = "fd_cache_hit_rate";
 
+    @Description("Number of open file descriptors held by the file descriptor cache, including evicted ones still being read")
+    public static final String RTS_FD_CACHE_OPEN = "fd_cache_open";
+
+    @Description("Number of sanitized HTML bodies cached in memory")
+    public static final String RTS_DEFANG_CACHE_SIZE = "defang_cache_size";
+
+    @Description("Bytes of sanitized HTML held in memory by the defang cache")
+    public static final String RTS_DEFANG_CACHE_BYTES = "defang_cache_bytes";
+
+    @Description("Number of open Lucene index readers, including superseded ones still in use by a search")
+    public static final String RTS_IDX_OPEN_READERS = "idx_open_readers";
+
     // LDAP provisioning caches.
     @Description("LDAP ACL cache hit rate")
     public static final String RTS_ACL_CACHE_HIT_RATE = "acl_cache_hit_rate";
@@ -170,6 +190,87 @@ public class ZimbraPerf {
     @Description("LDAP XMPP cache hit rate")
     public static final String RTS_XMPP_CACHE_HIT_RATE = "xmpp_cache_hit_rate";
 
+    @Description("LDAP account cache hits since startup")
+    public static final String RTS_ACCOUNT_CACHE_HITS = "account_cache_hits";
+
+    @Description("LDAP account cache misses since startup")
+    public static final String RTS_ACCOUNT_CACHE_MISSES = "account_cache_misses";
+
+    @Description("LDAP account cache background refreshes since startup")
+    public static final String RTS_ACCOUNT_CACHE_REFRESHES = "account_cache_refreshes";
+
+    @Description("LDAP domain cache hits since startup")
+    public static final String RTS_DOMAIN_CACHE_HITS = "domain_cache_hits";
+
+    @Description("LDAP domain cache misses since startup")
+    public static final String RTS_DOMAIN_CACHE_MISSES = "domain_cache_misses";
+
+    @Description("LDAP domain cache background refreshes since startup")
+    public static final String RTS_DOMAIN_CACHE_REFRESHES = "domain_cache_refreshes";
+
+    @Description("LDAP COS cache hits since startup")
+    public static final String RTS_COS_CACHE_HITS = "cos_cache_hits";
+
+    @Description("LDAP COS cache misses since startup")
+    public static final String RTS_COS_CACHE_MISSES = "cos_cache_misses";
+
+    @Description("LDAP COS cache background refreshes since startup")
+    public static final String RTS_COS_CACHE_REFRESHES = "cos_cache_refreshes";
+
+    @Description("LDAP server cache hits since startup")
+    public static final String RTS_SERVER_CACHE_HITS = "server_cache_hits";
+
+    @Description("LDAP server cache misses since startup")
+    public static final String RTS_SERVER_CACHE_MISSES = "server_cache_misses";
+
+    @Description("LDAP server cache background refreshes since startup")
+    public static final String RTS_SERVER_CACHE_REFRESHES = "server_cache_refreshes";
+
+    @Description("LDAP UC service cache hits since startup")
+    public static final String RTS_UCSERVICE_CACHE_HITS = "ucservice_cache_hits";
+
+    @Description("LDAP UC service cache misses since startup")
+    public static final String RTS_UCSERVICE_CACHE_MISSES = "ucservice_cache_misses";
+
+    @Description("LDAP UC service cache background refreshes since startup")
+    public static final String RTS_UCSERVICE_CACHE_REFRESHES = "ucservice_cache_refreshes";
+
+    @Description("LDAP zimlet cache hits since startup")
+    public static final String RTS_ZIMLET_CACHE_HITS = "zimlet_cache_hits";
+
+    @Description("LDAP zimlet cache misses since startup")
+    public static final String RTS_ZIMLET_CACHE_MISSES = "zimlet_cache_misses";
+
+    @Description("LDAP zimlet cache background refreshes since startup")
+    public static final String RTS_ZIMLET_CACHE_REFRESHES = "zimlet_cache_refreshes";
+
+    @Description("LDAP group cache hits since startup")
+    public static final String RTS_GROUP_CACHE_HITS = "group_cache_hits";
+
+    @Description("LDAP group cache misses since startup")
+    public static final String RTS_GROUP_CACHE_MISSES = "group_cache_misses";
+
+    @Description("LDAP group cache background refreshes since startup")
+    public static final String RTS_GROUP_CACHE_REFRESHES = "group_cache_refreshes";
+
+    @Description("LDAP XMPP cache hits since startup")
+    public static final String RTS_XMPP_CACHE_HITS = "xmpp_cache_hits";
+
+    @Description("LDAP XMPP cache misses since startup")
+    public static final String RTS_XMPP_CACHE_MISSES = "xmpp_cache_misses";
+
+    @Description("LDAP XMPP cache background refreshes since startup")
+    public static final String RTS_XMPP_CACHE_REFRESHES = "xmpp_cache_refreshes";
+
+    @Description("LDAP always-on cluster cache hits since startup")
+    public static final String RTS_ALWAYSONCLUSTER_CACHE_HITS = "alwaysoncluster_cache_hits";
+
+    @Description("LDAP always-on cluster cache misses since startup")
+    public static final String RTS_ALWAYSONCLUSTER_CACHE_MISSES = "alwaysoncluster_cache_misses";
+
+    @Description("LDAP always-on cluster cache background refreshes since startup")
+    public static final String RTS_ALWAYSONCLUSTER_CACHE_REFRESHES = "alwaysoncluster_cache_refreshes";
+
     // Accumulators.  To add a new accumulator, create a static instance here and
     // add it to sAccumulators.
     public static final Counter COUNTER_LMTP_RCVD_MSGS = new Counter();
@@ -177,22 +278,35 @@ public class ZimbraPerf {
     public static final Counter COUNTER_LMTP_RCVD_RCPT = new Counter();
     public static final Counter COUNTER_LMTP_DLVD_MSGS = new Counter();
     public static final Counter COUNTER_LMTP_DLVD_BYTES = new Counter();
+    public static final StopWatch STOPWATCH_LMTP_RCPT_DLVD = new StopWatch();
     public static final StopWatch STOPWATCH_DB_CONN = new StopWatch();
     public static final StopWatch STOPWATCH_LDAP_DC = new StopWatch();
     public static final StopWatch STOPWATCH_MBOX_ADD_MSG = new StopWatch();
     public static final StopWatch STOPWATCH_MBOX_GET = new StopWatch();         // Mailbox accessor response time
     public static final Counter COUNTER_MBOX_CACHE = new Counter();           // Mailbox cache hit rate
     public static final Counter COUNTER_MBOX_MSG_CACHE = new Counter();
+    public static final Counter COUNTER_MBOX_MSG_CACHE_HIT = new Counter();
+    public static final Counter COUNTER_MBOX_MSG_CACHE_MISS = new Counter();
+    public static final Counter COUNTER_MBOX_MSG_CACHE_EVICTION = new Counter();
     public static final Counter COUNTER_MBOX_ITEM_CACHE = new Counter();
+    public static final Counter COUNTER_DEFANG_CACHE = new Counter();
+    public static final Counter COUNTER_DEFANG_CACHE_HIT = new Counter();
+    public static final Counter COUNTER_DEFANG_CACHE_DISK_HIT = new Counter();
+    public static final Counter COUNTER_DEFANG_CACHE_MISS = new Counter();
     public static final StopWatch STOPWATCH_SOAP = new StopWatch();
     public static final StopWatch STOPWATCH_IMAP = new StopWatch();
     public static final StopWatch STOPWATCH_POP = new StopWatch();
     public static final Counter COUNTER_IDX_WRT = new Counter();
     public static final Counter COUNTER_IDX_WRT_OPENED = new Counter();
     public static final Counter COUNTER_IDX_WRT_OPENED_CACHE_HIT = new Counter();
+    public static final StopWatch STOPWATCH_IDX_SEARCHER_REFRESH = new StopWatch();
     public static final Counter COUNTER_CALENDAR_CACHE_HIT = new Counter();
     public static final Counter COUNTER_CALENDAR_CACHE_MEM_HIT = new Counter();
     public static final Counter COUNTER_CALENDAR_CACHE_LRU_SIZE = new Counter();
+    public static final Counter COUNTER_CALENDAR_CACHE_HOT_HIT = new Counter();
+    public static final Counter COUNTER_CALENDAR_CACHE_MEMCACHED_HIT = new Counter();
+    public static final Counter COUNTER_CALENDAR_CACHE_FILE_HIT = new Counter();
+    public static final Counter COUNTER_CALENDAR_CACHE_HOT_SIZE = new Counter();
     public static final Counter COUNTER_IDX_BYTES_WRITTEN = new Counter();
     public static final Counter COUNTER_IDX_BYTES_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_READ = new Counter();
@@ -207,6 +321,11 @@ public class ZimbraPerf {
     public static final ActivityTracker SYNC_TRACKER = new ActivityTracker("sync.csv");
     public static final ActivityTracker SQL_TRACKER  = new ActivityTracker("sql.csv");
 
+    public static final SlowRequestSampler SOAP_SAMPLER = new SlowRequestSampler(
+            LC.zimbra_slow_request_sample_size.intValue(), LC.zimbra_slow_request_sample_threshold.longValue());
+    public static final SlowRequestSampler IMAP_SAMPLER = new SlowRequestSampler(
+            LC.zimbra_slow_request_sample_size.intValue(), LC.zimbra_slow_request_sample_threshold.longValue());
+
     private static int mailboxCacheSize;
     private static long mailboxCacheSizeTimestamp = 0;
     private static JmxServerStats jmxServerStats;
@@ -215,12 +334,14 @@ public class ZimbraPerf {
 
     private static String[] mboxRealtimeStatsNames = new String[] {
             RTS_DB_POOL_SIZE, RTS_INNODB_BP_HIT_RATE,
-            RTS_LMTP_CONN, RTS_LMTP_THREADS,
+            RTS_LMTP_CONN, RTS_LMTP_THREADS, RTS_LMTP_DELIVERY_QUEUE,
             RTS_POP_CONN, RTS_POP_THREADS, RTS_POP_SSL_CONN, RTS_POP_SSL_THREADS,
             RTS_IMAP_CONN, RTS_IMAP_THREADS, RTS_IMAP_SSL_CONN, RTS_IMAP_SSL_THREADS,
             RTS_HTTP_IDLE_THREADS, RTS_HTTP_THREADS, RTS_SOAP_SESSIONS,
-            RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE,
-            RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE,
+            RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE, RTS_MSG_CACHE_BYTES,
+            RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE, RTS_FD_CACHE_OPEN,
+            RTS_DEFANG_CACHE_SIZE, RTS_DEFANG_CACHE_BYTES,
+            RTS_IDX_OPEN_READERS,
             RTS_ACL_CACHE_HIT_RATE,
             RTS_ACCOUNT_CACHE_SIZE, RTS_ACCOUNT_CACHE_HIT_RATE,
             RTS_COS_CACHE_SIZE, RTS_COS_CACHE_HIT_RATE,
@@ -229,7 +350,16 @@ public class ZimbraPerf {
             RTS_UCSERVICE_CACHE_SIZE, RTS_UCSERVICE_CACHE_HIT_RATE,
             RTS_ZIMLET_CACHE_SIZE, RTS_ZIMLET_CACHE_HIT_RATE,
             RTS_GROUP_CACHE_SIZE, RTS_GROUP_CACHE_HIT_RATE,
-            RTS_XMPP_CACHE_SIZE, RTS_XMPP_CACHE_HIT_RATE
+            RTS_XMPP_CACHE_SIZE, RTS_XMPP_CACHE_HIT_RATE,
+            RTS_ACCOUNT_CACHE_HITS, RTS_ACCOUNT_CACHE_MISSES, RTS_ACCOUNT_CACHE_REFRESHES,
+            RTS_DOMAIN_CACHE_HITS, RTS_DOMAIN_CACHE_MISSES, RTS_DOMAIN_CACHE_REFRESHES,
+            RTS_COS_CACHE_HITS, RTS_COS_CACHE_MISSES, RTS_COS_CACHE_REFRESHES,
+            RTS_SERVER_CACHE_HITS, RTS_SERVER_CACHE_MISSES, RTS_SERVER_CACHE_REFRESHES,
+            RTS_UCSERVICE_CACHE_HITS, RTS_UCSERVICE_CACHE_MISSES, RTS_UCSERVICE_CACHE_REFRESHES,
+            RTS_ZIMLET_CACHE_HITS, RTS_ZIMLET_CACHE_MISSES, RTS_ZIMLET_CACHE_REFRESHES,
+            RTS_GROUP_CACHE_HITS, RTS_GROUP_CACHE_MISSES, RTS_GROUP_CACHE_REFRESHES,
+            RTS_XMPP_CACHE_HITS, RTS_XMPP_CACHE_MISSES, RTS_XMPP_CACHE_REFRESHES,
+            RTS_ALWAYSONCLUSTER_CACHE_HITS, RTS_ALWAYSONCLUSTER_CACHE_MISSES, RTS_ALWAYSONCLUSTER_CACHE_REFRESHES
             };
     private static String[] imapdRealtimeStatsNames = new String[] {
                 RTS_IMAP_CONN, RTS_IMAP_THREADS, RTS_IMAP_SSL_CONN, RTS_IMAP_SSL_THREADS
@@ -252,12 +382,30 @@ public class ZimbraPerf {
     @Description("Number of bytes of data delivered to mailboxes as a result of LMTP delivery")
     private static final String DC_LMTP_DLVD_BYTES = "lmtp_dlvd_bytes";
 
+    @Description("Number of LMTP recipient deliveries")
+    private static final String DC_LMTP_RCPT_DLVD_COUNT = "lmtp_rcpt_dlvd_count";
+
+    @Description("Average latency (ms) of delivering a message to one LMTP recipient")
+    private static final String DC_LMTP_RCPT_DLVD_MS_AVG = "lmtp_rcpt_dlvd_ms_avg";
+
     @Description("Number of times that the server got a database connection from the pool")
     private static final String DC_DB_CONN_COUNT = "db_conn_count";
 
     @Description("Average latency (ms) of getting a database connection from the pool")
     private static final String DC_DB_CONN_MS_AVG = "db_conn_ms_avg";
 
+    @Description("Median latency (ms) of getting a database connection from the pool")
+    private static final String DC_DB_CONN_MS_P50 = "db_conn_ms_p50";
+
+    @Description("95th percentile latency (ms) of getting a database connection from the pool")
+    private static final String DC_DB_CONN_MS_P95 = "db_conn_ms_p95";
+
+    @Description("99th percentile latency (ms) of getting a database connection from the pool")
+    private static final String DC_DB_CONN_MS_P99 = "db_conn_ms_p99";
+
+    @Description("Maximum latency (ms) of getting a database connection from the pool")
+    private static final String DC_DB_CONN_MS_MAX = "db_conn_ms_max";
+
     @Description("Number of times that the server got an LDAP directory context")
     private static final String DC_LDAP_DC_COUNT = "ldap_dc_count";
 
@@ -270,6 +418,18 @@ public class ZimbraPerf {
     @Description("Average latency (ms) of adding a message to a mailbox")
     private static final String DC_MBOX_ADD_MSG_MS_AVG = "mbox_add_msg_ms_avg";
 
+    @Description("Median latency (ms) of adding a message to a mailbox")
+    private static final String DC_MBOX_ADD_MSG_MS_P50 = "mbox_add_msg_ms_p50";
+
+    @Description("95th percentile latency (ms) of adding a message to a mailbox")
+    private static final String DC_MBOX_ADD_MSG_MS_P95 = "mbox_add_msg_ms_p95";
+
+    @Description("99th percentile latency (ms) of adding a message to a mailbox")
+    private static final String DC_MBOX_ADD_MSG_MS_P99 = "mbox_add_msg_ms_p99";
+
+    @Description("Maximum latency (ms) of adding a message to a mailbox")
+    private static final String DC_MBOX_ADD_MSG_MS_MAX = "mbox_add_msg_ms_max";
+
     @Description("Number of times that the server got a mailbox from the cache")
     private static final String DC_MBOX_GET_COUNT = "mbox_get_count";
 
@@ -282,21 +442,66 @@ public class ZimbraPerf {
     @Description("Message cache hit rate")
     private static final String DC_MBOX_MSG_CACHE = "mbox_msg_cache";
 
+    @Description("Number of message cache lookups that found the message structure cached")
+    private static final String DC_MBOX_MSG_CACHE_HIT = "mbox_msg_cache_hit";
+
+    @Description("Number of message cache lookups that had to load or expand the message")
+    private static final String DC_MBOX_MSG_CACHE_MISS = "mbox_msg_cache_miss";
+
+    @Description("Number of messages evicted from the message cache to stay within its size limits")
+    private static final String DC_MBOX_MSG_CACHE_EVICTION = "mbox_msg_cache_eviction";
+
     @Description("Item cache hit rate")
     private static final String DC_MBOX_ITEM_CACHE = "mbox_item_cache";
 
+    @Description("Defang cache hit rate, counting hits in memory and on disk")
+    private static final String DC_DEFANG_CACHE = "defang_cache";
+
+    @Description("Number of HTML bodies served sanitized from the defang cache in memory")
+    private static final String DC_DEFANG_CACHE_HIT = "defang_cache_hit";
+
+    @Description("Number of HTML bodies served sanitized from the defang cache on disk")
+    private static final String DC_DEFANG_CACHE_DISK_HIT = "defang_cache_disk_hit";
+
+    @Description("Number of HTML bodies that had to be sanitized")
+    private static final String DC_DEFANG_CACHE_MISS = "defang_cache_miss";
+
     @Description("Number of SOAP requests received")
     private static final String DC_SOAP_COUNT = "soap_count";
 
     @Description("Average processing time (ms) of SOAP requests")
     private static final String DC_SOAP_MS_AVG = "soap_ms_avg";
 
+    @Description("Median processing time (ms) of SOAP requests")
+    private static final String DC_SOAP_MS_P50 = "soap_ms_p50";
+
+    @Description("95th percentile processing time (ms) of SOAP requests")
+    private static final String DC_SOAP_MS_P95 = "soap_ms_p95";
+
+    @Description("99th percentile processing time (ms) of SOAP requests")
+    private static final String DC_SOAP_MS_P99 = "soap_ms_p99";
+
+    @Description("Maximum processing time (ms) of SOAP requests")
+    private static final String DC_SOAP_MS_MAX = "soap_ms_max";
+
     @Description("Number of IMAP requests received")
     private static final String DC_IMAP_COUNT = "imap_count";
 
     @Description("Average processing time (ms) of IMAP requests")
     private static final String DC_IMAP_MS_AVG = "imap_ms_avg";
 
+    @Description("Median processing time (ms) of IMAP requests")
+    private static final String DC_IMAP_MS_P50 = "imap_ms_p50";
+
+    @Description("95th percentile processing time (ms) of IMAP requests")
+    private static final String DC_IMAP_MS_P95 = "imap_ms_p95";
+
+    @Description("99th percentile processing time (ms) of IMAP requests")
+    private static final String DC_IMAP_MS_P99 = "imap_ms_p99";
+
+    @Description("Maximum processing time (ms) of IMAP requests")
+    private static final String DC_IMAP_MS_MAX = "imap_ms_max";
+
     @Description("Number of POP3 requests received")
     private static final String DC_POP_COUNT = "pop_count";
 
@@ -318,6 +523,12 @@ public class ZimbraPerf {
     @Description("Accumulated number of cache hits when opening an index writer")
     private static final String DC_IDX_WRT_OPENED_CACHE_HIT = "idx_wrt_opened_cache_hit";
 
+    @Description("Number of cached index searchers refreshed with the latest index changes")
+    private static final String DC_IDX_SEARCHER_REFRESH_COUNT = "idx_searcher_refresh_count";
+
+    @Description("Average latency of refreshing a cached index searcher")
+    private static final String DC_IDX_SEARCHER_REFRESH_MS_AVG = "idx_searcher_refresh_ms_avg";
+
     @Description("Accumulated bytes written by Lucene")
     private static final String DC_IDX_BYTES_WRITTEN = "idx_bytes_written";
 
@@ -339,6 +550,18 @@ public class ZimbraPerf {
     @Description("Number of calendars (folders) in the calendar summary cache LRU in Java heap")
     private static final String DC_CALCACHE_LRU_SIZE = "calcache_lru_size";
 
+    @Description("Hit rate of calendar summary cache, counting cache hit from the hot (frequently read) segment in Java heap only")
+    private static final String DC_CALCACHE_HOT_HIT = "calcache_hot_hit";
+
+    @Description("Hit rate of calendar summary cache, counting cache hit from memcached only")
+    private static final String DC_CALCACHE_MEMCACHED_HIT = "calcache_memcached_hit";
+
+    @Description("Hit rate of calendar summary cache, counting cache hit from file only")
+    private static final String DC_CALCACHE_FILE_HIT = "calcache_file_hit";
+
+    @Description("Number of calendars (folders) in the hot segment of the calendar summary cache in Java heap")
+    private static final String DC_CALCACHE_HOT_SIZE = "calcache_hot_size";
+
     private static CopyOnWriteArrayList<Accumulator> sAccumulators = null;
 
     private static final long CSV_DUMP_FREQUENCY = Constants.MILLIS_PER_MINUTE;
@@ -469,32 +692,61 @@ public class ZimbraPerf {
                             new DeltaCalculator(COUNTER_LMTP_RCVD_RCPT).setTotalName(DC_LMTP_RCVD_RCPT),
                             new DeltaCalculator(COUNTER_LMTP_DLVD_MSGS).setTotalName(DC_LMTP_DLVD_MSGS),
                             new DeltaCalculator(COUNTER_LMTP_DLVD_BYTES).setTotalName(DC_LMTP_DLVD_BYTES),
+                            new DeltaCalculator(STOPWATCH_LMTP_RCPT_DLVD).setCountName(DC_LMTP_RCPT_DLVD_COUNT)
+                                    .setAverageName(DC_LMTP_RCPT_DLVD_MS_AVG),
                             new DeltaCalculator(STOPWATCH_DB_CONN).setCountName(DC_DB_CONN_COUNT)
                                     .setAverageName(DC_DB_CONN_MS_AVG),
+                            new HistogramCalculator(STOPWATCH_DB_CONN.getHistogram(),
+                                    DC_DB_CONN_MS_P50, DC_DB_CONN_MS_P95, DC_DB_CONN_MS_P99, DC_DB_CONN_MS_MAX),
                             new DeltaCalculator(STOPWATCH_LDAP_DC).setCountName(DC_LDAP_DC_COUNT)
                                     .setAverageName(DC_LDAP_DC_MS_AVG),
                             new DeltaCalculator(STOPWATCH_MBOX_ADD_MSG).setCountName(DC_MBOX_ADD_MSG_COUNT)
                                     .setAverageName(DC_MBOX_ADD_MSG_MS_AVG),
+                            new HistogramCalculator(STOPWATCH_MBOX_ADD_MSG.getHistogram(),
+                                    DC_MBOX_ADD_MSG_MS_P50, DC_MBOX_ADD_MSG_MS_P95, DC_MBOX_ADD_MSG_MS_P99,
+                                    DC_MBOX_ADD_MSG_MS_MAX),
                             new DeltaCalculator(STOPWATCH_MBOX_GET).setCountName(DC_MBOX_GET_COUNT)
                                     .setAverageName(DC_MBOX_GET_MS_AVG),
                             new DeltaCalculator(COUNTER_MBOX_CACHE).setAverageName(DC_MBOX_CACHE),
                             new DeltaCalculator(COUNTER_MBOX_MSG_CACHE).setAverageName(DC_MBOX_MSG_CACHE),
+                            new DeltaCalculator(COUNTER_MBOX_MSG_CACHE_HIT).setTotalName(DC_MBOX_MSG_CACHE_HIT),
+                            new DeltaCalculator(COUNTER_MBOX_MSG_CACHE_MISS).setTotalName(DC_MBOX_MSG_CACHE_MISS),
+                            new DeltaCalculator(COUNTER_MBOX_MSG_CACHE_EVICTION)
+                                    .setTotalName(DC_MBOX_MSG_CACHE_EVICTION),
                             new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE).setAverageName(DC_MBOX_ITEM_CACHE),
+                            new DeltaCalculator(COUNTER_DEFANG_CACHE).setAverageName(DC_DEFANG_CACHE),
+                            new DeltaCalculator(COUNTER_DEFANG_CACHE_HIT).setTotalName(DC_DEFANG_CACHE_HIT),
+                            new DeltaCalculator(COUNTER_DEFANG_CACHE_DISK_HIT)
+                                    .setTotalName(DC_DEFANG_CACHE_DISK_HIT),
+                            new DeltaCalculator(COUNTER_DEFANG_CACHE_MISS).setTotalName(DC_DEFANG_CACHE_MISS),
                             new DeltaCalculator(STOPWATCH_SOAP).setCountName(DC_SOAP_COUNT)
                                     .setAverageName(DC_SOAP_MS_AVG),
+                            new HistogramCalculator(STOPWATCH_SOAP.getHistogram(),
+                                    DC_SOAP_MS_P50, DC_SOAP_MS_P95, DC_SOAP_MS_P99, DC_SOAP_MS_MAX),
                             new DeltaCalculator(STOPWATCH_IMAP).setCountName(DC_IMAP_COUNT)
                                     .setAverageName(DC_IMAP_MS_AVG),
+                            new HistogramCalculator(STOPWATCH_IMAP.getHistogram(),
+                                    DC_IMAP_MS_P50, DC_IMAP_MS_P95, DC_IMAP_MS_P99, DC_IMAP_MS_MAX),
                             new DeltaCalculator(STOPWATCH_POP).setCountName(DC_POP_COUNT)
                                     .setAverageName(DC_POP_MS_AVG),
                             new DeltaCalculator(COUNTER_IDX_WRT).setAverageName(DC_IDX_WRT_AVG),
                             new DeltaCalculator(COUNTER_IDX_WRT_OPENED).setTotalName(DC_IDX_WRT_OPENED),
                             new DeltaCalculator(COUNTER_IDX_WRT_OPENED_CACHE_HIT)
                                     .setTotalName(DC_IDX_WRT_OPENED_CACHE_HIT),
+                            new DeltaCalculator(STOPWATCH_IDX_SEARCHER_REFRESH)
+                                    .setCountName(DC_IDX_SEARCHER_REFRESH_COUNT)
+                                    .setAverageName(DC_IDX_SEARCHER_REFRESH_MS_AVG),
                             new DeltaCalculator(COUNTER_CALENDAR_CACHE_HIT).setAverageName(DC_CALCACHE_HIT),
                             new DeltaCalculator(COUNTER_CALENDAR_CACHE_MEM_HIT)
                                     .setAverageName(DC_CALCACHE_MEM_HIT),
                             new DeltaCalculator(COUNTER_CALENDAR_CACHE_LRU_SIZE)
                                     .setAverageName(DC_CALCACHE_LRU_SIZE),
+                            new DeltaCalculator(COUNTER_CALENDAR_CACHE_HOT_HIT).setAverageName(DC_CALCACHE_HOT_HIT),
+                            new DeltaCalculator(COUNTER_CALENDAR_CACHE_MEMCACHED_HIT)
+                                    .setAverageName(DC_CALCACHE_MEMCACHED_HIT),
+                            new DeltaCalculator(COUNTER_CALENDAR_CACHE_FILE_HIT).setAverageName(DC_CALCACHE_FILE_HIT),
+                            new DeltaCalculator(COUNTER_CALENDAR_CACHE_HOT_SIZE)
+                                    .setAverageName(DC_CALCACHE_HOT_SIZE),
                             new DeltaCalculator(COUNTER_IDX_BYTES_WRITTEN)
                                     .setTotalName(DC_IDX_BYTES_WRITTEN)
                                     .setAverageName(DC_IDX_BYTES_WRITTTEN_AVG),
@@ -513,6 +765,8 @@ public class ZimbraPerf {
                     new Accumulator[] {
                             new DeltaCalculator(STOPWATCH_IMAP)
                                     .setCountName(DC_IMAP_COUNT).setAverageName(DC_IMAP_MS_AVG),
+                            new HistogramCalculator(STOPWATCH_IMAP.getHistogram(),
+                                    DC_IMAP_MS_P50, DC_IMAP_MS_P95, DC_IMAP_MS_P99, DC_IMAP_MS_MAX),
                             realtimeStats
                     }
                 );
@@ -555,6 +809,7 @@ public class ZimbraPerf {
         } catch (Exception e) {
             ZimbraLog.perf.warn("Unable to register JMX interface.", e);
         }
+        registerSlowRequests(jmxServer, "ZimbraCollaborationSuite:type=SlowRequests");
         StatsDumper.schedule(new Stats("mailboxd.csv", sAccumulators, jmxServerStats), CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(SOAP_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(IMAP_TRACKER, CSV_DUMP_FREQUENCY);
@@ -575,11 +830,20 @@ public class ZimbraPerf {
         } catch (Exception e) {
             ZimbraLog.perf.warn("Unable to register JMX interface.", e);
         }
+        registerSlowRequests(jmxServer, "ZimbraImapDaemon:type=SlowRequests");
         StatsDumper.schedule(new Stats("imapd_stats.csv", sAccumulators, jmxImapDaemonStats),
                 CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(IMAPD_TRACKER, CSV_DUMP_FREQUENCY);
     }
 
+    private static void registerSlowRequests(MBeanServer jmxServer, String name) {
+        try {
+            jmxServer.registerMBean(new JmxSlowRequests(), new ObjectName(name));
+        } catch (Exception e) {
+            ZimbraLog.perf.warn("Unable to register JMX interface.", e);
+        }
+    }
+
     /**
      * Returns the mailbox cache size.  The real value is reread once a minute so that cache
      * performance is not affected.
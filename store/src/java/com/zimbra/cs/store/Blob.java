@@ -25,13 +25,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.io.FileUtils;
 
 import com.google.common.base.MoreObjects;
 import com.zimbra.common.util.ByteUtil;
-import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.zmime.ZSharedFileInputStream;
 
 /**
@@ -82,7 +80,7 @@ public class Blob {
     public InputStream getInputStream() throws IOException {
         InputStream in = new ZSharedFileInputStream(file);
         if (isCompressed()) {
-            in = new GZIPInputStream(in);
+            in = BlockCompression.uncompressed(in);
         }
         return in;
     }
@@ -92,7 +90,7 @@ public class Blob {
             if (rawSize != null && rawSize.longValue() == file.length()) {
                 this.compressed = Boolean.FALSE;
             } else {
-                this.compressed = FileUtil.isGzipped(file);
+                this.compressed = BlockCompression.isCompressed(file);
             }
         }
         return compressed;
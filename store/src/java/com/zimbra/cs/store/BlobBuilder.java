@@ -27,8 +27,6 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 import org.apache.commons.io.IOUtils;
 
 import com.zimbra.common.localconfig.DebugConfig;
@@ -36,6 +34,7 @@ import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.stats.SlowRequestSampler;
 
 public class BlobBuilder {
     protected Blob blob;
@@ -162,7 +161,7 @@ public class BlobBuilder {
 
             // This call exceeded compression threshold.  Compress the stream and
             // write everything that we've read so far.
-            out = new GZIPOutputStream(out);
+            out = BlockCompression.compressed(out);
             writeToFile(buf, 0, bufLen);
             blob.setCompressed(true);
             compressionThresholdExceeded = true;
@@ -221,6 +220,10 @@ public class BlobBuilder {
         }
 
         try {
+            if (out instanceof BlockCompressedOutputStream) {
+                // write the index and footer before syncing, rather than on close
+                ((BlockCompressedOutputStream) out).finish();
+            }
             if (!DebugConfig.disableMessageStoreFsync) {
                 out.flush();
                 if (fc != null) {
@@ -243,10 +246,10 @@ public class BlobBuilder {
             if (blob.isCompressed() && totalBytes == file.length())
             {
               ZimbraLog.store.info("Blob compression is useless avoid it");
-              GZIPInputStream in = null;
+              InputStream in = null;
               try {
                 uncompresedFile = File.createTempFile("blob","",file.getParentFile());
-                in = new GZIPInputStream(new FileInputStream(file));
+                in = BlockCompression.uncompressed(new FileInputStream(file));
                 out = createOutputStream(uncompresedFile);
                 IOUtils.copy(in,out);
                 blob.setCompressed(false);
@@ -262,6 +265,7 @@ public class BlobBuilder {
         }
         if (ZimbraLog.store.isDebugEnabled())
             ZimbraLog.store.debug("stored " + this);
+        SlowRequestSampler.addBlobBytes(totalBytes);
 
         finished = true;
         return blob;
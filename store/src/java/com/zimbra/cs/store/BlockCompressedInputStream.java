@@ -0,0 +1,118 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the uncompressed data of a {@link BlockCompression} stream from start to end.  Frames are read in
+ * order using their headers, so the index at the end of the stream is not needed.  Random access to a
+ * block-compressed file goes through {@link BlockCompressedSharedFile} instead.
+ */
+public class BlockCompressedInputStream extends InputStream {
+
+    private final InputStream in;
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] stored;
+    private final byte[] frame;
+    private final byte[] frameHeader = new byte[BlockCompression.FRAME_HEADER_SIZE];
+    private int frameLen;
+    private int framePos;
+    private boolean eof;
+
+    public BlockCompressedInputStream(InputStream in) throws IOException {
+        this.in = in;
+        byte[] header = new byte[BlockCompression.HEADER_SIZE];
+        readFully(header, header.length);
+        int blockSize = BlockCompression.parseHeader(header);
+        stored = new byte[blockSize];
+        frame = new byte[blockSize];
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (framePos == frameLen && !nextFrame()) {
+            return -1;
+        }
+        return frame[framePos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (framePos == frameLen && !nextFrame()) {
+            return -1;
+        }
+        int n = Math.min(len, frameLen - framePos);
+        System.arraycopy(frame, framePos, b, off, n);
+        framePos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return frameLen - framePos;
+    }
+
+    private boolean nextFrame() throws IOException {
+        if (eof) {
+            return false;
+        }
+        readFully(frameHeader, frameHeader.length);
+        ByteBuffer buf = ByteBuffer.wrap(frameHeader);
+        int storedLen = buf.getInt(0);
+        int rawLen = buf.getInt(4);
+        if (rawLen == 0) {
+            eof = true;
+            return false;
+        }
+        if (rawLen < 0 || rawLen > frame.length || storedLen <= 0 || storedLen > rawLen) {
+            throw new IOException("corrupt frame header: stored=" + storedLen + ", raw=" + rawLen);
+        }
+        readFully(stored, storedLen);
+        BlockCompression.decodeFrame(inflater, stored, storedLen, frame, rawLen);
+        frameLen = rawLen;
+        framePos = 0;
+        return true;
+    }
+
+    private void readFully(byte[] b, int len) throws IOException {
+        int numRead = 0;
+        while (numRead < len) {
+            int n = in.read(b, numRead, len - numRead);
+            if (n < 0) {
+                throw new EOFException("block-compressed stream is truncated");
+            }
+            numRead += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            inflater.end();
+        }
+    }
+}
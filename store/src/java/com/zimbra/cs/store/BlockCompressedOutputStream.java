@@ -0,0 +1,154 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writes data in the {@link BlockCompression} format.  The index and footer are written by {@link #finish},
+ * which {@link #close} calls if needed.  {@link #flush} does not write out a partially filled block.
+ */
+public class BlockCompressedOutputStream extends OutputStream {
+
+    private final DataOutputStream out;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final byte[] block;
+    private final byte[] compressed;
+    private int blockLen;
+
+    /** Number of bytes written to the underlying stream. */
+    private long position;
+    private long rawSize;
+    private long[] offsets = new long[16];
+    private int frameCount;
+    private boolean finished;
+
+    public BlockCompressedOutputStream(OutputStream out, int blockSize) throws IOException {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("invalid block size " + blockSize);
+        }
+        this.out = new DataOutputStream(out);
+        block = new byte[blockSize];
+        compressed = new byte[blockSize];
+
+        byte[] header = new byte[BlockCompression.HEADER_SIZE];
+        BlockCompression.writeHeader(header, blockSize);
+        this.out.write(header);
+        position = header.length;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkNotFinished();
+        block[blockLen++] = (byte) b;
+        if (blockLen == block.length) {
+            writeFrame();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkNotFinished();
+        while (len > 0) {
+            int n = Math.min(len, block.length - blockLen);
+            System.arraycopy(b, off, block, blockLen, n);
+            blockLen += n;
+            off += n;
+            len -= n;
+            if (blockLen == block.length) {
+                writeFrame();
+            }
+        }
+    }
+
+    private void checkNotFinished() throws IOException {
+        if (finished) {
+            throw new IOException("stream is finished");
+        }
+    }
+
+    private void writeFrame() throws IOException {
+        deflater.reset();
+        deflater.setInput(block, 0, blockLen);
+        deflater.finish();
+        int storedLen = 0;
+        while (!deflater.finished() && storedLen < compressed.length) {
+            storedLen += deflater.deflate(compressed, storedLen, compressed.length - storedLen);
+        }
+        byte[] data = compressed;
+        if (!deflater.finished() || storedLen >= blockLen) {
+            // incompressible; store the block as is
+            data = block;
+            storedLen = blockLen;
+        }
+
+        if (frameCount == offsets.length) {
+            offsets = Arrays.copyOf(offsets, frameCount * 2);
+        }
+        offsets[frameCount++] = position;
+        out.writeInt(storedLen);
+        out.writeInt(blockLen);
+        out.write(data, 0, storedLen);
+        position += BlockCompression.FRAME_HEADER_SIZE + storedLen;
+        rawSize += blockLen;
+        blockLen = 0;
+    }
+
+    /**
+     * Writes the last block, the index and the footer without closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (blockLen > 0) {
+            writeFrame();
+        }
+        out.writeInt(0);
+        out.writeInt(0);
+        position += BlockCompression.FRAME_HEADER_SIZE;
+
+        long indexOffset = position;
+        for (int i = 0; i < frameCount; i++) {
+            out.writeLong(offsets[i]);
+        }
+        byte[] footer = new byte[BlockCompression.FOOTER_SIZE];
+        BlockCompression.writeFooter(footer, indexOffset, rawSize, frameCount);
+        out.write(footer);
+        position += frameCount * 8L + footer.length;
+        finished = true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+}
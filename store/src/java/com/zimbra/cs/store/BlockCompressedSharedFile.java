@@ -0,0 +1,143 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Inflater;
+
+/**
+ * <tt>SharedFile</tt> over a {@link BlockCompression block-compressed} blob.  Offsets and the length are those
+ * of the uncompressed data.  A read inflates only the frames that overlap it, located through the index at the
+ * end of the file, so a range read of a large compressed blob doesn't need an uncompressed copy of it.
+ * The most recently inflated frame is kept, since readers usually consume a frame in several small reads.
+ */
+class BlockCompressedSharedFile extends SharedFile {
+
+    private static final class Frame {
+        final int index;
+        final byte[] data;
+
+        Frame(int index, byte[] data) {
+            this.index = index;
+            this.data = data;
+        }
+    }
+
+    private final int blockSize;
+    private final long rawSize;
+    private final long[] offsets;
+    private volatile Frame lastFrame;
+
+    BlockCompressedSharedFile(File file) throws IOException {
+        super(file);
+        try {
+            long fileLength = super.getLength();
+            if (fileLength < BlockCompression.HEADER_SIZE + BlockCompression.FRAME_HEADER_SIZE + BlockCompression.FOOTER_SIZE) {
+                throw new IOException("too short to be block-compressed");
+            }
+            blockSize = BlockCompression.parseHeader(readStored(0, BlockCompression.HEADER_SIZE));
+            BlockCompression.Footer footer = BlockCompression.parseFooter(
+                    readStored(fileLength - BlockCompression.FOOTER_SIZE, BlockCompression.FOOTER_SIZE), fileLength);
+            if (footer.frameCount != (footer.rawSize + blockSize - 1) / blockSize) {
+                throw new IOException("expected " + ((footer.rawSize + blockSize - 1) / blockSize) +
+                        " frames, found " + footer.frameCount);
+            }
+            rawSize = footer.rawSize;
+            offsets = new long[footer.frameCount];
+            ByteBuffer index = ByteBuffer.wrap(readStored(footer.indexOffset, footer.frameCount * 8));
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = index.getLong();
+            }
+        } catch (IOException e) {
+            close();
+            throw new IOException("Unable to read " + file.getPath() + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    long getLength() {
+        return rawSize;
+    }
+
+    @Override
+    int read(long offset, byte[] b, int off, int len) throws IOException {
+        if (offset >= rawSize) {
+            return -1;
+        }
+        int numRead = 0;
+        while (numRead < len && offset < rawSize) {
+            Frame frame = getFrame((int) (offset / blockSize));
+            int frameOffset = (int) (offset - (long) frame.index * blockSize);
+            int n = Math.min(len - numRead, frame.data.length - frameOffset);
+            System.arraycopy(frame.data, frameOffset, b, off + numRead, n);
+            numRead += n;
+            offset += n;
+        }
+        return numRead;
+    }
+
+    private Frame getFrame(int index) throws IOException {
+        Frame frame = lastFrame;
+        if (frame != null && frame.index == index) {
+            return frame;
+        }
+        long pos = offsets[index];
+        ByteBuffer header = ByteBuffer.wrap(readStored(pos, BlockCompression.FRAME_HEADER_SIZE));
+        int storedLen = header.getInt(0);
+        int rawLen = header.getInt(4);
+        long expectedLen = index < offsets.length - 1 ? blockSize : rawSize - (long) index * blockSize;
+        if (rawLen != expectedLen || storedLen <= 0 || storedLen > rawLen) {
+            throw new IOException("corrupt frame " + index + " in " + this + ": stored=" + storedLen + ", raw=" + rawLen);
+        }
+        byte[] stored = readStored(pos + BlockCompression.FRAME_HEADER_SIZE, storedLen);
+        byte[] data = new byte[rawLen];
+        Inflater inflater = new Inflater(true);
+        try {
+            BlockCompression.decodeFrame(inflater, stored, storedLen, data, rawLen);
+        } finally {
+            inflater.end();
+        }
+        frame = new Frame(index, data);
+        lastFrame = frame;
+        return frame;
+    }
+
+    /**
+     * Reads bytes as stored in the file.
+     */
+    private byte[] readStored(long pos, int len) throws IOException {
+        byte[] buf = new byte[len];
+        int numRead = 0;
+        while (numRead < len) {
+            int n = super.read(pos + numRead, buf, numRead, len - numRead);
+            if (n < 0) {
+                throw new EOFException("unexpected end of " + this + " at " + (pos + numRead));
+            }
+            numRead += n;
+        }
+        return buf;
+    }
+
+    @Override
+    synchronized void close() throws IOException {
+        lastFrame = null;
+        super.close();
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.FileUtil;
+
+/**
+ * Block-compressed blob format.  The data is cut into blocks of a fixed uncompressed size that are deflated
+ * independently, followed by an index of where each block starts in the file.  A reader can therefore serve
+ * any range of the blob by inflating only the blocks that overlap it, instead of decompressing the whole blob.
+ * <pre>
+ * header: magic "ZBLK" (4) | version (1) | reserved (3) | block size (4)
+ * frame:  stored length (4) | raw length (4) | data
+ *         data is raw deflate, or uncompressed if the stored length equals the raw length;
+ *         a frame with a raw length of 0 ends the frames
+ * index:  file offset of each frame (8 each)
+ * footer: index offset (8) | raw size (8) | frame count (4) | magic "ZBLK" (4)
+ * </pre>
+ * Every frame but the last holds exactly one block of data, so the frame containing an uncompressed offset is
+ * <tt>offset / blockSize</tt>.  Blobs compressed with gzip stay readable; {@link #uncompressed} and
+ * {@link #isCompressed} accept either format.
+ */
+public final class BlockCompression {
+
+    public static final String FORMAT_GZIP = "gzip";
+    public static final String FORMAT_BLOCK = "block";
+
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 12;
+    static final int FRAME_HEADER_SIZE = 8;
+    static final int FOOTER_SIZE = 24;
+    private static final byte[] MAGIC = { 'Z', 'B', 'L', 'K' };
+
+    private BlockCompression() {
+    }
+
+    /**
+     * Returns <tt>true</tt> if newly compressed blobs are written in the block format.
+     */
+    public static boolean isBlockFormatEnabled() {
+        return FORMAT_BLOCK.equalsIgnoreCase(LC.zimbra_blob_compression_format.value());
+    }
+
+    /**
+     * Returns the uncompressed size of the blocks of newly compressed blobs.
+     */
+    public static int getBlockSize() {
+        return Math.max(LC.zimbra_blob_compression_block_size_kb.intValue(), 1) * 1024;
+    }
+
+    /**
+     * Returns <tt>true</tt> if the given file is in the block-compressed format.
+     */
+    public static boolean isBlockCompressed(File file) throws IOException {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file), MAGIC.length);
+            return isBlockCompressed(in);
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+    }
+
+    /**
+     * Determines if the data in the given stream is block-compressed.
+     * Requires that the <tt>InputStream</tt> supports mark/reset.
+     */
+    public static boolean isBlockCompressed(InputStream in) throws IOException {
+        in.mark(MAGIC.length);
+        try {
+            for (byte b : MAGIC) {
+                if (in.read() != (b & 0xff)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Returns <tt>true</tt> if the given file is compressed in either format.
+     */
+    public static boolean isCompressed(File file) throws IOException {
+        return FileUtil.isGzipped(file) || isBlockCompressed(file);
+    }
+
+    /**
+     * Returns <tt>true</tt> if a compressed file is already in the format that new blobs are compressed in.
+     */
+    public static boolean isPreferredFormat(File file) throws IOException {
+        return isBlockCompressed(file) == isBlockFormatEnabled();
+    }
+
+    /**
+     * Wraps a stream of compressed blob data in either format with a stream that returns the uncompressed data.
+     */
+    public static InputStream uncompressed(InputStream in) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in);
+        }
+        if (isBlockCompressed(in)) {
+            return new BlockCompressedInputStream(in);
+        }
+        return new GZIPInputStream(in);
+    }
+
+    /**
+     * Wraps a stream with one that compresses the data in the configured format.
+     */
+    public static OutputStream compressed(OutputStream out) throws IOException {
+        if (isBlockFormatEnabled()) {
+            return new BlockCompressedOutputStream(out, getBlockSize());
+        }
+        return new GZIPOutputStream(out);
+    }
+
+    /**
+     * Returns the uncompressed size of a block-compressed file, as recorded in its footer.
+     */
+    public static long getRawSize(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < HEADER_SIZE + FRAME_HEADER_SIZE + FOOTER_SIZE) {
+                throw new IOException(file.getPath() + " is too short to be block-compressed");
+            }
+            byte[] footer = new byte[FOOTER_SIZE];
+            raf.seek(raf.length() - FOOTER_SIZE);
+            raf.readFully(footer);
+            return parseFooter(footer, raf.length()).rawSize;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Compresses file <tt>src</tt> into file <tt>dest</tt> in the configured format.
+     */
+    public static void compress(File src, File dest, boolean sync) throws IOException {
+        if (!isBlockFormatEnabled()) {
+            FileUtil.compress(src, dest, sync);
+            return;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(src);
+            write(in, dest, sync);
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+    }
+
+    /**
+     * Rewrites a compressed file <tt>src</tt> into file <tt>dest</tt> in the configured format.
+     */
+    public static void recompress(File src, File dest, boolean sync) throws IOException {
+        InputStream in = null;
+        try {
+            in = uncompressed(new FileInputStream(src));
+            write(in, dest, sync);
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+    }
+
+    /**
+     * Uncompresses file <tt>src</tt>, compressed in either format, into file <tt>dest</tt>.
+     */
+    public static void uncompress(File src, File dest, boolean sync) throws IOException {
+        FileUtil.uncompress(uncompressed(new FileInputStream(src)), dest, sync);
+    }
+
+    private static void write(InputStream in, File dest, boolean sync) throws IOException {
+        OutputStream out = null;
+        boolean isComplete = false;
+        try {
+            FileOutputStream fos = new FileOutputStream(dest);
+            out = fos;
+            out = compressed(fos);
+            ByteUtil.copy(in, false, out, false);
+            if (out instanceof BlockCompressedOutputStream) {
+                ((BlockCompressedOutputStream) out).finish();
+            } else {
+                ((GZIPOutputStream) out).finish();
+            }
+            out.flush();
+            if (sync) {
+                fos.getChannel().force(true);
+            }
+            isComplete = true;
+        } finally {
+            ByteUtil.closeStream(out);
+            if (!isComplete) {
+                dest.delete();
+            }
+        }
+    }
+
+    static void writeHeader(byte[] dest, int blockSize) {
+        ByteBuffer buf = ByteBuffer.wrap(dest);
+        buf.put(MAGIC).put((byte) VERSION).put(new byte[3]).putInt(blockSize);
+    }
+
+    /**
+     * Validates a header and returns the block size it records.
+     */
+    static int parseHeader(byte[] header) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(header);
+        if (!hasMagic(buf, 0)) {
+            throw new IOException("missing block compression header");
+        }
+        if (buf.get(MAGIC.length) != VERSION) {
+            throw new IOException("unsupported block compression version " + buf.get(MAGIC.length));
+        }
+        int blockSize = buf.getInt(8);
+        if (blockSize <= 0) {
+            throw new IOException("invalid block size " + blockSize);
+        }
+        return blockSize;
+    }
+
+    static void writeFooter(byte[] dest, long indexOffset, long rawSize, int frameCount) {
+        ByteBuffer buf = ByteBuffer.wrap(dest);
+        buf.putLong(indexOffset).putLong(rawSize).putInt(frameCount).put(MAGIC);
+    }
+
+    static final class Footer {
+        final long indexOffset;
+        final long rawSize;
+        final int frameCount;
+
+        Footer(long indexOffset, long rawSize, int frameCount) {
+            this.indexOffset = indexOffset;
+            this.rawSize = rawSize;
+            this.frameCount = frameCount;
+        }
+    }
+
+    /**
+     * Parses and sanity-checks the footer of a block-compressed file of the given length.
+     */
+    static Footer parseFooter(byte[] footer, long fileLength) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(footer);
+        if (!hasMagic(buf, FOOTER_SIZE - MAGIC.length)) {
+            throw new IOException("missing block compression footer; the file may be truncated");
+        }
+        Footer result = new Footer(buf.getLong(0), buf.getLong(8), buf.getInt(16));
+        if (result.frameCount < 0 || result.rawSize < 0 ||
+                result.indexOffset + (long) result.frameCount * 8 != fileLength - FOOTER_SIZE) {
+            throw new IOException("corrupt block compression footer");
+        }
+        return result;
+    }
+
+    private static boolean hasMagic(ByteBuffer buf, int pos) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buf.get(pos + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Restores the data of one frame.
+     *
+     * @param inflater a raw (<tt>nowrap</tt>) inflater
+     * @param stored the frame data as stored in the file
+     * @param storedLen length of the stored data
+     * @param dest receives the uncompressed data
+     * @param rawLen uncompressed length of the frame
+     */
+    static void decodeFrame(Inflater inflater, byte[] stored, int storedLen, byte[] dest, int rawLen)
+    throws IOException {
+        if (storedLen == rawLen) {
+            System.arraycopy(stored, 0, dest, 0, rawLen);
+            return;
+        }
+        inflater.reset();
+        inflater.setInput(stored, 0, storedLen);
+        int numInflated = 0;
+        try {
+            while (numInflated < rawLen) {
+                int n = inflater.inflate(dest, numInflated, rawLen - numInflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("compressed frame ends after " + numInflated + " of " + rawLen + " bytes");
+                }
+                numInflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed frame", e);
+        }
+    }
+}
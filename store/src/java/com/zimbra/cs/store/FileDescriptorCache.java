@@ -21,14 +21,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.GZIPInputStream;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.util.FileCache;
@@ -40,44 +43,70 @@ import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
 
 /**
- * Caches file descriptors to blobs in the mail store.  If the blob is compressed,
- * uses a {@link FileCache} to access the uncompressed data.  Cache entries
+ * Caches file descriptors to blobs in the mail store.  If the blob is gzipped,
+ * uses a {@link FileCache} to access the uncompressed data.  Block-compressed
+ * blobs are read in place through a {@link BlockCompressedSharedFile}.  Cache entries
  * that reference uncompressed blobs keep the file descriptor open until {@link #remove}
  * is called or the cache entry is aged out.
+ * <p>
+ * Lookups don't take a cache-wide lock.  Each {@link SharedFile} counts its readers;
+ * once an entry is dropped from the cache it is retired, and its descriptor is closed
+ * on a background thread as soon as the last reader is done with it.
  */
 public class FileDescriptorCache
 {
     private static final Log sLog = LogFactory.getLog(FileDescriptorCache.class);
 
-    // Create the file cache with default LinkedHashMap values, but sorted by last access time.
-    private final LinkedHashMap<String, SharedFile> mCache = new LinkedHashMap<String, SharedFile>(16, 0.75f, true);
-    // Create a concurrent list for the SharedFies for which the mapping has been removed but is still in use by some threads.
-    private final List<SharedFileInfo> mInactiveCache = Collections.synchronizedList(new ArrayList<SharedFileInfo>());
+    /** Closes descriptors dropped from any cache, so that readers never wait on a close. */
+    private static final class DefaultCloser {
+        static final ExecutorService INSTANCE = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("FileDescriptorCloser").setDaemon(true).build());
+    }
+
+    private volatile Cache<String, SharedFile> mCache;
     private int mMaxSize = 1000;
     private final FileCache<String> mUncompressedFileCache;
+    private final Executor mCloser;
     private final Counter mHitRate = new Counter();
 
-    private class SharedFileInfo {
-        public String path;
-        public SharedFile file;
-
-        public SharedFileInfo(String path, SharedFile file) {
-            this.path = path;
-            this.file = file;
+    private final RemovalListener<String, SharedFile> mRemovalListener = new RemovalListener<String, SharedFile>() {
+        @Override
+        public void onRemoval(RemovalNotification<String, SharedFile> notification) {
+            SharedFile file = notification.getValue();
+            sLog.debug("Dropping file descriptor for %s (%s).", notification.getKey(), notification.getCause());
+            if (file.retire()) {
+                scheduleClose(notification.getKey(), file);
+            }
         }
-    }
+    };
 
     public FileDescriptorCache(FileCache<String> uncompressedCache) {
+        this(uncompressedCache, DefaultCloser.INSTANCE);
+    }
+
+    @VisibleForTesting
+    FileDescriptorCache(FileCache<String> uncompressedCache, Executor closer) {
         mUncompressedFileCache = uncompressedCache;
+        mCloser = closer;
+        mCache = newCache(mMaxSize);
+    }
+
+    private Cache<String, SharedFile> newCache(int maxSize) {
+        return CacheBuilder.newBuilder().maximumSize(maxSize).removalListener(mRemovalListener).build();
     }
 
     public synchronized FileDescriptorCache setMaxSize(int maxSize) {
         if (maxSize < 0)
             throw new IllegalArgumentException("maxSize value of " + maxSize + " is invalid (must be at least 0)");
 
-        mMaxSize = maxSize;
+        if (maxSize != mMaxSize) {
+            // the bound of a Guava cache is fixed, so start over with an empty one
+            Cache<String, SharedFile> old = mCache;
+            mMaxSize = maxSize;
+            mCache = newCache(maxSize);
+            old.invalidateAll();
+        }
         mHitRate.reset(); // Recalculate hit rate based on the new size.
-        pruneIfNecessary();
         return this;
     }
 
@@ -94,24 +123,12 @@ public class FileDescriptorCache
     }
 
     /**
-     * Closes all file descriptors, clears the cache, and removes any files from
-     * the uncompressed cache.
+     * Drops all file descriptors from the cache and removes any files from
+     * the uncompressed cache.  Descriptors that are being read are closed when
+     * their last reader is done.
      */
-    public synchronized void shutdown() {
-        Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-        while (iEntries.hasNext()) {
-            Map.Entry<String, SharedFile> entry = iEntries.next();
-            String path = entry.getKey();
-            SharedFile file = entry.getValue();
-            iEntries.remove();
-            try {
-                boolean success = close(file, path);
-                if (!success)
-                    sLog.warn("Unable to close %s. File is in use.", file);
-            } catch (IOException e) {
-                sLog.warn("Unable to close %s", file, e);
-            }
-        }
+    public void shutdown() {
+        mCache.invalidateAll();
     }
 
     /**
@@ -120,49 +137,51 @@ public class FileDescriptorCache
     public int read(String path, long rawSize, long fileOffset, byte[] buf, int bufferOffset, int len)
     throws IOException {
         sLog.debug("Reading %s.  rawSize=%d, fileOffset=%d, bufferOffset=%d, len=%d.", path, rawSize, fileOffset, bufferOffset, len);
-        SharedFile file = null;
-        int numRead;
-
+        SharedFile file = getSharedFile(path, rawSize);
         try {
-            file = getSharedFile(path, rawSize);
-            numRead = file.read(fileOffset, buf, bufferOffset, len);
+            return file.read(fileOffset, buf, bufferOffset, len);
         } finally {
-            if (file != null) {
-               file.doneReading();
+            if (file.release()) {
+                scheduleClose(path, file);
             }
         }
-
-        return numRead;
     }
 
     boolean contains(String path) {
-        synchronized (this) {
-            return mCache.containsKey(path);
-        }
+        return mCache.asMap().containsKey(path);
     }
 
     /**
-     * Returns the existing cache entry or creates a new one.  Implicitly
-     * increments the number of readers for the <tt>SharedFile</tt>.
+     * Returns the existing cache entry or creates a new one.  The returned
+     * <tt>SharedFile</tt> has already been acquired for the caller, who must
+     * {@link SharedFile#release} it when done.
      */
     private SharedFile getSharedFile(String path, long rawSize) throws IOException {
-        SharedFile sharedFile = null;
-
-        synchronized (this) {
-            sharedFile = mCache.get(path);
-        }
-        if (sharedFile != null) {
-            sLog.debug("Found existing file descriptor for %s, rawSize=%d.", path, rawSize);
-            sharedFile.aboutToRead();
-            mHitRate.increment(100);
-            return sharedFile;
+        // setMaxSize() may swap in a new cache at any point, so work against one of them throughout
+        Cache<String, SharedFile> cache = mCache;
+        while (true) {
+            SharedFile sharedFile = cache.getIfPresent(path);
+            if (sharedFile == null) {
+                break;
+            }
+            if (sharedFile.acquire()) {
+                sLog.debug("Found existing file descriptor for %s, rawSize=%d.", path, rawSize);
+                mHitRate.increment(100);
+                return sharedFile;
+            }
+            // lost a race with eviction; the entry is on its way out of the cache
+            cache.asMap().remove(path, sharedFile);
         }
 
         // Open a new file descriptor.
         mHitRate.increment(0);
         File file = new File(path);
+        SharedFile sharedFile;
 
-        if (file.length() != rawSize && FileUtil.isGzipped(file)) {
+        if (file.length() != rawSize && BlockCompression.isBlockCompressed(file)) {
+            sLog.debug("Opening new file descriptor for block-compressed %s.", path);
+            sharedFile = new BlockCompressedSharedFile(file);
+        } else if (file.length() != rawSize && FileUtil.isGzipped(file)) {
             sLog.debug("Adding file descriptor cache entry for %s from the uncompressed file cache.", path);
             FileCache.Item uncompressed = mUncompressedFileCache.get(path);
             if (uncompressed == null) {
@@ -182,19 +201,25 @@ public class FileDescriptorCache
             sharedFile = new SharedFile(file);
         }
 
-        synchronized (this) {
-            if (mCache.containsKey(path)) {
-                sLog.debug("Another thread just opened the same file.  Closing our copy and returning the other one.");
-                sharedFile.close();
-                sharedFile = mCache.get(path);
-            } else {
-                sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
-                mCache.put(path, sharedFile);
+        // acquire before publishing, so that an immediate eviction can't close it under us
+        sharedFile.acquire();
+        SharedFile existing = cache.asMap().putIfAbsent(path, sharedFile);
+        if (existing == null) {
+            sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
+            if (cache != mCache) {
+                // the cache was replaced while we were opening the file, and may already have been
+                // invalidated; drop our entry so that it's retired instead of left open in the old cache
+                cache.asMap().remove(path, sharedFile);
             }
+            return sharedFile;
         }
-        sharedFile.aboutToRead();
-        pruneIfNecessary();
-
+        if (existing.acquire()) {
+            sLog.debug("Another thread just opened the same file.  Closing our copy and returning the other one.");
+            sharedFile.close();
+            return existing;
+        }
+        // the other thread's copy is already being evicted, so read through ours without caching it
+        sharedFile.retire();
         return sharedFile;
     }
 
@@ -203,104 +228,50 @@ public class FileDescriptorCache
      * descriptor is not in the cache.
      */
     public void remove(String path) throws IOException {
-        SharedFile file = null;
-
-        synchronized (this) {
-            file = mCache.remove(path);
-        }
-
-        if (file != null) {
-            boolean success = close(file, path);
-            if (!success)
-                mInactiveCache.add(new SharedFileInfo(path, file));
-        } else {
+        if (mCache.asMap().remove(path) == null) {
             sLog.debug("Attempted to remove %s but could not find it in the cache.", path);
         }
+    }
 
-        // Close if there are any SharedFiles in the inactive cache.
-        quietCloseInactiveCache();
+    private void scheduleClose(final String path, final SharedFile file) {
+        mCloser.execute(new Runnable() {
+            @Override
+            public void run() {
+                close(file, path);
+            }
+        });
     }
 
     /**
-     * Close the file if it is not in use.
-     * @return true if the file is closed, false otherwise.
-     * @throws IOException if there is an error closing the file.
+     * Closes a retired file, and drops its uncompressed copy unless the path has been reopened since.
      */
-    private boolean close(SharedFile file, String path) throws IOException {
-        if (file != null) {
-            sLog.debug("Closing file descriptor for %s, %s", path, file);
-
-            if (file.getNumReaders() == 0) {
-                file.close();
-                if (mUncompressedFileCache != null) {
-                    synchronized (this) {
-                        if (!mCache.containsKey(path)) {
-                            mUncompressedFileCache.remove(path);
-                        } else {
-                            sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.");
-                        }
-                    }
-                }
-                return true;
+    private void close(SharedFile file, String path) {
+        sLog.debug("Closing file descriptor for %s, %s", path, file);
+        try {
+            file.close();
+        } catch (IOException e) {
+            ZimbraLog.store.warn("Unable to close file descriptor for " + path, e);
+        }
+        if (mUncompressedFileCache != null) {
+            if (!mCache.asMap().containsKey(path)) {
+                mUncompressedFileCache.remove(path);
+            } else {
+                sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.", path);
             }
-            return false;
         }
-        return true;
     }
 
-    private void quietCloseInactiveCache() {
-        synchronized (mInactiveCache) {
-            Iterator<SharedFileInfo> iter = mInactiveCache.iterator();
-            while (iter.hasNext()) {
-                SharedFileInfo info = iter.next();
-                try {
-                    boolean success = close(info.file, info.path);
-                    if (success)
-                        iter.remove();
-                } catch (IOException e) {
-                    ZimbraLog.store.warn("Unable to close file descriptor for " + info.path, e);
-                    iter.remove();
-                }
-            }
-        }
+    public int getSize() {
+        return (int) mCache.size();
     }
 
-    public synchronized int getSize() {
-        return mCache.size();
+    /** Returns the number of open file descriptors, including ones that have been dropped from the cache
+     *  but are still being read. */
+    public int getOpenCount() {
+        return SharedFile.getOpenCount();
     }
 
     public double getHitRate() {
         return mHitRate.getAverage();
     }
-
-    private void pruneIfNecessary() {
-         if (getSize() <= mMaxSize)
-            return;
-
-        List<Map.Entry<String, SharedFile>> removeList = new ArrayList<Map.Entry<String, SharedFile>>();
-
-        synchronized (this) {
-            Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-            while (iEntries.hasNext() && mCache.size() > mMaxSize) {
-                Map.Entry<String, SharedFile> mapEntry = iEntries.next();
-                iEntries.remove();
-                removeList.add(mapEntry);
-            }
-        }
-        for (Map.Entry<String, SharedFile> mapEntry : removeList) {
-            String path = mapEntry.getKey();
-            SharedFile file = mapEntry.getValue();
-            try {
-                boolean success = close(file, path);
-                if (!success) {
-                    mInactiveCache.add(new SharedFileInfo(path, file));
-                }
-            } catch (IOException e) {
-                ZimbraLog.store.warn("Unable to close file descriptor for " + path, e);
-            }
-        }
-
-        // Close if there are any SharedFiles in the inactive cache.
-        quietCloseInactiveCache();
-    }
 }
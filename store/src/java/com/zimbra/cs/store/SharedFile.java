@@ -21,32 +21,45 @@ package com.zimbra.cs.store;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.zimbra.cs.stats.SlowRequestSampler;
 import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
- * Synchronized container for a <tt>RandomAccessFile</tt> object.  Used by multiple
- * <tt>BlobInputStream</tt> objects that share a single file descriptor.
+ * Reference-counted container for a <tt>FileChannel</tt>.  Used by multiple
+ * <tt>BlobInputStream</tt> objects that share a single file descriptor.  Reads
+ * are positional, so concurrent readers of the same file don't block each other.
  */
 public class SharedFile {
 
-    private File mFile;
-    private RandomAccessFile mRAF;
-    private long mPos = 0;
-    
+    /** Number of file descriptors currently held open by all <tt>SharedFile</tt>s. */
+    private static final AtomicInteger sOpenCount = new AtomicInteger();
+
+    private final File mFile;
+    private volatile FileChannel mChannel;
+    /** End of the last read, used to tell sequential reads from seeks in the stats. */
+    private volatile long mPos = 0;
+
     /**
      * Keep track of the number of threads that are reading from this file.
-     * We do this so that we don't delete a file that's being read on
-     * Windows (bug 43497).
+     * We do this so that we don't close or delete a file that's being read.
      */
     private int mNumReaders;
-    
+
+    /** Set once the file has been dropped from the cache; no new readers are let in after that. */
+    private boolean mRetired;
+
     /**
      * Remember the file's length, in case we have an open file descriptor and the
      * uncompressed cache deletes this file from disk.
      */
-    private long mLength;
+    private final long mLength;
 
     /**
      * Creates a new <tt>SharedFile</tt> and opens the underlying
@@ -65,67 +78,116 @@ public class SharedFile {
         openIfNecessary();
     }
 
-    synchronized long getLength() {
+    static int getOpenCount() {
+        return sOpenCount.get();
+    }
+
+    long getLength() {
         return mLength;
     }
-    
-    synchronized int read(long fileOffset, byte[] b, int off, int len)
+
+    int read(long fileOffset, byte[] b, int off, int len)
     throws IOException {
-        int numRead = 0;
-        boolean seeked = false;
-        openIfNecessary();
-        
-        if (mPos != fileOffset) {
-            mRAF.seek(fileOffset);
-            mPos = fileOffset;
-            seeked = true;
+        FileChannel channel = mChannel;
+        if (channel == null) {
+            channel = openIfNecessary();
         }
-        numRead = mRAF.read(b, off, len);
-        mPos += numRead;
-        
-        if (seeked) {
+        ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+        int numRead;
+        try {
+            numRead = channel.read(buf, fileOffset);
+        } catch (ClosedByInterruptException e) {
+            throw e;
+        } catch (ClosedChannelException e) {
+            // another reader was interrupted mid-read, which closes the channel for everybody
+            numRead = reopen(channel).read(buf, fileOffset);
+        }
+
+        if (mPos != fileOffset) {
             ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_SEEK_RATE.increment(100);
         } else {
             ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_SEEK_RATE.increment(0);
         }
+        if (numRead > 0) {
+            mPos = fileOffset + numRead;
+            SlowRequestSampler.addBlobBytes(numRead);
+        }
         ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_READ.increment();
         return numRead;
     }
-    
-    synchronized void aboutToRead() {
+
+    /**
+     * Registers a reader.  Returns <tt>false</tt> if the file has been retired,
+     * in which case the caller must not read from it.
+     */
+    synchronized boolean acquire() {
+        if (mRetired) {
+            return false;
+        }
         mNumReaders++;
+        return true;
     }
-    
-    synchronized void doneReading() {
+
+    /**
+     * Unregisters a reader.  Returns <tt>true</tt> if the file has been retired
+     * and this was its last reader, meaning that the caller should close it.
+     */
+    synchronized boolean release() {
         if (mNumReaders > 0) {
             mNumReaders--;
         }
+        return mRetired && mNumReaders == 0;
     }
-    
-    synchronized int getNumReaders() {
-        return mNumReaders;
+
+    /**
+     * Stops any new readers from using this file.  Returns <tt>true</tt> if
+     * nobody is reading it, meaning that the caller should close it.  Otherwise
+     * the last reader is told to close it by {@link #release}.
+     */
+    synchronized boolean retire() {
+        mRetired = true;
+        return mNumReaders == 0;
     }
-    
-    private synchronized void openIfNecessary()
+
+    private synchronized FileChannel openIfNecessary()
     throws IOException {
-        if (mRAF == null) {
+        if (mChannel == null) {
             if (!mFile.exists()) {
                 throw new IOException(mFile.getPath() + " does not exist.");
             }
-            mRAF = new RandomAccessFile(mFile, "r");
+            mChannel = FileChannel.open(mFile.toPath(), StandardOpenOption.READ);
             mPos = 0;
+            sOpenCount.incrementAndGet();
         }
+        return mChannel;
     }
-    
+
+    private synchronized FileChannel reopen(FileChannel stale)
+    throws IOException {
+        if (mChannel == null) {
+            throw new ClosedChannelException();
+        }
+        if (mChannel == stale) {
+            if (!mFile.exists()) {
+                throw new IOException(mFile.getPath() + " does not exist.");
+            }
+            mChannel = FileChannel.open(mFile.toPath(), StandardOpenOption.READ);
+        }
+        return mChannel;
+    }
+
     synchronized void close()
     throws IOException {
-        if (mRAF != null) {
-            mRAF.close();
+        if (mChannel != null) {
+            FileChannel channel = mChannel;
+            mChannel = null;
             mPos = 0;
-            mRAF = null;
+            sOpenCount.decrementAndGet();
+            channel.close();
         }
     }
-    
+
+    @Override
     public String toString() {
         return mFile.toString();
     }
@@ -40,7 +40,7 @@ public class ExternalStagedBlob extends StagedBlob {
         return this;
     }
 
-    boolean isInserted() {
+    public boolean isInserted() {
         return inserted;
     }
 }
@@ -45,6 +45,7 @@ import com.zimbra.cs.db.DbPool;
 import com.zimbra.cs.db.DbPool.DbConnection;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.store.BlockCompression;
 import com.zimbra.cs.store.StoreManager;
 import com.zimbra.cs.volume.Volume;
 import com.zimbra.cs.volume.VolumeManager;
@@ -405,7 +406,9 @@ public class BlobConsistencyChecker {
     protected long getDataSize(File file, long expected)
     throws IOException {
         long fileLen = file.length();
-        if (fileLen != expected && FileUtil.isGzipped(file)) {
+        if (fileLen != expected && BlockCompression.isBlockCompressed(file)) {
+            return BlockCompression.getRawSize(file);
+        } else if (fileLen != expected && FileUtil.isGzipped(file)) {
             return ByteUtil.getDataLength(new GZIPInputStream(new FileInputStream(file)));
         } else {
             return fileLen;
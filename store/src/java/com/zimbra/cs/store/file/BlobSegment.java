@@ -0,0 +1,260 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.store.BlobInputStream;
+
+/**
+ * Append-only segment file of a {@link PackedBlobStore}.  Each record is the length of a blob (8 bytes)
+ * followed by its data, and a blob is addressed by the offset of its data.  Deletions are appended to a
+ * companion log of (offset, length) pairs, which tells how much of the segment a compaction would reclaim.
+ * <p>
+ * Appends to a segment must be serialized by the caller.
+ */
+final class BlobSegment {
+
+    static final String DATA_SUFFIX = ".seg";
+    static final String DELETED_SUFFIX = ".del";
+    static final int RECORD_HEADER_SIZE = 8;
+    private static final int DELETED_ENTRY_SIZE = 16;
+    private static final int COPY_BUFFER_SIZE = Math.max(LC.zimbra_store_copy_buffer_size_kb.intValue(), 1) * 1024;
+
+    static final class Record {
+        final long offset;
+        final long length;
+
+        Record(long offset, long length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final int id;
+    private final File dataFile;
+    private final File deletedFile;
+
+    BlobSegment(File dir, int id) {
+        this.id = id;
+        dataFile = new File(dir, id + DATA_SUFFIX);
+        deletedFile = new File(dir, id + DELETED_SUFFIX);
+    }
+
+    /**
+     * Returns the id of the segment with the given data file name, or -1 if it isn't a segment data file.
+     */
+    static int parseId(String filename) {
+        if (!filename.endsWith(DATA_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(filename.substring(0, filename.length() - DATA_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    int getId() {
+        return id;
+    }
+
+    File getDataFile() {
+        return dataFile;
+    }
+
+    long getSize() {
+        return dataFile.length();
+    }
+
+    boolean exists() {
+        return dataFile.exists();
+    }
+
+    /**
+     * Appends a blob and returns the offset of its data.  If the stream doesn't hold exactly <tt>length</tt>
+     * bytes, the segment is left as it was and an <tt>IOException</tt> is thrown.
+     */
+    long append(InputStream in, long length, boolean sync) throws IOException {
+        FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            long start = channel.size();
+            channel.position(start);
+            boolean success = false;
+            try {
+                ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+                header.putLong(0, length);
+                writeFully(channel, header);
+                byte[] buf = new byte[(int) Math.min(COPY_BUFFER_SIZE, Math.max(length, 1))];
+                long remaining = length;
+                while (remaining > 0) {
+                    int numRead = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                    if (numRead < 0) {
+                        throw new EOFException("blob ended " + remaining + " bytes short of its length " + length);
+                    }
+                    writeFully(channel, ByteBuffer.wrap(buf, 0, numRead));
+                    remaining -= numRead;
+                }
+                if (in.read() >= 0) {
+                    throw new IOException("blob is longer than its length " + length);
+                }
+                if (sync) {
+                    channel.force(false);
+                }
+                success = true;
+                return start + RECORD_HEADER_SIZE;
+            } finally {
+                if (!success) {
+                    channel.truncate(start);
+                }
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Flushes blobs appended without <tt>sync</tt> to disk.
+     */
+    void force() throws IOException {
+        FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.WRITE);
+        try {
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Opens a stream over the data of a blob.  The stream shares the segment's file descriptor with other
+     * readers through the {@link BlobInputStream} file descriptor cache.
+     */
+    InputStream open(long offset, long length) throws IOException {
+        long size = dataFile.length();
+        if (offset < RECORD_HEADER_SIZE || length < 0 || offset + length > size) {
+            throw new IOException(String.format("blob at offset %d, length %d is outside of %s (size %d)",
+                    offset, length, dataFile.getPath(), size));
+        }
+        return new BlobInputStream(dataFile, size, offset, offset + length);
+    }
+
+    /**
+     * Records that the blob at the given offset was deleted.
+     */
+    void markDeleted(long offset, long length) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(DELETED_ENTRY_SIZE);
+        entry.putLong(0, offset).putLong(8, length);
+        FileChannel channel = FileChannel.open(deletedFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            writeFully(channel, entry);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Returns the offsets of the blobs that were deleted, mapped to their lengths.
+     */
+    Map<Long, Long> getDeleted() throws IOException {
+        Map<Long, Long> deleted = new HashMap<Long, Long>();
+        if (!deletedFile.exists()) {
+            return deleted;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(deletedFile.toPath()));
+        while (buf.remaining() >= DELETED_ENTRY_SIZE) {
+            deleted.put(buf.getLong(), buf.getLong());
+        }
+        return deleted;
+    }
+
+    /**
+     * Returns the number of bytes taken up by deleted blobs, including their record headers.
+     */
+    long getDeletedBytes() throws IOException {
+        long total = 0;
+        for (long length : getDeleted().values()) {
+            total += RECORD_HEADER_SIZE + length;
+        }
+        return total;
+    }
+
+    /**
+     * Returns every blob in the segment, deleted or not, in file order.  A record cut short by a crash ends
+     * the list.
+     */
+    List<Record> getRecords() throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            long pos = 0;
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            while (pos + RECORD_HEADER_SIZE <= size) {
+                header.clear();
+                while (header.hasRemaining()) {
+                    if (channel.read(header, pos + header.position()) < 0) {
+                        throw new EOFException("unexpected end of " + dataFile.getPath());
+                    }
+                }
+                long length = header.getLong(0);
+                if (length < 0 || pos + RECORD_HEADER_SIZE + length > size) {
+                    ZimbraLog.store.warn("ignoring truncated record at offset %d of %s", pos, dataFile.getPath());
+                    break;
+                }
+                records.add(new Record(pos + RECORD_HEADER_SIZE, length));
+                pos += RECORD_HEADER_SIZE + length;
+            }
+        } finally {
+            channel.close();
+        }
+        return records;
+    }
+
+    /**
+     * Deletes the segment and its deletion log.
+     */
+    boolean delete() throws IOException {
+        BlobInputStream.getFileDescriptorCache().remove(dataFile.getPath());  // Prevent stale cache read.
+        deletedFile.delete();
+        return dataFile.delete();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return dataFile.getPath();
+    }
+}
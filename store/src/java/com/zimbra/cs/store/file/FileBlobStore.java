@@ -32,6 +32,7 @@ import com.zimbra.cs.mailbox.util.MailItemHelper;
 import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.BlobBuilder;
 import com.zimbra.cs.store.BlobInputStream;
+import com.zimbra.cs.store.BlockCompression;
 import com.zimbra.cs.store.FileDescriptorCache;
 import com.zimbra.cs.store.IncomingDirectory;
 import com.zimbra.cs.store.MailboxBlob;
@@ -174,16 +175,20 @@ public final class FileBlobStore extends StoreManager {
 
         boolean destCompressed;
         if (destVolume.isCompressBlobs()) {
-            if (src.isCompressed() || srcFile.length() <= destVolume.getCompressionThreshold()) {
+            if (src.isCompressed() && !BlockCompression.isPreferredFormat(srcFile)) {
+                // convert to the format new blobs are compressed in
+                BlockCompression.recompress(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
+                destCompressed = true;
+            } else if (src.isCompressed() || srcFile.length() <= destVolume.getCompressionThreshold()) {
                 FileUtil.copy(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
                 destCompressed = src.isCompressed();
             } else {
-                FileUtil.compress(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
+                BlockCompression.compress(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
                 destCompressed = true;
             }
         } else {
             if (src.isCompressed()) {
-                FileUtil.uncompress(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
+                BlockCompression.uncompress(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
             } else {
                 FileUtil.copy(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
             }
@@ -0,0 +1,87 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.IOException;
+
+import com.zimbra.cs.mailbox.util.MailItemHelper;
+
+/**
+ * Address of a blob in a {@link PackedBlobStore} segment: the volume, the segment within the mailbox's
+ * directory on that volume, and the offset and length of the blob's data in the segment file.  Stored as
+ * the item's locator in the form <tt>volume@@segment:offset:length</tt>, so that
+ * {@link MailItemHelper#findMyVolumeId} still finds the volume.
+ */
+final class PackedBlobLocation {
+
+    private final short volumeId;
+    private final int segmentId;
+    private final long offset;
+    private final long length;
+
+    PackedBlobLocation(short volumeId, int segmentId, long offset, long length) {
+        this.volumeId = volumeId;
+        this.segmentId = segmentId;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    short getVolumeId() {
+        return volumeId;
+    }
+
+    int getSegmentId() {
+        return segmentId;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the prefix shared by the locators of all blobs in a segment.
+     */
+    static String getSegmentPrefix(short volumeId, int segmentId) {
+        return volumeId + MailItemHelper.VOL_ID_LOCATOR_SEPARATOR + segmentId + ':';
+    }
+
+    static PackedBlobLocation parse(String locator) throws IOException {
+        if (locator == null) {
+            throw new IOException("missing packed blob locator");
+        }
+        try {
+            int sep = locator.indexOf(MailItemHelper.VOL_ID_LOCATOR_SEPARATOR);
+            String[] parts = locator.substring(sep + MailItemHelper.VOL_ID_LOCATOR_SEPARATOR.length()).split(":");
+            if (sep < 0 || parts.length != 3) {
+                throw new IOException("invalid packed blob locator " + locator);
+            }
+            return new PackedBlobLocation(Short.parseShort(locator.substring(0, sep)), Integer.parseInt(parts[0]),
+                    Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid packed blob locator " + locator, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getSegmentPrefix(volumeId, segmentId) + offset + ':' + length;
+    }
+}
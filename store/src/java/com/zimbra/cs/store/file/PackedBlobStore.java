@@ -0,0 +1,546 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.db.DbMailItem;
+import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.MailboxBlob;
+import com.zimbra.cs.store.StagedBlob;
+import com.zimbra.cs.store.external.ExternalStagedBlob;
+import com.zimbra.cs.store.external.ExternalStoreManager;
+import com.zimbra.cs.util.Zimbra;
+import com.zimbra.cs.volume.Volume;
+import com.zimbra.cs.volume.VolumeManager;
+
+/**
+ * Store for volumes that hold mostly small blobs.  Rather than one file per blob, blobs are appended to
+ * {@link BlobSegment} files in a <tt>packed</tt> directory under the mailbox's message directory, and each
+ * item's locator records the segment, offset and length of its blob (see {@link PackedBlobLocation}).  This
+ * keeps inode and directory overhead down and lets a message be read with a single positioned read on a
+ * file descriptor shared by every blob in the segment.  Blobs larger than
+ * <tt>packed_blob_store_max_packed_size</tt> get a segment of their own.
+ * <p>
+ * Deleting a blob only records it in the segment's deletion log.  Once deleted blobs take up
+ * <tt>packed_blob_store_compaction_threshold_percent</tt> of a segment, the mailbox is queued for
+ * compaction, which copies the segment's live blobs to the active segment and repoints their items at the
+ * copies.  The emptied segment is removed by the following compaction, so that streams opened before the
+ * move can still be read.  A segment holding a staged blob whose item hasn't been linked yet is left alone
+ * until the blob is linked or deleted, since the database doesn't show it as live.
+ * <p>
+ * Enable it with <tt>zimbra_class_store</tt>, or per volume through the volume's store manager class.
+ */
+public class PackedBlobStore extends ExternalStoreManager {
+
+    static final String PACKED_DIR = "packed";
+
+    private static final VolumeManager MANAGER = VolumeManager.getInstance();
+
+    /** Segment directories by path.  There is one per mailbox and volume. */
+    private final ConcurrentMap<String, SegmentDirectory> directories = new ConcurrentHashMap<String, SegmentDirectory>();
+    /** Ids of mailboxes with a segment over the compaction threshold. */
+    private final Set<Integer> compactionCandidates = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private TimerTask compactionTask;
+
+    /**
+     * The segments of one mailbox on one volume.
+     */
+    private static final class SegmentDirectory {
+        final File dir;
+        private int nextId = -1;
+        private BlobSegment active;
+        /** Blobs staged into each segment whose items haven't been linked yet, by segment id. */
+        private final Map<Integer, Integer> inFlight = new HashMap<Integer, Integer>();
+
+        SegmentDirectory(File dir) {
+            this.dir = dir;
+        }
+
+        /**
+         * Returns a new, empty segment.  Ids are never reused, so a locator can't end up pointing into a
+         * segment created after its own was removed.
+         */
+        synchronized BlobSegment allocate() throws IOException {
+            if (nextId < 0) {
+                FileUtil.ensureDirExists(dir);
+                int maxId = -1;
+                for (BlobSegment segment : list()) {
+                    maxId = Math.max(maxId, segment.getId());
+                }
+                nextId = maxId + 1;
+            }
+            return new BlobSegment(dir, nextId++);
+        }
+
+        /**
+         * Returns the segment that small blobs are appended to, starting a new one once it is full.  After a
+         * restart blobs always go to a new segment, so a record cut short by a crash can only be at the end
+         * of a segment that is no longer written to.
+         */
+        synchronized BlobSegment getActive() throws IOException {
+            if (active == null || active.getSize() >= getMaxSegmentSize()) {
+                active = allocate();
+            }
+            return active;
+        }
+
+        synchronized boolean isActive(BlobSegment segment) {
+            return active != null && active.getId() == segment.getId();
+        }
+
+        synchronized void beginStage(int segmentId) {
+            Integer count = inFlight.get(segmentId);
+            inFlight.put(segmentId, count == null ? 1 : count + 1);
+        }
+
+        synchronized void endStage(int segmentId) {
+            Integer count = inFlight.get(segmentId);
+            if (count == null || count <= 1) {
+                inFlight.remove(segmentId);
+            } else {
+                inFlight.put(segmentId, count - 1);
+            }
+        }
+
+        /**
+         * Returns true if a blob staged into the segment may still be committed under an item the database
+         * doesn't show yet.  A segment that is neither active nor has staged blobs in flight can't get any.
+         */
+        synchronized boolean hasInFlight(BlobSegment segment) {
+            return inFlight.containsKey(segment.getId());
+        }
+
+        List<BlobSegment> list() {
+            List<BlobSegment> segments = new ArrayList<BlobSegment>();
+            String[] names = dir.list();
+            if (names != null) {
+                for (String name : names) {
+                    int id = BlobSegment.parseId(name);
+                    if (id >= 0) {
+                        segments.add(new BlobSegment(dir, id));
+                    }
+                }
+            }
+            return segments;
+        }
+    }
+
+    private static long getMaxSegmentSize() {
+        return Math.max(LC.packed_blob_store_segment_size_kb.longValue(), 1) * 1024;
+    }
+
+    @Override
+    public void startup() throws IOException, ServiceException {
+        super.startup();
+        long interval = LC.packed_blob_store_compaction_interval.longValue();
+        if (interval > 0) {
+            compactionTask = new CompactionTask();
+            Zimbra.sTimer.schedule(compactionTask, interval, interval);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (compactionTask != null) {
+            compactionTask.cancel();
+            compactionTask = null;
+        }
+        super.shutdown();
+    }
+
+    private SegmentDirectory getSegmentDirectory(short volumeId, int mboxId) throws ServiceException {
+        File dir = new File(MANAGER.getVolume(volumeId).getMessageRootDir(mboxId), PACKED_DIR);
+        SegmentDirectory segments = directories.get(dir.getPath());
+        if (segments == null) {
+            segments = new SegmentDirectory(dir);
+            SegmentDirectory existing = directories.putIfAbsent(dir.getPath(), segments);
+            if (existing != null) {
+                segments = existing;
+            }
+        }
+        return segments;
+    }
+
+    private BlobSegment getSegment(PackedBlobLocation location, Mailbox mbox) throws IOException {
+        try {
+            return new BlobSegment(getSegmentDirectory(location.getVolumeId(), mbox.getId()).dir,
+                    location.getSegmentId());
+        } catch (ServiceException e) {
+            throw new IOException("unable to get segment directory for " + location, e);
+        }
+    }
+
+    @Override
+    public String writeStreamToStore(InputStream in, long actualSize, Mailbox mbox) throws IOException, ServiceException {
+        Volume volume = MANAGER.getCurrentMessageVolume();
+        if (volume == null) {
+            throw ServiceException.FAILURE("no current message volume", null);
+        }
+        SegmentDirectory segments = getSegmentDirectory(volume.getId(), mbox.getId());
+        boolean sync = !DebugConfig.disableMessageStoreFsync;
+        BlobSegment segment;
+        long offset;
+        if (actualSize <= LC.packed_blob_store_max_packed_size.longValue()) {
+            // appends to the active segment are serialized per directory
+            synchronized (segments) {
+                segment = segments.getActive();
+                segments.beginStage(segment.getId());
+                offset = append(segments, segment, in, actualSize, sync);
+            }
+        } else {
+            segment = segments.allocate();
+            segments.beginStage(segment.getId());
+            offset = append(segments, segment, in, actualSize, sync);
+        }
+        return new PackedBlobLocation(volume.getId(), segment.getId(), offset, actualSize).toString();
+    }
+
+    private static long append(SegmentDirectory segments, BlobSegment segment, InputStream in, long actualSize,
+            boolean sync) throws IOException {
+        boolean success = false;
+        try {
+            long offset = segment.append(in, actualSize, sync);
+            success = true;
+            return offset;
+        } finally {
+            if (!success) {
+                segments.endStage(segment.getId());
+            }
+        }
+    }
+
+    /**
+     * A staged blob stays in flight until it is linked, which happens inside the item's transaction, or deleted.
+     * Compaction holds the mailbox lock, so by then a blob that is no longer in flight is either in the database
+     * or not referenced at all.
+     */
+    private void endStage(StagedBlob staged) throws IOException {
+        PackedBlobLocation location = PackedBlobLocation.parse(staged.getLocator());
+        try {
+            getSegmentDirectory(location.getVolumeId(), staged.getMailbox().getId()).endStage(location.getSegmentId());
+        } catch (ServiceException e) {
+            throw new IOException("unable to get segment directory for " + location, e);
+        }
+    }
+
+    @Override
+    public MailboxBlob renameTo(StagedBlob src, Mailbox destMbox, int destMsgId, int destRevision)
+            throws IOException, ServiceException {
+        // a staged blob can be linked to more than one item, but is only in flight until the first
+        if (!((ExternalStagedBlob) src).isInserted()) {
+            endStage(src);
+        }
+        return super.renameTo(src, destMbox, destMsgId, destRevision);
+    }
+
+    @Override
+    public boolean delete(StagedBlob staged) throws IOException {
+        if (staged != null && !((ExternalStagedBlob) staged).isInserted()) {
+            endStage(staged);
+        }
+        return super.delete(staged);
+    }
+
+    @Override
+    public InputStream readStreamFromStore(String locator, Mailbox mbox) throws IOException {
+        PackedBlobLocation location = PackedBlobLocation.parse(locator);
+        return getSegment(location, mbox).open(location.getOffset(), location.getLength());
+    }
+
+    @Override
+    public boolean deleteFromStore(String locator, Mailbox mbox) throws IOException {
+        PackedBlobLocation location = PackedBlobLocation.parse(locator);
+        BlobSegment segment = getSegment(location, mbox);
+        if (!segment.exists()) {
+            return false;
+        }
+        segment.markDeleted(location.getOffset(), location.getLength());
+        SegmentDirectory segments;
+        try {
+            segments = getSegmentDirectory(location.getVolumeId(), mbox.getId());
+        } catch (ServiceException e) {
+            throw new IOException("unable to get segment directory for " + location, e);
+        }
+        if (segments.isActive(segment)) {
+            return true;
+        }
+        long size = segment.getSize();
+        long deleted = segment.getDeletedBytes();
+        if (deleted >= size) {
+            ZimbraLog.store.debug("deleting segment %s, which holds no more blobs", segment);
+            segment.delete();
+        } else if (deleted * 100 >= size * LC.packed_blob_store_compaction_threshold_percent.longValue()) {
+            compactionCandidates.add(mbox.getId());
+        }
+        return true;
+    }
+
+    @Override
+    public InputStream getContent(MailboxBlob mblob) throws IOException {
+        if (mblob == null) {
+            return null;
+        }
+        // segments are local, so read straight from them rather than through the local cache
+        return readStreamFromStore(mblob.getLocator(), mblob.getMailbox());
+    }
+
+    @Override
+    public StagedBlob stage(Blob blob, Mailbox mbox) throws IOException, ServiceException {
+        InputStream in = getContent(blob);
+        try {
+            return stage(in, blob.getRawSize(), mbox);
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+    }
+
+    @Override
+    public boolean deleteStore(Mailbox mbox, Iterable<MailboxBlob.MailboxBlobInfo> blobs) throws IOException, ServiceException {
+        for (Volume volume : MANAGER.getAllVolumes()) {
+            if (volume.getType() == Volume.TYPE_MESSAGE || volume.getType() == Volume.TYPE_MESSAGE_SECONDARY) {
+                File dir = new File(volume.getMessageRootDir(mbox.getId()), PACKED_DIR);
+                SegmentDirectory segments = directories.remove(dir.getPath());
+                for (BlobSegment segment : (segments != null ? segments : new SegmentDirectory(dir)).list()) {
+                    segment.delete();
+                }
+                dir.delete();
+            }
+        }
+        compactionCandidates.remove(mbox.getId());
+        return true;
+    }
+
+    @Override
+    public List<String> getAllBlobPaths(Mailbox mbox) throws IOException {
+        List<String> locators = new ArrayList<String>();
+        for (Volume volume : MANAGER.getAllVolumes()) {
+            if (volume.getType() != Volume.TYPE_MESSAGE && volume.getType() != Volume.TYPE_MESSAGE_SECONDARY) {
+                continue;
+            }
+            SegmentDirectory segments;
+            try {
+                segments = getSegmentDirectory(volume.getId(), mbox.getId());
+            } catch (ServiceException e) {
+                throw new IOException("unable to get segment directory", e);
+            }
+            for (BlobSegment segment : segments.list()) {
+                Map<Long, Long> deleted = segment.getDeleted();
+                for (BlobSegment.Record record : segment.getRecords()) {
+                    if (!deleted.containsKey(record.offset)) {
+                        locators.add(new PackedBlobLocation(volume.getId(), segment.getId(), record.offset,
+                                record.length).toString());
+                    }
+                }
+            }
+        }
+        return locators;
+    }
+
+    @Override
+    public boolean supports(StoreFeature feature) {
+        switch (feature) {
+            case BULK_DELETE:   return true;
+            case CENTRALIZED:   return false;
+            default:            return super.supports(feature);
+        }
+    }
+
+    /**
+     * Compacts the mailbox's segments on every volume.  Segments left without blobs by an earlier compaction
+     * are removed, and the live blobs of segments over the compaction threshold are moved to the active
+     * segment.
+     *
+     * @return the number of blobs moved
+     */
+    public int compact(Mailbox mbox) throws IOException, ServiceException {
+        int moved = 0;
+        long threshold = LC.packed_blob_store_compaction_threshold_percent.longValue();
+        for (Volume volume : MANAGER.getAllVolumes()) {
+            if (volume.getType() != Volume.TYPE_MESSAGE && volume.getType() != Volume.TYPE_MESSAGE_SECONDARY) {
+                continue;
+            }
+            SegmentDirectory segments = getSegmentDirectory(volume.getId(), mbox.getId());
+            for (BlobSegment segment : segments.list()) {
+                if (segments.isActive(segment)) {
+                    continue;
+                }
+                if (segments.hasInFlight(segment)) {
+                    // a blob in it may yet be committed; try again on a later run
+                    compactionCandidates.add(mbox.getId());
+                    continue;
+                }
+                long size = segment.getSize();
+                long deleted = segment.getDeletedBytes();
+                if (deleted >= size) {
+                    ZimbraLog.store.debug("deleting compacted segment %s", segment);
+                    segment.delete();
+                } else if (deleted * 100 >= size * threshold) {
+                    moved += compact(mbox, volume.getId(), segments, segment);
+                }
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Moves the blobs of a segment that are still referenced to the active segment, and marks every blob in
+     * the segment deleted.  The live blobs are copied before the mailbox is locked, with a single sync at the end;
+     * the lock is only held to repoint the items that still reference the old blobs.  Copies of blobs that were
+     * deleted in the meantime are marked deleted again.
+     */
+    private int compact(Mailbox mbox, short volumeId, SegmentDirectory segments, BlobSegment segment)
+            throws IOException, ServiceException {
+        Map<String, PackedBlobLocation> copies = new HashMap<String, PackedBlobLocation>();
+        Set<BlobSegment> targets = new HashSet<BlobSegment>();
+        boolean success = false;
+        int moved = 0;
+        try {
+            Map<Long, Long> deleted = segment.getDeleted();
+            for (BlobSegment.Record record : segment.getRecords()) {
+                if (!deleted.containsKey(record.offset)) {
+                    PackedBlobLocation location = new PackedBlobLocation(volumeId, segment.getId(), record.offset,
+                            record.length);
+                    copies.put(location.toString(), copy(segments, segment, location, targets));
+                }
+            }
+            sync(targets);
+
+            String prefix = PackedBlobLocation.getSegmentPrefix(volumeId, segment.getId());
+            Set<String> referenced = new HashSet<String>();
+            mbox.lock.lock();
+            try {
+                DbConnection conn = DbPool.getConnection(mbox);
+                try {
+                    Map<String, List<MailboxBlob.MailboxBlobInfo>> blobs = DbMailItem.getBlobsByLocatorPrefix(conn, mbox, prefix);
+                    for (Map.Entry<String, List<MailboxBlob.MailboxBlobInfo>> entry : blobs.entrySet()) {
+                        String table = entry.getKey();
+                        boolean revisions = table.equals(DbMailItem.getRevisionTableName(mbox, false)) ||
+                                table.equals(DbMailItem.getRevisionTableName(mbox, true));
+                        for (MailboxBlob.MailboxBlobInfo info : entry.getValue()) {
+                            PackedBlobLocation copy = copies.get(info.locator);
+                            if (copy == null) {
+                                // not live when the segment was read; shouldn't happen, but don't lose the blob
+                                copy = copy(segments, segment, PackedBlobLocation.parse(info.locator), targets);
+                                copies.put(info.locator, copy);
+                                sync(targets);
+                            }
+                            referenced.add(info.locator);
+                            DbMailItem.updateLocatorAndDigest(conn, mbox, table, revisions ? "item_id" : "id",
+                                    info.itemId, info.revision, copy.toString(), info.digest);
+                            moved++;
+                        }
+                    }
+                    conn.commit();
+                    success = true;
+                } finally {
+                    if (!success) {
+                        DbPool.quietRollback(conn);
+                    }
+                    DbPool.quietClose(conn);
+                }
+            } finally {
+                if (success) {
+                    // cached items still carry the old locators
+                    mbox.purge(MailItem.Type.UNKNOWN);
+                }
+                mbox.lock.release();
+            }
+            copies.keySet().removeAll(referenced);
+        } finally {
+            // copies of blobs that are no longer referenced, or of every blob if the items weren't repointed
+            for (PackedBlobLocation copy : copies.values()) {
+                getSegment(copy, mbox).markDeleted(copy.getOffset(), copy.getLength());
+            }
+        }
+        // nothing in the segment is referenced any more; it is removed by the next compaction
+        Map<Long, Long> deleted = segment.getDeleted();
+        for (BlobSegment.Record record : segment.getRecords()) {
+            if (!deleted.containsKey(record.offset)) {
+                segment.markDeleted(record.offset, record.length);
+            }
+        }
+        ZimbraLog.store.info("compacted segment %s of mailbox %d, moved %d blobs", segment, mbox.getId(), moved);
+        return moved;
+    }
+
+    /**
+     * Appends a blob to the active segment without syncing it, and adds the segment it went to to
+     * <tt>targets</tt>.
+     */
+    private PackedBlobLocation copy(SegmentDirectory segments, BlobSegment from, PackedBlobLocation location,
+            Set<BlobSegment> targets) throws IOException {
+        InputStream in = from.open(location.getOffset(), location.getLength());
+        try {
+            synchronized (segments) {
+                BlobSegment to = segments.getActive();
+                long offset = to.append(in, location.getLength(), false);
+                targets.add(to);
+                return new PackedBlobLocation(location.getVolumeId(), to.getId(), offset, location.getLength());
+            }
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+    }
+
+    private static void sync(Set<BlobSegment> targets) throws IOException {
+        if (!DebugConfig.disableMessageStoreFsync) {
+            for (BlobSegment target : targets) {
+                target.force();
+            }
+        }
+        targets.clear();
+    }
+
+    private final class CompactionTask extends TimerTask {
+        @Override
+        public void run() {
+            List<Integer> mboxIds = new ArrayList<Integer>(compactionCandidates);
+            for (int mboxId : mboxIds) {
+                compactionCandidates.remove(mboxId);
+                try {
+                    compact(MailboxManager.getInstance().getMailboxById(mboxId));
+                } catch (Throwable t) {
+                    ZimbraLog.store.warn("unable to compact packed blobs of mailbox %d", mboxId, t);
+                }
+            }
+        }
+    }
+}
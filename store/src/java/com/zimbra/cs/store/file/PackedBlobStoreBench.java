@@ -0,0 +1,218 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.CliUtil;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.cs.store.BlobInputStream;
+import com.zimbra.cs.store.FileDescriptorCache;
+import com.zimbra.cs.util.BenchUtil;
+import com.zimbra.cs.util.BenchUtil.Result;
+
+/**
+ * Compares storing small blobs one file per blob, the way {@link FileBlobStore} does, with appending them to
+ * {@link BlobSegment} files, the way {@link PackedBlobStore} does.
+ * <p>
+ * The tool writes N blobs of a fixed size with each layout, into scratch directories under the given
+ * directory, and then reads every blob back in random order.  For each layout it prints ops/sec and the
+ * p50/p99/max latency of a single write or read, and the number of files created.  Drop the page cache
+ * before the read phase (or use more blobs than fit in memory) to measure cold reads.
+ */
+public class PackedBlobStoreBench {
+
+    private static Options sOptions = BenchUtil.newOptions();
+
+    private static final String OPT_COUNT = "n";
+    private static final String OPT_SIZE = "b";
+    private static final String OPT_NO_SYNC = "S";
+
+    static {
+        sOptions.addOption(OPT_COUNT, "count", true, "number of blobs (default 20000)");
+        sOptions.addOption(OPT_SIZE, "bytes", true, "size of each blob in bytes (default 4096)");
+        sOptions.addOption(OPT_NO_SYNC, "nosync", false, "don't fsync after each write");
+    }
+
+    private abstract static class Layout {
+        abstract void write(int id, byte[] data) throws IOException;
+        abstract InputStream read(int id) throws IOException;
+        abstract int getFileCount();
+    }
+
+    /** One file per blob, spread over directories the way {@link FileBlobStore} does. */
+    private static final class FileLayout extends Layout {
+        private final File root;
+        private final boolean sync;
+        private int files;
+
+        FileLayout(File root, boolean sync) {
+            this.root = root;
+            this.sync = sync;
+        }
+
+        private File getFile(int id) {
+            return new File(new File(root, Integer.toString(id >> 12)), id + ".msg");
+        }
+
+        @Override
+        void write(int id, byte[] data) throws IOException {
+            File file = getFile(id);
+            FileUtil.ensureDirExists(file.getParentFile());
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(data);
+                if (sync) {
+                    out.getChannel().force(true);
+                }
+            } finally {
+                out.close();
+            }
+            files++;
+        }
+
+        @Override
+        InputStream read(int id) throws IOException {
+            return new FileInputStream(getFile(id));
+        }
+
+        @Override
+        int getFileCount() {
+            return files;
+        }
+    }
+
+    /** Blobs appended to segments of the configured size. */
+    private static final class PackedLayout extends Layout {
+        private final File root;
+        private final boolean sync;
+        private final long maxSegmentSize;
+        private final int[] segmentIds;
+        private final long[] offsets;
+        private final long[] lengths;
+        private BlobSegment active;
+
+        PackedLayout(File root, boolean sync, int count) throws IOException {
+            this.root = root;
+            this.sync = sync;
+            maxSegmentSize = Math.max(LC.packed_blob_store_segment_size_kb.longValue(), 1) * 1024;
+            segmentIds = new int[count];
+            offsets = new long[count];
+            lengths = new long[count];
+            FileUtil.ensureDirExists(root);
+        }
+
+        @Override
+        void write(int id, byte[] data) throws IOException {
+            if (active == null || active.getSize() >= maxSegmentSize) {
+                active = new BlobSegment(root, active == null ? 0 : active.getId() + 1);
+            }
+            segmentIds[id] = active.getId();
+            offsets[id] = active.append(new ByteArrayInputStream(data), data.length, sync);
+            lengths[id] = data.length;
+        }
+
+        @Override
+        InputStream read(int id) throws IOException {
+            return new BlobSegment(root, segmentIds[id]).open(offsets[id], lengths[id]);
+        }
+
+        @Override
+        int getFileCount() {
+            return active == null ? 0 : active.getId() + 1;
+        }
+    }
+
+    private static Result writeAll(Layout layout, int count, byte[] payload) throws IOException {
+        long[] latencies = new long[count];
+        long begin = System.nanoTime();
+        for (int id = 0; id < count; id++) {
+            long start = System.nanoTime();
+            layout.write(id, payload);
+            latencies[id] = System.nanoTime() - start;
+        }
+        return new Result(latencies, System.nanoTime() - begin);
+    }
+
+    private static Result readAll(Layout layout, int[] order, byte[] buf) throws IOException {
+        long[] latencies = new long[order.length];
+        long begin = System.nanoTime();
+        for (int i = 0; i < order.length; i++) {
+            long start = System.nanoTime();
+            InputStream in = layout.read(order[i]);
+            try {
+                while (in.read(buf) >= 0) {
+                }
+            } finally {
+                ByteUtil.closeStream(in);
+            }
+            latencies[i] = System.nanoTime() - start;
+        }
+        return new Result(latencies, System.nanoTime() - begin);
+    }
+
+    private static void bench(String name, Layout layout, int count, byte[] payload, int[] order) throws IOException {
+        writeAll(layout, count, payload).print(name + " write");
+        readAll(layout, order, new byte[payload.length]).print(name + " read");
+        System.out.printf("%-22s %10d files%n", name, layout.getFileCount());
+    }
+
+    public static void main(String[] args) throws Exception {
+        CliUtil.toolSetup();
+        CommandLine cl = BenchUtil.parse(PackedBlobStoreBench.class, sOptions,
+                "The scratch directory should be on the same file system as the message volume.", args);
+        File dir = BenchUtil.getScratchDir(cl);
+        int count = Integer.parseInt(cl.getOptionValue(OPT_COUNT, "20000"));
+        byte[] payload = new byte[Integer.parseInt(cl.getOptionValue(OPT_SIZE, "4096"))];
+        boolean sync = !cl.hasOption(OPT_NO_SYNC);
+        Random random = new Random(0);
+        random.nextBytes(payload);
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            int j = random.nextInt(i + 1);
+            order[i] = order[j];
+            order[j] = i;
+        }
+
+        // segments are read through the shared file descriptor cache
+        BlobInputStream.setFileDescriptorCache(new FileDescriptorCache(null));
+        System.out.printf("%d blobs of %d bytes, %s%n", count, payload.length, sync ? "fsync per write" : "no fsync");
+        File fileRoot = new File(dir, "bench-files");
+        File packedRoot = new File(dir, "bench-packed");
+        try {
+            bench("file per blob", new FileLayout(fileRoot, sync), count, payload, order);
+            bench("packed", new PackedLayout(packedRoot, sync, count), count, payload, order);
+        } catch (IOException e) {
+            System.err.println("benchmark failed: " + e);
+            System.exit(1);
+        } finally {
+            FileUtil.deleteDir(fileRoot);
+            FileUtil.deleteDir(packedRoot);
+        }
+    }
+}
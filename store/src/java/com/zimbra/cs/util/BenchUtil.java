@@ -0,0 +1,127 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2021 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.util;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Command line handling and reporting shared by the <tt>zmjava</tt> benchmark tools that run against a scratch
+ * directory.
+ */
+public final class BenchUtil {
+
+    public static final String OPT_HELP = "h";
+
+    private BenchUtil() {
+    }
+
+    /**
+     * Adds the help option to the tool's options.
+     */
+    public static Options newOptions() {
+        Options options = new Options();
+        options.addOption(OPT_HELP, "help", false, "show this output");
+        return options;
+    }
+
+    private static void usage(Class<?> tool, Options options, String footer, String errmsg) {
+        if (errmsg != null) {
+            System.err.println(errmsg);
+            System.err.println();
+        }
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("zmjava " + tool.getName() + " [options] <scratch directory>",
+            "where [options] are:\n", options, "\n" + footer);
+        System.exit((errmsg == null) ? 0 : 1);
+    }
+
+    /**
+     * Parses the command line of a tool that takes options and a scratch directory.  Prints the usage and exits
+     * if help is asked for or the command line is invalid.
+     *
+     * @param footer printed below the options
+     */
+    public static CommandLine parse(Class<?> tool, Options options, String footer, String[] args) {
+        CommandLine cl = null;
+        try {
+            cl = new GnuParser().parse(options, args);
+        } catch (ParseException pe) {
+            usage(tool, options, footer, pe.getMessage());
+        }
+        if (cl.hasOption(OPT_HELP)) {
+            usage(tool, options, footer, null);
+        }
+        if (cl.getArgs().length != 1) {
+            usage(tool, options, footer, "No scratch directory specified");
+        }
+        File dir = new File(cl.getArgs()[0]);
+        if (!dir.isDirectory()) {
+            usage(tool, options, footer, dir + " is not a directory");
+        }
+        return cl;
+    }
+
+    /**
+     * Returns the scratch directory of a command line accepted by {@link #parse}.
+     */
+    public static File getScratchDir(CommandLine cl) {
+        return new File(cl.getArgs()[0]);
+    }
+
+    /**
+     * Latencies of the operations of one benchmark run.
+     */
+    public static final class Result {
+        private final long[] latenciesNanos;
+        private final long elapsedNanos;
+
+        /**
+         * @param latenciesNanos latency of each operation; sorted in place
+         * @param elapsedNanos wall clock time of the whole run
+         */
+        public Result(long[] latenciesNanos, long elapsedNanos) {
+            Arrays.sort(latenciesNanos);
+            this.latenciesNanos = latenciesNanos;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long percentileMicros(double pct) {
+            if (latenciesNanos.length == 0) {
+                return 0;
+            }
+            int idx = (int) Math.min(latenciesNanos.length - 1, Math.ceil(pct / 100.0 * latenciesNanos.length) - 1);
+            return TimeUnit.NANOSECONDS.toMicros(latenciesNanos[Math.max(idx, 0)]);
+        }
+
+        public double getOpsPerSec() {
+            return latenciesNanos.length / (elapsedNanos / 1e9);
+        }
+
+        public void print(String name) {
+            System.out.printf("%-22s %10.0f ops/sec   p50 %7d us   p99 %7d us   max %7d us%n",
+                    name, getOpsPerSec(), percentileMicros(50), percentileMicros(99), percentileMicros(100));
+        }
+    }
+}
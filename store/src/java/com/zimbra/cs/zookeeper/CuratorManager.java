@@ -26,6 +26,7 @@ import java.util.TreeSet;
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessReadWriteLock;
 import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.curator.x.discovery.ServiceCache;
@@ -50,6 +51,7 @@ public class CuratorManager {
     private static boolean initialized = false;
 
     private static final String LOCKS = "/locks/";
+    private static final String RWLOCKS = "/rwlocks/";
     private static final String DATA = "/data/";
     private static final String SERVICE = "/service";
 
@@ -113,6 +115,10 @@ public class CuratorManager {
         return new InterProcessSemaphoreMutex(client, LOCKS + id);
     }
 
+    public InterProcessReadWriteLock createReadWriteLock(String id) {
+        return new InterProcessReadWriteLock(client, RWLOCKS + id);
+    }
+
     public void setData(String key, String value) throws Exception {
         byte[] data;
         try {
@@ -276,6 +276,15 @@ public abstract class DocumentHandler {
         return true;
     }
 
+    /** Returns whether the request may run concurrently with its neighbours
+     *  in a <tt>&lt;BatchRequest parallel="1"></tt>.  Only handlers that
+     *  never change backend state and never suspend the request should
+     *  return <tt>true</tt>; anything else runs on its own, after every
+     *  request before it in the batch has finished. */
+    public boolean isParallelizable(Element request) {
+        return false;
+    }
+
     /** Returns whether the client making the SOAP request is localhost. */
     protected boolean clientIsLocal(Map<String, Object> context) {
         HttpServletRequest req = (HttpServletRequest) context.get(SoapServlet.SERVLET_REQUEST);
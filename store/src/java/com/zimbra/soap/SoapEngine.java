@@ -20,7 +20,19 @@ package com.zimbra.soap;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
@@ -30,7 +42,10 @@ import javax.xml.stream.XMLStreamReader;
 
 import org.eclipse.jetty.continuation.ContinuationSupport;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
@@ -67,6 +82,7 @@ import com.zimbra.cs.servlet.util.CsrfUtil;
 import com.zimbra.cs.session.Session;
 import com.zimbra.cs.session.SessionCache;
 import com.zimbra.cs.session.SoapSession;
+import com.zimbra.cs.stats.SlowRequestSampler;
 import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.AccountUtil;
 import com.zimbra.cs.util.BuildInfo;
@@ -111,6 +127,8 @@ public class SoapEngine {
     /** context name of the original user agent */
     public static final String ORIG_REQUEST_USER_AGENT = "orig.request.user.agent";
 
+    private final ThreadPoolExecutor batchExecutor = createBatchExecutor();
+
     private final DocumentDispatcher dispatcher = new DocumentDispatcher();
 
     SoapEngine() {
@@ -460,31 +478,10 @@ public class SoapEngine {
             acknowledgeNotifications(zsc);
 
             if (doc.getQName().equals(ZimbraNamespace.E_BATCH_REQUEST)) {
-                boolean contOnError = doc.getAttribute(ZimbraNamespace.A_ONERROR, ZimbraNamespace.DEF_ONERROR).equals("continue");
-                responseBody = zsc.createElement(ZimbraNamespace.E_BATCH_RESPONSE);
                 if (!isResumed) {
                     ZimbraLog.soap.info(doc.getName());
                 }
-                for (Element req : doc.listElements()) {
-                    String id = req.getAttribute(A_REQUEST_CORRELATOR, null);
-                    long start = System.currentTimeMillis();
-                    Element br = dispatchRequest(dispatcher.getHandler(req), req, context, zsc);
-                    if (!isResumed) {
-                        ZimbraLog.soap.info("(batch) %s elapsed=%d", req.getName(), System.currentTimeMillis() - start);
-                    }
-                    if (id != null) {
-                        br.addAttribute(A_REQUEST_CORRELATOR, id);
-                    }
-                    responseBody.addNonUniqueElement(br);
-                    if (!contOnError && responseProto.isFault(br)) {
-                        break;
-                    }
-                    if (proxyAuthToken != null) {
-                        // requests will invalidate it when proxying locally;
-                        // make sure it's set for each sub-request in batch
-                        zsc.getAuthToken().setProxyAuthToken(proxyAuthToken);
-                    }
-                }
+                responseBody = dispatchBatch(doc, context, zsc, proxyAuthToken, isResumed);
             } else {
                 String id = doc.getAttribute(A_REQUEST_CORRELATOR, null);
                 long start = System.currentTimeMillis();
@@ -530,6 +527,181 @@ public class SoapEngine {
         return responseProto.soapEnvelope(responseBody, responseHeader);
     }
 
+    private static ThreadPoolExecutor createBatchExecutor() {
+        int threads = LC.soap_batch_parallel_threads.intValue();
+        if (threads <= 0) {
+            return null;
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(Math.max(1, LC.soap_batch_parallel_queue_size.intValue())),
+                new ThreadFactoryBuilder().setNameFormat("SoapBatch-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Handles the requests in a <tt>&lt;BatchRequest></tt>.  With <tt>parallel="1"</tt>, each run of consecutive
+     * requests whose handlers are {@link DocumentHandler#isParallelizable(Element) parallelizable} is dispatched
+     * concurrently on the batch executor.  Any other request runs by itself once everything before it is done, so
+     * requests that take a mailbox write lock never overlap with the rest of the batch.  Responses are returned in
+     * request order either way.
+     */
+    @VisibleForTesting
+    Element dispatchBatch(Element doc, Map<String, Object> context, ZimbraSoapContext zsc,
+            String proxyAuthToken, boolean isResumed) {
+        SoapProtocol responseProto = zsc.getResponseProtocol();
+        boolean contOnError = doc.getAttribute(ZimbraNamespace.A_ONERROR, ZimbraNamespace.DEF_ONERROR).equals("continue");
+        boolean parallel = false;
+        if (batchExecutor != null) {
+            try {
+                parallel = doc.getAttributeBool(ZimbraNamespace.A_PARALLEL, false);
+            } catch (ServiceException e) {
+                return soapFault(responseProto, "cannot dispatch request", e);
+            }
+        }
+
+        Element responseBody = zsc.createElement(ZimbraNamespace.E_BATCH_RESPONSE);
+        List<Element> requests = doc.listElements();
+        List<DocumentHandler> handlers = new ArrayList<DocumentHandler>(requests.size());
+        for (Element req : requests) {
+            handlers.add(dispatcher.getHandler(req));
+        }
+        int next = 0;
+        while (next < requests.size()) {
+            int end = next + 1;
+            if (parallel && isParallelizable(handlers.get(next), requests.get(next))) {
+                while (end < requests.size() && isParallelizable(handlers.get(end), requests.get(end))) {
+                    end++;
+                }
+            }
+            List<Element> group = requests.subList(next, end);
+            List<Element> responses = null;
+            if (group.size() > 1) {
+                responses = dispatchConcurrently(handlers.subList(next, end), group, context, zsc, isResumed);
+                if (responses == null) {
+                    // the requests can't get their own auth tokens; run the rest of the batch one at a time
+                    parallel = false;
+                    end = next + 1;
+                    group = requests.subList(next, end);
+                }
+            }
+            if (responses == null) {
+                Element req = group.get(0);
+                long start = System.currentTimeMillis();
+                responses = Collections.singletonList(dispatchRequest(handlers.get(next), req, context, zsc));
+                if (!isResumed) {
+                    ZimbraLog.soap.info("(batch) %s elapsed=%d", req.getName(), System.currentTimeMillis() - start);
+                }
+            }
+            next = end;
+
+            for (int i = 0; i < group.size(); i++) {
+                Element br = responses.get(i);
+                String id = group.get(i).getAttribute(A_REQUEST_CORRELATOR, null);
+                if (id != null) {
+                    br.addAttribute(A_REQUEST_CORRELATOR, id);
+                }
+                responseBody.addNonUniqueElement(br);
+                if (!contOnError && responseProto.isFault(br)) {
+                    return responseBody;
+                }
+            }
+            if (proxyAuthToken != null) {
+                // requests will invalidate it when proxying locally;
+                // make sure it's set for each sub-request in batch (concurrent requests only change their copies)
+                zsc.getAuthToken().setProxyAuthToken(proxyAuthToken);
+            }
+        }
+        return responseBody;
+    }
+
+    private static boolean isParallelizable(DocumentHandler handler, Element request) {
+        return handler != null && handler.isParallelizable(request);
+    }
+
+    /**
+     * Dispatches a run of parallelizable batched requests on the batch executor and waits for all of them.  Requests
+     * the executor can't take are run on the calling thread.  Each request gets its own copy of the
+     * {@link ZimbraSoapContext} and its auth token, since proxying changes the auth token.
+     *
+     * @return the responses in request order, or <tt>null</tt> if the auth token can't be copied and the requests
+     *         have to be dispatched one at a time
+     */
+    private List<Element> dispatchConcurrently(List<DocumentHandler> handlers, List<Element> requests,
+            final Map<String, Object> context, ZimbraSoapContext zsc, final boolean isResumed) {
+        // fault in the session up front; the first request to get one records it in the ZimbraSoapContext, and
+        // the copies share it
+        for (DocumentHandler handler : handlers) {
+            handler.getSession(zsc);
+        }
+        List<ZimbraSoapContext> contexts = new ArrayList<ZimbraSoapContext>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            ZimbraSoapContext copy;
+            try {
+                copy = zsc.copyForConcurrentRequest();
+            } catch (ServiceException e) {
+                LOG.warn("cannot copy soap context for concurrent batch requests", e);
+                copy = null;
+            }
+            if (copy == null) {
+                return null;
+            }
+            contexts.add(copy);
+        }
+
+        final Map<String, String> logContext = ZimbraLog.getContextMap();
+        List<Future<Element>> pending = new ArrayList<Future<Element>>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            final DocumentHandler handler = handlers.get(i);
+            final Element req = requests.get(i);
+            final ZimbraSoapContext reqZsc = contexts.get(i);
+            Callable<Element> task = new Callable<Element>() {
+                @Override
+                public Element call() {
+                    ZimbraLog.setContext(logContext);
+                    try {
+                        long start = System.currentTimeMillis();
+                        // each request gets its own copy, since dispatchRequest() stores the request's session in it
+                        Map<String, Object> reqContext = new HashMap<String, Object>(context);
+                        reqContext.put(ZIMBRA_CONTEXT, reqZsc);
+                        Element response = dispatchRequest(handler, req, reqContext, reqZsc);
+                        if (!isResumed) {
+                            ZimbraLog.soap.info("(batch) %s elapsed=%d", req.getName(),
+                                    System.currentTimeMillis() - start);
+                        }
+                        return response;
+                    } finally {
+                        ZimbraLog.clearContext();
+                    }
+                }
+            };
+            try {
+                pending.add(batchExecutor.submit(task));
+            } catch (RejectedExecutionException e) {
+                // the batch queue is full; run the request on this thread
+                FutureTask<Element> inline = new FutureTask<Element>(task);
+                inline.run();
+                pending.add(inline);
+            }
+        }
+
+        SoapProtocol soapProto = zsc.getResponseProtocol();
+        List<Element> responses = new ArrayList<Element>(requests.size());
+        for (int i = 0; i < pending.size(); i++) {
+            Element response;
+            try {
+                response = Uninterruptibles.getUninterruptibly(pending.get(i));
+            } catch (ExecutionException e) {
+                LOG.warn("handler exception", e.getCause());
+                response = soapProto.soapFault(ServiceException.FAILURE(e.getCause().toString(), e.getCause()));
+            }
+            responses.add(response);
+        }
+        // the inline tasks cleared this thread's logging context
+        ZimbraLog.setContext(logContext);
+        return responses;
+    }
+
     private Element getSoapContextElement(SoapProtocol soapProto, Element envelope) throws ServiceException {
         Element contextElmt = null;
         if (soapProto != null && soapProto.getHeader(envelope) != null) {
@@ -643,8 +815,10 @@ public class SoapEngine {
                 if (delegatedAuth) {
                     handler.logAuditAccess(at.getAdminAccountId(), acctId, acctId);
                 }
+                SlowRequestSampler.begin();
                 response = handler.handle(soapReqElem, context);
                 ZimbraPerf.SOAP_TRACKER.addStat(getStatName(soapReqElem), startTime);
+                ZimbraPerf.SOAP_SAMPLER.end(getStatName(soapReqElem), zsc.getRequestedAccountId(), startTime);
                 long duration = System.currentTimeMillis() - startTime;
                 if (LC.zimbra_slow_logging_enabled.booleanValue() && duration > LC.zimbra_slow_logging_threshold.longValue() &&
                         !soapReqElem.getQName().getName().equals(MailConstants.SYNC_REQUEST.getName())) {
@@ -34,6 +34,7 @@ import com.zimbra.common.util.LoadingCacheUtil;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
 import com.zimbra.common.util.RemoteIP;
+import com.zimbra.common.util.Utf8Appendable;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.common.util.ZimbraServletOutputStream;
 import com.zimbra.cs.account.Provisioning;
@@ -390,11 +391,23 @@ public class SoapServlet extends ZimbraServlet {
             envelope.output(out);
             out.flush();
         } else {
-            // serialize the envelope to a byte array and send the response with Content-Length header.
-            byte[] soapBytes = envelope.toUTF8();
-            resp.setContentLength(soapBytes.length);
-            resp.getOutputStream().write(soapBytes);
-            resp.getOutputStream().flush();
+            // encode the envelope into a buffer, spilling to disk if it gets big, and send the response
+            // with Content-Length header.
+            BufferStream buffer = new BufferStream(0, LC.soap_response_max_memory_size.intValue());
+            try {
+                Utf8Appendable out = new Utf8Appendable(buffer,
+                        LC.zimbra_servlet_output_stream_buffer_size.intValueWithinRange(512, 20480));
+                envelope.output(out);
+                out.flush();
+                if (buffer.isPartial()) {
+                    throw new IOException("unable to buffer SOAP response of " + buffer.getSize() + " bytes");
+                }
+                resp.setContentLength((int) buffer.getSize());
+                buffer.writeTo(resp.getOutputStream());
+                resp.getOutputStream().flush();
+            } finally {
+                buffer.close();
+            }
         }
         envelope.destroy();
     }
@@ -269,6 +269,50 @@ public final class ZimbraSoapContext {
         }
     }
 
+    /** Creates a copy of <code>zsc</code> for the same request, with <code>authToken</code> in place of its
+     *  auth token.  See {@link #copyForConcurrentRequest()}. */
+    private ZimbraSoapContext(ZimbraSoapContext zsc, AuthToken authToken) throws ServiceException {
+        mRawAuthToken = zsc.mRawAuthToken == null || authToken == null ?
+                zsc.mRawAuthToken : authToken.toZAuthToken();
+        mAuthToken = authToken;
+        mAuthTokenAccountId = zsc.mAuthTokenAccountId;
+        mRequestedAccountId = zsc.mRequestedAccountId;
+        mRequestProtocol = zsc.mRequestProtocol;
+        mResponseProtocol = zsc.mResponseProtocol;
+        mChangeConstraintType = zsc.mChangeConstraintType;
+        mMaximumChangeId = zsc.mMaximumChangeId;
+        mSessionEnabled = zsc.mSessionEnabled;
+        mSessionProxied = zsc.mSessionProxied;
+        mSessionInfo = zsc.mSessionInfo;
+        mUnqualifiedItemIds = zsc.mUnqualifiedItemIds;
+        mWaitForNotifications = zsc.mWaitForNotifications;
+        mCanceledWaitForNotifications = zsc.mCanceledWaitForNotifications;
+        continuationResume = zsc.continuationResume;
+        mProxyTarget = zsc.mProxyTarget;
+        mIsProxyRequest = zsc.mIsProxyRequest;
+        mHopCount = zsc.mHopCount;
+        mMountpointTraversed = zsc.mMountpointTraversed;
+        mOriginalUserAgent = zsc.mOriginalUserAgent;
+        mUserAgent = zsc.mUserAgent;
+        mRequestIP = zsc.mRequestIP;
+        mPort = zsc.mPort;
+        mVia = zsc.mVia;
+        soapRequestId = zsc.soapRequestId;
+        mNotificationFormat = zsc.mNotificationFormat;
+        mCurWaitSetID = zsc.mCurWaitSetID;
+    }
+
+    /** Returns a copy of this context for one of several requests of a batch that run at the same time.  The
+     *  copy has its own copy of the auth token, since proxying a request sets the auth token's proxy auth token
+     *  in place.  Returns <tt>null</tt> if the auth token can't be copied. */
+    ZimbraSoapContext copyForConcurrentRequest() throws ServiceException {
+        if (mAuthToken == null) {
+            return new ZimbraSoapContext(this, (AuthToken) null);
+        }
+        AuthToken copy = mAuthToken.copy();
+        return copy == null ? null : new ZimbraSoapContext(this, copy);
+    }
+
     /**
      * Creates a {@link ZimbraSoapContext} from the {@code <context>}
      * {@link Element} from the SOAP header.